@@ -279,6 +279,9 @@ public class Core implements LabelsAwareModule {
 
     Sequence sequenceTransform = Sequence.fromConfig(generalOptions.profiler(),
         workflowOptions.joinTransformations(),
+        workflowOptions.transformationsParallelizer(),
+        workflowOptions.parallelizer(),
+        workflowOptions.fileOverlayMaxSize,
         transformations, "transformations", dynamicEnvironment);
     Transformation reverseTransform = null;
     if (!generalOptions.isDisableReversibleCheck()
@@ -420,7 +423,8 @@ public class Core implements LabelsAwareModule {
             + " transformation.");
 
     return CopyOrMove.createMove(before, after, workflowOptions,
-        convertFromNoneable(paths, Glob.ALL_FILES), overwrite, location);
+        convertFromNoneable(paths, Glob.ALL_FILES), overwrite, location,
+        generalOptions.profiler());
   }
 
   @SuppressWarnings("unused")
@@ -468,7 +472,8 @@ public class Core implements LabelsAwareModule {
         "Copying from the same folder to the same folder is a noop. Remove the"
             + " transformation.");
     return CopyOrMove.createCopy(before, after, workflowOptions,
-        convertFromNoneable(paths, Glob.ALL_FILES), overwrite, location);
+        convertFromNoneable(paths, Glob.ALL_FILES), overwrite, location,
+        generalOptions.profiler());
   }
 
   @SuppressWarnings("unused")
@@ -496,7 +501,7 @@ public class Core implements LabelsAwareModule {
           + "    reversal = [core.remove(glob(['foo/static/**.css', 'foo/static/**.html']))]\n"
           + ")")
   public Remove remove(Glob paths, Location location) {
-    return new Remove(paths, workflowOptions, location);
+    return new Remove(paths, workflowOptions, location, generalOptions.profiler());
   }
 
   @SuppressWarnings("unused")
@@ -606,7 +611,9 @@ public class Core implements LabelsAwareModule {
         multiline,
         repeatedGroups,
         Type.STRING_LIST.convert(ignore, "patterns_to_ignore"),
-        workflowOptions);
+        workflowOptions,
+        workflowOptions.transformCache(generalOptions.getDirFactory()),
+        generalOptions.profiler());
   }
 
   @SuppressWarnings("unused")
@@ -677,7 +684,7 @@ public class Core implements LabelsAwareModule {
       check(location, mapping.isEmpty(), "'mapping' cannot be used with mode %s", mode);
     }
     return new TodoReplace(location, convertFromNoneable(paths, Glob.ALL_FILES), tags, mode,
-        mapping, defaultString, workflowOptions.parallelizer());
+        mapping, defaultString, workflowOptions, generalOptions.profiler());
   }
 
   @SuppressWarnings("unused")
@@ -710,7 +717,10 @@ public class Core implements LabelsAwareModule {
         regex,
         convertFromNoneable(paths, Glob.ALL_FILES),
         verifyNoMatch,
-        workflowOptions.parallelizer());
+        workflowOptions.parallelizer(),
+        workflowOptions.negativeMatchCache(),
+        generalOptions.profiler(),
+        workflowOptions.verifyMatchFailFast);
   }
 
   @SuppressWarnings("unused")
@@ -761,6 +771,9 @@ public class Core implements LabelsAwareModule {
       throws EvalException {
     Sequence forward = Sequence.fromConfig(generalOptions.profiler(),
         workflowOptions.joinTransformations(),
+        workflowOptions.transformationsParallelizer(),
+        workflowOptions.parallelizer(),
+        workflowOptions.fileOverlayMaxSize,
         transformations,
         "transformations",
         dynamicEnvironment);
@@ -781,6 +794,9 @@ public class Core implements LabelsAwareModule {
         Sequence.fromConfig(
             generalOptions.profiler(),
             workflowOptions.joinTransformations(),
+            workflowOptions.transformationsParallelizer(),
+            workflowOptions.parallelizer(),
+            workflowOptions.fileOverlayMaxSize,
             reverseList,
             "reversal",
             dynamicEnvironment);
@@ -823,7 +839,7 @@ public class Core implements LabelsAwareModule {
   public Transformation dynamic_transform(BaseFunction impl, SkylarkDict<?, ?> params,
       Environment env) {
     return new SkylarkTransformation(impl, SkylarkDict.<Object, Object>copyOf(env, params),
-        dynamicEnvironment);
+        dynamicEnvironment, generalOptions.profiler(), workflowOptions.parallelizer());
   }
 
   @SuppressWarnings("unused")
@@ -17,42 +17,32 @@
 package com.google.copybara;
 
 import static com.google.common.base.Preconditions.checkNotNull;
-import static com.google.common.base.Preconditions.checkState;
 
 import com.google.copybara.exception.NotADestinationFileException;
+import com.google.copybara.treestate.TreeState;
+import com.google.copybara.treestate.TreeState.FileState;
+import com.google.copybara.util.FileUtil;
 import com.google.copybara.util.Glob;
 import java.io.IOException;
-import java.nio.file.FileVisitResult;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 
 /**
- * Visitor that verifies that all files in a checkout dir match the {@code destination_files} glob.
+ * Verifies that all files in a checkout dir match the {@code destination_files} glob.
  */
-class ValidateDestinationFilesVisitor extends SimpleFileVisitor<Path> {
+class DestinationFilesValidator {
 
   private final PathMatcher destinationFiles;
   private final Path checkoutDir;
-  private ArrayList<Path> invalidPaths;
 
-  ValidateDestinationFilesVisitor(Glob destinationFiles, Path checkoutDir) {
+  DestinationFilesValidator(Glob destinationFiles, Path checkoutDir) {
     this.destinationFiles = destinationFiles.relativeTo(checkoutDir);
     this.checkoutDir = checkNotNull(checkoutDir, "checkoutDir");
   }
 
-  @Override
-  public FileVisitResult visitFile(Path file, BasicFileAttributes attr) {
-    if (!destinationFiles.matches(file)) {
-      invalidPaths.add(checkoutDir.relativize(file));
-    }
-    return FileVisitResult.CONTINUE;
-  }
-
   /**
    * Checks that all paths in the checkout dir match {@code destinationFiles}. If any one does not,
    * it throws an exception which indicates that the {@code destination_files} setting in the config
@@ -65,13 +55,16 @@ class ValidateDestinationFilesVisitor extends SimpleFileVisitor<Path> {
    * {@code destination_files} glob is often used to determine if a path not in the origin should be
    * preserved.
    *
+   * <p>The files are looked up in {@code treeState}, so the checkout dir is only walked if the
+   * transformations didn't keep it up to date.
+   *
    * @throws NotADestinationFileException if the given path does not match the {@link PathMatcher}
    */
-  void verifyFilesToWrite() throws NotADestinationFileException, IOException {
-    checkState(invalidPaths == null,
-        "This method already ran with the following results: %s", invalidPaths);
-    this.invalidPaths = new ArrayList<>();
-    Files.walkFileTree(checkoutDir, this);
+  void verifyFilesToWrite(TreeState treeState) throws NotADestinationFileException, IOException {
+    List<Path> invalidPaths = new ArrayList<>();
+    for (FileState file : treeState.find(FileUtil.notPathMatcher(destinationFiles))) {
+      invalidPaths.add(checkoutDir.relativize(file.getPath()));
+    }
 
     if (!invalidPaths.isEmpty()) {
       Collections.sort(invalidPaths);
@@ -21,34 +21,53 @@ import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
-import com.google.common.util.concurrent.Futures;
-import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListeningExecutorService;
-import com.google.common.util.concurrent.MoreExecutors;
 import com.google.copybara.exception.ValidationException;
+import com.google.copybara.profiler.Profiler;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import javax.annotation.Nullable;
 
 /**
  * A class that allows to run a list of things in parallel batches.
+ *
+ * <p>The list is split in several small batches per thread, so that a batch with a few big
+ * elements doesn't keep one thread busy while the rest are idle. Batches are run in a
+ * work-stealing pool that is shared by all the instances with the same number of threads, and
+ * that lives until {@link #shutdownPools()} is called. {@link #runConcurrently} uses another
+ * pool with the same lifetime.
  */
 public class LocalParallelizer {
 
+  /** Number of batches per thread that we try to create. */
+  private static final int BATCHES_PER_THREAD = 4;
+
+  private static final Map<Integer, ForkJoinPool> pools = new ConcurrentHashMap<>();
+  private static final Map<Integer, ForkJoinPool> concurrentPools = new ConcurrentHashMap<>();
+
   private final int threads;
   private final int minSize;
-  private final ListeningExecutorService executor;
 
   public LocalParallelizer(int threads, int minSize) {
     this.threads = threads;
     this.minSize = minSize;
     Preconditions.checkState(threads >= 1, "Threads need to be positive");
     Preconditions.checkState(threads < 1000, "Too many threads (max: 1000)");
-    executor = threads == 1
-        ? null
-        : MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threads));
   }
 
   /**
@@ -56,25 +75,208 @@ public class LocalParallelizer {
    */
   public <K, V> List<V> run(Iterable<K> list, TransformFunc<K, V> func)
       throws IOException, ValidationException {
+    return run(list, e -> 1, func, /*profiler=*/null);
+  }
+
+  /**
+   * Run a list of things in batches, calling {@code func} for each batch.
+   *
+   * <p>Batches are created so that they have a similar total {@code weigher} weight (for example
+   * the size of the files to process), and run heaviest first. If {@code profiler} is not null,
+   * the time spent in each batch is recorded as a child of the current profiler task.
+   *
+   * <p>The results are returned in the same order as the elements of {@code list}.
+   */
+  public <K, V> List<V> run(Iterable<K> list, Weigher<K> weigher,
+      TransformFunc<K, V> func, @Nullable Profiler profiler)
+      throws IOException, ValidationException {
+    return run(list, weigher, func, profiler, v -> false);
+  }
+
+  /**
+   * Like {@link #run(Iterable, Weigher, TransformFunc, Profiler)}, but once a batch returns a
+   * result that satisfies {@code stopWhen}, the batches that didn't start yet are cancelled. Only
+   * the results of the batches that were not cancelled are returned.
+   */
+  public <K, V> List<V> run(Iterable<K> list, Weigher<K> weigher,
+      TransformFunc<K, V> func, @Nullable Profiler profiler, Predicate<? super V> stopWhen)
+      throws IOException, ValidationException {
     if (threads == 1 || Iterables.size(list) < minSize) {
       return ImmutableList.of(func.run(list));
     }
-    List<ListenableFuture<V>> results = new ArrayList<>(threads);
-    List<K> newList = Lists.newArrayList(list);
-    for (List<K> batch : Lists.partition(newList, Math.max(1, newList.size() / threads))) {
-      results.add(executor.submit(() -> func.run(batch)));
+    List<K> elements = Lists.newArrayList(list);
+    long[] elementWeights = new long[elements.size()];
+    for (int i = 0; i < elements.size(); i++) {
+      elementWeights[i] = weigher.weigh(elements.get(i));
+    }
+    List<Long> weights = new ArrayList<>();
+    List<List<K>> batches = createBatches(elements, elementWeights, weights);
+    long[] elapsedNanos = new long[batches.size()];
+
+    ForkJoinPool pool = pools.computeIfAbsent(threads, ForkJoinPool::new);
+    // Read from the batches that cancel the rest while the others are still being submitted.
+    AtomicReferenceArray<ForkJoinTask<V>> results = new AtomicReferenceArray<>(batches.size());
+    AtomicBoolean stopped = new AtomicBoolean();
+    // Heaviest batches first, so that the small ones fill the gaps at the end.
+    List<Integer> submitOrder = IntStream.range(0, batches.size()).boxed()
+        .sorted(Comparator.comparing(weights::get).reversed())
+        .collect(Collectors.toList());
+    for (int i : submitOrder) {
+      if (stopped.get()) {
+        break;
+      }
+      List<K> batch = batches.get(i);
+      results.set(i, pool.submit(() -> {
+        long start = System.nanoTime();
+        V value;
+        try {
+          value = func.run(batch);
+        } finally {
+          elapsedNanos[i] = System.nanoTime() - start;
+        }
+        if (stopWhen.test(value) && stopped.compareAndSet(false, true)) {
+          for (int j = 0; j < results.length(); j++) {
+            ForkJoinTask<V> other = results.get(j);
+            // Running batches are not interrupted. This one is finishing, so it is not cancelled.
+            if (j != i && other != null) {
+              other.cancel(/*mayInterruptIfRunning=*/false);
+            }
+          }
+        }
+        return value;
+      }));
+    }
+    List<ForkJoinTask<V>> submitted = new ArrayList<>(batches.size());
+    for (int i = 0; i < batches.size(); i++) {
+      submitted.add(results.get(i));
+    }
+    List<V> values = new ArrayList<>(batches.size());
+    List<Integer> completed = new ArrayList<>(batches.size());
+    await(submitted, (i, value) -> {
+      values.add(value);
+      completed.add(i);
+    });
+    if (profiler != null) {
+      for (int i : completed) {
+        profiler.simpleTask(
+            String.format("batch_%d (%d elements, weight %d)", i, batches.get(i).size(),
+                weights.get(i)),
+            elapsedNanos[i]);
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Runs each of {@code tasks} in its own thread and returns their results in the same order.
+   *
+   * <p>The tasks run in a pool separate from the one of the batches, so that they can call
+   * {@link #run} without blocking threads that their own batches need.
+   */
+  public <V> List<V> runConcurrently(List<Callable<V>> tasks)
+      throws IOException, ValidationException {
+    ForkJoinPool pool = concurrentPools.computeIfAbsent(threads, ForkJoinPool::new);
+    List<ForkJoinTask<V>> results = new ArrayList<>(tasks.size());
+    for (Callable<V> task : tasks) {
+      results.add(pool.submit(task));
     }
+    List<V> values = new ArrayList<>(tasks.size());
+    await(results, (i, value) -> values.add(value));
+    return values;
+  }
+
+  /**
+   * Waits for {@code results} in order and passes the index and value of each one to
+   * {@code consumer}. Null and cancelled tasks are skipped.
+   */
+  private static <V> void await(List<ForkJoinTask<V>> results, BiConsumer<Integer, V> consumer)
+      throws IOException, ValidationException {
     try {
-      return Futures.allAsList(results).get();
+      for (int i = 0; i < results.size(); i++) {
+        ForkJoinTask<V> result = results.get(i);
+        if (result == null) {
+          continue;
+        }
+        V value;
+        try {
+          value = result.get();
+        } catch (CancellationException e) {
+          continue;
+        }
+        consumer.accept(i, value);
+      }
     } catch (InterruptedException e) {
+      results.stream()
+          .filter(Objects::nonNull)
+          .forEach(r -> r.cancel(/*mayInterruptIfRunning=*/true));
       Thread.currentThread().interrupt();
       //TODO We cannot do much here. We might expose InterruptedException all the way up to Main...
       throw new RuntimeException("Interrupted", e);
     } catch (ExecutionException e) {
-      Throwables.propagateIfPossible(e.getCause(), IOException.class, ValidationException.class);
+      // ForkJoinPool wraps the checked exceptions thrown by a Callable in RuntimeExceptions.
+      for (Throwable cause : Throwables.getCausalChain(e.getCause())) {
+        if (!(cause instanceof RuntimeException)) {
+          Throwables.propagateIfPossible(cause, IOException.class, ValidationException.class);
+          break;
+        }
+      }
       throw new RuntimeException("Unhandled error", e.getCause());
+    }
+  }
+
+  /**
+   * Splits {@code list} in consecutive batches of similar weight. A batch is closed when it
+   * reaches the target weight or the target number of elements, so that lists of many cheap
+   * elements are split too.
+   */
+  private <K> List<List<K>> createBatches(List<K> list, long[] elementWeights,
+      List<Long> batchWeights) {
+    int targetBatches = threads * BATCHES_PER_THREAD;
+    long totalWeight = 0;
+    for (long weight : elementWeights) {
+      totalWeight += weight;
+    }
+    long targetWeight = Math.max(1, totalWeight / targetBatches);
+    int targetSize = Math.max(1, (list.size() + targetBatches - 1) / targetBatches);
 
+    List<List<K>> batches = new ArrayList<>();
+    int start = 0;
+    long weight = 0;
+    for (int i = 0; i < list.size(); i++) {
+      weight += elementWeights[i];
+      if (weight >= targetWeight || i + 1 - start >= targetSize) {
+        batches.add(list.subList(start, i + 1));
+        batchWeights.add(weight);
+        start = i + 1;
+        weight = 0;
+      }
+    }
+    if (start < list.size()) {
+      batches.add(list.subList(start, list.size()));
+      batchWeights.add(weight);
     }
+    return batches;
+  }
+
+  /**
+   * Shuts down the shared thread pools. Running batches are allowed to finish. Pools are created
+   * again if a parallelizer is used afterwards.
+   */
+  public static void shutdownPools() {
+    for (Map<Integer, ForkJoinPool> poolMap : ImmutableList.of(pools, concurrentPools)) {
+      for (Integer threads : ImmutableList.copyOf(poolMap.keySet())) {
+        ForkJoinPool pool = poolMap.remove(threads);
+        if (pool != null) {
+          pool.shutdown();
+        }
+      }
+    }
+  }
+
+  /** Computes the relative cost of processing an element. */
+  public interface Weigher<K> {
+
+    long weigh(K element) throws IOException;
   }
 
   /** Transforms a collection of K elements into T. */
@@ -40,6 +40,8 @@ import com.google.copybara.exception.RepoException;
 import com.google.copybara.exception.ValidationException;
 import com.google.copybara.profiler.LogProfilerListener;
 import com.google.copybara.profiler.Profiler;
+import com.google.copybara.transform.TransformStatsListener;
+import com.google.copybara.util.CommandRunner;
 import com.google.copybara.util.ExitCode;
 import com.google.copybara.util.console.AnsiConsole;
 import com.google.copybara.util.console.Console;
@@ -412,7 +414,13 @@ public class Main {
       throws ValidationException, IOException, RepoException {
     GeneralOptions generalOptions = options.get(GeneralOptions.class);
     profiler = generalOptions.profiler();
-    profiler.init(ImmutableList.of(new LogProfilerListener()));
+    WorkflowOptions workflowOptions = options.get(WorkflowOptions.class);
+    // The stats are always sent to the event monitor, and also written to a file if requested.
+    profiler.init(ImmutableList.of(new LogProfilerListener(),
+        new TransformStatsListener(generalOptions::eventMonitor,
+            workflowOptions.transformStats == null
+                ? null
+                : generalOptions.getFileSystem().getPath(workflowOptions.transformStats))));
     cleanupOutputDir(generalOptions);
   }
 
@@ -442,6 +450,13 @@ public class Main {
     if (console != null) {
       console.close();
     }
+    LocalParallelizer.shutdownPools();
+    CommandRunner.deleteUnreadOutputs();
+    if (result.getCommandEnv() != null) {
+      for (Option option : result.getCommandEnv().getOptions().getAll()) {
+        option.shutdown();
+      }
+    }
     if (profiler != null) {
       profiler.stop();
     }
@@ -20,4 +20,10 @@ package com.google.copybara;
  * An {@code Option} indicates a class has options usable by copybara's config system.
  */
 public interface Option {
+
+  /**
+   * Releases the resources kept by the module for the whole execution, like long-lived processes.
+   * Called by Main once the command has finished.
+   */
+  default void shutdown() {}
 }
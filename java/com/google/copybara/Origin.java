@@ -70,6 +70,25 @@ public interface Origin<R extends Revision> extends ConfigItemDescription {
      */
     void checkout(R ref, Path workdir) throws RepoException, ValidationException;
 
+    /**
+     * Like {@link #checkout} but {@code workdir} might contain the result of a previous call to
+     * this method with another revision, that implementations can update by only writing the
+     * files that differ between both revisions. Implementations can keep the state that they need
+     * in sibling files of {@code workdir} prefixed with its name.
+     *
+     * <p>Callers modify {@code workdir} between calls (transformations run in place), so
+     * implementations must detect and restore any file modified, added or removed since the
+     * previous call. Files that don't match origin_files might be missing from {@code workdir}.
+     *
+     * <p>Returns false, without touching {@code workdir}, if the reader cannot do incremental
+     * checkouts (for example because of its configuration), in which case a regular checkout
+     * should be used.
+     */
+    default boolean checkoutIncrementally(R ref, Path workdir)
+        throws RepoException, ValidationException {
+      return false;
+    }
+
     /**
      * Returns the changes that happen in the interval (fromRef, toRef].
      *
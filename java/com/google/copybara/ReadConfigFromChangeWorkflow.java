@@ -23,6 +23,7 @@ import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
 import com.google.copybara.Destination.Writer;
 import com.google.copybara.Origin.Reader;
+import com.google.copybara.WorkflowRunHelper.IncrementalCheckout;
 import com.google.copybara.config.Config;
 import com.google.copybara.config.ConfigValidator;
 import com.google.copybara.config.Migration;
@@ -105,7 +106,8 @@ public class ReadConfigFromChangeWorkflow<O extends Revision, D extends Revision
         this.isDryRunMode(),
         /*oldWriter=*/ null,
         reader,
-        rawSourceRef);
+        rawSourceRef,
+        new IncrementalCheckout());
   }
 
   @Override
@@ -131,7 +133,8 @@ public class ReadConfigFromChangeWorkflow<O extends Revision, D extends Revision
         boolean dryRun,
         @Nullable Writer<D> oldWriter,
         Reader<O> originReader,
-        @Nullable String rawSourceRef)
+        @Nullable String rawSourceRef,
+        IncrementalCheckout incrementalCheckout)
         throws ValidationException, RepoException {
 
       super(
@@ -149,7 +152,8 @@ public class ReadConfigFromChangeWorkflow<O extends Revision, D extends Revision
                       dryRun,
                       resolvedRef,
                       oldWriter)),
-          rawSourceRef);
+          rawSourceRef,
+          incrementalCheckout);
       this.workflow = workflow;
       this.options = checkNotNull(options, "options");
       this.workflowName = checkNotNull(workflowName, "workflowName");
@@ -198,7 +202,8 @@ public class ReadConfigFromChangeWorkflow<O extends Revision, D extends Revision
               workflowForChange
                   .getOrigin()
                   .newReader(workflowForChange.getOriginFiles(), workflowForChange.getAuthoring()),
-              rawSourceRef);
+              rawSourceRef,
+              getIncrementalCheckout());
       lastWriter = helper.writer;
       return helper;
     }
@@ -216,7 +221,8 @@ public class ReadConfigFromChangeWorkflow<O extends Revision, D extends Revision
           /*dryRun=*/ true,
           /*oldWriter=*/ writer,
           workflow.getOrigin().newReader(workflow.getOriginFiles(), workflow.getAuthoring()),
-          rawSourceRef);
+          rawSourceRef,
+          getIncrementalCheckout());
     }
   }
 }
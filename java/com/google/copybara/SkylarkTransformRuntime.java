@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara;
+
+import com.google.common.base.Preconditions;
+import com.google.copybara.profiler.Profiler;
+import com.google.devtools.build.lib.syntax.Environment;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
+
+/**
+ * What the batched file functions of a {@link TransformWork} use when called from a Skylark
+ * transformation: the profiler to record the calls and, to run Skylark functions concurrently for
+ * different files, a parallelizer and a supplier of independent Skylark environments.
+ */
+public class SkylarkTransformRuntime {
+
+  private final Profiler profiler;
+  @Nullable
+  private final LocalParallelizer parallelizer;
+  private final Supplier<Environment> dynamicEnv;
+
+  public SkylarkTransformRuntime(Profiler profiler, @Nullable LocalParallelizer parallelizer,
+      Supplier<Environment> dynamicEnv) {
+    this.profiler = Preconditions.checkNotNull(profiler);
+    this.parallelizer = parallelizer;
+    this.dynamicEnv = Preconditions.checkNotNull(dynamicEnv);
+  }
+
+  public Profiler getProfiler() {
+    return profiler;
+  }
+
+  /** Returns the parallelizer for running per-file work, or null if it has to run serially. */
+  @Nullable
+  public LocalParallelizer getParallelizer() {
+    return parallelizer;
+  }
+
+  /**
+   * Returns a new environment for calling Skylark functions. Environments cannot be shared between
+   * threads.
+   */
+  public Environment newEnvironment() {
+    return dynamicEnv.get();
+  }
+}
@@ -31,8 +31,13 @@ import com.google.common.flogger.FluentLogger;
 import com.google.copybara.authoring.Author;
 import com.google.copybara.doc.annotations.DocSignaturePrefix;
 import com.google.copybara.exception.ValidationException;
+import com.google.copybara.profiler.Profiler.ProfilerTask;
+import com.google.copybara.profiler.Task;
+import com.google.copybara.treestate.FileOverlay;
 import com.google.copybara.treestate.FileSystemTreeState;
 import com.google.copybara.treestate.TreeState;
+import com.google.copybara.treestate.TreeState.FileState;
+import com.google.copybara.util.FileUtil;
 import com.google.copybara.util.Glob;
 import com.google.copybara.util.console.Console;
 import com.google.devtools.build.lib.events.Location;
@@ -40,11 +45,14 @@ import com.google.devtools.build.lib.skylarkinterface.Param;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkCallable;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkModule;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkModuleCategory;
+import com.google.devtools.build.lib.syntax.BaseFunction;
+import com.google.devtools.build.lib.syntax.Environment;
 import com.google.devtools.build.lib.syntax.EvalException;
 import com.google.devtools.build.lib.syntax.FuncallExpression.FuncallException;
 import com.google.devtools.build.lib.syntax.Runtime;
 import com.google.devtools.build.lib.syntax.SkylarkDict;
 import com.google.devtools.build.lib.syntax.SkylarkList;
+import com.google.devtools.build.lib.syntax.UserDefinedFunction;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
@@ -56,9 +64,12 @@ import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 import javax.annotation.Nullable;
 
@@ -94,6 +105,8 @@ public final class TransformWork implements SkylarkContext<TransformWork> {
   private final MigrationInfo migrationInfo;
   private final Revision resolvedReference;
   private final TreeState treeState;
+  // The state of the tree after running a sequence of transformations with this work
+  @Nullable private TreeState resultTreeState;
   private final boolean insideExplicitTransform;
   private final boolean ignoreNoop;
   @Nullable
@@ -101,19 +114,25 @@ public final class TransformWork implements SkylarkContext<TransformWork> {
   @Nullable private final Revision currentRev;
   private TransformWork skylarkTransformWork;
   private final SkylarkDict skylarkTransformParams;
+  private final FileOverlay overlay;
+  @Nullable private final SkylarkTransformRuntime runtime;
+  // Whether the Skylark functions of this work modified files, so that treeState is not up to date
+  private boolean filesModified;
 
 
   public TransformWork(Path checkoutDir, Metadata metadata, Changes changes, Console console,
       MigrationInfo migrationInfo, Revision resolvedReference, boolean ignoreNoop) {
     this(checkoutDir, metadata, changes, console, migrationInfo, resolvedReference,
         new FileSystemTreeState(checkoutDir), /*insideExplicitTransform*/ false,
-        /*lastRev=*/null, /*currentRev=*/null, SkylarkDict.empty(), ignoreNoop);
+        /*lastRev=*/null, /*currentRev=*/null, SkylarkDict.empty(), ignoreNoop,
+        FileOverlay.disabled(), /*runtime=*/null);
   }
 
   private TransformWork(Path checkoutDir, Metadata metadata, Changes changes, Console console,
       MigrationInfo migrationInfo, Revision resolvedReference, TreeState treeState,
       boolean insideExplicitTransform, @Nullable Revision lastRev,
-      @Nullable Revision currentRev, SkylarkDict skylarkTransformParams, boolean ignoreNoop) {
+      @Nullable Revision currentRev, SkylarkDict skylarkTransformParams, boolean ignoreNoop,
+      FileOverlay overlay, @Nullable SkylarkTransformRuntime runtime) {
     this.checkoutDir = Preconditions.checkNotNull(checkoutDir);
     this.metadata = Preconditions.checkNotNull(metadata);
     this.changes = changes;
@@ -127,6 +146,8 @@ public final class TransformWork implements SkylarkContext<TransformWork> {
     this.skylarkTransformWork = this;
     this.skylarkTransformParams = skylarkTransformParams;
     this.ignoreNoop = ignoreNoop;
+    this.overlay = Preconditions.checkNotNull(overlay);
+    this.runtime = runtime;
   }
 
   /**
@@ -136,6 +157,14 @@ public final class TransformWork implements SkylarkContext<TransformWork> {
     return checkoutDir;
   }
 
+  /**
+   * Returns a directory for temporary files outside the checkout dir, in the same filesystem, so
+   * that transformations can replace files with a rename without exposing the temporary files.
+   */
+  public Path getTmpDir() throws IOException {
+    return FileUtil.tmpDirFor(checkoutDir);
+  }
+
   /**
    * A description of the migrated changes to include in the destination's change description. The
    * destination may add more boilerplate text or metadata.
@@ -194,8 +223,15 @@ public final class TransformWork implements SkylarkContext<TransformWork> {
     } else if (runnable instanceof Transformation) {
       // Works like Sequence. We keep always the latest transform work to allow
       // catching for two sequential replaces.
+      filesModified = true;
       skylarkTransformWork = skylarkTransformWork.withUpdatedTreeState();
-      ((Transformation) runnable).transform(skylarkTransformWork);
+      Transformation transformation = (Transformation) runnable;
+      try (ProfilerTask ignored = profilerTask(
+          "ctx.run " + transformation.describe().replace('/', ' '))) {
+        transformation.transform(skylarkTransformWork);
+      }
+      // The rest of the Skylark transformation reads the files from disk.
+      skylarkTransformWork.getOverlay().flush();
       this.updateFrom(skylarkTransformWork);
       return Runtime.NONE;
     }
@@ -251,7 +287,9 @@ public final class TransformWork implements SkylarkContext<TransformWork> {
       Verify.verify(
           linkFullPath.getParent().resolve(relativized).normalize().startsWith(checkoutDir),
           "%s path escapes the checkout dir", relativized);
+      filesModified = true;
       Files.createSymbolicLink(linkFullPath, relativized);
+      notifyWritten(ImmutableList.of(linkFullPath));
     } catch (IOException e) {
       String msg = "Cannot create symlink: " + e.getMessage();
       logger.atSevere().withCause(e).log(msg);
@@ -269,10 +307,12 @@ public final class TransformWork implements SkylarkContext<TransformWork> {
   public void writePath(CheckoutPath path, String content)
       throws FuncallException, IOException {
     Path fullPath = asCheckoutPath(path);
+    filesModified = true;
     if (fullPath.getParent() != null) {
       Files.createDirectories(fullPath.getParent());
     }
-    Files.write(fullPath, content.getBytes(StandardCharsets.UTF_8));
+    FileUtil.writeFile(fullPath, content.getBytes(StandardCharsets.UTF_8));
+    notifyWritten(ImmutableList.of(fullPath));
   }
 
   @SkylarkCallable(
@@ -285,6 +325,239 @@ public final class TransformWork implements SkylarkContext<TransformWork> {
     return new String(Files.readAllBytes(asCheckoutPath(path)));
   }
 
+  @SkylarkCallable(
+      name = "list_files",
+      doc = "List the files that match a glob, without symlinks. Unlike <code>ctx.run(glob)</code>,"
+          + " only the roots of the glob are visited, and the files found by previous"
+          + " transformations are reused if possible.",
+      parameters = {
+          @Param(name = "glob", type = Glob.class, doc = "The files to list"),
+      })
+  public SkylarkList<CheckoutPath> listFiles(Glob glob) throws IOException {
+    // Once this work modifies the files, its tree state is not up to date.
+    TreeState files = filesModified ? new FileSystemTreeState(checkoutDir) : treeState;
+    List<CheckoutPath> result = new ArrayList<>();
+    try (ProfilerTask ignored = profilerTask("ctx.list_files")) {
+      for (FileState file : files.find(glob)) {
+        if (!Files.isSymbolicLink(file.getPath())) {
+          result.add(new CheckoutPath(checkoutDir.relativize(file.getPath()), checkoutDir));
+        }
+      }
+    }
+    Collections.sort(result);
+    return SkylarkList.createImmutable(result);
+  }
+
+  @SkylarkCallable(
+      name = "read_paths",
+      doc = "Read the content of several paths as UTF-8. The contents are returned in the same"
+          + " order as the paths.",
+      parameters = {
+          @Param(name = "paths", type = SkylarkList.class, generic1 = CheckoutPath.class,
+              doc = "The paths to read"),
+      })
+  public SkylarkList<String> readPaths(SkylarkList<?> paths)
+      throws EvalException, FuncallException, IOException, ValidationException {
+    List<Path> fullPaths = asCheckoutPaths(paths);
+    try (ProfilerTask ignored = profilerTask("ctx.read_paths")) {
+      return SkylarkList.createImmutable(
+          runForFiles(fullPaths, TransformWork::readFiles));
+    }
+  }
+
+  @SkylarkCallable(
+      name = "write_paths",
+      doc = "Write several strings to several paths (UTF-8 will be used).",
+      parameters = {
+          @Param(name = "paths", type = SkylarkList.class, generic1 = CheckoutPath.class,
+              doc = "The paths to write"),
+          @Param(name = "contents", type = SkylarkList.class, generic1 = String.class,
+              doc = "The content of each path, in the same order"),
+      })
+  public void writePaths(SkylarkList<?> paths, SkylarkList<?> contents)
+      throws EvalException, FuncallException, IOException, ValidationException {
+    List<Path> fullPaths = asCheckoutPaths(paths);
+    List<String> fileContents = contents.getContents(String.class, "contents");
+    if (fullPaths.size() != fileContents.size()) {
+      throw new EvalException(null, String.format(
+          "Got %d paths but %d contents", fullPaths.size(), fileContents.size()));
+    }
+    filesModified = true;
+    List<Integer> indexes = IntStream.range(0, fullPaths.size()).boxed()
+        .collect(Collectors.toList());
+    try (ProfilerTask ignored = profilerTask("ctx.write_paths")) {
+      runForFiles(indexes, batch -> {
+        for (int i : batch) {
+          writeFile(fullPaths.get(i), fileContents.get(i));
+        }
+        return ImmutableList.of();
+      });
+    }
+    notifyWritten(fullPaths);
+  }
+
+  @SkylarkCallable(
+      name = "transform_paths",
+      doc = "Call a function with each path and its content (as UTF-8), and write the content that"
+          + " it returns. The function returns None to leave the file unchanged. Returns the paths"
+          + " that were modified.",
+      parameters = {
+          @Param(name = "paths", type = SkylarkList.class, generic1 = CheckoutPath.class,
+              doc = "The paths to transform"),
+          @Param(name = "function", type = BaseFunction.class,
+              doc = "A function like <code>def f(path, content)</code> that returns the new"
+                  + " content or None"),
+          @Param(name = "parallel", type = Boolean.class, named = true, defaultValue = "False",
+              doc = "Call the function concurrently for different files. Only used for"
+                  + " functions defined in a config file, that cannot modify the values of the"
+                  + " config once it is loaded, and when the transformation runs with more than"
+                  + " one thread. The function shouldn't call functions with side effects, like"
+                  + " <code>core.workflow</code>."),
+      },
+      useEnvironment = true)
+  public SkylarkList<CheckoutPath> transformPaths(SkylarkList<?> paths, BaseFunction function,
+      Boolean parallel, Environment env)
+      throws EvalException, FuncallException, IOException, ValidationException {
+    List<CheckoutPath> checkoutPaths = paths.getContents(CheckoutPath.class, "paths");
+    List<Path> fullPaths = asCheckoutPaths(paths);
+    List<Integer> indexes = IntStream.range(0, fullPaths.size()).boxed()
+        .collect(Collectors.toList());
+    filesModified = true;
+    boolean concurrent = parallel && runtime != null && runtime.getParallelizer() != null
+        && canCallConcurrently(function);
+    List<Boolean> modified;
+    try (ProfilerTask ignored = profilerTask("ctx.transform_paths")) {
+      // Pool threads don't inherit the current profiler task, so the calls get it explicitly.
+      Task parent = runtime == null ? null : runtime.getProfiler().currentTask();
+      LocalParallelizer.TransformFunc<Integer, List<Boolean>> func = batch -> {
+        // Skylark environments cannot be shared between threads
+        Environment batchEnv = concurrent ? runtime.newEnvironment() : env;
+        List<Boolean> result = new ArrayList<>();
+        for (int i : batch) {
+          Path file = fullPaths.get(i);
+          String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+          Object newContent;
+          try (ProfilerTask callTask = runtime == null
+              ? null
+              : runtime.getProfiler().start(parent, function.getName())) {
+            newContent = callFunction(function, checkoutPaths.get(i), content, batchEnv);
+          }
+          boolean changed = newContent != null && !newContent.equals(content);
+          if (changed) {
+            writeFile(file, (String) newContent);
+          }
+          result.add(changed);
+        }
+        return result;
+      };
+      modified = concurrent ? runForFiles(indexes, func) : func.run(indexes);
+    }
+    List<CheckoutPath> result = new ArrayList<>();
+    List<Path> written = new ArrayList<>();
+    for (int i = 0; i < modified.size(); i++) {
+      if (modified.get(i)) {
+        result.add(checkoutPaths.get(i));
+        written.add(fullPaths.get(i));
+      }
+    }
+    notifyWritten(written);
+    return SkylarkList.createImmutable(result);
+  }
+
+  /**
+   * Whether {@code function} can be called from several threads at the same time, each one with
+   * its own environment. Functions defined in a config file can only modify their local variables,
+   * since the globals of the file are frozen once it is loaded. Builtin functions might have any
+   * state.
+   */
+  private static boolean canCallConcurrently(BaseFunction function) {
+    return function instanceof UserDefinedFunction
+        && ((UserDefinedFunction) function).getDefinitionGlobals().mutability().isFrozen();
+  }
+
+  /**
+   * Calls {@code function} for a file and returns the new content, or null if the file shouldn't
+   * change.
+   */
+  @Nullable
+  private static String callFunction(BaseFunction function, CheckoutPath path, String content,
+      Environment env) throws ValidationException {
+    Object result;
+    try {
+      result = function.call(ImmutableList.of(path, content), /*kwargs=*/null, /*ast=*/null, env);
+    } catch (EvalException e) {
+      throw new ValidationException(e, String.format("Error while calling %s for %s: %s",
+          function.getName(), path.getPath(), e.getMessage()));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("This should not happen.", e);
+    }
+    if (result == Runtime.NONE) {
+      return null;
+    }
+    if (!(result instanceof String)) {
+      throw new ValidationException(String.format(
+          "%s should return a string or None for %s, but returned: %s",
+          function.getName(), path.getPath(), result));
+    }
+    return (String) result;
+  }
+
+  /**
+   * Runs {@code func} for {@code elements} in batches, concurrently if there is a parallelizer,
+   * and returns the concatenation of the results of the batches.
+   */
+  private <K, V> List<V> runForFiles(List<K> elements,
+      LocalParallelizer.TransformFunc<K, List<V>> func) throws IOException, ValidationException {
+    if (runtime == null || runtime.getParallelizer() == null) {
+      return func.run(elements);
+    }
+    return ImmutableList.copyOf(Iterables.concat(runtime.getParallelizer()
+        .run(elements, e -> 1, func, runtime.getProfiler())));
+  }
+
+  private static List<String> readFiles(Iterable<Path> files) throws IOException {
+    List<String> result = new ArrayList<>();
+    for (Path file : files) {
+      result.add(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+    }
+    return result;
+  }
+
+  private static void writeFile(Path file, String content) throws IOException {
+    if (file.getParent() != null) {
+      Files.createDirectories(file.getParent());
+    }
+    FileUtil.writeFile(file, content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Notifies the tree state that the next {@code ctx.run} reuses that {@code paths} were written,
+   * so that it doesn't keep the size and content hash of the old files.
+   */
+  private void notifyWritten(Iterable<Path> paths) {
+    // Until the first ctx.run, the next one gets a tree state that reads the filesystem. This
+    // work's own tree state is not notified, since it doesn't know about the files modified by
+    // ctx.run.
+    if (skylarkTransformWork != this) {
+      skylarkTransformWork.getTreeState().notifyAdd(paths);
+    }
+  }
+
+  @Nullable
+  private ProfilerTask profilerTask(String description) {
+    return runtime == null ? null : runtime.getProfiler().start(description);
+  }
+
+  private List<Path> asCheckoutPaths(SkylarkList<?> paths)
+      throws EvalException, FuncallException {
+    List<Path> result = new ArrayList<>();
+    for (CheckoutPath path : paths.getContents(CheckoutPath.class, "paths")) {
+      result.add(asCheckoutPath(path));
+    }
+    return result;
+  }
+
   private Path asCheckoutPath(CheckoutPath path) throws FuncallException {
     Path normalized = checkoutDir.resolve(path.getPath()).normalize();
     if (!normalized.startsWith(checkoutDir)) {
@@ -497,7 +770,7 @@ public final class TransformWork implements SkylarkContext<TransformWork> {
   public TransformWork withConsole(Console newConsole) {
     return new TransformWork(checkoutDir, metadata, changes, Preconditions.checkNotNull(newConsole),
         migrationInfo, resolvedReference, treeState, insideExplicitTransform, lastRev,
-        currentRev, skylarkTransformParams, ignoreNoop);
+        currentRev, skylarkTransformParams, ignoreNoop, overlay, runtime);
   }
 
   /**
@@ -507,7 +780,42 @@ public final class TransformWork implements SkylarkContext<TransformWork> {
   public TransformWork withUpdatedTreeState() {
     return new TransformWork(checkoutDir, metadata, changes, console,
                              migrationInfo, resolvedReference, treeState.newTreeState(),
-                             insideExplicitTransform, lastRev, currentRev, skylarkTransformParams, ignoreNoop);
+                             insideExplicitTransform, lastRev, currentRev, skylarkTransformParams,
+                             ignoreNoop, overlay, runtime);
+  }
+
+  /**
+   * Creates a new {@link TransformWork} object with a snapshot of the current {@link TreeState}
+   * that never reads the filesystem again, so that it can be used by a transform that runs
+   * concurrently with other transforms that modify disjoint paths.
+   */
+  public TransformWork withTreeStateSnapshot() throws IOException {
+    return new TransformWork(checkoutDir, metadata, changes, console,
+                             migrationInfo, resolvedReference, treeState.snapshot(),
+                             insideExplicitTransform, lastRev, currentRev, skylarkTransformParams,
+                             ignoreNoop, overlay, runtime);
+  }
+
+  /**
+   * Creates a new {@link TransformWork} object that reads the files from the filesystem again,
+   * discarding any cached state.
+   */
+  public TransformWork withFileSystemTreeState() {
+    return new TransformWork(checkoutDir, metadata, changes, console,
+                             migrationInfo, resolvedReference, new FileSystemTreeState(checkoutDir),
+                             insideExplicitTransform, lastRev, currentRev, skylarkTransformParams,
+                             ignoreNoop, overlay, runtime);
+  }
+
+  /**
+   * Creates a new {@link TransformWork} object that uses {@code runtime} for the batched file
+   * functions called from Skylark.
+   */
+  public TransformWork withRuntime(SkylarkTransformRuntime runtime) {
+    return new TransformWork(checkoutDir, metadata, changes, console, migrationInfo,
+                             resolvedReference, treeState, insideExplicitTransform, lastRev,
+                             currentRev, skylarkTransformParams, ignoreNoop, overlay,
+                             Preconditions.checkNotNull(runtime));
   }
 
   @Override
@@ -515,7 +823,7 @@ public final class TransformWork implements SkylarkContext<TransformWork> {
     Preconditions.checkNotNull(params);
     return new TransformWork(checkoutDir, metadata, changes, console, migrationInfo,
                              resolvedReference, treeState, insideExplicitTransform, lastRev,
-                             currentRev, params, ignoreNoop);
+                             currentRev, params, ignoreNoop, overlay, runtime);
   }
 
   @VisibleForTesting
@@ -523,14 +831,14 @@ public final class TransformWork implements SkylarkContext<TransformWork> {
     Preconditions.checkNotNull(changes);
     return new TransformWork(checkoutDir, metadata, changes, console, migrationInfo,
                              resolvedReference, treeState, insideExplicitTransform, lastRev,
-                             currentRev, skylarkTransformParams, ignoreNoop);
+                             currentRev, skylarkTransformParams, ignoreNoop, overlay, runtime);
   }
 
   @VisibleForTesting
   public TransformWork withLastRev(@Nullable Revision previousRef) {
     return new TransformWork(checkoutDir, metadata, changes, console, migrationInfo,
                              resolvedReference, treeState, insideExplicitTransform, previousRef,
-                             currentRev, skylarkTransformParams, ignoreNoop);
+                             currentRev, skylarkTransformParams, ignoreNoop, overlay, runtime);
   }
 
   @VisibleForTesting
@@ -538,21 +846,23 @@ public final class TransformWork implements SkylarkContext<TransformWork> {
     Preconditions.checkNotNull(resolvedReference);
     return new TransformWork(checkoutDir, metadata, changes, console, migrationInfo,
                              resolvedReference, treeState, insideExplicitTransform, lastRev,
-                             currentRev, skylarkTransformParams, ignoreNoop);
+                             currentRev, skylarkTransformParams, ignoreNoop, overlay, runtime);
   }
 
   public TransformWork insideExplicitTransform(boolean ignoreNoop) {
     Preconditions.checkNotNull(resolvedReference);
     return new TransformWork(checkoutDir, metadata, changes, console, migrationInfo,
                              resolvedReference, treeState, /*insideExplicitTransform=*/true,
-                             lastRev, currentRev, skylarkTransformParams, ignoreNoop);
+                             lastRev, currentRev, skylarkTransformParams, ignoreNoop, overlay,
+                             runtime);
   }
 
   public <O extends Revision> TransformWork withCurrentRev(Revision currentRev) {
     Preconditions.checkNotNull(currentRev);
     return new TransformWork(checkoutDir, metadata, changes, console, migrationInfo,
                              resolvedReference, treeState, insideExplicitTransform,
-                             lastRev, currentRev, skylarkTransformParams, ignoreNoop);
+                             lastRev, currentRev, skylarkTransformParams, ignoreNoop, overlay,
+                             runtime);
   }
 
   /**
@@ -566,6 +876,41 @@ public final class TransformWork implements SkylarkContext<TransformWork> {
     return treeState;
   }
 
+  /**
+   * Returns the state of the tree after the transformations that ran with this work. It reuses
+   * the state that the transformations kept up to date, if any, so that the files don't need to
+   * be read from the filesystem again.
+   */
+  public TreeState getResultTreeState() {
+    return resultTreeState != null ? resultTreeState : treeState.newTreeState();
+  }
+
+  /**
+   * Sets the state of the tree after running a sequence of transformations with this work, when
+   * they ran with derived works that have their own tree states.
+   */
+  public void setResultTreeState(TreeState resultTreeState) {
+    this.resultTreeState = Preconditions.checkNotNull(resultTreeState);
+  }
+
+  /**
+   * The overlay that content transformations should use for reading and writing files. See
+   * {@link Transformation#supportsOverlay()}.
+   */
+  public FileOverlay getOverlay() {
+    return overlay;
+  }
+
+  /**
+   * Creates a new {@link TransformWork} object that uses {@code overlay} for the file contents.
+   */
+  public TransformWork withOverlay(FileOverlay overlay) {
+    return new TransformWork(checkoutDir, metadata, changes, console, migrationInfo,
+                             resolvedReference, treeState, insideExplicitTransform,
+                             lastRev, currentRev, skylarkTransformParams, ignoreNoop,
+                             Preconditions.checkNotNull(overlay), runtime);
+  }
+
   public boolean getIgnoreNoop() {
     return ignoreNoop;
   }
@@ -17,9 +17,11 @@
 package com.google.copybara;
 
 import com.google.copybara.exception.ValidationException;
+import com.google.copybara.util.Glob;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkModule;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkModuleCategory;
 import java.io.IOException;
+import javax.annotation.Nullable;
 
 /**
  * Interface implemented by all source code transformations.
@@ -52,6 +54,28 @@ public interface Transformation {
    */
   String describe();
 
+  /**
+   * Returns a glob that contains all the paths that this transformation reads or writes, or
+   * {@code null} if they are not known.
+   *
+   * <p>Transformations that return a glob must not use or modify anything else of the
+   * {@link TransformWork} (message, author, labels, etc.), so that they can run concurrently with
+   * other transformations that affect disjoint paths.
+   */
+  @Nullable
+  default Glob getAffectedPaths() {
+    return null;
+  }
+
+  /**
+   * Returns true if this transformation reads and writes the content of the files only through
+   * {@link TransformWork#getOverlay()}. Otherwise the overlay is written to disk before running
+   * it.
+   */
+  default boolean supportsOverlay() {
+    return false;
+  }
+
   default boolean canJoin(Transformation transformation) {
     return false;
   }
@@ -40,6 +40,7 @@ import com.google.copybara.profiler.Profiler;
 import com.google.copybara.profiler.Profiler.ProfilerTask;
 import com.google.copybara.templatetoken.Token;
 import com.google.copybara.templatetoken.Token.TokenType;
+import com.google.copybara.util.BackgroundDeleter;
 import com.google.copybara.util.Glob;
 import com.google.copybara.util.Identity;
 import com.google.copybara.util.console.Console;
@@ -237,8 +238,22 @@ public class Workflow<O extends Revision, D extends Revision> implements Migrati
               this.toString()));
       logger.log(Level.INFO, String.format("Using working directory : %s", workdir));
       WorkflowRunHelper<O, D> helper = newRunHelper(workdir, resolvedRef, sourceRef);
-      try (ProfilerTask ignored = profiler().start(mode.toString().toLowerCase())) {
-        mode.run(helper);
+      try {
+        try (ProfilerTask ignored = profiler().start(mode.toString().toLowerCase())) {
+          mode.run(helper);
+        }
+        BackgroundDeleter deleter =
+            workflowOptions.workdirDeleter(generalOptions.getDirFactory());
+        if (deleter != null) {
+          // Don't leave the trash of this run behind
+          try (ProfilerTask ignored = profiler().start("await_trash")) {
+            deleter.awaitAll();
+          }
+          deleter.report(profiler());
+        }
+      } finally {
+        // On failure, whatever is left in the trash is deleted by the next run.
+        workflowOptions.shutdownWorkdirDeleter();
       }
     }
   }
@@ -24,6 +24,10 @@ import com.google.common.collect.Lists;
 import com.google.copybara.authoring.Author;
 import com.google.copybara.exception.VoidOperationException;
 import com.google.copybara.jcommander.GreaterThanZeroListValidator;
+import com.google.copybara.treestate.NegativeMatchCache;
+import com.google.copybara.util.BackgroundDeleter;
+import com.google.copybara.util.DirFactory;
+import com.google.copybara.util.TransformCache;
 import com.google.copybara.util.console.Console;
 import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.syntax.EvalException;
@@ -90,6 +94,17 @@ public class WorkflowOptions implements Option {
           + " flag disables that behavior and runs for all the changes.")
   public boolean migrateNoopChanges = false;
 
+  @Parameter(names = "--workdir-cleanup-threads",
+      description = "If greater than zero, the working directory of the previous change is moved"
+          + " to a trash directory and deleted in the background by this number of threads,"
+          + " instead of being deleted before each change is migrated.")
+  public int workdirCleanupThreads = 0;
+
+  @Parameter(names = "--workdir-trash-max-size",
+      description = "Max size in bytes of the trash used by --workdir-cleanup-threads. The next"
+          + " change waits for the background deletion while the trash is bigger.")
+  public long workdirTrashMaxSize = 10L * 1024 * 1024 * 1024;
+
   @Parameter(names = {"--workflow-identity-user"},
       description = "Use a custom string as a user for computing change identity")
   @Nullable
@@ -117,11 +132,75 @@ public class WorkflowOptions implements Option {
       description = "Minimum size of the lists to process to run them in parallel")
   public int threadsMinSize = 100;
 
+  @Parameter(names = "--parallel-transformations",
+      description = "Run consecutive transformations of a sequence concurrently (using --threads)"
+          + " when the paths they affect don't overlap. Transformations that can change the"
+          + " message or other metadata, or whose paths are not known, like core.dynamic_transform,"
+          + " always run in order.")
+  public boolean parallelTransformations = false;
+
+  @Parameter(names = "--file-overlay-max-size",
+      description = "If positive, the files modified by core.replace and core.todo_replace are"
+          + " kept in memory, up to this size in bytes, and later content transformations read"
+          + " them from there. They are written to disk at the end of the sequence of"
+          + " transformations or before a transformation that reads the files from disk.")
+  public long fileOverlayMaxSize = 0;
+
   @Parameter(names = "--notransformation-join",
       description = "By default Copybara tries to join certain transformations in one so that it"
           + " is more efficient. This disables the feature.")
   public boolean noTransformationJoin = false;
 
+  @Parameter(names = "--negative-match-cache",
+      description = "Remember, by content hash, which files didn't match the patterns of content"
+          + " transformations like core.replace, core.todo_replace or core.verify_match, so that"
+          + " they are not scanned again by later transformations or changes of the same"
+          + " migration. Useful for ITERATIVE migrations of big repositories.")
+  public boolean negativeMatchCache = false;
+
+  @Parameter(names = "--incremental-checkout",
+      description = "Keep a checkout of the origin between the changes of a migration and only"
+          + " update the files that changed, instead of checking out every change from scratch."
+          + " Useful for ITERATIVE migrations of big repositories. Origins that don't support it"
+          + " do a regular checkout.")
+  public boolean incrementalCheckout = false;
+
+  @Parameter(names = "--reversible-check-hard-links",
+      description = "Make the copies of the workdir needed by reversible_check with hard links"
+          + " instead of copying every file. Useful for big repositories. Copybara unshares the"
+          + " files that it modifies in place, but custom tools run by the migration must replace"
+          + " files instead of writing them in place.")
+  public boolean reversibleCheckHardLinks = false;
+
+  @Parameter(names = "--transform-cache",
+      description = "Cache on disk the result of core.replace transformations, keyed by the"
+          + " content of each file and the transformations applied to it, so that the same"
+          + " content is not transformed again in later changes or runs.")
+  public boolean transformCache = false;
+
+  @Parameter(names = "--transform-cache-max-size",
+      description = "Max size in bytes of the --transform-cache. When it is exceeded, the least"
+          + " recently used entries are removed.")
+  public long transformCacheMaxSize = 1024L * 1024 * 1024;
+
+  @Parameter(names = "--transform-stats",
+      description = "Write a JSON report to this file with the files considered, files read,"
+          + " bytes read and written, matches, files modified and CPU time of each"
+          + " transformation, aggregated for all the changes migrated.")
+  @Nullable
+  public String transformStats = null;
+
+  @Parameter(names = "--verify-match-fail-fast",
+      description = "Stop core.verify_match at the first file that fails the validation, instead"
+          + " of reporting all the files that fail it.")
+  public boolean verifyMatchFailFast = false;
+
+  @Parameter(names = "--streaming-replace-min-size",
+      description = "Files of at least this size (in bytes) are processed line by line with a"
+          + " bounded amount of memory by core.replace (when not multiline) and"
+          + " core.todo_replace. Binary files of that size are skipped.")
+  public long streamingReplaceMinSize = 64L * 1024 * 1024;
+
   @Parameter(
       names = READ_CONFIG_FROM_CHANGE,
       description = "For each imported origin change, load the configuration from that change.")
@@ -167,6 +246,67 @@ public class WorkflowOptions implements Option {
     return parallelizerSupplier.get();
   }
 
+  private final Supplier<LocalParallelizer> transformationsParallelizerSupplier =
+      Suppliers.memoize(() -> new LocalParallelizer(threads, /*minSize=*/2));
+
+  /**
+   * Returns the parallelizer to use for running independent transformations of a sequence
+   * concurrently, or null if they should run one after the other.
+   */
+  @Nullable
+  public LocalParallelizer transformationsParallelizer() {
+    return parallelTransformations && threads > 1
+        ? transformationsParallelizerSupplier.get()
+        : null;
+  }
+
+  private final Supplier<NegativeMatchCache> negativeMatchCacheSupplier =
+      Suppliers.memoize(() -> new NegativeMatchCache(negativeMatchCache));
+
+  public NegativeMatchCache negativeMatchCache() {
+    return negativeMatchCacheSupplier.get();
+  }
+
+  private TransformCache transformCacheInstance;
+
+  public synchronized TransformCache transformCache(DirFactory dirFactory) {
+    if (transformCacheInstance == null) {
+      transformCacheInstance = new TransformCache(transformCache, dirFactory,
+          transformCacheMaxSize);
+    }
+    return transformCacheInstance;
+  }
+
+  private BackgroundDeleter workdirDeleterInstance;
+
+  /**
+   * Returns the deleter for the working directories of the changes, or null if they should be
+   * deleted synchronously. The trash is created in the temp root of {@code dirFactory}, so
+   * anything left in it is deleted in the next run.
+   */
+  @Nullable
+  public synchronized BackgroundDeleter workdirDeleter(DirFactory dirFactory) {
+    if (workdirCleanupThreads <= 0) {
+      return null;
+    }
+    if (workdirDeleterInstance == null) {
+      workdirDeleterInstance = new BackgroundDeleter(dirFactory.getTmpRoot().resolve("trash"),
+          workdirCleanupThreads, workdirTrashMaxSize);
+    }
+    return workdirDeleterInstance;
+  }
+
+  /**
+   * Stops the threads of the workdir deleter, if it was created. A later call to
+   * {@link #workdirDeleter(DirFactory)} creates a new one.
+   */
+  public synchronized void shutdownWorkdirDeleter() {
+    if (workdirDeleterInstance != null) {
+      workdirDeleterInstance.shutdown();
+      workdirDeleterInstance = null;
+    }
+  }
+
   public boolean joinTransformations() {
     return !noTransformationJoin;
   }
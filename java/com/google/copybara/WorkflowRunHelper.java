@@ -42,6 +42,7 @@ import com.google.copybara.monitor.EventMonitor.ChangeMigrationStartedEvent;
 import com.google.copybara.profiler.Profiler;
 import com.google.copybara.profiler.Profiler.ProfilerTask;
 import com.google.copybara.transform.SkylarkConsole;
+import com.google.copybara.util.BackgroundDeleter;
 import com.google.copybara.util.DiffUtil;
 import com.google.copybara.util.DiffUtil.DiffFile;
 import com.google.copybara.util.FileUtil;
@@ -52,9 +53,11 @@ import com.google.copybara.util.console.ProgressPrefixConsole;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
@@ -74,6 +77,8 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
   private final Origin.Reader<O> originReader;
   protected final Destination.Writer<D> writer;
   @Nullable final String rawSourceRef;
+  // Checkout of the origin kept between changes when --incremental-checkout is used
+  private final IncrementalCheckout incrementalCheckout;
 
   WorkflowRunHelper(
       Workflow<O, D> workflow,
@@ -83,6 +88,24 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
       Writer<D> destinationWriter,
       @Nullable String rawSourceRef)
       throws ValidationException, RepoException {
+    this(workflow, workdir, resolvedRef, originReader, destinationWriter, rawSourceRef,
+        new IncrementalCheckout());
+  }
+
+  /**
+   * Constructor for helpers derived from another one (for example in dry run), that need to keep
+   * using its {@code incrementalCheckout}.
+   */
+  WorkflowRunHelper(
+      Workflow<O, D> workflow,
+      Path workdir,
+      O resolvedRef,
+      Reader<O> originReader,
+      Writer<D> destinationWriter,
+      @Nullable String rawSourceRef,
+      IncrementalCheckout incrementalCheckout)
+      throws ValidationException, RepoException {
+    this.incrementalCheckout = Preconditions.checkNotNull(incrementalCheckout);
     this.workflow = Preconditions.checkNotNull(workflow);
     this.workdir = Preconditions.checkNotNull(workdir);
     this.resolvedRef = Preconditions.checkNotNull(resolvedRef);
@@ -125,7 +148,17 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
         resolvedRef,
         originReader,
         workflow.getDestination().newWriter(writerContext),
-        rawSourceRef);
+        rawSourceRef,
+        incrementalCheckout);
+  }
+
+  /**
+   * The checkout of the origin kept between changes when --incremental-checkout is used. Shared by
+   * all the helpers derived from the same run, so that a new helper doesn't start from an empty
+   * checkout.
+   */
+  IncrementalCheckout getIncrementalCheckout() {
+    return incrementalCheckout;
   }
 
   protected Path getWorkdir() {
@@ -347,6 +380,35 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
     return effects;
   }
 
+  /**
+   * If enabled, updates a checkout of the origin that is kept between changes and moves it to
+   * {@code checkoutDir} for the duration of the change. Returns false if a regular checkout is
+   * needed.
+   */
+  private boolean checkoutIncrementally(O rev, Path checkoutDir)
+      throws IOException, RepoException, ValidationException {
+    if (!workflow.getWorkflowOptions().incrementalCheckout) {
+      return false;
+    }
+    Path incrementalCheckoutDir = incrementalCheckout.getDir(workdir);
+    if (incrementalCheckoutDir == null
+        || !originReader.checkoutIncrementally(rev, incrementalCheckoutDir)) {
+      return false;
+    }
+    // The transformations modify the checkout in place. The origin restores the modified files in
+    // the next checkout, after the checkout is reclaimed.
+    return incrementalCheckout.lend(checkoutDir);
+  }
+
+  private void copyForReverseCheck(Path from, Path to) throws IOException {
+    if (workflow.getWorkflowOptions().reversibleCheckHardLinks) {
+      // Transformations unshare the files that they modify, so hard links are enough.
+      FileUtil.snapshotFilesRecursively(from, to, FAIL_OUTSIDE_SYMLINKS);
+    } else {
+      FileUtil.copyFilesRecursively(from, to, FAIL_OUTSIDE_SYMLINKS);
+    }
+  }
+
   private ImmutableList<DestinationEffect> doMigrate(
       O rev,
       @Nullable O lastRev,
@@ -359,16 +421,32 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
     Path checkoutDir = workdir.resolve("checkout");
     try (ProfilerTask ignored = profiler().start("prepare_workdir")) {
       processConsole.progress("Cleaning working directory");
-      if (Files.exists(workdir)) {
-        FileUtil.deleteRecursively(workdir);
+      incrementalCheckout.reclaim();
+      BackgroundDeleter deleter = workflow.getWorkflowOptions()
+          .workdirDeleter(workflow.getGeneralOptions().getDirFactory());
+      if (deleter == null) {
+        if (Files.exists(workdir)) {
+          FileUtil.deleteRecursively(workdir);
+        }
+      } else {
+        deleter.report(profiler());
+        try (ProfilerTask ignored2 = profiler().start("await_trash")) {
+          deleter.awaitTrashBelowMaxSize();
+        }
+        if (Files.exists(workdir)) {
+          deleter.deleteContents(workdir);
+        }
       }
-      Files.createDirectories(checkoutDir);
+      Files.createDirectories(workdir);
     }
     processConsole.progress("Checking out the change");
 
     try (ProfilerTask ignored = profiler().start(
         "origin.checkout", profiler().taskType(workflow.getOrigin().getType()))) {
-      originReader.checkout(rev, checkoutDir);
+      if (!checkoutIncrementally(rev, checkoutDir)) {
+        Files.createDirectories(checkoutDir);
+        originReader.checkout(rev, checkoutDir);
+      }
     }
 
     // Remove excluded origin files.
@@ -387,7 +465,7 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
       try (ProfilerTask ignored = profiler().start("reverse_copy")) {
         workflow.getConsole().progress("Making a copy or the workdir for reverse checking");
         originCopy = Files.createDirectories(workdir.resolve("origin"));
-        FileUtil.copyFilesRecursively(checkoutDir, originCopy, FAIL_OUTSIDE_SYMLINKS);
+        copyForReverseCheck(checkoutDir, originCopy);
       }
     }
 
@@ -411,7 +489,7 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
       Path reverse;
       try (ProfilerTask ignored = profiler().start("reverse_copy")) {
         reverse = Files.createDirectories(workdir.resolve("reverse"));
-        FileUtil.copyFilesRecursively(checkoutDir, reverse, FAIL_OUTSIDE_SYMLINKS);
+        copyForReverseCheck(checkoutDir, reverse);
       }
 
       try (ProfilerTask ignored = profiler().start("reverse_transform")) {
@@ -426,11 +504,14 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
                     resolvedRef,
                     /*ignoreNoop=*/ false));
       }
-      String diff;
-      try {
-        diff = new String(DiffUtil.diff(originCopy, reverse, workflow.isVerbose(),
-            workflow.getGeneralOptions().getEnvironment()),
-            StandardCharsets.UTF_8);
+      String diff = "";
+      try (ProfilerTask ignored = profiler().start("reverse_diff")) {
+        // Only call git to render the differences, if there are any.
+        if (!DiffUtil.equalTrees(originCopy, reverse)) {
+          diff = new String(DiffUtil.diff(originCopy, reverse, workflow.isVerbose(),
+              workflow.getGeneralOptions().getEnvironment()),
+              StandardCharsets.UTF_8);
+        }
       } catch (InsideGitDirException e) {
         throw new ValidationException(
             "Cannot use 'reversible_check = True' because Copybara temporary directory (%s) is"
@@ -446,8 +527,8 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
 
     workflow.getConsole()
         .progress("Checking that destination_files covers all files in transform result");
-    new ValidateDestinationFilesVisitor(workflow.getDestinationFiles(), checkoutDir)
-        .verifyFilesToWrite();
+    new DestinationFilesValidator(workflow.getDestinationFiles(), checkoutDir)
+        .verifyFilesToWrite(transformWork.getResultTreeState());
 
     // TODO(malcon): Pass metadata object instead
     TransformResult transformResult =
@@ -652,4 +733,72 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
     }
     return true;
   }
+
+  /**
+   * Lazily created directory for the checkout kept between changes. The directory is moved to the
+   * workdir of the change being migrated and moved back before the workdir is cleaned, so that
+   * only the files that changed need to be written.
+   */
+  static final class IncrementalCheckout {
+
+    private static final Logger logger = Logger.getLogger(IncrementalCheckout.class.getName());
+
+    @Nullable private Path dir;
+    @Nullable private Path lentTo;
+    private boolean disabled;
+
+    /**
+     * Returns the directory of the checkout, or null if incremental checkouts were disabled. The
+     * directory is next to {@code workdir}, so that both are in the same file system and the
+     * checkout can be moved atomically. A checkout left by a previous run is discarded.
+     */
+    @Nullable
+    synchronized Path getDir(Path workdir) throws IOException {
+      if (disabled) {
+        return null;
+      }
+      if (dir == null) {
+        Path absolute = workdir.toAbsolutePath();
+        Path parent = absolute.resolveSibling(absolute.getFileName() + "_incremental_checkout");
+        if (Files.exists(parent, LinkOption.NOFOLLOW_LINKS)) {
+          FileUtil.deleteRecursively(parent);
+        }
+        dir = parent.resolve("checkout");
+      }
+      return Files.createDirectories(dir);
+    }
+
+    /**
+     * Moves the checkout to {@code target}. Returns false if it cannot be moved atomically, and
+     * disables incremental checkouts for the rest of the run, since the next moves would fail too.
+     */
+    synchronized boolean lend(Path target) {
+      try {
+        Files.move(dir, target, StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        logger.log(Level.WARNING, String.format(
+            "Cannot move %s to %s. Disabling incremental checkouts.", dir, target), e);
+        disabled = true;
+        return false;
+      }
+      lentTo = target;
+      return true;
+    }
+
+    /**
+     * Moves the checkout back from the workdir of the previous change. If it is gone, the next
+     * change starts with a new checkout.
+     */
+    synchronized void reclaim() throws IOException {
+      if (lentTo == null) {
+        return;
+      }
+      if (Files.isDirectory(lentTo, LinkOption.NOFOLLOW_LINKS)) {
+        Files.move(lentTo, dir, StandardCopyOption.ATOMIC_MOVE);
+      } else {
+        dir = null;
+      }
+      lentTo = null;
+    }
+  }
 }
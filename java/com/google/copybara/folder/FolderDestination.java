@@ -120,7 +120,7 @@ public class FolderDestination implements Destination<Revision> {
         throw e;
       }
       console.progress("FolderDestination: deleting all files from " + localFolder);
-      FileUtil.deleteFilesRecursively(localFolder, destinationFiles.relativeTo(localFolder));
+      FileUtil.deleteFilesRecursively(localFolder, destinationFiles);
 
       console.progress("FolderDestination: Copying contents of the workdir to " + localFolder);
       FileUtil.copyFilesRecursively(transformResult.getPath(), localFolder,
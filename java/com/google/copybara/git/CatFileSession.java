@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Splitter;
+import com.google.common.collect.EvictingQueue;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.io.ByteStreams;
+import com.google.copybara.exception.RepoException;
+import com.google.copybara.git.GitRepository.GitObjectType;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * Answers object lookups for a repository using long-lived 'git cat-file --batch-check' and
+ * 'git cat-file --batch' processes, instead of starting a git process for each query.
+ *
+ * <p>The processes are started on first use and restarted if they die. Queries are serialized.
+ * There is one session per git directory, shared by all the {@link GitRepository} instances that
+ * use it, and the processes live until {@link #closeAll()} is called at the end of the run.
+ */
+final class CatFileSession {
+
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  // Number of lines of the stderr of the processes kept for error messages
+  private static final int STDERR_LINES = 20;
+
+  // Variables that differ between the instances of the same repository, like the ones returned by
+  // GitRepository.withIndexFile, and don't affect object lookups.
+  private static final ImmutableSet<String> IGNORED_VARIABLES =
+      ImmutableSet.of("GIT_INDEX_FILE", "GIT_WORK_TREE");
+
+  // Keyed by the git directory and the environment without the ignored variables
+  private static final Map<List<Object>, CatFileSession> sessions = new ConcurrentHashMap<>();
+
+  private final BatchProcess check;
+  private final BatchProcess contents;
+
+  private CatFileSession(String gitBinary, Path gitDir, Map<String, String> environment) {
+    this.check = new BatchProcess(gitBinary, gitDir, environment, "--batch-check");
+    this.contents = new BatchProcess(gitBinary, gitDir, environment, "--batch");
+  }
+
+  /**
+   * Returns the session for {@code gitDir} and {@code environment}, creating it if needed. The
+   * instances of the same repository that only differ in the index file or the work tree share
+   * the session, since those don't affect object lookups.
+   */
+  static CatFileSession forGitDir(String gitBinary, Path gitDir,
+      Map<String, String> environment) {
+    ImmutableMap<String, String> lookupEnvironment = ImmutableMap.copyOf(
+        Maps.filterKeys(environment, name -> !IGNORED_VARIABLES.contains(name)));
+    return sessions.computeIfAbsent(
+        ImmutableList.of(gitDir.toAbsolutePath().normalize(), lookupEnvironment),
+        k -> new CatFileSession(gitBinary, gitDir, lookupEnvironment));
+  }
+
+  /**
+   * Stops the processes of all the sessions. Sessions requested afterwards start new processes.
+   */
+  static void closeAll() {
+    for (List<Object> key : ImmutableList.copyOf(sessions.keySet())) {
+      CatFileSession session = sessions.remove(key);
+      if (session != null) {
+        session.close();
+      }
+    }
+  }
+
+  /**
+   * Returns true if {@code revision} can be safely sent to the session. Revisions are sent one
+   * per line, and the session cannot answer ranges or options.
+   */
+  static boolean canQuery(String revision) {
+    return !revision.isEmpty()
+        && !revision.startsWith("-")
+        && !revision.contains("..")
+        && revision.indexOf('\n') == -1
+        && revision.indexOf('\r') == -1;
+  }
+
+  /**
+   * Returns the SHA-1, type and size of the object that {@code revision} resolves to, or null if
+   * it doesn't resolve to an object in the repository. Refs and objects are looked up again for
+   * every query, so objects written by other processes are found.
+   *
+   * @throws RepoException if the revision is ambiguous, or the session fails
+   */
+  @Nullable
+  ObjectInfo info(String revision) throws RepoException {
+    return check.query(revision, /*readContent=*/false);
+  }
+
+  /**
+   * Returns the object that {@code revision} resolves to, including its content, or null if it
+   * doesn't resolve to an object in the repository.
+   *
+   * @throws RepoException if the revision is ambiguous, or the session fails
+   */
+  @Nullable
+  ObjectInfo read(String revision) throws RepoException {
+    return contents.query(revision, /*readContent=*/true);
+  }
+
+  /** Stops the processes. They are started again if the session is used later. */
+  void close() {
+    check.stop();
+    contents.stop();
+  }
+
+  /** Returns true if any of the processes is running. */
+  @VisibleForTesting
+  boolean isRunning() {
+    return check.isRunning() || contents.isRunning();
+  }
+
+  /**
+   * An object as returned by 'git cat-file'.
+   */
+  static final class ObjectInfo {
+
+    private final String sha1;
+    private final GitObjectType type;
+    private final long size;
+    @Nullable
+    private final byte[] content;
+
+    ObjectInfo(String sha1, GitObjectType type, long size, @Nullable byte[] content) {
+      this.sha1 = checkNotNull(sha1);
+      this.type = checkNotNull(type);
+      this.size = size;
+      this.content = content;
+    }
+
+    String getSha1() {
+      return sha1;
+    }
+
+    GitObjectType getType() {
+      return type;
+    }
+
+    long getSize() {
+      return size;
+    }
+
+    /** The content of the object. Only available for objects returned by {@link #read}. */
+    byte[] getContent() {
+      return checkNotNull(content, "Content not read for %s", sha1);
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(this)
+          .add("sha1", sha1)
+          .add("type", type)
+          .add("size", size)
+          .toString();
+    }
+  }
+
+  private static final class BatchProcess {
+
+    private final ImmutableList<String> command;
+    private final Map<String, String> environment;
+    // Last lines written to stderr by the processes, for the error messages. Guarded by itself.
+    private final EvictingQueue<String> stderr = EvictingQueue.create(STDERR_LINES);
+    @Nullable
+    private Process process;
+    @Nullable
+    private Thread stderrReader;
+    @Nullable
+    private OutputStream stdin;
+    @Nullable
+    private InputStream stdout;
+
+    private BatchProcess(String gitBinary, Path gitDir, Map<String, String> environment,
+        String mode) {
+      this.command = ImmutableList.of(gitBinary, "--git-dir=" + gitDir, "cat-file", mode);
+      this.environment = checkNotNull(environment);
+    }
+
+    @Nullable
+    synchronized ObjectInfo query(String revision, boolean readContent) throws RepoException {
+      if (!canQuery(revision)) {
+        throw new IllegalArgumentException("Invalid revision for cat-file: " + revision);
+      }
+      IOException lastError = null;
+      // If the process died since the last query, retry once with a new process.
+      for (int attempt = 0; attempt < 2; attempt++) {
+        try {
+          start();
+          stdin.write((revision + "\n").getBytes(UTF_8));
+          stdin.flush();
+          return readResponse(revision, readContent);
+        } catch (IOException e) {
+          logger.atWarning().withCause(e).log("'%s' failed for '%s'", command, revision);
+          lastError = e;
+          stop();
+        }
+      }
+      String errors;
+      synchronized (stderr) {
+        errors = String.join("\n", stderr);
+      }
+      throw new RepoException(
+          String.format("Error executing '%s' for '%s':\n%s", String.join(" ", command), revision,
+              errors),
+          lastError);
+    }
+
+    @Nullable
+    private ObjectInfo readResponse(String revision, boolean readContent)
+        throws IOException, RepoException {
+      String header = readLine();
+      if (header.endsWith(" missing")) {
+        return null;
+      }
+      if (header.endsWith(" ambiguous")) {
+        throw new RepoException(String.format("'%s' is ambiguous", revision));
+      }
+      List<String> fields = Splitter.on(' ').splitToList(header);
+      if (fields.size() != 3) {
+        throw new IOException(
+            String.format("Unexpected cat-file output for '%s': %s", revision, header));
+      }
+      GitObjectType type;
+      long size;
+      try {
+        type = GitObjectType.valueOf(fields.get(1).toUpperCase(Locale.ROOT));
+        size = Long.parseLong(fields.get(2));
+      } catch (IllegalArgumentException e) {
+        throw new IOException(
+            String.format("Unexpected cat-file output for '%s': %s", revision, header), e);
+      }
+      byte[] content = null;
+      if (readContent) {
+        if (size > Integer.MAX_VALUE - 8) {
+          throw new IOException(String.format("Object %s is too big: %d", fields.get(0), size));
+        }
+        content = new byte[(int) size];
+        ByteStreams.readFully(stdout, content);
+        // The content is followed by a new line
+        if (stdout.read() != '\n') {
+          throw new IOException("Missing new line after the content of " + fields.get(0));
+        }
+      }
+      return new ObjectInfo(fields.get(0), type, size, content);
+    }
+
+    private String readLine() throws IOException {
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      for (int b = stdout.read(); b != '\n'; b = stdout.read()) {
+        if (b == -1) {
+          throw new EOFException("'" + String.join(" ", command) + "' exited");
+        }
+        line.write(b);
+      }
+      return new String(line.toByteArray(), UTF_8);
+    }
+
+    private void start() throws IOException {
+      if (process != null && process.isAlive()) {
+        return;
+      }
+      stop();
+      ProcessBuilder builder = new ProcessBuilder(command);
+      builder.environment().clear();
+      builder.environment().putAll(environment);
+      process = builder.start();
+      stdin = new BufferedOutputStream(process.getOutputStream());
+      stdout = new BufferedInputStream(process.getInputStream());
+      // The responses are in stdout. Errors are kept for the exception if a query fails.
+      InputStream errorStream = process.getErrorStream();
+      stderrReader = new Thread(() -> readStderr(errorStream), "cat-file-stderr");
+      stderrReader.setDaemon(true);
+      stderrReader.start();
+    }
+
+    private void readStderr(InputStream errorStream) {
+      try (BufferedReader reader =
+          new BufferedReader(new InputStreamReader(errorStream, UTF_8))) {
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+          logger.atInfo().log("'%s' STDERR: %s", command, line);
+          synchronized (stderr) {
+            stderr.add(line);
+          }
+        }
+      } catch (IOException e) {
+        logger.atInfo().withCause(e).log("Cannot read the stderr of '%s'", command);
+      }
+    }
+
+    synchronized boolean isRunning() {
+      return process != null && process.isAlive();
+    }
+
+    synchronized void stop() {
+      if (process == null) {
+        return;
+      }
+      try {
+        stdin.close();
+      } catch (IOException e) {
+        logger.atInfo().withCause(e).log("Cannot close the stdin of '%s'", command);
+      }
+      process.destroy();
+      try {
+        // So that the errors written before exiting are available
+        process.waitFor(1, TimeUnit.SECONDS);
+        stderrReader.join(TimeUnit.SECONDS.toMillis(1));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      process = null;
+      stderrReader = null;
+      stdin = null;
+      stdout = null;
+    }
+  }
+}
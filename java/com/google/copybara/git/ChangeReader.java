@@ -28,6 +28,7 @@ import com.google.copybara.authoring.Authoring;
 import com.google.copybara.exception.RepoException;
 import com.google.copybara.git.GitRepository.GitLogEntry;
 import com.google.copybara.git.GitRepository.LogCmd;
+import com.google.copybara.git.GitRepository.LogCmd.LogConsumer;
 import com.google.copybara.util.Glob;
 import com.google.copybara.util.console.Console;
 import java.util.List;
@@ -44,19 +45,21 @@ class ChangeReader {
   private final int limit;
   private final ImmutableList<String> roots;
   private final boolean includeBranchCommitLogs;
+  private final boolean limitToRoots;
   private String url;
   private boolean firstParent;
   private int skip;
   @Nullable private final String grepString;
 
   private ChangeReader(@Nullable Authoring authoring, GitRepository repository, int limit,
-      Iterable<String> roots, boolean includeBranchCommitLogs, @Nullable String url,
-      boolean firstParent, int skip, @Nullable String grepString) {
+      Iterable<String> roots, boolean includeBranchCommitLogs, boolean limitToRoots,
+      @Nullable String url, boolean firstParent, int skip, @Nullable String grepString) {
     this.authoring = authoring;
     this.repository = checkNotNull(repository, "repository");
     this.limit = limit;
     this.roots = ImmutableList.copyOf(roots);
     this.includeBranchCommitLogs = includeBranchCommitLogs;
+    this.limitToRoots = limitToRoots;
     this.url = url;
     this.firstParent = firstParent;
     this.skip = skip;
@@ -64,6 +67,19 @@ class ChangeReader {
   }
 
   ImmutableList<GitChange> run(String refExpression) throws RepoException {
+    ImmutableList.Builder<GitChange> result = ImmutableList.builder();
+    visit(refExpression, change -> {
+      result.add(change);
+      return true;
+    });
+    return result.build().reverse();
+  }
+
+  /**
+   * Like {@link #run(String)} but passes the changes to {@code visitor} while 'git log' runs, from
+   * newest to oldest, instead of keeping them in memory. Stops when the visitor returns false.
+   */
+  void visit(String refExpression, GitChangeVisitor visitor) throws RepoException {
     LogCmd logCmd = repository
         .log(refExpression)
         .firstParent(firstParent);
@@ -76,10 +92,34 @@ class ChangeReader {
     if (grepString != null) {
       logCmd = logCmd.grep(grepString);
     }
-    // Log command does not filter by roots here because of how git log works. Some commits (e.g.
-    // fake merges) might not include the files in the log, and filtering here would return
+    // Log command does not filter by roots by default because of how git log works. Some commits
+    // (e.g. fake merges) might not include the files in the log, and filtering here would return
     // incorrect results. We do filter later on the changes to match the actual glob.
-    return parseChanges(logCmd.includeFiles(true).includeMergeDiff(true).run());
+    // If the caller filters the changes by roots, git can skip the commits that don't change
+    // them, which is fast with the commit-graph Bloom filters. --full-history keeps the merges that
+    // differ from any parent, including fake merges, and the sides of merges that are the same as
+    // one of the parents. --full-diff keeps the same files as a walk without paths, so that the
+    // caller filters the same way.
+    if (limitToRoots && !Glob.isEmptyRoot(roots)) {
+      logCmd = logCmd
+          .withPaths(roots.stream()
+              .map(root -> ":(literal)" + root)
+              .collect(ImmutableList.toImmutableList()))
+          .fullHistory(true);
+    }
+    logCmd.includeFiles(true).includeMergeDiff(true).run(new LogConsumer() {
+      @Nullable private GitRevision last;
+
+      @Override
+      public boolean accept(GitLogEntry e) throws RepoException {
+        // Keep the first commit if repeated (merge commits).
+        if (last != null && last.equals(e.getCommit())) {
+          return true;
+        }
+        last = e.getCommit();
+        return visitor.visit(toGitChange(e));
+      }
+    });
   }
 
   static final String BRANCH_COMMIT_LOG_HEADING = "-- Branch commit log --";
@@ -118,27 +158,15 @@ class ChangeReader {
             .collect(Collectors.toList()));
   }
 
-  private ImmutableList<GitChange> parseChanges(ImmutableList<GitLogEntry> logEntries)
-      throws RepoException {
-
-    ImmutableList.Builder<GitChange> result = ImmutableList.builder();
-    GitRevision last = null;
-    for (GitLogEntry e : logEntries) {
-      // Keep the first commit if repeated (merge commits).
-      if (last != null && last.equals(e.getCommit())) {
-        continue;
-      }
-      last = e.getCommit();
-      result.add(new GitChange(new Change<>(
-          e.getCommit().withUrl(url),
-          filterAuthor(e.getAuthor())
-          , e.getBody() + branchCommitLog(e.getCommit(), e.getParents()),
-          e.getAuthorDate(),
-          ChangeMessage.parseAllAsLabels(e.getBody()).labelsAsMultimap(),
-          e.getFiles(), e.getParents().size() > 1),
-          e.getParents()));
-    }
-    return result.build().reverse();
+  private GitChange toGitChange(GitLogEntry e) throws RepoException {
+    return new GitChange(new Change<>(
+        e.getCommit().withUrl(url),
+        filterAuthor(e.getAuthor())
+        , e.getBody() + branchCommitLog(e.getCommit(), e.getParents()),
+        e.getAuthorDate(),
+        ChangeMessage.parseAllAsLabels(e.getBody()).labelsAsMultimap(),
+        e.getFiles(), e.getParents().size() > 1),
+        e.getParents());
   }
 
   private Author filterAuthor(Author author) {
@@ -147,6 +175,17 @@ class ChangeReader {
         : authoring.getDefaultAuthor();
   }
 
+  /**
+   * Receives the changes found by {@link #visit(String, GitChangeVisitor)}.
+   */
+  interface GitChangeVisitor {
+
+    /**
+     * Visits a change. Returns false to stop the visit.
+     */
+    boolean visit(GitChange change) throws RepoException;
+  }
+
   /**
    * An enhanced version of Change that contains the git parents.
    */
@@ -179,6 +218,7 @@ class ChangeReader {
     private int limit = -1;
     private ImmutableList<String> roots = ImmutableList.of("");
     private boolean includeBranchCommitLogs = false;
+    private boolean limitToRoots = false;
     private String url;
     private boolean firstParent;
     private int skip;
@@ -245,6 +285,15 @@ class ChangeReader {
       return this;
     }
 
+    /**
+     * Skip in the Git log command the commits that don't change the roots. The changes still have
+     * to be filtered by roots: merges are returned if they differ from any of the parents.
+     */
+    Builder setLimitToRoots(boolean limitToRoots) {
+      this.limitToRoots = limitToRoots;
+      return this;
+    }
+
     /**
      * Grep for the given pattern in the Git log command.
      */
@@ -253,9 +302,13 @@ class ChangeReader {
       return this;
     }
 
+    GitRepository getRepository() {
+      return repository;
+    }
+
     ChangeReader build() {
       return new ChangeReader(
-          authoring, repository, limit, roots, includeBranchCommitLogs, url,
+          authoring, repository, limit, roots, includeBranchCommitLogs, limitToRoots, url,
           firstParent, skip, grepString);
     }
   }
@@ -0,0 +1,701 @@
+/*
+ * Copyright (C) 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.copybara.git.CatFileSession.ObjectInfo;
+import com.google.copybara.git.GitRepository.GitObjectType;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.stream.Stream;
+import java.util.zip.InflaterInputStream;
+import javax.annotation.Nullable;
+
+/**
+ * A read-only view of the objects of a repository that reads pack files and loose objects in
+ * process, without starting git.
+ *
+ * <p>Pack indexes and pack files are memory-mapped when first needed, and scanned again when an
+ * object is not found, so that packs written by fetches or gc are seen. Delta bases are kept in a
+ * cache bounded by size, because a delta chain usually shares the bases with the objects read
+ * next.
+ *
+ * <p>There is one database per git directory, shared by all the {@link GitRepository} instances
+ * that use it, so that the packs are mapped once and the delta base cache is shared.
+ *
+ * <p>This is best effort: anything that is not found or not supported (version 1 pack indexes,
+ * packs bigger than 2GB, corrupted data...) returns null, and the caller should ask git. Writes
+ * always go through git.
+ *
+ * <p>Git reads the replacement of an object instead of the object when there is a replace ref for
+ * it (see git-replace). This class doesn't implement that, so nothing is read in process while the
+ * repository has replace refs, or uses a ref storage that cannot be checked for them.
+ */
+final class GitObjectDatabase {
+
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private static final int DELTA_BASE_CACHE_BYTES = 32 * 1024 * 1024;
+
+  // Objects bigger than this are not read in memory
+  private static final int MAX_OBJECT_SIZE = Integer.MAX_VALUE - 8;
+
+  private static final ImmutableMap<Integer, GitObjectType> PACK_TYPES = ImmutableMap.of(
+      1, GitObjectType.COMMIT,
+      2, GitObjectType.TREE,
+      3, GitObjectType.BLOB,
+      4, GitObjectType.TAG);
+  private static final int OFS_DELTA = 6;
+  private static final int REF_DELTA = 7;
+  // Git doesn't write chains longer than 4095. Longer ones are most likely a corrupt pack.
+  private static final int MAX_DELTA_CHAIN = 10_000;
+
+  private static final Map<Path, GitObjectDatabase> databases = new ConcurrentHashMap<>();
+
+  private final Path gitDir;
+  private final Cache<PackPosition, RawObject> deltaBases;
+  private volatile ImmutableList<Pack> packs = ImmutableList.of();
+  @Nullable
+  private volatile PackedRefsState packedRefsState;
+
+  /** Returns the database for {@code gitDir}, creating it if needed. */
+  static GitObjectDatabase forGitDir(Path gitDir) {
+    return databases.computeIfAbsent(gitDir.toAbsolutePath().normalize(),
+        k -> new GitObjectDatabase(gitDir, DELTA_BASE_CACHE_BYTES));
+  }
+
+  /**
+   * Forgets all the databases, so that their packs can be unmapped and their caches freed once
+   * they are not referenced. Databases requested afterwards are created again.
+   */
+  static void closeAll() {
+    databases.clear();
+  }
+
+  @VisibleForTesting
+  GitObjectDatabase(Path gitDir, long deltaBaseCacheBytes) {
+    this.gitDir = checkNotNull(gitDir);
+    this.deltaBases = CacheBuilder.newBuilder()
+        .maximumWeight(deltaBaseCacheBytes)
+        .<PackPosition, RawObject>weigher((position, object) -> object.content.length)
+        .build();
+  }
+
+  /**
+   * Returns the object with the given full SHA-1, including its content, or null if it cannot be
+   * read in process.
+   */
+  @Nullable
+  ObjectInfo read(String sha1) {
+    if (!GitRevision.COMPLETE_SHA1_PATTERN.matcher(sha1).matches()) {
+      return null;
+    }
+    try {
+      if (mightHaveReplaceRefs()) {
+        return null;
+      }
+      RawObject object = readRaw(sha1);
+      return object == null
+          ? null
+          : new ObjectInfo(sha1, object.type, object.content.length, object.content);
+    } catch (IOException | DataFormatException | IndexOutOfBoundsException
+        | BufferUnderflowException e) {
+      logger.atWarning().withCause(e).log("Cannot read object %s from %s", sha1, gitDir);
+      return null;
+    }
+  }
+
+  @Nullable
+  private RawObject readRaw(String sha1) throws IOException, DataFormatException {
+    byte[] id = BaseEncoding.base16().lowerCase().decode(sha1);
+    RawObject object = readPacked(packs, id);
+    if (object != null) {
+      return object;
+    }
+    object = readLoose(sha1);
+    if (object != null) {
+      return object;
+    }
+    ImmutableList<Pack> current = packs;
+    ImmutableList<Pack> updated = scanPacks(current);
+    if (updated.equals(current)) {
+      return null;
+    }
+    packs = updated;
+    return readPacked(updated, id);
+  }
+
+  @Nullable
+  private RawObject readPacked(List<Pack> packs, byte[] id)
+      throws IOException, DataFormatException {
+    for (Pack pack : packs) {
+      long offset = pack.find(id);
+      if (offset != -1) {
+        return readPacked(pack, offset);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns true if the repository has replace refs, or they cannot be checked because the refs
+   * are not stored in files.
+   */
+  private boolean mightHaveReplaceRefs() throws IOException {
+    if (Files.exists(gitDir.resolve("reftable"))) {
+      return true;
+    }
+    Path looseRefs = gitDir.resolve("refs/replace");
+    if (Files.isDirectory(looseRefs)) {
+      try (Stream<Path> files = Files.walk(looseRefs)) {
+        if (files.anyMatch(Files::isRegularFile)) {
+          return true;
+        }
+      }
+    }
+    Path packedRefs = gitDir.resolve("packed-refs");
+    BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(packedRefs, BasicFileAttributes.class);
+    } catch (NoSuchFileException e) {
+      return false;
+    }
+    PackedRefsState state = packedRefsState;
+    if (state == null || !state.isFor(attributes)) {
+      boolean hasReplaceRefs;
+      try (Stream<String> lines = Files.lines(packedRefs, UTF_8)) {
+        hasReplaceRefs = lines.anyMatch(line -> line.contains(" refs/replace/"));
+      }
+      state = new PackedRefsState(attributes, hasReplaceRefs);
+      packedRefsState = state;
+    }
+    return state.hasReplaceRefs;
+  }
+
+  /**
+   * Returns the directories that contain objects: the repository one and its alternates.
+   */
+  private List<Path> objectDirs() throws IOException {
+    Path objects = gitDir.resolve("objects");
+    List<Path> result = new ArrayList<>();
+    result.add(objects);
+    Path alternates = objects.resolve("info/alternates");
+    if (Files.exists(alternates)) {
+      for (String line : Splitter.on('\n').omitEmptyStrings().trimResults()
+          .split(new String(Files.readAllBytes(alternates), UTF_8))) {
+        if (!line.startsWith("#")) {
+          result.add(objects.resolve(line));
+        }
+      }
+    }
+    return result;
+  }
+
+  @Nullable
+  private RawObject readLoose(String sha1) throws IOException {
+    for (Path objects : objectDirs()) {
+      Path file = objects.resolve(sha1.substring(0, 2)).resolve(sha1.substring(2));
+      byte[] compressed;
+      try {
+        compressed = Files.readAllBytes(file);
+      } catch (NoSuchFileException e) {
+        continue;
+      }
+      // Loose objects are '<type> <size>\0<content>' compressed with zlib
+      try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(compressed))) {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        for (int b = in.read(); b != 0; b = in.read()) {
+          if (b == -1 || header.size() > 32) {
+            throw new IOException("Invalid loose object header in " + file);
+          }
+          header.write(b);
+        }
+        List<String> fields = Splitter.on(' ').splitToList(new String(header.toByteArray(), UTF_8));
+        if (fields.size() != 2) {
+          throw new IOException("Invalid loose object header in " + file);
+        }
+        GitObjectType type;
+        long size;
+        try {
+          type = GitObjectType.valueOf(fields.get(0).toUpperCase(Locale.ROOT));
+          size = Long.parseLong(fields.get(1));
+        } catch (IllegalArgumentException e) {
+          throw new IOException("Invalid loose object header in " + file, e);
+        }
+        return new RawObject(type, readFully(in, size));
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Reads the object at {@code offset}. Delta chains are resolved without recursion, since
+   * aggressive repacks produce chains of thousands of objects: the deltas are collected down to
+   * the base of the chain, or to a base in the cache, and then applied from there up.
+   */
+  private RawObject readPacked(Pack pack, long offset) throws IOException, DataFormatException {
+    // The deltas to apply, with the closest one to the base of the chain on top.
+    Deque<PackEntry> deltas = new ArrayDeque<>();
+    long position = offset;
+    RawObject object;
+    while (true) {
+      PackEntry entry = readEntry(pack, position);
+      if (entry.type != null) {
+        object = new RawObject(entry.type, inflate(pack, entry.dataPos, entry.size));
+        if (!deltas.isEmpty()) {
+          deltaBases.put(new PackPosition(pack.path, position), object);
+        }
+        break;
+      }
+      if (deltas.size() >= MAX_DELTA_CHAIN) {
+        throw new IOException(String.format(
+            "Delta chain longer than %d at %d in %s", MAX_DELTA_CHAIN, offset, pack.path));
+      }
+      deltas.push(entry);
+      if (entry.baseOffset == -1) {
+        // A REF_DELTA whose base is not in this pack
+        String baseSha1 = BaseEncoding.base16().lowerCase().encode(entry.baseId);
+        object = readRaw(baseSha1);
+        if (object == null) {
+          throw new IOException(
+              String.format("Missing delta base %s in %s", baseSha1, pack.path));
+        }
+        break;
+      }
+      position = entry.baseOffset;
+      object = deltaBases.getIfPresent(new PackPosition(pack.path, position));
+      if (object != null) {
+        break;
+      }
+    }
+    while (!deltas.isEmpty()) {
+      PackEntry delta = deltas.pop();
+      object = new RawObject(object.type,
+          applyDelta(object.content, inflate(pack, delta.dataPos, delta.size)));
+      // The object itself is only cached if it is the base of another one
+      if (!deltas.isEmpty()) {
+        deltaBases.put(new PackPosition(pack.path, delta.position), object);
+      }
+    }
+    return object;
+  }
+
+  /** Reads the header of the pack entry at {@code offset}. */
+  private static PackEntry readEntry(Pack pack, long offset) throws IOException {
+    ByteBuffer data = pack.data;
+    int pos = checkOffset(pack, offset);
+    // Header: 3 bits of type and a variable length size
+    int c = data.get(pos++) & 0xff;
+    int typeCode = (c >> 4) & 0x7;
+    long size = c & 0x0f;
+    for (int shift = 4; (c & 0x80) != 0; shift += 7) {
+      c = data.get(pos++) & 0xff;
+      size |= (long) (c & 0x7f) << shift;
+    }
+    GitObjectType type = PACK_TYPES.get(typeCode);
+    if (type != null) {
+      return new PackEntry(offset, type, pos, size, /*baseOffset=*/-1, /*baseId=*/null);
+    }
+    if (typeCode == OFS_DELTA) {
+      c = data.get(pos++) & 0xff;
+      long distance = c & 0x7f;
+      while ((c & 0x80) != 0) {
+        c = data.get(pos++) & 0xff;
+        distance = ((distance + 1) << 7) | (c & 0x7f);
+      }
+      if (distance <= 0 || distance > offset) {
+        throw new IOException(
+            String.format("Invalid delta base distance %d at %d in %s", distance, offset,
+                pack.path));
+      }
+      return new PackEntry(offset, /*type=*/null, pos, size, offset - distance, /*baseId=*/null);
+    }
+    if (typeCode == REF_DELTA) {
+      byte[] baseId = new byte[20];
+      ByteBuffer idBuffer = data.duplicate();
+      idBuffer.position(pos);
+      idBuffer.get(baseId);
+      pos += baseId.length;
+      return new PackEntry(offset, /*type=*/null, pos, size, pack.find(baseId), baseId);
+    }
+    throw new IOException(
+        String.format("Invalid object type %d at %d in %s", typeCode, offset, pack.path));
+  }
+
+  private static int checkOffset(Pack pack, long offset) throws IOException {
+    // Offsets start after the pack header and end before the trailing checksum
+    if (offset < 12 || offset >= pack.data.limit() - 20) {
+      throw new IOException(String.format("Invalid offset %d in %s", offset, pack.path));
+    }
+    return (int) offset;
+  }
+
+  private static byte[] inflate(Pack pack, int pos, long size) throws IOException {
+    ByteBuffer compressed = pack.data.duplicate();
+    compressed.position(pos);
+    Inflater inflater = new Inflater();
+    try (InputStream in =
+        new InflaterInputStream(new ByteBufferInputStream(compressed), inflater, 8192)) {
+      return readFully(in, size);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  private static byte[] readFully(InputStream in, long size) throws IOException {
+    if (size > MAX_OBJECT_SIZE) {
+      throw new IOException("Object too big: " + size);
+    }
+    byte[] result = new byte[(int) size];
+    ByteStreams.readFully(in, result);
+    if (in.read() != -1) {
+      throw new IOException("Object is bigger than the declared size " + size);
+    }
+    return result;
+  }
+
+  /**
+   * Applies a git delta: the sizes of the base and the result, followed by instructions that copy
+   * a range of the base or insert new bytes.
+   */
+  @VisibleForTesting
+  static byte[] applyDelta(byte[] base, byte[] delta) throws DataFormatException {
+    int pos = 0;
+    long baseSize = 0;
+    int c;
+    int shift = 0;
+    do {
+      c = delta[pos++] & 0xff;
+      baseSize |= (long) (c & 0x7f) << shift;
+      shift += 7;
+    } while ((c & 0x80) != 0);
+    long resultSize = 0;
+    shift = 0;
+    do {
+      c = delta[pos++] & 0xff;
+      resultSize |= (long) (c & 0x7f) << shift;
+      shift += 7;
+    } while ((c & 0x80) != 0);
+    if (baseSize != base.length || resultSize > MAX_OBJECT_SIZE) {
+      throw new DataFormatException(String.format(
+          "Invalid delta sizes: base %d (expected %d), result %d",
+          baseSize, base.length, resultSize));
+    }
+
+    byte[] result = new byte[(int) resultSize];
+    int out = 0;
+    while (pos < delta.length) {
+      int cmd = delta[pos++] & 0xff;
+      if ((cmd & 0x80) != 0) {
+        long copyOffset = 0;
+        int copySize = 0;
+        for (int i = 0; i < 4; i++) {
+          if ((cmd & (1 << i)) != 0) {
+            copyOffset |= (long) (delta[pos++] & 0xff) << (8 * i);
+          }
+        }
+        for (int i = 0; i < 3; i++) {
+          if ((cmd & (0x10 << i)) != 0) {
+            copySize |= (delta[pos++] & 0xff) << (8 * i);
+          }
+        }
+        if (copySize == 0) {
+          copySize = 0x10000;
+        }
+        if (copyOffset + copySize > base.length) {
+          throw new DataFormatException("Delta copies outside of the base object");
+        }
+        System.arraycopy(base, (int) copyOffset, result, out, copySize);
+        out += copySize;
+      } else if (cmd != 0) {
+        System.arraycopy(delta, pos, result, out, cmd);
+        pos += cmd;
+        out += cmd;
+      } else {
+        throw new DataFormatException("Invalid delta instruction 0");
+      }
+    }
+    if (out != result.length) {
+      throw new DataFormatException(
+          String.format("Delta produced %d bytes, expected %d", out, result.length));
+    }
+    return result;
+  }
+
+  /**
+   * Returns the packs currently in the repository, reusing the ones already open.
+   */
+  private ImmutableList<Pack> scanPacks(List<Pack> current) throws IOException {
+    ImmutableList.Builder<Pack> result = ImmutableList.builder();
+    for (Path objects : objectDirs()) {
+      Path packDir = objects.resolve("pack");
+      if (!Files.isDirectory(packDir)) {
+        continue;
+      }
+      try (DirectoryStream<Path> indexes = Files.newDirectoryStream(packDir, "pack-*.idx")) {
+        for (Path index : indexes) {
+          String name = index.getFileName().toString();
+          Path path = packDir.resolve(name.substring(0, name.length() - ".idx".length()) + ".pack");
+          Pack existing = current.stream()
+              .filter(p -> p.path.equals(path))
+              .findFirst()
+              .orElse(null);
+          if (existing != null) {
+            result.add(existing);
+            continue;
+          }
+          try {
+            result.add(new Pack(index, path));
+          } catch (IOException e) {
+            // Not supported or not completely written yet. git will read it.
+            logger.atInfo().withCause(e).log("Ignoring pack %s", path);
+          }
+        }
+      }
+    }
+    return result.build();
+  }
+
+  /**
+   * A memory-mapped pack file and its version 2 index.
+   */
+  private static final class Pack {
+
+    private static final int FANOUT_START = 8;
+    private static final int NAMES_START = FANOUT_START + 256 * 4;
+
+    private final Path path;
+    private final ByteBuffer index;
+    private final ByteBuffer data;
+    private final int count;
+
+    private Pack(Path indexPath, Path path) throws IOException {
+      this.path = path;
+      this.index = map(indexPath);
+      if (index.limit() < NAMES_START || index.getInt(0) != 0xff744f63 || index.getInt(4) != 2) {
+        throw new IOException("Unsupported pack index version in " + indexPath);
+      }
+      this.count = index.getInt(NAMES_START - 4);
+      // names, crc32s and offsets, followed by the checksums of the pack and the index
+      if (count < 0 || index.limit() < NAMES_START + (long) count * 28 + 40) {
+        throw new IOException("Truncated pack index " + indexPath);
+      }
+      this.data = map(path);
+      if (data.limit() < 32 || data.getInt(0) != 0x5041434b) {
+        throw new IOException("Invalid pack file " + path);
+      }
+    }
+
+    private static ByteBuffer map(Path file) throws IOException {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        if (channel.size() > Integer.MAX_VALUE) {
+          throw new IOException("File too big to be mapped: " + file);
+        }
+        return channel.map(MapMode.READ_ONLY, 0, channel.size());
+      }
+    }
+
+    /** Returns the offset of the object in the pack or -1 if it is not in this pack. */
+    private long find(byte[] id) {
+      int first = id[0] & 0xff;
+      int low = first == 0 ? 0 : index.getInt(FANOUT_START + (first - 1) * 4);
+      int high = index.getInt(FANOUT_START + first * 4);
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        int cmp = compare(id, NAMES_START + mid * 20);
+        if (cmp == 0) {
+          return offset(mid);
+        } else if (cmp < 0) {
+          high = mid;
+        } else {
+          low = mid + 1;
+        }
+      }
+      return -1;
+    }
+
+    private int compare(byte[] id, int position) {
+      for (int i = 0; i < id.length; i++) {
+        int cmp = (id[i] & 0xff) - (index.get(position + i) & 0xff);
+        if (cmp != 0) {
+          return cmp;
+        }
+      }
+      return 0;
+    }
+
+    private long offset(int entry) {
+      int offsets = NAMES_START + count * 24;
+      int offset = index.getInt(offsets + entry * 4);
+      if (offset >= 0) {
+        return offset;
+      }
+      // The most significant bit means that it is an entry in the table of 8 byte offsets
+      long position = offsets + count * 4L + (offset & 0x7fffffffL) * 8;
+      if (position > index.limit() - 8) {
+        throw new IndexOutOfBoundsException(
+            String.format("Invalid large offset entry %d in the index of %s", offset, path));
+      }
+      return index.getLong((int) position);
+    }
+  }
+
+  private static final class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    private ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int count = Math.min(len, buffer.remaining());
+      buffer.get(bytes, off, count);
+      return count;
+    }
+  }
+
+  private static final class PackPosition {
+
+    private final Path pack;
+    private final long offset;
+
+    private PackPosition(Path pack, long offset) {
+      this.pack = pack;
+      this.offset = offset;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      PackPosition that = (PackPosition) o;
+      return offset == that.offset && pack.equals(that.pack);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(pack, offset);
+    }
+  }
+
+  /** The header of an object in a pack. */
+  private static final class PackEntry {
+
+    private final long position;
+    // Null for deltas
+    @Nullable
+    private final GitObjectType type;
+    // Position of the compressed data, and size of the object or the delta once inflated
+    private final int dataPos;
+    private final long size;
+    // Offset of the delta base in the same pack, or -1
+    private final long baseOffset;
+    // Id of the base of a REF_DELTA
+    @Nullable
+    private final byte[] baseId;
+
+    private PackEntry(long position, @Nullable GitObjectType type, int dataPos, long size,
+        long baseOffset, @Nullable byte[] baseId) {
+      this.position = position;
+      this.type = type;
+      this.dataPos = dataPos;
+      this.size = size;
+      this.baseOffset = baseOffset;
+      this.baseId = baseId;
+    }
+  }
+
+  private static final class RawObject {
+
+    private final GitObjectType type;
+    private final byte[] content;
+
+    private RawObject(GitObjectType type, byte[] content) {
+      this.type = type;
+      this.content = content;
+    }
+  }
+
+  /** Whether a version of the packed-refs file has replace refs. */
+  private static final class PackedRefsState {
+
+    private final FileTime lastModified;
+    private final long size;
+    private final boolean hasReplaceRefs;
+
+    private PackedRefsState(BasicFileAttributes attributes, boolean hasReplaceRefs) {
+      this.lastModified = attributes.lastModifiedTime();
+      this.size = attributes.size();
+      this.hasReplaceRefs = hasReplaceRefs;
+    }
+
+    private boolean isFor(BasicFileAttributes attributes) {
+      return lastModified.equals(attributes.lastModifiedTime()) && size == attributes.size();
+    }
+  }
+}
@@ -53,6 +53,14 @@ public class GitOptions implements Option {
           + "https://git-scm.com/docs/git-credential-store")
   boolean noCredentialHelperStore = false;
 
+  @Parameter(names = "--nogit-commit-graph",
+      description = "Don't write commit-graph files with changed-path Bloom filters in the cached"
+          + " repositories after fetching. They make 'git log' faster when origin_files is a small"
+          + " part of the repository. The first fetch into a new cache computes them for the whole"
+          + " history, so only later runs are faster. Git versions before 2.46 only use the"
+          + " filters when origin_files has a single root path. See"
+          + " https://git-scm.com/docs/git-commit-graph")
+  boolean noCommitGraph = false;
 
   @Parameter(names = "--git-visit-changes-page-size",
       description = "Size of the git log page used for visiting changes.", hidden = true,
@@ -92,6 +100,12 @@ public class GitOptions implements Option {
 
   protected GitRepository initRepo(GitRepository repo) throws RepoException {
     repo.init();
+    // Outputs that are not read, for example of failed commands, are deleted with the temp dir.
+    repo.withOutputSpillDir(
+        generalOptions.getDirFactory().getTmpRoot().resolve("command_output"));
+    if (!noCommitGraph) {
+      repo.withCommitGraph();
+    }
     if (noCredentialHelperStore) {
       return repo;
     }
@@ -100,4 +114,10 @@ public class GitOptions implements Option {
     repo.withCredentialHelper("store" + path);
     return repo;
   }
+
+  /** Stops the object lookup processes of the repositories used in the run. */
+  @Override
+  public void shutdown() {
+    GitRepository.closeObjectSessions();
+  }
 }
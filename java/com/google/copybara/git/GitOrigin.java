@@ -52,7 +52,10 @@ import com.google.copybara.util.console.Console;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import javax.annotation.Nullable;
 
@@ -213,6 +216,55 @@ public class GitOrigin implements Origin<GitRevision> {
       }
     }
     
+    /**
+     * Keeps {@code workdir} up to date with its own index file, so that git only writes the files
+     * that changed since the previous checkout. Any file modified in {@code workdir} since then is
+     * detected by git and restored, and any new file is removed.
+     *
+     * <p>The files that don't match origin_files are removed and marked as skip-worktree in the
+     * index, so that git doesn't write them again in the next checkouts unless they change.
+     */
+    @Override
+    public boolean checkoutIncrementally(GitRevision ref, Path workdir)
+        throws RepoException, ValidationException {
+      // Submodules, hooks, patches and rebases work on a fresh checkout.
+      if (submoduleStrategy != SubmoduleStrategy.NO
+          || !Strings.isNullOrEmpty(gitOriginOptions.originCheckoutHook)
+          || patchTransformation != null
+          || gitOriginOptions.originRebaseRef != null) {
+        return false;
+      }
+      GitRepository repo = getRepository()
+          .withWorkTree(workdir)
+          .withIndexFile(workdir.resolveSibling(workdir.getFileName() + ".index"));
+      repo.forceCheckoutAndClean(ref.getSha1());
+      PathMatcher matcher = originFiles.relativeTo(workdir);
+      List<String> newlyExcluded = new ArrayList<>();
+      List<String> newlyIncluded = new ArrayList<>();
+      try {
+        for (Map.Entry<String, Boolean> entry : repo.lsFilesWithSkipWorktree().entrySet()) {
+          Path file = workdir.resolve(entry.getKey());
+          if (matcher.matches(file)) {
+            // Excluded by the origin_files of a previous checkout
+            if (entry.getValue()) {
+              newlyIncluded.add(entry.getKey());
+            }
+            continue;
+          }
+          // Git still writes the skip-worktree files that changed in this revision
+          Files.deleteIfExists(file);
+          if (!entry.getValue()) {
+            newlyExcluded.add(entry.getKey());
+          }
+        }
+      } catch (IOException e) {
+        throw new RepoException("Cannot remove the files outside origin_files in " + workdir, e);
+      }
+      repo.skipWorktree(newlyExcluded);
+      repo.noSkipWorktree(newlyIncluded);
+      return true;
+    }
+
     /**
      * Checks out the repository, and rebases to a ref if necessary.
      *
@@ -373,7 +425,10 @@ public class GitOrigin implements Origin<GitRevision> {
     @Override
     public void visitChanges(GitRevision start, ChangesVisitor visitor)
         throws RepoException, CannotResolveRevisionException {
-      ChangeReader.Builder queryChanges = changeReaderBuilder(repoUrl).setFirstParent(firstParent);
+      ChangeReader.Builder queryChanges = changeReaderBuilder(repoUrl)
+          .setFirstParent(firstParent)
+          // Changes not affecting the roots are skipped below
+          .setLimitToRoots(true);
       ImmutableSet<String> roots = originFiles.roots();
 
       GitVisitorUtil.visitChanges(
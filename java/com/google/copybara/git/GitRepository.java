@@ -24,8 +24,10 @@ import com.google.common.base.Joiner;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
+import com.google.common.base.Stopwatch;
 import com.google.common.base.StandardSystemProperty;
 import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
 import com.google.common.base.Verify;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
@@ -37,6 +39,9 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Range;
 import com.google.common.flogger.FluentLogger;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.copybara.authoring.Author;
 import com.google.copybara.authoring.AuthorParser;
 import com.google.copybara.authoring.InvalidAuthorException;
@@ -44,6 +49,7 @@ import com.google.copybara.exception.CannotResolveRevisionException;
 import com.google.copybara.exception.EmptyChangeException;
 import com.google.copybara.exception.RepoException;
 import com.google.copybara.exception.ValidationException;
+import com.google.copybara.git.CatFileSession.ObjectInfo;
 import com.google.copybara.git.GitCredential.UserPassword;
 import com.google.copybara.util.RepositoryUtil;
 import com.google.copybara.shell.Command;
@@ -55,7 +61,10 @@ import com.google.copybara.util.CommandRunner;
 import com.google.copybara.util.FileUtil;
 import com.google.re2j.Matcher;
 import com.google.re2j.Pattern;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
@@ -70,11 +79,20 @@ import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import javax.annotation.CheckReturnValue;
@@ -150,6 +168,14 @@ public class GitRepository {
 
   private final boolean verbose;
   private final Map<String, String> environment;
+  // Where the outputs of the commands that don't fit in memory are written. See
+  // withOutputSpillDir().
+  @Nullable
+  private volatile Path outputSpillDir;
+
+  // Git directories that write commit-graph files after fetching, mapped to false once writing
+  // failed, so that it is not tried again. See withCommitGraph().
+  private static final Map<Path, Boolean> commitGraphRepos = new ConcurrentHashMap<>();
 
   private static final Map<Character, StatusCode> CHAR_TO_STATUS_CODE =
       Arrays.stream(StatusCode.values())
@@ -163,6 +189,25 @@ public class GitRepository {
     this.environment = checkNotNull(environment);
   }
 
+  /**
+   * Stops the 'git cat-file' processes used for object lookups by all the repositories and
+   * releases their mapped packs. Called at the end of the run. Repositories used afterwards start
+   * new processes.
+   */
+  public static void closeObjectSessions() {
+    CatFileSession.closeAll();
+    GitObjectDatabase.closeAll();
+  }
+
+  /**
+   * The session for looking up objects. It is shared by all the instances with the same git
+   * directory, like the ones returned by {@link #withWorkTree(Path)}.
+   */
+  @VisibleForTesting
+  CatFileSession catFile() {
+    return CatFileSession.forGitDir(resolveGitBinary(environment), gitDir, environment);
+  }
+
   /**
    * Creates a new repository in the given directory. The new repo is not bare.
    */
@@ -277,6 +322,10 @@ public class GitRepository {
     CommandOutputWithStatus output = gitAllowNonZeroExit(CommandRunner.NO_INPUT, args);
     if (output.getTerminationStatus().success()) {
       ImmutableMap<String, GitRevision> after = showRef();
+      if (commitGraphRepos.getOrDefault(gitDir.toAbsolutePath().normalize(), false)
+          && (!after.equals(before) || !hasChangedPathFilters())) {
+        writeCommitGraph();
+      }
       return new FetchResult(before, after);
     }
     if (output.getStderr().isEmpty()
@@ -446,7 +495,24 @@ public class GitRepository {
    * initialize or alter the given work tree.
    */
   public GitRepository withWorkTree(Path newWorkTree) {
-    return new GitRepository(this.gitDir, newWorkTree, this.verbose, this.environment);
+    GitRepository result =
+        new GitRepository(this.gitDir, newWorkTree, this.verbose, this.environment);
+    result.outputSpillDir = this.outputSpillDir;
+    return result;
+  }
+
+  /**
+   * Returns an instance equivalent to this one but that uses {@code indexFile} as the index
+   * instead of the one in the git directory. This allows to keep several work trees up to date
+   * without invalidating each other index.
+   */
+  public GitRepository withIndexFile(Path indexFile) {
+    Map<String, String> newEnvironment = new HashMap<>(environment);
+    newEnvironment.put("GIT_INDEX_FILE", indexFile.toAbsolutePath().toString());
+    GitRepository result =
+        new GitRepository(this.gitDir, this.workTree, this.verbose, newEnvironment);
+    result.outputSpillDir = this.outputSpillDir;
+    return result;
   }
 
   /**
@@ -579,6 +645,18 @@ public class GitRepository {
    * Resolves a git reference to the SHA-1 reference
    */
   public String parseRef(String ref) throws RepoException, CannotResolveRevisionException {
+    if (CatFileSession.canQuery(ref)) {
+      try {
+        ObjectInfo commit = catFile().info(ref + "^{commit}");
+        if (commit == null) {
+          throw new CannotResolveRevisionException("Cannot find reference '" + ref + "'");
+        }
+        return commit.getSha1();
+      } catch (RepoException e) {
+        // Ambiguous or the session failed. rev-list can disambiguate or report the error.
+        logger.atInfo().withCause(e).log("Cannot resolve '%s' with cat-file", ref);
+      }
+    }
     // Runs rev-list on the reference and remove the extra newline from the output.
     CommandOutputWithStatus result = gitAllowNonZeroExit(
         CommandRunner.NO_INPUT, ImmutableList.of("rev-list", "-1", ref, "--"));
@@ -622,6 +700,65 @@ public class GitRepository {
     return simpleCommand("checkout", "-q", "-f", checkNotNull(ref));
   }
 
+  /**
+   * Like {@link #forceCheckout} but also removes the files that are not tracked, including the
+   * ignored ones, so that the work tree only contains the files of {@code ref}. Git only writes
+   * the files that differ from the index.
+   *
+   * <p>The ctime of the files is not trusted: creating or removing hard links to a file changes
+   * it, and git would write again every linked file.
+   */
+  public void forceCheckoutAndClean(String ref) throws RepoException {
+    simpleCommand("-c", "core.trustctime=false", "checkout", "-q", "-f", checkNotNull(ref));
+    simpleCommand("clean", "-q", "-f", "-f", "-d", "-x");
+  }
+
+  /**
+   * Returns the paths of the index, mapped to whether they are marked with {@link #skipWorktree}.
+   */
+  public ImmutableMap<String, Boolean> lsFilesWithSkipWorktree() throws RepoException {
+    ImmutableMap.Builder<String, Boolean> result = ImmutableMap.builder();
+    // Each entry is a tag, a space and the path. 'S' is the tag of the skip-worktree entries.
+    for (String entry : Splitter.on('\0').omitEmptyStrings()
+        .split(simpleCommand("ls-files", "-v", "-z").getStdout())) {
+      result.put(entry.substring(2), Character.toUpperCase(entry.charAt(0)) == 'S');
+    }
+    return result.build();
+  }
+
+  /**
+   * Marks the paths of the index as not present in the work tree. Checkouts don't write them
+   * unless they change in the checked out revision, and their absence is not a local change.
+   */
+  public void skipWorktree(Collection<String> paths) throws RepoException {
+    if (paths.isEmpty()) {
+      return;
+    }
+    gitWithPathsInStdin(paths, "update-index", "-z", "--skip-worktree", "--stdin");
+  }
+
+  /**
+   * Removes the {@link #skipWorktree} mark of the paths of the index, and writes their content in
+   * the index to the work tree.
+   */
+  public void noSkipWorktree(Collection<String> paths) throws RepoException {
+    if (paths.isEmpty()) {
+      return;
+    }
+    gitWithPathsInStdin(paths, "update-index", "-z", "--no-skip-worktree", "--stdin");
+    gitWithPathsInStdin(paths, "checkout-index", "-f", "-u", "-z", "--stdin");
+  }
+
+  private void gitWithPathsInStdin(Collection<String> paths, String... argv)
+      throws RepoException {
+    ImmutableList<String> params = ImmutableList.copyOf(argv);
+    CommandOutputWithStatus output = gitAllowNonZeroExit(
+        (String.join("\0", paths) + "\0").getBytes(StandardCharsets.UTF_8), params);
+    if (!output.getTerminationStatus().success()) {
+      throw throwUnknownGitError(output, params);
+    }
+  }
+
   // DateTimeFormatter.ISO_OFFSET_DATE_TIME might include subseconds, but Git's ISO8601 format does
   // not deal with subseconds (see https://git-scm.com/docs/git-commit#git-commit-ISO8601).
   // We still want to stick to the default ISO format in Git, but don't add the subseconds.
@@ -770,6 +907,10 @@ public class GitRepository {
 
   public ImmutableList<TreeElement> lsTree(GitRevision reference, String treeish)
       throws RepoException {
+    ImmutableList<TreeElement> entry = lsTreeWithObjects(reference, treeish);
+    if (entry != null) {
+      return entry;
+    }
     ImmutableList.Builder<TreeElement> result = ImmutableList.builder();
     String stdout = simpleCommand("ls-tree", reference.getSha1(), "--", treeish).getStdout();
     for (String line : Splitter.on('\n').split(stdout)) {
@@ -792,6 +933,101 @@ public class GitRepository {
     return result.build();
   }
 
+  /**
+   * Finds the entry for {@code path} walking the tree objects from the commit. Returns null if
+   * this cannot be answered without ls-tree: if the path lists the content of a directory or an
+   * object is not found.
+   */
+  @Nullable
+  private ImmutableList<TreeElement> lsTreeWithObjects(GitRevision reference, String path)
+      throws RepoException {
+    if (!CatFileSession.canQuery(path)) {
+      return null;
+    }
+    List<String> segments = Splitter.on('/').splitToList(path);
+    for (String segment : segments) {
+      if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+        return null;
+      }
+    }
+    ObjectInfo commit = readObject(reference.getSha1());
+    if (commit == null || commit.getType() != GitObjectType.COMMIT) {
+      return null;
+    }
+    TreeElement entry = new TreeElement(GitObjectType.TREE, parseCommitTree(commit), "");
+    for (String segment : segments) {
+      if (entry.getType() != GitObjectType.TREE) {
+        return ImmutableList.of();
+      }
+      ObjectInfo tree = readObject(entry.getRef());
+      if (tree == null) {
+        return null;
+      }
+      entry = findTreeEntry(tree, segment);
+      if (entry == null) {
+        return ImmutableList.of();
+      }
+    }
+    return ImmutableList.of(new TreeElement(entry.getType(), entry.getRef(), path));
+  }
+
+  /**
+   * Reads an object by SHA-1 in process, or with the cat-file session if it is not supported.
+   */
+  @Nullable
+  private ObjectInfo readObject(String sha1) throws RepoException {
+    // Shared by all the instances with the same git directory
+    ObjectInfo object = GitObjectDatabase.forGitDir(gitDir).read(sha1);
+    return object != null ? object : catFile().read(sha1);
+  }
+
+  /** Returns the tree of a commit object, from the first line of its header. */
+  private static String parseCommitTree(ObjectInfo commit) throws RepoException {
+    byte[] content = commit.getContent();
+    int newLine = indexOf(content, (byte) '\n', 0);
+    String firstLine = new String(content, 0, newLine == -1 ? content.length : newLine,
+        StandardCharsets.UTF_8);
+    if (!firstLine.startsWith("tree ")) {
+      throw new RepoException("Invalid commit object " + commit.getSha1() + ": " + firstLine);
+    }
+    return firstLine.substring("tree ".length());
+  }
+
+  /** Returns the entry with the given name in a tree object, with the name as path. */
+  @Nullable
+  private static TreeElement findTreeEntry(ObjectInfo tree, String name) throws RepoException {
+    // Tree entries are '<octal mode> <name>\0<20 bytes SHA-1>'
+    byte[] content = tree.getContent();
+    int pos = 0;
+    while (pos < content.length) {
+      int space = indexOf(content, (byte) ' ', pos);
+      int nul = space == -1 ? -1 : indexOf(content, (byte) 0, space);
+      if (nul == -1 || nul + 21 > content.length) {
+        throw new RepoException("Invalid tree object " + tree.getSha1());
+      }
+      String entryName = new String(content, space + 1, nul - space - 1, StandardCharsets.UTF_8);
+      if (entryName.equals(name)) {
+        String mode = new String(content, pos, space - pos, StandardCharsets.UTF_8);
+        GitObjectType type = mode.equals("40000")
+            ? GitObjectType.TREE
+            : mode.equals("160000") ? GitObjectType.COMMIT : GitObjectType.BLOB;
+        String sha1 = BaseEncoding.base16().lowerCase().encode(content, nul + 1, 20);
+        return new TreeElement(type, sha1, name);
+      }
+      pos = nul + 21;
+    }
+    return null;
+  }
+
+  private static int indexOf(byte[] bytes, byte value, int from) {
+    for (int i = from; i < bytes.length; i++) {
+      if (bytes[i] == value) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
   private String siblingUrl(String currentRemoteUrl, String submoduleName, String relativeUrl)
       throws RepoException {
     int idx = currentRemoteUrl.lastIndexOf('/');
@@ -842,6 +1078,17 @@ public class GitRepository {
     return this;
   }
 
+  /**
+   * Writes the outputs of the git commands that are too big to keep in memory to {@code dir},
+   * instead of the system temp dir. It should be a temporary directory of the run, so that the
+   * outputs that are not read are deleted with it. Applies to the instances derived from this
+   * one afterwards too.
+   */
+  public GitRepository withOutputSpillDir(Path dir) {
+    this.outputSpillDir = Preconditions.checkNotNull(dir);
+    return this;
+  }
+
   public GitRepository withCredentialHelper(String credentialHelper)
       throws RepoException {
     git(gitDir, ImmutableList.of("config", "--local", "credential.helper",
@@ -849,6 +1096,102 @@ public class GitRepository {
     return this;
   }
 
+  /**
+   * Makes {@link #fetch} write commit-graph files with changed-path Bloom filters in the
+   * repository, so that path-limited 'git log' walks don't need to read the trees of the commits
+   * that don't change the paths.
+   *
+   * <p>Nothing is written here: a new cache is empty until the first fetch. The files are written
+   * after each fetch that changes the references. The first fetch into a new cache computes the
+   * filters for the whole history, so that run pays the cost and doesn't get faster. Later fetches
+   * only compute them for the new commits. If the git version doesn't support them, the
+   * repository is left as it is and later fetches don't try again.
+   */
+  public GitRepository withCommitGraph() throws RepoException {
+    // 'git fetch' would write layers without the filters. We write them after the fetch instead.
+    git(gitDir, ImmutableList.of("config", "--local", "fetch.writeCommitGraph", "false"));
+    commitGraphRepos.putIfAbsent(gitDir.toAbsolutePath().normalize(), true);
+    return this;
+  }
+
+  /**
+   * Writes the commit-graph layer with the changed-path Bloom filters of the commits that are not
+   * in the existing layers. All the layers are rewritten if one was written without the filters.
+   */
+  private void writeCommitGraph() throws RepoException {
+    boolean replace = !hasChangedPathFilters();
+    ImmutableList<String> params = ImmutableList.of("commit-graph", "write", "--reachable",
+        "--changed-paths", replace ? "--split=replace" : "--split");
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    CommandOutputWithStatus output = gitAllowNonZeroExit(CommandRunner.NO_INPUT, params);
+    if (!output.getTerminationStatus().success()) {
+      // Most likely a git version without changed-path filters. It would fail again.
+      logger.atWarning().log("Cannot write the commit-graph of %s. Not trying again: %s", gitDir,
+          output.getStderr());
+      commitGraphRepos.put(gitDir.toAbsolutePath().normalize(), false);
+      return;
+    }
+    logger.atInfo().log("Wrote the commit-graph of %s (replace: %s) in %s", gitDir, replace,
+        stopwatch);
+  }
+
+  /**
+   * Returns true if the repository has commit-graph files and all of them have changed-path Bloom
+   * filters.
+   */
+  private boolean hasChangedPathFilters() throws RepoException {
+    Path info = gitDir.resolve("objects/info");
+    List<Path> graphs = new ArrayList<>();
+    try {
+      Path chain = info.resolve("commit-graphs/commit-graph-chain");
+      if (Files.exists(chain)) {
+        for (String hash : Files.readAllLines(chain, StandardCharsets.UTF_8)) {
+          if (!hash.trim().isEmpty()) {
+            graphs.add(info.resolve("commit-graphs/graph-" + hash.trim() + ".graph"));
+          }
+        }
+      } else if (Files.exists(info.resolve("commit-graph"))) {
+        graphs.add(info.resolve("commit-graph"));
+      }
+      if (graphs.isEmpty()) {
+        return false;
+      }
+      for (Path graph : graphs) {
+        if (!hasChunk(graph, "BIDX") || !hasChunk(graph, "BDAT")) {
+          return false;
+        }
+      }
+      return true;
+    } catch (IOException e) {
+      throw new RepoException("Cannot read the commit-graph of " + gitDir, e);
+    }
+  }
+
+  /**
+   * Returns true if the commit-graph file has the chunk. The header is 'CGPH', version, hash
+   * version, number of chunks and number of base graphs, followed by the table of contents: a
+   * 4 byte id and an 8 byte offset for each chunk, terminated by a zero id.
+   */
+  private static boolean hasChunk(Path graph, String chunkId) throws IOException {
+    byte[] id = chunkId.getBytes(StandardCharsets.UTF_8);
+    try (InputStream in = Files.newInputStream(graph)) {
+      byte[] header = new byte[8];
+      ByteStreams.readFully(in, header);
+      if (header[0] != 'C' || header[1] != 'G' || header[2] != 'P' || header[3] != 'H') {
+        throw new IOException("Invalid commit-graph file " + graph);
+      }
+      int chunks = header[6] & 0xff;
+      byte[] entry = new byte[12];
+      for (int i = 0; i < chunks; i++) {
+        ByteStreams.readFully(in, entry);
+        if (Arrays.equals(Arrays.copyOf(entry, 4), id)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
   public UserPassword credentialFill(String url) throws RepoException, ValidationException {
     return new GitCredential(resolveGitBinary(environment), Duration.ofMinutes(1), environment)
         .fill(gitDir, url);
@@ -874,7 +1217,8 @@ public class GitRepository {
     Iterable<String> params = addGitDirAndWorkTreeParams(Arrays.asList(argv));
     try {
       // Use maxLoglines 0 and verbose=false to avoid redirection
-      return executeGit(getCwd(), params, environment, /*verbose*/ false, /*maxLoglines*/ 0);
+      return executeGit(getCwd(), params, environment, /*verbose*/ false, /*maxLoglines*/ 0,
+          /*stdout=*/null, CommandRunner.DEFAULT_TIMEOUT, outputSpillDir);
     } catch (BadExitStatusWithOutputException e) {
       CommandOutputWithStatus output = e.getOutput();
 
@@ -939,8 +1283,19 @@ public class GitRepository {
    * @param params params the argv to pass to Git, excluding the initial {@code git}
    */
   private CommandOutput git(Path cwd, Iterable<String> params) throws RepoException {
+    return git(cwd, params, /*stdout=*/null, CommandRunner.DEFAULT_TIMEOUT);
+  }
+
+  /**
+   * Like {@link #git(Path, Iterable)} but, if {@code stdout} is not null, writes the stdout of the
+   * command to it as it is produced instead of collecting it. The command is killed after
+   * {@code timeout}.
+   */
+  private CommandOutput git(Path cwd, Iterable<String> params, @Nullable OutputStream stdout,
+      Duration timeout) throws RepoException {
     try {
-      return executeGit(cwd, params, environment, verbose);
+      return executeGit(cwd, params, environment, verbose, DEFAULT_MAX_LOG_LINES, stdout,
+          timeout, outputSpillDir);
     } catch (BadExitStatusWithOutputException e) {
       CommandOutputWithStatus output = e.getOutput();
 
@@ -981,10 +1336,11 @@ public class GitRepository {
       allParams.addAll(addGitDirAndWorkTreeParams(params));
       Command cmd = new Command(
           Iterables.toArray(allParams, String.class), environment, getCwd().toFile());
-      return new CommandRunner(cmd)
+      CommandRunner runner = new CommandRunner(cmd)
           .withVerbose(verbose)
-          .withInput(stdin)
-          .execute();
+          .withInput(stdin);
+      Path spillDir = outputSpillDir;
+      return spillDir != null ? runner.withOutputSpillDir(spillDir).execute() : runner.execute();
     } catch (BadExitStatusWithOutputException e) {
       CommandOutputWithStatus output = e.getOutput();
       int exitCode = e.getOutput().getTerminationStatus().getExitCode();
@@ -1004,12 +1360,25 @@ public class GitRepository {
 
   private static CommandOutputWithStatus executeGit(Path cwd, Iterable<String> params,
       Map<String, String> env, boolean verbose, int maxLogLines) throws CommandException {
+    return executeGit(cwd, params, env, verbose, maxLogLines, /*stdout=*/null,
+        CommandRunner.DEFAULT_TIMEOUT, /*outputSpillDir=*/null);
+  }
+
+  private static CommandOutputWithStatus executeGit(Path cwd, Iterable<String> params,
+      Map<String, String> env, boolean verbose, int maxLogLines, @Nullable OutputStream stdout,
+      Duration timeout, @Nullable Path outputSpillDir) throws CommandException {
     List<String> allParams = new ArrayList<>(Iterables.size(params) + 1);
     allParams.add(resolveGitBinary(env));
     Iterables.addAll(allParams, params);
     Command cmd = new Command(
         Iterables.toArray(allParams, String.class), env, cwd.toFile());
-    CommandRunner runner = new CommandRunner(cmd).withVerbose(verbose);
+    CommandRunner runner = new CommandRunner(cmd).withVerbose(verbose).withTimeout(timeout);
+    if (stdout != null) {
+      runner = runner.withStdOutStream(stdout);
+    }
+    if (outputSpillDir != null) {
+      runner = runner.withOutputSpillDir(outputSpillDir);
+    }
     return
         maxLogLines >= 0 ? runner.withMaxStdOutLogLines(maxLogLines).execute() : runner.execute();
   }
@@ -1067,6 +1436,11 @@ public class GitRepository {
    * Checks if a SHA-1 object exist in the repository
    */
   private boolean checkSha1Exists(String reference) throws RepoException {
+    try {
+      return catFile().info(reference) != null;
+    } catch (RepoException e) {
+      logger.atInfo().withCause(e).log("Cannot look up '%s' with cat-file", reference);
+    }
     ImmutableList<String> params = ImmutableList.of("cat-file", "-e", reference);
     CommandOutputWithStatus output = gitAllowNonZeroExit(CommandRunner.NO_INPUT, params);
     if (output.getTerminationStatus().success()) {
@@ -1359,6 +1733,11 @@ public class GitRepository {
     private static final String COMMIT_SEPARATOR = "\u0001copybara\u0001";
     private static final Pattern UNINDENT = Pattern.compile("\n    ");
     private static final String GROUP = "--\n";
+    // Max number of parsed entries waiting to be consumed.
+    private static final int MAX_PENDING_ENTRIES = 100;
+    // run(LogConsumer) kills 'git log' itself once it takes longer than its timeout, without
+    // counting the time the consumer is behind, so the command timeout must not fire first.
+    private static final Duration NO_COMMAND_TIMEOUT = Duration.ofMillis(Long.MAX_VALUE);
     private final int limit;
     private final ImmutableCollection<String> paths;
     private final String refExpr;
@@ -1367,6 +1746,7 @@ public class GitRepository {
     private final boolean includeBody;
     private final boolean includeMergeDiff;
     private final boolean firstParent;
+    private final boolean fullHistory;
     private final int skip;
 
     private final GitRepository repo;
@@ -1376,12 +1756,13 @@ public class GitRepository {
 
     @CheckReturnValue
     LogCmd(GitRepository repo, String refExpr, int limit, ImmutableCollection<String> paths,
-        boolean firstParent, boolean includeStat, boolean includeBody,
+        boolean firstParent, boolean fullHistory, boolean includeStat, boolean includeBody,
         @Nullable String grepString, boolean includeMergeDiff, int skip) {
       this.limit = limit;
       this.paths = paths;
       this.refExpr = refExpr;
       this.firstParent = firstParent;
+      this.fullHistory = fullHistory;
       this.includeStat = includeStat;
       this.includeMergeDiff = includeMergeDiff;
       this.includeBody = includeBody;
@@ -1390,6 +1771,18 @@ public class GitRepository {
       this.skip = skip;
     }
 
+    /**
+     * Receives the entries of a 'git log' while they are parsed.
+     */
+    @FunctionalInterface
+    public interface LogConsumer {
+
+      /**
+       * Consumes an entry. Returns false to stop receiving entries.
+       */
+      boolean accept(GitLogEntry entry) throws RepoException;
+    }
+
     static LogCmd create(GitRepository repository, String refExpr) {
       return new LogCmd(
           checkNotNull(repository),
@@ -1397,6 +1790,7 @@ public class GitRepository {
           0,
           ImmutableList.of(), /*firstParent*/
           true,
+          /*fullHistory=*/ false,
           /* includeStat= */ false,
           /*includeBody=*/ true,
           /*grepString=*/ null,
@@ -1409,8 +1803,8 @@ public class GitRepository {
     @CheckReturnValue
     public LogCmd withLimit(int limit) {
       Preconditions.checkArgument(limit > 0);
-      return new LogCmd(repo, refExpr, limit, paths, firstParent, includeStat, includeBody,
-          grepString, includeMergeDiff, skip);
+      return new LogCmd(repo, refExpr, limit, paths, firstParent, fullHistory, includeStat,
+          includeBody, grepString, includeMergeDiff, skip);
     }
 
     /**
@@ -1419,8 +1813,8 @@ public class GitRepository {
     @CheckReturnValue
     public LogCmd withSkip(int skip) {
       Preconditions.checkArgument(skip >= 0);
-      return new LogCmd(repo, refExpr, limit, paths, firstParent, includeStat, includeBody,
-          grepString, includeMergeDiff, skip);
+      return new LogCmd(repo, refExpr, limit, paths, firstParent, fullHistory, includeStat,
+          includeBody, grepString, includeMergeDiff, skip);
     }
 
     /**
@@ -1429,8 +1823,8 @@ public class GitRepository {
     @CheckReturnValue
     public LogCmd withPaths(ImmutableCollection<String> paths) {
       Preconditions.checkArgument(paths.stream().noneMatch(s -> s.trim().equals("")));
-      return new LogCmd(repo, refExpr, limit, paths, firstParent, includeStat, includeBody,
-          grepString, includeMergeDiff, skip);
+      return new LogCmd(repo, refExpr, limit, paths, firstParent, fullHistory, includeStat,
+          includeBody, grepString, includeMergeDiff, skip);
     }
 
     /**
@@ -1438,8 +1832,20 @@ public class GitRepository {
      */
     @CheckReturnValue
     public LogCmd firstParent(boolean firstParent) {
-      return new LogCmd(repo, refExpr, limit, paths, firstParent, includeStat, includeBody,
-          grepString, includeMergeDiff, skip);
+      return new LogCmd(repo, refExpr, limit, paths, firstParent, fullHistory, includeStat,
+          includeBody, grepString, includeMergeDiff, skip);
+    }
+
+    /**
+     * When querying for changes in paths, if all the commits that change the paths should be
+     * returned, including the ones that the default history simplification hides, and listing all
+     * the files of the commits, not only the ones in the paths. Equivalent to 'git log
+     * --full-history --full-diff'.
+     */
+    @CheckReturnValue
+    public LogCmd fullHistory(boolean fullHistory) {
+      return new LogCmd(repo, refExpr, limit, paths, firstParent, fullHistory, includeStat,
+          includeBody, grepString, includeMergeDiff, skip);
     }
 
     /**
@@ -1447,8 +1853,8 @@ public class GitRepository {
      */
     @CheckReturnValue
     public LogCmd includeFiles(boolean includeStat) {
-      return new LogCmd(repo, refExpr, limit, paths, firstParent, includeStat, includeBody,
-          grepString, includeMergeDiff, skip);
+      return new LogCmd(repo, refExpr, limit, paths, firstParent, fullHistory, includeStat,
+          includeBody, grepString, includeMergeDiff, skip);
     }
 
     /**
@@ -1456,8 +1862,8 @@ public class GitRepository {
      */
     @CheckReturnValue
     public LogCmd includeMergeDiff(boolean includeMergeDiff) {
-      return new LogCmd(repo, refExpr, limit, paths, firstParent, includeStat, includeBody,
-          grepString, includeMergeDiff, skip);
+      return new LogCmd(repo, refExpr, limit, paths, firstParent, fullHistory, includeStat,
+          includeBody, grepString, includeMergeDiff, skip);
     }
 
     /**
@@ -1465,8 +1871,8 @@ public class GitRepository {
      */
     @CheckReturnValue
     public LogCmd includeBody(boolean includeBody) {
-      return new LogCmd(repo, refExpr, limit, paths, firstParent, includeStat, includeBody,
-          grepString, includeMergeDiff, skip);
+      return new LogCmd(repo, refExpr, limit, paths, firstParent, fullHistory, includeStat,
+          includeBody, grepString, includeMergeDiff, skip);
     }
 
     /**
@@ -1474,14 +1880,44 @@ public class GitRepository {
      */
     @CheckReturnValue
     public LogCmd grep(@Nullable String grepString) {
-      return new LogCmd(repo, refExpr, limit, paths, firstParent, includeStat, includeBody,
-          grepString, includeMergeDiff, skip);
+      return new LogCmd(repo, refExpr, limit, paths, firstParent, fullHistory, includeStat,
+          includeBody, grepString, includeMergeDiff, skip);
     }
 
     /**
      * Run 'git log' and returns zero or more {@link GitLogEntry}.
      */
     public ImmutableList<GitLogEntry> run() throws RepoException {
+      ImmutableList.Builder<GitLogEntry> commits = ImmutableList.builder();
+      run(entry -> {
+        commits.add(entry);
+        return true;
+      });
+      return commits.build();
+    }
+
+    /**
+     * Run 'git log' and pass each {@link GitLogEntry} to {@code consumer} as soon as it is parsed,
+     * in the order returned by git. The output is never kept in memory as a whole, so this can be
+     * used for histories of any length.
+     *
+     * <p>The output is parsed in a different thread, but {@code consumer} is always called from the
+     * calling thread. If the consumer returns false or fails, 'git log' is killed.
+     *
+     * <p>'git log' is killed as well if it takes longer than {@link
+     * CommandRunner#DEFAULT_TIMEOUT}. Only the time waiting for entries counts: git blocks while
+     * the consumer is behind, and that time doesn't count, so slow consumers are not limited.
+     */
+    public void run(LogConsumer consumer) throws RepoException {
+      run(consumer, CommandRunner.DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Like {@link #run(LogConsumer)} but kills 'git log' once the time waiting for its entries is
+     * longer than {@code timeout}.
+     */
+    @VisibleForTesting
+    void run(LogConsumer consumer, Duration timeout) throws RepoException {
       List<String> cmd = Lists.newArrayList("log", "--no-color", createFormat(includeBody));
 
       if (limit > 0) {
@@ -1501,6 +1937,10 @@ public class GitRepository {
       if (includeMergeDiff) {
         cmd.add("-m");
       }
+      if (fullHistory) {
+        cmd.add("--full-history");
+        cmd.add("--full-diff");
+      }
       if (skip > 0) {
         cmd.add("--skip");
         cmd.add(Integer.toString(skip));
@@ -1518,61 +1958,228 @@ public class GitRepository {
         cmd.addAll(paths);
       }
 
-      CommandOutput output = repo.simpleCommand(cmd.toArray(new String[0]));
-      return parseLog(output.getStdout(), includeBody);
+      BlockingQueue<Optional<GitLogEntry>> entries = new ArrayBlockingQueue<>(MAX_PENDING_ENTRIES);
+      LogParser parser = new LogParser(entries);
+      ExecutorService executor = Executors.newSingleThreadExecutor(
+          new ThreadFactoryBuilder().setNameFormat("git-log-%d").setDaemon(true).build());
+      Future<CommandOutput> output = executor.submit(() -> {
+        try {
+          CommandOutput result = repo.git(repo.getCwd(), repo.addGitDirAndWorkTreeParams(cmd),
+              parser, NO_COMMAND_TIMEOUT);
+          parser.finish();
+          return result;
+        } finally {
+          parser.endOfEntries();
+        }
+      });
+      boolean complete = false;
+      GitTime gitTime = new GitTime(timeout);
+      try {
+        for (Optional<GitLogEntry> entry = gitTime.take(entries); entry.isPresent();
+            entry = gitTime.take(entries)) {
+          if (!consumer.accept(entry.get())) {
+            return;
+          }
+        }
+        complete = true;
+      } finally {
+        if (!complete) {
+          // Discard the rest of the output. Interrupting the command kills the process.
+          parser.stop();
+          entries.clear();
+          output.cancel(/*mayInterruptIfRunning=*/true);
+        }
+        executor.shutdown();
+      }
+      try {
+        output.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RepoException("Interrupted while running 'git log'", e);
+      } catch (ExecutionException e) {
+        Throwables.throwIfInstanceOf(e.getCause(), RepoException.class);
+        Throwables.throwIfUnchecked(e.getCause());
+        throw new RepoException("Error running 'git log'", e.getCause());
+      }
+      parser.checkNoError();
     }
 
-    private ImmutableList<GitLogEntry> parseLog(String log, boolean includeBody)
-        throws RepoException {
-      // No changes. We cannot know until we run git log since fromRef can be null (HEAD)
-      if (log.isEmpty()) {
-        return ImmutableList.of();
+    /**
+     * Time spent waiting for the entries of 'git log', that is limited by a timeout. The time
+     * consuming them is not counted.
+     */
+    private static class GitTime {
+
+      private final Duration timeout;
+      private long remainingNanos;
+
+      private GitTime(Duration timeout) {
+        this.timeout = timeout;
+        this.remainingNanos = timeout.toNanos();
       }
 
-      ImmutableList.Builder<GitLogEntry> commits = ImmutableList.builder();
-      for (String msg : Splitter.on("\n" + COMMIT_SEPARATOR).
-          split(log.substring(COMMIT_SEPARATOR.length()))) {
+      private Optional<GitLogEntry> take(BlockingQueue<Optional<GitLogEntry>> entries)
+          throws RepoException {
+        long start = System.nanoTime();
+        Optional<GitLogEntry> entry;
+        try {
+          entry = entries.poll(remainingNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new RepoException("Interrupted while reading 'git log' output", e);
+        }
+        remainingNanos -= System.nanoTime() - start;
+        if (entry == null) {
+          throw new RepoException(String.format("'git log' didn't finish in %s", timeout));
+        }
+        return entry;
+      }
+    }
 
-        List<String> groups = Splitter.on("\n" + GROUP).splitToList(msg);
+    /**
+     * Parses the output of 'git log' one commit at a time while it is written, and puts the
+     * entries in a queue followed by an empty value. Written from the command output thread.
+     */
+    private class LogParser extends OutputStream {
+
+      private final byte[] separator = COMMIT_SEPARATOR.getBytes(StandardCharsets.UTF_8);
+      private final BlockingQueue<Optional<GitLogEntry>> entries;
+      // Output of the current commit, after its separator.
+      private final ByteArrayOutputStream commit = new ByteArrayOutputStream();
+      // Bytes of the separator that starts the output already skipped.
+      private int skipped;
+      // Bytes of the separator found at the start of the current line, or -1 if it doesn't start
+      // with the separator.
+      private int matched = -1;
+      private int lineStart;
+      private volatile boolean stopped;
+      @Nullable
+      private volatile Exception error;
+
+      private LogParser(BlockingQueue<Optional<GitLogEntry>> entries) {
+        this.entries = entries;
+      }
 
-        Map<String, String> fields = Splitter.on("\n")
-            .withKeyValueSeparator(Splitter.on("=").limit(2))
-            .split(groups.get(0));
+      @Override
+      public void write(int b) {
+        write(new byte[] {(byte) b}, 0, 1);
+      }
 
-        String body = null;
-        if (includeBody) {
-          body = UNINDENT.matcher(groups.get(1)).replaceAll("\n");
-          body = body.substring(BEGIN_BODY.length() + 1, body.length() - END_BODY.length() - 1);
-          // Copybara assumes \n as a separator in many places.
-          body = body.replace("\r\n", "\n");
+      @Override
+      public void write(byte[] bytes, int off, int len) {
+        if (stopped) {
+          return;
+        }
+        int end = off + len;
+        int i = off;
+        if (skipped < separator.length) {
+          int toSkip = Math.min(separator.length - skipped, len);
+          skipped += toSkip;
+          i += toSkip;
+        }
+        int start = i;
+        for (; i < end && !stopped; i++) {
+          if (bytes[i] == '\n') {
+            lineStart = commit.size() + i - start + 1;
+            matched = 0;
+          } else if (matched >= 0) {
+            matched = bytes[i] == separator[matched] ? matched + 1 : -1;
+            if (matched == separator.length) {
+              commit.write(bytes, start, i + 1 - start);
+              start = i + 1;
+              // The new line before the separator is not part of the commit
+              emit(lineStart - 1);
+            }
+          }
+        }
+        if (!stopped) {
+          commit.write(bytes, start, end - start);
         }
+      }
 
-        ImmutableSet<String> files = includeStat
-            ? ImmutableSet.copyOf(Splitter.on("\n").omitEmptyStrings().split(groups.get(2)))
-            : null;
+      /** Parses the last commit, once the output is complete. */
+      private void finish() {
+        if (!stopped && skipped > 0) {
+          emit(commit.size());
+        }
+      }
 
-        ImmutableList.Builder<GitRevision> parents = ImmutableList.builder();
-        for (String parent : Splitter.on(" ").omitEmptyStrings()
-            .split(getField(fields, PARENTS_FIELD))) {
-          parents.add(repo.createReferenceFromCompleteSha1(parent));
+      private void emit(int length) {
+        String msg = new String(commit.toByteArray(), 0, length, StandardCharsets.UTF_8);
+        commit.reset();
+        lineStart = 0;
+        matched = -1;
+        try {
+          entries.put(Optional.of(parseEntry(msg)));
+        } catch (RepoException | RuntimeException e) {
+          error = e;
+          stopped = true;
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          stopped = true;
         }
+      }
 
-        String tree = getField(fields, TREE_FIELD);
-        String commit = getField(fields, COMMIT_FIELD);
+      private void endOfEntries() {
         try {
-          commits.add(new GitLogEntry(
-              repo.createReferenceFromCompleteSha1(commit), parents.build(),
-              tree,
-              AuthorParser.parse(getField(fields, AUTHOR_FIELD)),
-              AuthorParser.parse(getField(fields, COMMITTER_FIELD)),
-              tryParseDate(fields, AUTHOR_DATE_FIELD, commit),
-              tryParseDate(fields, COMMITTER_DATE, commit),
-              body, files));
-        } catch (InvalidAuthorException e) {
-          throw new RepoException("Error in commit '" + commit + "'. Invalid author.", e);
+          entries.put(Optional.empty());
+        } catch (InterruptedException e) {
+          // Only interrupted if the entries are not being read anymore
+          Thread.currentThread().interrupt();
         }
       }
-      return commits.build();
+
+      private void stop() {
+        stopped = true;
+      }
+
+      private void checkNoError() throws RepoException {
+        if (error != null) {
+          Throwables.throwIfInstanceOf(error, RepoException.class);
+          Throwables.throwIfUnchecked(error);
+        }
+      }
+    }
+
+    private GitLogEntry parseEntry(String msg) throws RepoException {
+      List<String> groups = Splitter.on("\n" + GROUP).splitToList(msg);
+
+      Map<String, String> fields = Splitter.on("\n")
+          .withKeyValueSeparator(Splitter.on("=").limit(2))
+          .split(groups.get(0));
+
+      String body = null;
+      if (includeBody) {
+        body = UNINDENT.matcher(groups.get(1)).replaceAll("\n");
+        body = body.substring(BEGIN_BODY.length() + 1, body.length() - END_BODY.length() - 1);
+        // Copybara assumes \n as a separator in many places.
+        body = body.replace("\r\n", "\n");
+      }
+
+      ImmutableSet<String> files = includeStat
+          ? ImmutableSet.copyOf(Splitter.on("\n").omitEmptyStrings().split(groups.get(2)))
+          : null;
+
+      ImmutableList.Builder<GitRevision> parents = ImmutableList.builder();
+      for (String parent : Splitter.on(" ").omitEmptyStrings()
+          .split(getField(fields, PARENTS_FIELD))) {
+        parents.add(repo.createReferenceFromCompleteSha1(parent));
+      }
+
+      String tree = getField(fields, TREE_FIELD);
+      String commit = getField(fields, COMMIT_FIELD);
+      try {
+        return new GitLogEntry(
+            repo.createReferenceFromCompleteSha1(commit), parents.build(),
+            tree,
+            AuthorParser.parse(getField(fields, AUTHOR_FIELD)),
+            AuthorParser.parse(getField(fields, COMMITTER_FIELD)),
+            tryParseDate(fields, AUTHOR_DATE_FIELD, commit),
+            tryParseDate(fields, COMMITTER_DATE, commit),
+            body, files);
+      } catch (InvalidAuthorException e) {
+        throw new RepoException("Error in commit '" + commit + "'. Invalid author.", e);
+      }
     }
 
     private ZonedDateTime tryParseDate(Map<String, String> fields, String dateField,
@@ -17,14 +17,14 @@
 package com.google.copybara.git;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableList;
 import com.google.copybara.exception.CannotResolveRevisionException;
 import com.google.copybara.ChangeVisitable.ChangesVisitor;
 import com.google.copybara.ChangeVisitable.VisitResult;
 import com.google.copybara.GeneralOptions;
 import com.google.copybara.exception.RepoException;
-import com.google.copybara.git.ChangeReader.GitChange;
 import com.google.copybara.profiler.Profiler.ProfilerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** Utility methods for visiting Git repos. */
 public class GitVisitorUtil {
@@ -42,34 +42,39 @@ public class GitVisitorUtil {
       throws RepoException, CannotResolveRevisionException {
     Preconditions.checkNotNull(start);
     int skip = 0;
-    boolean finished = false;
+    AtomicBoolean finished = new AtomicBoolean();
     try (ProfilerTask ignore = generalOptions.profiler().start(type + "/visit_changes")) {
-      while (!finished) {
-        ImmutableList<GitChange> result;
+      while (!finished.get()) {
+        AtomicInteger visited = new AtomicInteger();
         try (ProfilerTask ignore2 =
             generalOptions.profiler().start("git_log_" + skip + "_" + visitChangePageSize)) {
-          result =
-              queryChanges
-                  .setSkip(skip)
-                  .setLimit(visitChangePageSize)
-                  .build()
-                  .run(start.getSha1())
-                  .reverse();
+          queryChanges
+              .setSkip(skip)
+              .setLimit(visitChangePageSize)
+              .build()
+              .visit(start.getSha1(), current -> {
+                visited.incrementAndGet();
+                if (visitor.visit(current.getChange()) == VisitResult.TERMINATE) {
+                  finished.set(true);
+                  return false;
+                }
+                return true;
+              });
         }
-        if (result.isEmpty()) {
+        if (visited.get() == 0) {
           break;
         }
-        skip += result.size();
-        for (GitChange current : result) {
-          if (visitor.visit(current.getChange()) == VisitResult.TERMINATE) {
-            finished = true;
-            break;
-          }
-        }
+        skip += visited.get();
       }
     }
+    // A walk limited to paths or to a grep pattern can be empty for a valid start, so the
+    // reference is resolved on its own.
     if (skip == 0) {
-      throw new CannotResolveRevisionException("Cannot resolve reference " + start.getSha1());
+      try {
+        queryChanges.getRepository().parseRef(start.getSha1());
+      } catch (CannotResolveRevisionException e) {
+        throw new CannotResolveRevisionException("Cannot resolve reference " + start.getSha1(), e);
+      }
     }
   }
 }
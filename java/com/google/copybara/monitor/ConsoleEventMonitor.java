@@ -58,4 +58,10 @@ public class ConsoleEventMonitor implements EventMonitor {
     console.verboseFmt("onInfoFinished(): %s", event);
     delegate.onInfoFinished(event);
   }
+
+  @Override
+  public void onTransformStats(TransformStatsEvent event) {
+    console.verboseFmt("onTransformStats(): %s", event);
+    delegate.onTransformStats(event);
+  }
 }
@@ -19,6 +19,7 @@ package com.google.copybara.monitor;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.copybara.DestinationEffect;
 import com.google.copybara.Info;
 import com.google.copybara.Revision;
@@ -48,6 +49,12 @@ public interface EventMonitor {
   /** Invoked when an info subcommand finishes, only once at the end of the execution */
   default void onInfoFinished(InfoFinishedEvent event) {};
 
+  /**
+   * Invoked each time a transformation that collects statistics finishes. Might be invoked from
+   * any thread.
+   */
+  default void onTransformStats(TransformStatsEvent event) {}
+
   /** Event that happens for every migration that is started. */
   class MigrationStartedEvent {
     @Override
@@ -103,6 +110,44 @@ public interface EventMonitor {
     }
   }
 
+  /** Event with the statistics of one run of a transformation. */
+  class TransformStatsEvent {
+
+    private final String transformation;
+    private final long elapsedNanos;
+    private final ImmutableMap<String, Long> counters;
+
+    public TransformStatsEvent(String transformation, long elapsedNanos,
+        ImmutableMap<String, Long> counters) {
+      this.transformation = Preconditions.checkNotNull(transformation);
+      this.elapsedNanos = elapsedNanos;
+      this.counters = Preconditions.checkNotNull(counters);
+    }
+
+    /** The description of the transformation. */
+    public String getTransformation() {
+      return transformation;
+    }
+
+    public long getElapsedNanos() {
+      return elapsedNanos;
+    }
+
+    /** The value of each statistic, like 'files_read' or 'matches'. */
+    public ImmutableMap<String, Long> getCounters() {
+      return counters;
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(this)
+          .add("transformation", transformation)
+          .add("elapsedNanos", elapsedNanos)
+          .add("counters", counters)
+          .toString();
+    }
+  }
+
   /** Event that happens for every info subcommand that is finished. */
   class InfoFinishedEvent {
 
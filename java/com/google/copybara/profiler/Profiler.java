@@ -168,17 +168,49 @@ public final class Profiler {
     return new ProfilerTask(child);
   }
 
+  /**
+   * Returns the current task of this thread, to be used as the parent of the tasks started in
+   * other threads with {@link #start(Task, String)}. Returns null if nothing is being recorded.
+   */
+  @Nullable
+  public Task currentTask() {
+    if (stopped || listeners.isEmpty()) {
+      return null;
+    }
+    return taskQueue.get().element();
+  }
+
+  /**
+   * Like {@link #start(String)}, but the task is a child of {@code parent} instead of the current
+   * task of this thread. Pool threads only inherit the task that was current when they were
+   * created, so work submitted to a pool should pass the {@link #currentTask()} of the submitting
+   * thread. Until the returned task is closed, tasks started in this thread are children of it.
+   */
+  public ProfilerTask start(@Nullable Task parent, String description) {
+    if (stopped || listeners.isEmpty() || parent == null) {
+      return start(description);
+    }
+    Deque<Task> previous = taskQueue.get();
+    taskQueue.set(createQueue(parent));
+    return new ProfilerTask(start(description).expectedTask, previous);
+  }
+
   /**
    * Record a simple task metric. The user is in charge of providing its own time.
    */
   public void simpleTask(String description, long startNanos, long endNanos) {
+    simpleTask(description, ImmutableMap.of(), startNanos, endNanos);
+  }
+
+  private void simpleTask(String description, ImmutableMap<String, String> fields,
+      long startNanos, long endNanos) {
     if (stopped || listeners.isEmpty()) {
       return;
     }
     Deque<Task> tasks = taskQueue.get();
     Preconditions.checkState(!tasks.isEmpty());
     Task parent = tasks.element();
-    Task child  = new Task(parent.getDescription() + "/" + description, startNanos);
+    Task child  = new Task(parent.getDescription() + "/" + description, fields, startNanos);
     Task finishedChild = child.finish(endNanos);
     for (Listener listener : listeners) {
       listener.taskStarted(child);
@@ -186,15 +218,43 @@ public final class Profiler {
     }
   }
 
+  /**
+   * Record a simple task metric that finishes now and took {@code elapsedNanos}. Useful for work
+   * that is measured piecemeal (for example across several threads) and cannot be wrapped in a
+   * {@link ProfilerTask}.
+   */
+  public void simpleTask(String description, long elapsedNanos) {
+    long endNanos = ticker.read();
+    simpleTask(description, endNanos - elapsedNanos, endNanos);
+  }
+
+  /**
+   * Overloaded method for {@link #simpleTask(String, long)}, that allows adding {@code fields} to
+   * the context of this task.
+   */
+  public void simpleTask(String description, ImmutableMap<String, String> fields,
+      long elapsedNanos) {
+    long endNanos = ticker.read();
+    simpleTask(description, fields, endNanos - elapsedNanos, endNanos);
+  }
+
   /**
    * A profiler task that can be closed to send the finish metric.
    */
   public class ProfilerTask implements AutoCloseable {
     @Nullable
     private final Task expectedTask;
+    /** The stack of the thread to restore on close, if the task was started with a parent. */
+    @Nullable
+    private final Deque<Task> previousTasks;
 
     private ProfilerTask(@Nullable Task expectedTask) {
+      this(expectedTask, /*previousTasks=*/null);
+    }
+
+    private ProfilerTask(@Nullable Task expectedTask, @Nullable Deque<Task> previousTasks) {
       this.expectedTask = expectedTask;
+      this.previousTasks = previousTasks;
     }
 
     /**
@@ -213,6 +273,9 @@ public final class Profiler {
         for (Listener listener : listeners) {
           listener.taskFinished(task);
         }
+        if (previousTasks != null) {
+          taskQueue.set(previousTasks);
+        }
       }
     }
   }
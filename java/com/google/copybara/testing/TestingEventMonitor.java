@@ -26,6 +26,7 @@ public class TestingEventMonitor implements EventMonitor {
   public List<ChangeMigrationStartedEvent> changeMigrationStartedEvents = new ArrayList<>();
   public List<ChangeMigrationFinishedEvent> changeMigrationFinishedEvents = new ArrayList<>();
   public InfoFinishedEvent infoFinishedEvent;
+  public List<TransformStatsEvent> transformStatsEvents = new ArrayList<>();
 
   @Override
   public void onChangeMigrationStarted(ChangeMigrationStartedEvent event) {
@@ -43,6 +44,11 @@ public class TestingEventMonitor implements EventMonitor {
     infoFinishedEvent = event;
   }
 
+  @Override
+  public synchronized void onTransformStats(TransformStatsEvent event) {
+    transformStatsEvents.add(event);
+  }
+
   public int changeMigrationStartedEventCount() {
     return changeMigrationStartedEvents.size();
   }
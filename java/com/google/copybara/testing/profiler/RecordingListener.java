@@ -23,12 +23,13 @@ import com.google.common.base.MoreObjects;
 import com.google.copybara.profiler.Listener;
 import com.google.copybara.profiler.Task;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 
 public class RecordingListener implements Listener {
 
-  public final List<TaskWithType> events = new ArrayList<>();
+  public final List<TaskWithType> events = Collections.synchronizedList(new ArrayList<>());
   private int index = 0;
 
   @Override
@@ -51,6 +52,14 @@ public class RecordingListener implements Listener {
       this.task = task;
     }
 
+    public EventType getType() {
+      return type;
+    }
+
+    public Task getTask() {
+      return task;
+    }
+
     @Override
     public String toString() {
       return MoreObjects.toStringHelper(this).add("type", type).add("task", task).toString();
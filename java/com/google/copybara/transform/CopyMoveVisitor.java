@@ -26,10 +26,18 @@ import java.nio.file.PathMatcher;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import javax.annotation.Nullable;
 
 /**
- * A visitor which copy or moves files recursively from the path it is visiting.
+ * A visitor which collects the files to copy or move recursively from the path it is visiting.
+ * The files are copied or moved afterwards with {@link #copyOrMove(Iterable)}, that can be called
+ * concurrently for different files.
  */
 final class CopyMoveVisitor extends SimpleFileVisitor<Path> {
   private final Path before;
@@ -38,12 +46,17 @@ final class CopyMoveVisitor extends SimpleFileVisitor<Path> {
   private final PathMatcher pathMatcher;
   private final boolean isCopy;
   private final CopyOption[] moveMode;
+  private final TransformStats stats;
+  private final List<Path> files = new ArrayList<>();
+  private final Map<Path, Long> sizes = new HashMap<>();
 
-  CopyMoveVisitor(Path before, Path after, @Nullable PathMatcher pathMatcher, boolean overwrite, boolean isCopy) {
+  CopyMoveVisitor(Path before, Path after, @Nullable PathMatcher pathMatcher, boolean overwrite,
+      boolean isCopy, TransformStats stats) {
     this.before = before;
     this.after = after;
     this.pathMatcher = pathMatcher;
     this.isCopy = isCopy;
+    this.stats = stats;
     if (overwrite) {
       moveMode = new CopyOption[]{LinkOption.NOFOLLOW_LINKS, StandardCopyOption.REPLACE_EXISTING};
     } else {
@@ -59,17 +72,46 @@ final class CopyMoveVisitor extends SimpleFileVisitor<Path> {
   }
 
   @Override
-  public FileVisitResult visitFile(Path source, BasicFileAttributes attrs) throws IOException {
+  public FileVisitResult visitFile(Path source, BasicFileAttributes attrs) {
+    stats.fileConsidered();
     if (pathMatcher==null || pathMatcher.matches(source)) {
-      Path relative = before.relativize(source);
-      Path dest = after.resolve(relative);
-      Files.createDirectories(dest.getParent());
+      files.add(source);
+      sizes.put(source, attrs.size());
+    }
+    return FileVisitResult.CONTINUE;
+  }
+
+  /** The files found by the visitor that need to be copied or moved. */
+  List<Path> getFiles() {
+    return files;
+  }
+
+  /** Size of {@code file} when it was visited. */
+  long getSize(Path file) {
+    return sizes.get(file);
+  }
+
+  /** Copies or moves {@code sources} and returns their destinations. */
+  List<Path> copyOrMove(Iterable<Path> sources) throws IOException {
+    List<Path> destinations = new ArrayList<>();
+    // Files are usually grouped by directory, so most of the parents are already created.
+    Set<Path> createdDirs = new HashSet<>();
+    for (Path source : sources) {
+      Path dest = after.resolve(before.relativize(source));
+      if (createdDirs.add(dest.getParent())) {
+        Files.createDirectories(dest.getParent());
+      }
+      long size = getSize(source);
       if (isCopy) {
         Files.copy(source, dest, moveMode);
+        stats.fileRead(size);
+        stats.fileWritten(size);
       } else {
         Files.move(source, dest, moveMode);
+        stats.filesModified(1);
       }
+      destinations.add(dest);
     }
-    return FileVisitResult.CONTINUE;
+    return destinations;
   }
 }
@@ -16,24 +16,30 @@
 
 package com.google.copybara.transform;
 
+import com.google.common.base.CharMatcher;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.google.copybara.NonReversibleValidationException;
 import com.google.copybara.TransformWork;
 import com.google.copybara.Transformation;
 import com.google.copybara.WorkflowOptions;
 import com.google.copybara.exception.ValidationException;
+import com.google.copybara.profiler.Profiler;
 import com.google.copybara.util.FileUtil;
 import com.google.copybara.util.Glob;
 import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.syntax.EvalException;
 import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
 import javax.annotation.Nullable;
 
 /**
@@ -41,6 +47,8 @@ import javax.annotation.Nullable;
  */
 public class CopyOrMove implements Transformation {
 
+  private static final CharMatcher GLOB_META = CharMatcher.anyOf("*?[]{}\\");
+
   private final String before;
   private final String after;
   private final Glob paths;
@@ -49,9 +57,11 @@ public class CopyOrMove implements Transformation {
   private final Location location;
   private final WorkflowOptions workflowOptions;
   private final boolean isCopy;
+  private final Profiler profiler;
 
   private CopyOrMove(String before, String after, Glob paths, boolean overwrite,
-      @Nullable Location location, WorkflowOptions workflowOptions, boolean isCopy) {
+      @Nullable Location location, WorkflowOptions workflowOptions, boolean isCopy,
+      Profiler profiler) {
     this.before = Preconditions.checkNotNull(before);
     this.after = Preconditions.checkNotNull(after);
     this.paths = paths;
@@ -59,11 +69,12 @@ public class CopyOrMove implements Transformation {
     this.location = location;
     this.workflowOptions = Preconditions.checkNotNull(workflowOptions);
     this.isCopy = isCopy;
+    this.profiler = Preconditions.checkNotNull(profiler);
   }
 
   public static CopyOrMove createMove(
       String before, String after, WorkflowOptions workflowOptions, Glob paths, boolean overwrite,
-      Location location) throws EvalException {
+      Location location, Profiler profiler) throws EvalException {
     return new CopyOrMove(
         validatePath(location, before),
         validatePath(location, after),
@@ -71,12 +82,13 @@ public class CopyOrMove implements Transformation {
         overwrite,
         location,
         workflowOptions,
-        /*isCopy=*/false);
+        /*isCopy=*/false,
+        profiler);
   }
 
   public static CopyOrMove createCopy(
       String before, String after, WorkflowOptions workflowOptions, Glob paths, boolean overwrite,
-      Location location) throws EvalException {
+      Location location, Profiler profiler) throws EvalException {
     return new CopyOrMove(
         validatePath(location, before),
         validatePath(location, after),
@@ -84,7 +96,8 @@ public class CopyOrMove implements Transformation {
         overwrite,
         location,
         workflowOptions,
-        /*isCopy=*/true);
+        /*isCopy=*/true,
+        profiler);
   }
 
   @Override
@@ -99,6 +112,7 @@ public class CopyOrMove implements Transformation {
 
   @Override
   public void transform(TransformWork work) throws IOException, ValidationException {
+      long start = System.nanoTime();
       work.getConsole().progress("Moving " + this.before);
     Path before = work.getCheckoutDir().resolve(this.before).normalize();
       if (!Files.exists(before)) {
@@ -126,9 +140,37 @@ public class CopyOrMove implements Transformation {
               "Cannot use user defined 'paths' filter when the 'before' is not a directory: "
                   + paths);
         }
-        Files.walkFileTree(before,
-            new CopyMoveVisitor(before, after, beforeIsDir ? paths.relativeTo(before) : null,
-                overwrite, isCopy));
+        TransformStats stats = new TransformStats();
+        long cpuStart = TransformStats.currentThreadCpuTime();
+        // Not a symlink to a directory, that is moved as a file
+        boolean beforeIsRealDir = Files.isDirectory(before, LinkOption.NOFOLLOW_LINKS);
+        if (!isCopy && Glob.ALL_FILES.equals(paths) && rename(before, after)) {
+          work.getTreeState().notifyMove(before, after);
+          if (beforeIsRealDir) {
+            // Moving the files one by one leaves 'before' behind, and later transformations might
+            // check that it exists. The only difference is that empty subdirectories are moved.
+            Files.createDirectory(before);
+          }
+          if (beforeIsDir) {
+            // Counting the files would need a walk that the rename avoids.
+            stats.dirRenamed();
+          } else {
+            stats.filesModified(1);
+          }
+        } else {
+          CopyMoveVisitor visitor = new CopyMoveVisitor(before, after,
+              beforeIsDir ? paths.relativeTo(before) : null, overwrite, isCopy, stats);
+          Files.walkFileTree(before, visitor);
+          List<Path> destinations = ImmutableList.copyOf(Iterables.concat(
+              workflowOptions.parallelizer().run(visitor.getFiles(),
+                  isCopy ? visitor::getSize : file -> 1, visitor::copyOrMove, profiler)));
+          if (!isCopy) {
+            work.getTreeState().notifyDelete(visitor.getFiles());
+          }
+          work.getTreeState().notifyAdd(destinations);
+        }
+        stats.addCpuTimeSince(cpuStart);
+        stats.report(profiler, describe(), System.nanoTime() - start);
       } catch (FileAlreadyExistsException e) {
       throw new ValidationException(
           "Cannot move file to '%s' because it already exists", e.getFile());
@@ -155,11 +197,49 @@ public class CopyOrMove implements Transformation {
       return new ExplicitReversal(new Remove(
           // After might be a directory or a file. Delete both
           Glob.createGlob(ImmutableList.of(after, afterPath + "/**")),
-          workflowOptions, location),
+          workflowOptions, location, profiler),
           this);
     }
     return new CopyOrMove(after, before, paths, /*overwrite=*/false, location, workflowOptions,
-        /*isCopy=*/false);
+        /*isCopy=*/false, profiler);
+  }
+
+  /**
+   * Moves {@code before} to {@code after} with a single rename if {@code after} is not inside
+   * {@code before} and doesn't exist, or both are directories and {@code after} is empty. Returns
+   * false if the files need to be moved one by one.
+   *
+   * <p>Unlike moving the files one by one, empty subdirectories of a directory are moved too, and
+   * {@code before} doesn't exist afterwards.
+   */
+  private static boolean rename(Path before, Path after) throws IOException {
+    if (after.startsWith(before)) {
+      return false;
+    }
+    boolean replaceEmptyDir = false;
+    if (Files.isDirectory(before, LinkOption.NOFOLLOW_LINKS)
+        && Files.isDirectory(after, LinkOption.NOFOLLOW_LINKS)) {
+      // For example, the 'before' left by a previous move, when moving it back.
+      try (DirectoryStream<Path> children = Files.newDirectoryStream(after)) {
+        if (children.iterator().hasNext()) {
+          return false;
+        }
+      }
+      Files.delete(after);
+      replaceEmptyDir = true;
+    } else if (Files.exists(after, LinkOption.NOFOLLOW_LINKS)) {
+      return false;
+    }
+    try {
+      Files.move(before, after, LinkOption.NOFOLLOW_LINKS);
+      return true;
+    } catch (DirectoryNotEmptyException e) {
+      // The directory cannot be renamed, for example because it is in a different file system.
+      if (replaceEmptyDir) {
+        Files.createDirectory(after);
+      }
+      return false;
+    }
   }
 
   private void createParentDirs(Path after) throws IOException, ValidationException {
@@ -178,6 +258,19 @@ public class CopyOrMove implements Transformation {
     return (isCopy ? "Copying " : "Moving ") + before;
   }
 
+  /**
+   * Everything under {@code before} and {@code after}. The parent directories of {@code after}
+   * might be created too, but that doesn't affect the files of other transformations.
+   */
+  @Override
+  public Glob getAffectedPaths() {
+    if (before.isEmpty() || after.isEmpty()
+        || GLOB_META.matchesAnyOf(before) || GLOB_META.matchesAnyOf(after)) {
+      return Glob.ALL_FILES;
+    }
+    return Glob.createGlob(ImmutableList.of(before, before + "/**", after, after + "/**"));
+  }
+
   private static String validatePath(Location location, String strPath) throws EvalException {
     try {
       return FileUtil.checkNormalizedRelative(strPath);
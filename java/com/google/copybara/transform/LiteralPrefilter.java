@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.transform;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.primitives.Ints;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Finds which of several patterns might match a content by searching the literals that each
+ * pattern requires (see {@link RegexLiterals}) in the raw bytes, before decoding the content.
+ *
+ * <p>All the literals are searched in one pass with an Aho-Corasick automaton over the UTF-8
+ * bytes of the literals. A pattern without required literals might always match. Immutable and
+ * safe to use from several threads.
+ */
+final class LiteralPrefilter {
+
+  /**
+   * Max number of automaton states. Each state takes 1KB, so we don't build automatons for
+   * huge lists of literals.
+   */
+  private static final int MAX_STATES = 64 * 1024;
+
+  private final boolean[] alwaysMatch;
+  private final int[][] transitions;
+  private final int[][] outputs;
+
+  private LiteralPrefilter(boolean[] alwaysMatch, int[][] transitions, int[][] outputs) {
+    this.alwaysMatch = alwaysMatch;
+    this.transitions = transitions;
+    this.outputs = outputs;
+  }
+
+  /**
+   * Creates a prefilter for patterns that require one of the literals of their element in
+   * {@code literals}, or null if the prefilter wouldn't discard anything. An empty set means that
+   * the pattern doesn't require any literal.
+   */
+  @Nullable
+  static LiteralPrefilter create(List<? extends Collection<String>> literals) {
+    boolean[] alwaysMatch = new boolean[literals.size()];
+    List<int[]> trie = new ArrayList<>();
+    List<Set<Integer>> trieOutputs = new ArrayList<>();
+    trie.add(newState());
+    trieOutputs.add(new LinkedHashSet<>());
+    boolean useful = false;
+    for (int pattern = 0; pattern < literals.size(); pattern++) {
+      Collection<String> patternLiterals = literals.get(pattern);
+      if (patternLiterals.isEmpty() || patternLiterals.contains("")) {
+        alwaysMatch[pattern] = true;
+        continue;
+      }
+      useful = true;
+      for (String literal : patternLiterals) {
+        int state = 0;
+        for (byte b : literal.getBytes(UTF_8)) {
+          int next = trie.get(state)[b & 0xff];
+          if (next == -1) {
+            if (trie.size() >= MAX_STATES) {
+              return null;
+            }
+            next = trie.size();
+            trie.add(newState());
+            trieOutputs.add(new LinkedHashSet<>());
+            trie.get(state)[b & 0xff] = next;
+          }
+          state = next;
+        }
+        trieOutputs.get(state).add(pattern);
+      }
+    }
+    if (!useful) {
+      return null;
+    }
+    // Convert the trie into a DFA following the failure links, breadth first so that the
+    // failure state of a state is always complete before the state itself.
+    int[][] transitions = trie.toArray(new int[0][]);
+    int[] failure = new int[transitions.length];
+    Deque<Integer> queue = new ArrayDeque<>();
+    for (int c = 0; c < 256; c++) {
+      int child = transitions[0][c];
+      if (child == -1) {
+        transitions[0][c] = 0;
+      } else {
+        failure[child] = 0;
+        queue.add(child);
+      }
+    }
+    while (!queue.isEmpty()) {
+      int state = queue.remove();
+      trieOutputs.get(state).addAll(trieOutputs.get(failure[state]));
+      for (int c = 0; c < 256; c++) {
+        int child = transitions[state][c];
+        if (child == -1) {
+          transitions[state][c] = transitions[failure[state]][c];
+        } else {
+          failure[child] = transitions[failure[state]][c];
+          queue.add(child);
+        }
+      }
+    }
+    int[][] outputs = new int[transitions.length][];
+    for (int state = 0; state < outputs.length; state++) {
+      outputs[state] = Ints.toArray(trieOutputs.get(state));
+    }
+    return new LiteralPrefilter(alwaysMatch, transitions, outputs);
+  }
+
+  /** Creates a prefilter for a single pattern that requires one of {@code literals}. */
+  @Nullable
+  static LiteralPrefilter create(ImmutableSet<String> literals) {
+    return create(ImmutableList.of(literals));
+  }
+
+  /**
+   * Returns, for each pattern, false if it cannot match {@code content} (UTF-8 encoded) because
+   * none of its literals is present.
+   */
+  boolean[] mayMatch(byte[] content) {
+    return mayMatch(ByteBuffer.wrap(content));
+  }
+
+  /**
+   * Like {@link #mayMatch(byte[])} but for the remaining bytes of {@code content}, that are
+   * consumed.
+   */
+  boolean[] mayMatch(ByteBuffer content) {
+    boolean[] result = alwaysMatch.clone();
+    int remaining = countFalse(result);
+    int state = 0;
+    while (content.hasRemaining() && remaining > 0) {
+      state = transitions[state][content.get() & 0xff];
+      for (int pattern : outputs[state]) {
+        if (!result[pattern]) {
+          result[pattern] = true;
+          remaining--;
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Like {@link #mayMatch(byte[])} but for the content of {@code file}, that is read in windows of
+   * at most {@code windowSize} bytes, memory-mapped if the file system supports it. Stops reading
+   * as soon as all the patterns might match.
+   */
+  boolean[] mayMatch(Path file, int windowSize) throws IOException {
+    boolean[] result = alwaysMatch.clone();
+    int remaining = countFalse(result);
+    int state = 0;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      ByteBuffer readBuffer = null;
+      for (long position = 0; position < size && remaining > 0; position += windowSize) {
+        int length = (int) Math.min(windowSize, size - position);
+        ByteBuffer window;
+        if (readBuffer == null) {
+          try {
+            window = channel.map(MapMode.READ_ONLY, position, length);
+          } catch (UnsupportedOperationException e) {
+            // For example, in-memory file systems.
+            readBuffer = ByteBuffer.allocate(length);
+            window = read(channel, readBuffer, position, length);
+          }
+        } else {
+          window = read(channel, readBuffer, position, length);
+        }
+        while (window.hasRemaining() && remaining > 0) {
+          state = transitions[state][window.get() & 0xff];
+          for (int pattern : outputs[state]) {
+            if (!result[pattern]) {
+              result[pattern] = true;
+              remaining--;
+            }
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  private static ByteBuffer read(FileChannel channel, ByteBuffer buffer, long position,
+      int length) throws IOException {
+    buffer.clear();
+    buffer.limit(length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) == -1) {
+        break;
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private static int countFalse(boolean[] values) {
+    int count = 0;
+    for (boolean value : values) {
+      if (!value) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static int[] newState() {
+    int[] state = new int[256];
+    Arrays.fill(state, -1);
+    return state;
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.transform;
+
+import com.google.re2j.Pattern;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import javax.annotation.Nullable;
+
+/**
+ * Hands each thread its own compiled instance of a pattern.
+ *
+ * <p>RE2J patterns synchronize on matching, so transformations that match the same pattern from
+ * several threads compile their own copy of it. Instead of compiling it for every batch, the
+ * copies are kept per thread and reused across batches, transformations and changes. The worker
+ * threads of {@link com.google.copybara.LocalParallelizer} are long lived, so in practice each
+ * pattern is compiled once per thread.
+ */
+final class PatternPool {
+
+  /** Max number of patterns cached per thread, evicting the least recently used ones. */
+  private static final int MAX_PATTERNS_PER_THREAD = 1000;
+
+  private static final ThreadLocal<Map<Key, Pattern>> patterns =
+      ThreadLocal.withInitial(() -> new LinkedHashMap<Key, Pattern>(16, 0.75f,
+          /*accessOrder=*/true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Pattern> eldest) {
+          return size() > MAX_PATTERNS_PER_THREAD;
+        }
+      });
+
+  private PatternPool() {}
+
+  /**
+   * Returns an instance of {@code pattern} that can only be used from the current thread. If
+   * {@code stats} is not null, the compilations and reuses are recorded there.
+   */
+  static Pattern get(Pattern pattern, @Nullable TransformStats stats) {
+    return get(pattern.pattern(), pattern.flags(), stats);
+  }
+
+  /**
+   * Returns an instance of the pattern for {@code regex} and {@code flags} that can only be used
+   * from the current thread. If {@code stats} is not null, the compilations and reuses are
+   * recorded there.
+   */
+  static Pattern get(String regex, int flags, @Nullable TransformStats stats) {
+    Map<Key, Pattern> threadPatterns = patterns.get();
+    Key key = new Key(regex, flags);
+    Pattern pattern = threadPatterns.get(key);
+    if (pattern != null) {
+      if (stats != null) {
+        stats.patternReused();
+      }
+      return pattern;
+    }
+    long start = System.nanoTime();
+    pattern = Pattern.compile(regex, flags);
+    if (stats != null) {
+      stats.patternCompiled(System.nanoTime() - start);
+    }
+    threadPatterns.put(key, pattern);
+    return pattern;
+  }
+
+  private static final class Key {
+
+    private final String regex;
+    private final int flags;
+
+    private Key(String regex, int flags) {
+      this.regex = regex;
+      this.flags = flags;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) o;
+      return flags == key.flags && regex.equals(key.regex);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(regex, flags);
+    }
+  }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.transform;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.re2j.Pattern;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * Extracts the literals that a regex requires to match, so that contents that don't have them
+ * can be discarded without running the regex. See {@link LiteralPrefilter}.
+ *
+ * <p>The extraction is conservative: anything that is not clearly a literal (groups, classes,
+ * quantified characters, unknown escapes, case insensitive flags...) ends the current literal or
+ * stops the extraction.
+ */
+final class RegexLiterals {
+
+  private RegexLiterals() {}
+
+  /**
+   * Returns a set of literals such that any content matched by {@code pattern} contains at least
+   * one of them, or an empty set if they cannot be determined.
+   */
+  static ImmutableSet<String> requiredLiterals(Pattern pattern) {
+    String regex = pattern.pattern();
+    if ((pattern.flags() & Pattern.CASE_INSENSITIVE) != 0) {
+      return ImmutableSet.of();
+    }
+    // Flags like (?i) apply until the end of the enclosing group, including other alternatives.
+    for (int i = regex.indexOf("(?"); i != -1; i = regex.indexOf("(?", i + 1)) {
+      if (setsCaseInsensitive(regex, i)) {
+        return ImmutableSet.of();
+      }
+    }
+    List<String> branches = topLevelBranches(regex);
+    if (branches == null) {
+      return ImmutableSet.of();
+    }
+    ImmutableSet.Builder<String> result = ImmutableSet.builder();
+    for (String branch : branches) {
+      String literal = longestLiteral(branch);
+      if (literal == null) {
+        return ImmutableSet.of();
+      }
+      result.add(literal);
+    }
+    return result.build();
+  }
+
+  /** Splits the regex in its top level alternatives, or returns null if it cannot parse it. */
+  @Nullable
+  private static List<String> topLevelBranches(String regex) {
+    List<String> branches = new ArrayList<>();
+    int depth = 0;
+    int start = 0;
+    int i = 0;
+    while (i < regex.length()) {
+      char c = regex.charAt(i);
+      if (c == '\\') {
+        i += 2;
+        continue;
+      }
+      if (c == '[') {
+        i = skipClass(regex, i);
+        if (i == -1) {
+          return null;
+        }
+        continue;
+      }
+      if (c == '(') {
+        depth++;
+      } else if (c == ')') {
+        depth--;
+        if (depth < 0) {
+          return null;
+        }
+      } else if (c == '|' && depth == 0) {
+        branches.add(regex.substring(start, i));
+        start = i + 1;
+      }
+      i++;
+    }
+    if (depth != 0) {
+      return null;
+    }
+    branches.add(regex.substring(start));
+    return branches;
+  }
+
+  /**
+   * Returns the longest literal that is always part of a match of {@code branch}, that cannot
+   * have top level alternatives, or null if there is none.
+   */
+  @Nullable
+  private static String longestLiteral(String branch) {
+    Literals literals = new Literals();
+    int i = 0;
+    while (i < branch.length()) {
+      char c = branch.charAt(i);
+      switch (c) {
+        case '\\':
+          if (i + 1 >= branch.length()) {
+            return literals.longest();
+          }
+          char escaped = branch.charAt(i + 1);
+          if (!Character.isLetterOrDigit(escaped)) {
+            literals.append(escaped);
+          } else if ("tnrf".indexOf(escaped) != -1) {
+            literals.append("\t\n\r\f".charAt("tnrf".indexOf(escaped)));
+          } else if ("dDwWsSbBAz".indexOf(escaped) != -1) {
+            literals.end();
+          } else {
+            // Unicode classes, hex characters, quoting... We don't know how long they are.
+            return literals.longest();
+          }
+          i += 2;
+          break;
+        case '[':
+          literals.end();
+          i = skipClass(branch, i);
+          if (i == -1) {
+            return literals.longest();
+          }
+          break;
+        case '(':
+          literals.end();
+          i = skipGroup(branch, i);
+          if (i == -1) {
+            return literals.longest();
+          }
+          break;
+        case '?':
+        case '*':
+          literals.dropOptional();
+          i++;
+          break;
+        case '+':
+          literals.end();
+          i++;
+          break;
+        case '{':
+          int end = repetitionEnd(branch, i);
+          if (end == -1) {
+            // Not a repetition, just a literal '{'.
+            literals.append(c);
+            i++;
+          } else {
+            if (branch.charAt(i + 1) == '0') {
+              literals.dropOptional();
+            } else {
+              literals.end();
+            }
+            i = end;
+          }
+          break;
+        case '.':
+        case '^':
+        case '$':
+          literals.end();
+          i++;
+          break;
+        case ')':
+        case '|':
+          return literals.longest();
+        default:
+          literals.append(c);
+          i++;
+      }
+    }
+    return literals.longest();
+  }
+
+  /**
+   * Returns the position after the character class that starts at {@code start}, or -1 if it is
+   * not closed.
+   */
+  private static int skipClass(String regex, int start) {
+    int i = start + 1;
+    if (i < regex.length() && regex.charAt(i) == '^') {
+      i++;
+    }
+    // A ']' at the beginning of the class is a literal.
+    if (i < regex.length() && regex.charAt(i) == ']') {
+      i++;
+    }
+    while (i < regex.length()) {
+      char c = regex.charAt(i);
+      if (c == '\\') {
+        i += 2;
+      } else if (regex.startsWith("[:", i)) {
+        int end = regex.indexOf(":]", i + 2);
+        if (end == -1) {
+          return -1;
+        }
+        i = end + 2;
+      } else if (c == ']') {
+        return i + 1;
+      } else {
+        i++;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the position after the group that starts at {@code start}, or -1 if it is not
+   * closed.
+   */
+  private static int skipGroup(String regex, int start) {
+    int depth = 0;
+    int i = start;
+    while (i < regex.length()) {
+      char c = regex.charAt(i);
+      if (c == '\\') {
+        i += 2;
+        continue;
+      }
+      if (c == '[') {
+        i = skipClass(regex, i);
+        if (i == -1) {
+          return -1;
+        }
+        continue;
+      }
+      if (c == '(') {
+        depth++;
+      } else if (c == ')') {
+        depth--;
+        if (depth == 0) {
+          return i + 1;
+        }
+      }
+      i++;
+    }
+    return -1;
+  }
+
+  /**
+   * Whether the group at {@code start} is a flags group like {@code (?i)} or {@code (?i:...)}
+   * that enables case insensitive matching.
+   */
+  private static boolean setsCaseInsensitive(String regex, int start) {
+    if (!regex.startsWith("(?", start)) {
+      return false;
+    }
+    for (int i = start + 2; i < regex.length(); i++) {
+      char c = regex.charAt(i);
+      if (c == ')') {
+        return false;
+      }
+      if (c == 'i') {
+        return true;
+      }
+      if (!Character.isLetter(c) && c != '-') {
+        return false;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the position after the repetition like {@code {2,3}} that starts at {@code start}, or
+   * -1 if it is not a valid repetition.
+   */
+  private static int repetitionEnd(String regex, int start) {
+    int i = start + 1;
+    int digits = 0;
+    while (i < regex.length() && Character.isDigit(regex.charAt(i))) {
+      i++;
+      digits++;
+    }
+    if (digits == 0 || i >= regex.length()) {
+      return -1;
+    }
+    if (regex.charAt(i) == ',') {
+      i++;
+      while (i < regex.length() && Character.isDigit(regex.charAt(i))) {
+        i++;
+      }
+    }
+    return i < regex.length() && regex.charAt(i) == '}' ? i + 1 : -1;
+  }
+
+  /** Accumulates the current literal and keeps the longest one found. */
+  private static final class Literals {
+
+    private final StringBuilder current = new StringBuilder();
+    @Nullable
+    private String longest;
+
+    private void append(char c) {
+      current.append(c);
+    }
+
+    /** The last character is optional (followed by '?', '*'...), so it is not required. */
+    private void dropOptional() {
+      int length = current.length();
+      if (length > 0) {
+        // A quantifier applies to the whole code point.
+        int remove = length > 1 && Character.isLowSurrogate(current.charAt(length - 1))
+            && Character.isHighSurrogate(current.charAt(length - 2)) ? 2 : 1;
+        current.setLength(length - remove);
+      }
+      end();
+    }
+
+    private void end() {
+      String literal = current.toString();
+      current.setLength(0);
+      // Invalid UTF-8 bytes are decoded as the replacement character, so it cannot be searched
+      // in the raw bytes.
+      if (literal.indexOf('\uFFFD') != -1) {
+        return;
+      }
+      if (!literal.isEmpty() && (longest == null || literal.length() > longest.length())) {
+        longest = literal;
+      }
+    }
+
+    @Nullable
+    private String longest() {
+      end();
+      return longest;
+    }
+  }
+}
@@ -23,10 +23,12 @@ import com.google.common.base.Splitter;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
 import com.google.copybara.templatetoken.Parser;
 import com.google.copybara.templatetoken.Token;
+import com.google.copybara.templatetoken.Token.TokenType;
 import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.syntax.EvalException;
 import com.google.re2j.Matcher;
@@ -72,20 +74,60 @@ public final class RegexTemplateTokens {
     return before;
   }
 
+  /**
+   * The literals that a content needs to contain (at least one of them) to match
+   * {@link #getBefore()}, or an empty set if there are none. See {@link LiteralPrefilter}.
+   */
+  ImmutableSet<String> getRequiredLiterals() {
+    String longest = "";
+    for (Token token : tokens) {
+      String value = token.getValue();
+      if (token.getType() == TokenType.LITERAL && value.length() > longest.length()
+          // Invalid UTF-8 bytes are decoded as the replacement character
+          && value.indexOf('\uFFFD') == -1) {
+        longest = value;
+      }
+    }
+    return longest.isEmpty() ? ImmutableSet.of() : ImmutableSet.of(longest);
+  }
+
+  /**
+   * Creates a replacer that can only be used from the current thread, reusing the patterns
+   * compiled for the thread by previous replacers. See {@link PatternPool}.
+   */
   public Replacer replacer(
       RegexTemplateTokens after, boolean firstOnly, boolean multiline,
       List<Pattern> patternsToIgnore) {
-    // TODO(malcon): Remove reconstructing pattern once RE2J doesn't synchronize on matching.
-    return new Replacer(Pattern.compile(before.pattern(), before.flags()), after, null, firstOnly,
-                        multiline, patternsToIgnore);
+    return replacer(after, firstOnly, multiline, patternsToIgnore, /*stats=*/null);
+  }
+
+  Replacer replacer(
+      RegexTemplateTokens after, boolean firstOnly, boolean multiline,
+      List<Pattern> patternsToIgnore, @Nullable TransformStats stats) {
+    return new Replacer(PatternPool.get(before, stats), after, null, firstOnly,
+                        multiline, threadPatterns(patternsToIgnore, stats));
   }
 
   public Replacer callbackReplacer(
       RegexTemplateTokens after, AlterAfterTemplate callback, boolean firstOnly,
       boolean multiline,
       @Nullable List<Pattern> patternsToIgnore) {
-    return new Replacer(Pattern.compile(before.pattern()), after, callback, firstOnly, multiline,
-                        patternsToIgnore);
+    return new Replacer(PatternPool.get(before.pattern(), /*flags=*/0, /*stats=*/null), after,
+                        callback, firstOnly, multiline,
+                        threadPatterns(patternsToIgnore, /*stats=*/null));
+  }
+
+  @Nullable
+  private static List<Pattern> threadPatterns(@Nullable List<Pattern> patterns,
+      @Nullable TransformStats stats) {
+    if (patterns == null) {
+      return null;
+    }
+    List<Pattern> result = new ArrayList<>(patterns.size());
+    for (Pattern pattern : patterns) {
+      result.add(PatternPool.get(pattern, stats));
+    }
+    return result;
   }
 
   public class Replacer {
@@ -103,6 +145,7 @@ public final class RegexTemplateTokens {
     @Nullable
     private final AlterAfterTemplate callback;
 
+    private long matchCount;
 
     private Replacer(Pattern before, RegexTemplateTokens after,
         @Nullable AlterAfterTemplate callback,
@@ -169,6 +212,7 @@ public final class RegexTemplateTokens {
           replaceTemplate = afterReplaceTemplate;
         }
 
+        matchCount++;
         matcher.appendReplacement(sb, replaceTemplate);
         if (firstOnly) {
           break;
@@ -178,6 +222,14 @@ public final class RegexTemplateTokens {
       return sb.toString();
     }
 
+    /**
+     * Number of matches replaced by this replacer so far. Replacers are not thread-safe, so this
+     * is only accurate if the replacer is used from one thread.
+     */
+    public long getMatchCount() {
+      return matchCount;
+    }
+
     @Override
     public String toString() {
       return String.format("s/%s/%s/%s", RegexTemplateTokens.this, after, firstOnly ? "" : "g");
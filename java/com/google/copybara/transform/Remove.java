@@ -19,16 +19,22 @@ package com.google.copybara.transform;
 import static com.google.copybara.exception.ValidationException.checkCondition;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.google.common.flogger.FluentLogger;
 import com.google.copybara.NonReversibleValidationException;
 import com.google.copybara.TransformWork;
 import com.google.copybara.Transformation;
 import com.google.copybara.WorkflowOptions;
 import com.google.copybara.exception.ValidationException;
-import com.google.copybara.util.FileUtil;
+import com.google.copybara.profiler.Profiler;
+import com.google.copybara.treestate.TreeState.FileState;
 import com.google.copybara.util.Glob;
 import com.google.devtools.build.lib.events.Location;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
 
 /**
  * We might promote this to a Skylark transform. But because we already have origin_files,
@@ -41,11 +47,14 @@ public class Remove implements Transformation {
   private final Glob glob;
   private final WorkflowOptions workflowOptions;
   private final Location location;
+  private final Profiler profiler;
 
-  public Remove(Glob glob, WorkflowOptions workflowOptions, Location location) {
+  public Remove(Glob glob, WorkflowOptions workflowOptions, Location location,
+      Profiler profiler) {
     this.glob = Preconditions.checkNotNull(glob);
     this.workflowOptions = Preconditions.checkNotNull(workflowOptions);
     this.location = location;
+    this.profiler = Preconditions.checkNotNull(profiler);
   }
 
   @Override
@@ -56,8 +65,16 @@ public class Remove implements Transformation {
             + " transformations like core.copy(). Please use origin_files exclude for"
             + " filtering out files.");
 
-    int numDeletes = FileUtil.deleteFilesRecursively(work.getCheckoutDir(),
-        glob.relativeTo(work.getCheckoutDir()));
+    long start = System.nanoTime();
+    // The tree state only walks the roots of the glob, or nothing if it is already read.
+    List<Path> files = ImmutableList.copyOf(
+        Iterables.transform(work.getTreeState().find(glob), FileState::getPath));
+    workflowOptions.parallelizer().run(files, Remove::delete);
+    work.getTreeState().notifyDelete(files);
+    int numDeletes = files.size();
+    TransformStats stats = new TransformStats();
+    stats.filesModified(numDeletes);
+    stats.report(profiler, describe(), System.nanoTime() - start);
     logger.atInfo().log("Deleted %d files for glob: %s", numDeletes, glob);
     if (numDeletes  == 0) {
       workflowOptions.reportNoop(
@@ -65,6 +82,13 @@ public class Remove implements Transformation {
     }
   }
 
+  private static Void delete(Iterable<Path> files) throws IOException {
+    for (Path file : files) {
+      Files.delete(file);
+    }
+    return null;
+  }
+
   @Override
   public Transformation reverse() throws NonReversibleValidationException {
     throw new NonReversibleValidationException(location, "core.remove is not reversible");
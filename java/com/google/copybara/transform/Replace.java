@@ -18,21 +18,27 @@ package com.google.copybara.transform;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.google.common.base.Joiner;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Iterables;
 import com.google.common.flogger.FluentLogger;
+import com.google.common.hash.HashCode;
+import com.google.common.primitives.Booleans;
 import com.google.copybara.LocalParallelizer;
 import com.google.copybara.NonReversibleValidationException;
 import com.google.copybara.TransformWork;
 import com.google.copybara.Transformation;
 import com.google.copybara.WorkflowOptions;
 import com.google.copybara.exception.ValidationException;
+import com.google.copybara.profiler.Profiler;
 import com.google.copybara.transform.RegexTemplateTokens.Replacer;
+import com.google.copybara.treestate.FileOverlay;
+import com.google.copybara.treestate.NegativeMatchCache;
 import com.google.copybara.treestate.TreeState.FileState;
 import com.google.copybara.util.Glob;
+import com.google.copybara.util.TransformCache;
 import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.syntax.EvalException;
 import com.google.re2j.Pattern;
@@ -41,9 +47,12 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.LongStream;
+import javax.annotation.Nullable;
 
 /**
  * A source code transformation which replaces a regular expression with some other string.
@@ -78,13 +87,17 @@ public final class Replace implements Transformation {
   private final Glob fileMatcherBuilder;
   private final ImmutableList<Pattern> patternsToIgnore;
   private final WorkflowOptions workflowOptions;
+  private final TransformCache transformCache;
+  private final Profiler profiler;
 
   private Replace(RegexTemplateTokens before, RegexTemplateTokens after,
       Map<String, Pattern> regexGroups, boolean firstOnly, boolean multiline,
       boolean repeatedGroups,
       Glob fileMatcherBuilder,
       List<Pattern> patternsToIgnore,
-      WorkflowOptions workflowOptions) {
+      WorkflowOptions workflowOptions,
+      TransformCache transformCache,
+      Profiler profiler) {
     this.before = Preconditions.checkNotNull(before);
     this.after = Preconditions.checkNotNull(after);
     this.regexGroups = ImmutableMap.copyOf(regexGroups);
@@ -94,6 +107,8 @@ public final class Replace implements Transformation {
     this.fileMatcherBuilder = Preconditions.checkNotNull(fileMatcherBuilder);
     this.patternsToIgnore = ImmutableList.copyOf(patternsToIgnore);
     this.workflowOptions = Preconditions.checkNotNull(workflowOptions);
+    this.transformCache = Preconditions.checkNotNull(transformCache);
+    this.profiler = Preconditions.checkNotNull(profiler);
   }
 
   @Override
@@ -104,6 +119,7 @@ public final class Replace implements Transformation {
         .add("regexGroups", regexGroups)
         .add("firstOnly", firstOnly)
         .add("multiline", multiline)
+        .add("repeatedGroups", repeatedGroups)
         .add("path", fileMatcherBuilder)
         .add("patternsToIgnore", patternsToIgnore)
         .toString();
@@ -112,24 +128,64 @@ public final class Replace implements Transformation {
   @Override
   public void transform(TransformWork work)
       throws IOException, ValidationException {
-    Path checkoutDir = work.getCheckoutDir();
-
-    Iterable<FileState> files = work.getTreeState().find(
-        fileMatcherBuilder.relativeTo(checkoutDir));
-    BatchReplace batchReplace = new BatchReplace(
-        before, after, firstOnly, multiline, patternsToIgnore);
-    workflowOptions.parallelizer().run(files, batchReplace);
-    List<FileState> changed = batchReplace.getChanged();
-    boolean matchedFile = batchReplace.isMatchedFile();
-    logger.atInfo().log( "Applied %s to %d files. %d changed.",
-        this, Iterables.size(files), changed.size());
-
-    work.getTreeState().notifyModify(changed);
-    if (changed.isEmpty()) {
+    BatchReplace batchReplace = runReplaces(ImmutableList.of(this), work);
+    reportResult(batchReplace, 0, work);
+  }
+
+  /**
+   * Replaces can be joined if they apply to the same set of files. The joined transformation
+   * reads and writes each file once instead of once per replace.
+   */
+  @Override
+  public boolean canJoin(Transformation transformation) {
+    return transformation instanceof Replace
+        && fileMatcherBuilder.equals(((Replace) transformation).fileMatcherBuilder)
+        && workflowOptions == ((Replace) transformation).workflowOptions;
+  }
+
+  @Override
+  public Transformation join(Transformation next) {
+    Preconditions.checkArgument(canJoin(next), "Cannot join %s and %s", this, next);
+    return new JoinedReplace(ImmutableList.of(this, (Replace) next));
+  }
+
+  /**
+   * Runs {@code replaces} in order over the files matched by the (shared) glob, reading and
+   * writing each file at most once. The statistics are reported once per replace.
+   */
+  private static BatchReplace runReplaces(ImmutableList<Replace> replaces, TransformWork work)
+      throws IOException, ValidationException {
+    Replace first = replaces.get(0);
+    Iterable<FileState> files = work.getTreeState().find(first.fileMatcherBuilder);
+    BatchReplace batchReplace = new BatchReplace(replaces,
+        first.workflowOptions.negativeMatchCache(), first.transformCache, work.getOverlay(),
+        first.workflowOptions.streamingReplaceMinSize, work.getTmpDir());
+    first.workflowOptions.parallelizer().run(files, FileState::getSize, batchReplace,
+        first.profiler);
+    work.getTreeState().notifyModify(batchReplace.getChanged());
+    // One profiler entry per replace, so that joining doesn't hide which one is slow. The first
+    // replace carries the I/O of the pass.
+    for (int i = 0; i < replaces.size(); i++) {
+      Replace replace = replaces.get(i);
+      batchReplace.getStats(i).report(replace.profiler, replace.describe(),
+          batchReplace.getElapsedNanos(i) + (i == 0 ? batchReplace.getSharedNanos() : 0));
+    }
+    return batchReplace;
+  }
+
+  private void reportResult(BatchReplace batchReplace, int index, TransformWork work)
+      throws ValidationException {
+    int changed = batchReplace.getChangedCount(index);
+    logger.atInfo().log("Applied %s to %d files. %d changed.",
+        this, batchReplace.getFilesCount(), changed);
+
+    if (changed == 0) {
       workflowOptions.reportNoop(
           work.getConsole(),
           "Transformation '" + toString() + "' was a no-op because it didn't "
-              + (matchedFile ? "change any of the matching files." : "match any file."),
+              + (batchReplace.isMatchedFile()
+                 ? "change any of the matching files."
+                 : "match any file."),
           work.getIgnoreNoop());
     }
   }
@@ -141,6 +197,16 @@ public final class Replace implements Transformation {
     return "Replace " + before;
   }
 
+  @Override
+  public Glob getAffectedPaths() {
+    return fileMatcherBuilder;
+  }
+
+  @Override
+  public boolean supportsOverlay() {
+    return true;
+  }
+
   @Override
   public Replace reverse() throws NonReversibleValidationException {
     try {
@@ -150,13 +216,13 @@ public final class Replace implements Transformation {
     }
     //TODO remove repeatedGroups boolean?
     return new Replace(after, before, regexGroups, firstOnly, multiline, repeatedGroups,
-        fileMatcherBuilder, patternsToIgnore, workflowOptions);
+        fileMatcherBuilder, patternsToIgnore, workflowOptions, transformCache, profiler);
   }
 
   public static Replace create(Location location, String before, String after,
       Map<String, String> regexGroups, Glob paths, boolean firstOnly, boolean multiline,
       boolean repeatedGroups, List<String> patternsToIgnore,
-      WorkflowOptions workflowOptions)
+      WorkflowOptions workflowOptions, TransformCache transformCache, Profiler profiler)
       throws EvalException {
     Map<String, Pattern> parsedGroups = new HashMap<>();
     for (Map.Entry<String, String> group : regexGroups.entrySet()) {
@@ -192,64 +258,358 @@ public final class Replace implements Transformation {
 
     return new Replace(
         beforeTokens, afterTokens, parsedGroups, firstOnly, multiline, repeatedGroups, paths,
-        parsedIgnorePatterns, workflowOptions);
+        parsedIgnorePatterns, workflowOptions, transformCache, profiler);
+  }
+
+  /**
+   * A sequence of consecutive {@link Replace}s over the same paths that is applied in one pass
+   * over the files. The result is the same as running the replaces one after the other.
+   */
+  private static final class JoinedReplace implements Transformation {
+
+    private final ImmutableList<Replace> replaces;
+
+    private JoinedReplace(ImmutableList<Replace> replaces) {
+      this.replaces = replaces;
+    }
+
+    @Override
+    public void transform(TransformWork work) throws IOException, ValidationException {
+      BatchReplace batchReplace = runReplaces(replaces, work);
+      for (int i = 0; i < replaces.size(); i++) {
+        replaces.get(i).reportResult(batchReplace, i, work);
+      }
+    }
+
+    @Override
+    public boolean canJoin(Transformation transformation) {
+      return replaces.get(0).canJoin(transformation);
+    }
+
+    @Override
+    public Transformation join(Transformation next) {
+      Preconditions.checkArgument(canJoin(next), "Cannot join %s and %s", this, next);
+      return new JoinedReplace(ImmutableList.<Replace>builder()
+          .addAll(replaces)
+          .add((Replace) next)
+          .build());
+    }
+
+    @Override
+    public Transformation reverse() throws NonReversibleValidationException {
+      ImmutableList.Builder<Replace> reversed = ImmutableList.builder();
+      for (Replace replace : replaces.reverse()) {
+        reversed.add(replace.reverse());
+      }
+      return new JoinedReplace(reversed.build());
+    }
+
+    @Override
+    public String describe() {
+      return String.format("%s (and %d more joined)", replaces.get(0).describe(),
+          replaces.size() - 1);
+    }
+
+    @Override
+    public Glob getAffectedPaths() {
+      return replaces.get(0).getAffectedPaths();
+    }
+
+    @Override
+    public boolean supportsOverlay() {
+      return true;
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(this)
+          .add("replaces", replaces)
+          .toString();
+    }
   }
 
   private final static class BatchReplace
       implements LocalParallelizer.TransformFunc<FileState, Boolean> {
 
-
-    private final RegexTemplateTokens before;
-    private final RegexTemplateTokens after;
-    private final boolean firstOnly;
-    private final boolean multiline;
-    private final ImmutableList<Pattern> patternsToIgnore;
+    private final ImmutableList<Replace> replaces;
+    private final NegativeMatchCache negativeMatchCache;
+    private final TransformCache transformCache;
+    private final FileOverlay overlay;
+    private final ImmutableList<String> matcherKeys;
+    private final String cacheFingerprint;
+    private final boolean canStream;
+    private final long streamingMinSize;
+    private final Path tmpDir;
+    @Nullable
+    private final LiteralPrefilter prefilter;
 
     private final List<FileState> changed = new ArrayList<>();
+    // One per replace. The I/O shared by all the replaces is recorded in the first one.
+    private final ImmutableList<TransformStats> replaceStats;
+    private final TransformStats stats;
+    private final int[] changedCount;
+    private final long[] elapsedNanos;
+    private long sharedNanos = 0;
+    private int filesCount = 0;
     private boolean matchedFile = false;
 
-    BatchReplace(RegexTemplateTokens before, RegexTemplateTokens after, boolean firstOnly,
-        boolean multiline, ImmutableList<Pattern> patternsToIgnore) {
-      this.before = before;
-      this.after = after;
-      this.firstOnly = firstOnly;
-      this.multiline = multiline;
-      this.patternsToIgnore = patternsToIgnore;
+    BatchReplace(ImmutableList<Replace> replaces, NegativeMatchCache negativeMatchCache,
+        TransformCache transformCache, FileOverlay overlay, long streamingMinSize,
+        Path tmpDir) {
+      this.replaces = replaces;
+      this.negativeMatchCache = negativeMatchCache;
+      this.transformCache = transformCache;
+      this.overlay = overlay;
+      // Multiline replaces need the whole content, so they cannot be streamed.
+      this.canStream = replaces.stream().noneMatch(r -> r.multiline);
+      this.streamingMinSize = streamingMinSize;
+      this.tmpDir = tmpDir;
+      this.matcherKeys = replaces.stream()
+          .map(r -> "core.replace " + r)
+          .collect(ImmutableList.toImmutableList());
+      // Bump the version if the result of the replaces or the format of the entries changes.
+      this.cacheFingerprint = "core.replace v1\n" + Joiner.on('\n').join(replaces);
+      this.replaceStats = replaces.stream()
+          .map(r -> new TransformStats())
+          .collect(ImmutableList.toImmutableList());
+      this.stats = replaceStats.get(0);
+      this.changedCount = new int[replaces.size()];
+      this.elapsedNanos = new long[replaces.size()];
+      this.prefilter = LiteralPrefilter.create(replaces.stream()
+          .map(r -> r.before.getRequiredLiterals())
+          .collect(ImmutableList.toImmutableList()));
     }
 
     public List<FileState> getChanged() {
       return changed;
     }
 
+    /** Number of files changed by the {@code index}-th replace. */
+    int getChangedCount(int index) {
+      return changedCount[index];
+    }
+
+    /** Statistics of the {@code index}-th replace. */
+    TransformStats getStats(int index) {
+      return replaceStats.get(index);
+    }
+
+    /** Time spent by the {@code index}-th replace, added up across all the batches. */
+    long getElapsedNanos(int index) {
+      return elapsedNanos[index];
+    }
+
+    /**
+     * Time spent outside of the replaces (reading, writing, caching...), added up across all the
+     * batches.
+     */
+    long getSharedNanos() {
+      return sharedNanos;
+    }
+
+    int getFilesCount() {
+      return filesCount;
+    }
+
     boolean isMatchedFile() {
       return matchedFile;
     }
 
     @Override
     public Boolean run(Iterable<FileState> elements) throws IOException, ValidationException {
-      Replacer replacer = before.replacer(after, firstOnly, multiline, patternsToIgnore);
+      long cpuStart = TransformStats.currentThreadCpuTime();
+      long batchStart = System.nanoTime();
+      List<Replacer> replacers = new ArrayList<>(replaces.size());
+      for (int i = 0; i < replaces.size(); i++) {
+        Replace replace = replaces.get(i);
+        replacers.add(replace.before.replacer(replace.after, replace.firstOnly, replace.multiline,
+            replace.patternsToIgnore, replaceStats.get(i)));
+      }
       List<FileState> changed = new ArrayList<>();
+      int[] changedCount = new int[replaces.size()];
+      long[] elapsedNanos = new long[replaces.size()];
+      int filesCount = 0;
       boolean matchedFile = false;
       for (FileState file : elements) {
+        filesCount++;
+        for (TransformStats replaceStat : replaceStats) {
+          replaceStat.fileConsidered();
+        }
         if (Files.isSymbolicLink(file.getPath())) {
           continue;
         }
         matchedFile = true;
-        String originalFileContent = new String(Files.readAllBytes(file.getPath()), UTF_8);
-        String transformed = replacer.replace(originalFileContent);
-        if (!originalFileContent.equals(transformed)) {
-          synchronized (this) {
+        // Files in the overlay are already in memory (and their size in disk might be stale).
+        if (canStream && !overlay.isDirty(file.getPath())
+            && file.getSize() >= streamingMinSize) {
+          if (streamReplace(file, replacers, changedCount, elapsedNanos)) {
             changed.add(file);
           }
-          Files.write(file.getPath(), transformed.getBytes(UTF_8));
+          continue;
+        }
+        byte[] bytes = null;
+        String content = null;
+        boolean[] changedBy = new boolean[replacers.size()];
+        boolean[] mayMatch = null;
+        boolean modified = false;
+        byte[] newBytes = null;
+        HashCode cacheKey = null;
+        for (int i = 0; i < replacers.size(); i++) {
+          // The negative cache is keyed by the content of the file, so it can only be used
+          // until one of the replaces modifies it. The first lookup doesn't read the file.
+          if (!modified && negativeMatchCache.isKnownNoMatch(matcherKeys.get(i), file, bytes)) {
+            continue;
+          }
+          if (bytes == null) {
+            bytes = overlay.read(file.getPath());
+            stats.fileRead(bytes.length);
+            if (prefilter != null) {
+              mayMatch = prefilter.mayMatch(bytes);
+              if (!Booleans.contains(mayMatch, true)) {
+                // None of the replaces can match, so there is no need to decode the content.
+                stats.filePrefiltered();
+                break;
+              }
+            }
+            if (transformCache.isEnabled()) {
+              long start = System.nanoTime();
+              cacheKey = TransformCache.key(cacheFingerprint, file.hashContent(bytes));
+              byte[] entry = transformCache.get(cacheKey);
+              stats.addCacheTime(System.nanoTime() - start);
+              if (entry != null && entry.length >= changedBy.length) {
+                stats.cacheHit();
+                newBytes = decodeCacheEntry(entry, changedBy);
+                cacheKey = null;
+                break;
+              }
+              stats.cacheMiss();
+            }
+            content = new String(bytes, UTF_8);
+            if (negativeMatchCache.isKnownNoMatch(matcherKeys.get(i), file, bytes)) {
+              continue;
+            }
+          }
+          // The literals were searched in the original content.
+          if (!modified && mayMatch != null && !mayMatch[i]) {
+            continue;
+          }
+          long start = System.nanoTime();
+          String transformed = replacers.get(i).replace(content);
+          elapsedNanos[i] += System.nanoTime() - start;
+          if (!content.equals(transformed)) {
+            changedBy[i] = true;
+            modified = true;
+            content = transformed;
+          } else if (!modified) {
+            negativeMatchCache.recordNoMatch(matcherKeys.get(i), file, bytes);
+          }
+        }
+        // On a cache hit, changedBy comes from the cache entry.
+        modified = Booleans.contains(changedBy, true);
+        if (modified && newBytes == null) {
+          newBytes = content.getBytes(UTF_8);
+        }
+        // Files that none of the replaces changed are not stored: the prefilter and the negative
+        // cache already skip most of them, and they would fill the cache with copies of the tree.
+        if (cacheKey != null && modified) {
+          long start = System.nanoTime();
+          transformCache.put(cacheKey, encodeCacheEntry(changedBy, newBytes));
+          stats.addCacheTime(System.nanoTime() - start);
         }
+        countChanges(changedBy, changedCount);
+        // Write the file if any of the replaces changed it, even if a later one reverted the
+        // change, so that the result is the same as running the replaces one by one.
+        if (modified) {
+          changed.add(file);
+          overlay.write(file.getPath(), newBytes);
+          stats.bytesWritten(newBytes.length);
+        }
+      }
+      for (int i = 0; i < replacers.size(); i++) {
+        replaceStats.get(i).addMatches(replacers.get(i).getMatchCount());
       }
+      stats.addCpuTimeSince(cpuStart);
+      // Measured in this thread, so it doesn't depend on what the other batches do.
+      long sharedNanos = System.nanoTime() - batchStart - LongStream.of(elapsedNanos).sum();
       synchronized (this) {
+        this.sharedNanos += sharedNanos;
         this.matchedFile |= matchedFile;
+        this.filesCount += filesCount;
         this.changed.addAll(changed);
+        for (int i = 0; i < replaces.size(); i++) {
+          this.changedCount[i] += changedCount[i];
+          this.elapsedNanos[i] += elapsedNanos[i];
+        }
       }
       // We cannot return null here.
       return true;
     }
+
+    /**
+     * Cache entries have one byte per replace, that is 1 if the replace changed the file, followed
+     * by the new content of the file if any of them changed it.
+     */
+    private static byte[] encodeCacheEntry(boolean[] changedBy, @Nullable byte[] newBytes) {
+      byte[] entry = new byte[changedBy.length + (newBytes == null ? 0 : newBytes.length)];
+      for (int i = 0; i < changedBy.length; i++) {
+        entry[i] = (byte) (changedBy[i] ? 1 : 0);
+      }
+      if (newBytes != null) {
+        System.arraycopy(newBytes, 0, entry, changedBy.length, newBytes.length);
+      }
+      return entry;
+    }
+
+    @Nullable
+    private static byte[] decodeCacheEntry(byte[] entry, boolean[] changedBy) {
+      for (int i = 0; i < changedBy.length; i++) {
+        changedBy[i] = entry[i] == 1;
+      }
+      return Booleans.contains(changedBy, true)
+          ? Arrays.copyOfRange(entry, changedBy.length, entry.length)
+          : null;
+    }
+
+    /**
+     * Applies the replacers line by line without loading the whole file in memory. Binary files
+     * are skipped.
+     */
+    private boolean streamReplace(FileState file, List<Replacer> replacers, int[] changedCount,
+        long[] elapsedNanos) throws IOException, ValidationException {
+      if (StreamingLineRewriter.looksBinary(file.getPath())) {
+        logger.atInfo().log("Skipping binary file %s", file.getPath());
+        return false;
+      }
+      stats.fileRead(file.getSize());
+      boolean[] changedBy = new boolean[replacers.size()];
+      boolean modified = StreamingLineRewriter.rewriteLines(file.getPath(), tmpDir, line -> {
+        String content = line;
+        for (int i = 0; i < replacers.size(); i++) {
+          long start = System.nanoTime();
+          String transformed = replacers.get(i).replace(content);
+          elapsedNanos[i] += System.nanoTime() - start;
+          if (!content.equals(transformed)) {
+            changedBy[i] = true;
+            content = transformed;
+          }
+        }
+        return content;
+      }, () -> Booleans.contains(changedBy, true));
+      countChanges(changedBy, changedCount);
+      if (modified) {
+        stats.bytesWritten(Files.size(file.getPath()));
+      }
+      return modified;
+    }
+
+    /** Counts the file as modified by each of the replaces that changed it. */
+    private void countChanges(boolean[] changedBy, int[] changedCount) {
+      for (int i = 0; i < changedBy.length; i++) {
+        if (changedBy[i]) {
+          changedCount[i]++;
+          replaceStats.get(i).filesModified(1);
+        }
+      }
+    }
   }
 }
@@ -19,12 +19,16 @@ package com.google.copybara.transform;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.copybara.LocalParallelizer;
 import com.google.copybara.NonReversibleValidationException;
 import com.google.copybara.TransformWork;
 import com.google.copybara.Transformation;
 import com.google.copybara.exception.ValidationException;
 import com.google.copybara.profiler.Profiler;
 import com.google.copybara.profiler.Profiler.ProfilerTask;
+import com.google.copybara.profiler.Task;
+import com.google.copybara.treestate.FileOverlay;
+import com.google.copybara.util.Glob;
 import com.google.devtools.build.lib.syntax.BaseFunction;
 import com.google.devtools.build.lib.syntax.Environment;
 import com.google.devtools.build.lib.syntax.EvalException;
@@ -34,9 +38,11 @@ import com.google.devtools.build.lib.syntax.SkylarkType;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
 /**
  * A transformation that runs a sequence of delegate transformations
@@ -45,24 +51,46 @@ public class Sequence implements Transformation {
 
   private final Profiler profiler;
   private final boolean joinTransformations;
+  @Nullable private final LocalParallelizer parallelizer;
+  private final long overlayMaxSize;
   private final ImmutableList<Transformation> sequence;
 
   protected final Logger logger = Logger.getLogger(Sequence.class.getName());
 
   @VisibleForTesting
-  Sequence(Profiler profiler, boolean joinTransformations, ImmutableList<Transformation> sequence) {
+  Sequence(Profiler profiler, boolean joinTransformations,
+      @Nullable LocalParallelizer parallelizer, long overlayMaxSize,
+      ImmutableList<Transformation> sequence) {
     this.profiler = Preconditions.checkNotNull(profiler);
     this.joinTransformations = joinTransformations;
+    this.parallelizer = parallelizer;
+    this.overlayMaxSize = overlayMaxSize;
     this.sequence = Preconditions.checkNotNull(sequence);
   }
 
   @Override
   public void transform(TransformWork work)
       throws IOException, ValidationException {
+    if (sequence.size() > 1 && overlayMaxSize > 0 && !work.getOverlay().isEnabled()) {
+      TransformWork overlayWork = work.withOverlay(new FileOverlay(overlayMaxSize));
+      transform(overlayWork);
+      work.updateFrom(overlayWork);
+      work.setResultTreeState(overlayWork.getResultTreeState());
+      return;
+    }
+    runTransformations(work);
+    // Sequences are the boundaries of the overlay, so that whatever runs after them can read the
+    // files from disk. If a transformation fails, the migration of the change fails too, so
+    // there is no need to flush in that case.
+    work.getOverlay().flush();
+  }
+
+  private void runTransformations(TransformWork work) throws IOException, ValidationException {
     if (sequence.size() == 1) {
       Transformation transform = sequence.get(0);
       logger.log(Level.INFO, transform.describe());
       work.getConsole().progress(transform.describe());
+      flushOverlayIfNeeded(work, sequence);
       runOneTransform(work, transform);
       return;
     }
@@ -73,19 +101,109 @@ public class Sequence implements Transformation {
 
     List<Transformation> transformationList = getTransformations();
 
-    for (int i = 0; i < transformationList.size(); i++) {
-      Transformation transformation = transformationList.get(i);
-      String transformMsg = String.format(
-          "[%2d/%d] Transform %s", i + 1, transformationList.size(),
-          transformation.describe());
-      logger.log(Level.INFO, transformMsg);
+    int i = 0;
+    while (i < transformationList.size()) {
+      List<Transformation> group = independentGroup(transformationList, i);
+      if (group.size() == 1) {
+        Transformation transformation = group.get(0);
+        String transformMsg = String.format(
+            "[%2d/%d] Transform %s", i + 1, transformationList.size(),
+            transformation.describe());
+        logger.log(Level.INFO, transformMsg);
 
-      localWork.getConsole().progress(transformMsg);
-      runOneTransform(localWork, transformation);
-      localWork = localWork.withUpdatedTreeState();
+        localWork.getConsole().progress(transformMsg);
+        flushOverlayIfNeeded(localWork, group);
+        runOneTransform(localWork, transformation);
+        localWork = localWork.withUpdatedTreeState();
+      } else {
+        flushOverlayIfNeeded(localWork, group);
+        runConcurrently(localWork, group, i, transformationList.size());
+        // The transformations of the group modified the files using their own snapshots, so
+        // none of them is valid for the next transformation.
+        localWork = localWork.withFileSystemTreeState();
+      }
+      i += group.size();
     }
     // Update parent work with potentially modified metadata.
     work.updateFrom(localWork);
+    // The parent tree state is not updated, but the next ones are ready for whatever runs after
+    // the sequence.
+    work.setResultTreeState(localWork.getTreeState());
+  }
+
+  /**
+   * Writes the files in the overlay to disk if any of {@code transformations} reads or writes the
+   * files without going through the overlay.
+   */
+  private static void flushOverlayIfNeeded(TransformWork work,
+      List<Transformation> transformations) throws IOException {
+    for (Transformation transformation : transformations) {
+      if (!transformation.supportsOverlay()) {
+        work.getOverlay().flush();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Returns the longest group of consecutive transformations starting at {@code start} that
+   * affect disjoint paths and don't use anything else from the work, so they can run
+   * concurrently. Returns a single transformation if there is no such group or running
+   * transformations concurrently is disabled.
+   */
+  private List<Transformation> independentGroup(List<Transformation> transformations, int start) {
+    if (parallelizer == null) {
+      return transformations.subList(start, start + 1);
+    }
+    List<Glob> paths = new ArrayList<>();
+    int end = start;
+    outer:
+    while (end < transformations.size()) {
+      Glob affected = transformations.get(end).getAffectedPaths();
+      if (affected == null) {
+        break;
+      }
+      for (Glob other : paths) {
+        if (!affected.isDisjoint(other)) {
+          break outer;
+        }
+      }
+      paths.add(affected);
+      end++;
+    }
+    return transformations.subList(start, Math.max(end, start + 1));
+  }
+
+  /**
+   * Runs {@code group}, a list of transformations that affect disjoint paths, concurrently. Each
+   * one gets its own snapshot of the tree state, so that they don't need to synchronize.
+   */
+  private void runConcurrently(TransformWork work, List<Transformation> group, int start,
+      int total) throws IOException, ValidationException {
+    List<TransformWork> works = new ArrayList<>(group.size());
+    for (int i = 0; i < group.size(); i++) {
+      String transformMsg = String.format(
+          "[%2d/%d] Transform %s (concurrently)", start + i + 1, total,
+          group.get(i).describe());
+      logger.log(Level.INFO, transformMsg);
+      work.getConsole().progress(transformMsg);
+      works.add(work.withTreeStateSnapshot());
+    }
+    // Pool threads don't inherit the current profiler task, so the tasks get it explicitly.
+    Task parent = profiler.currentTask();
+    List<Callable<Void>> tasks = new ArrayList<>(group.size());
+    for (int i = 0; i < group.size(); i++) {
+      Transformation transformation = group.get(i);
+      TransformWork transformWork = works.get(i);
+      tasks.add(() -> {
+        try (ProfilerTask ignored =
+            profiler.start(parent, transformation.describe().replace('/', ' '))) {
+          transformation.transform(transformWork);
+        }
+        return null;
+      });
+    }
+    parallelizer.runConcurrently(tasks);
   }
 
   private List<Transformation> getTransformations() {
@@ -123,7 +241,8 @@ public class Sequence implements Transformation {
     for (Transformation element : sequence) {
       list.add(element.reverse());
     }
-    return new Sequence(profiler, joinTransformations, list.build().reverse());
+    return new Sequence(profiler, joinTransformations, parallelizer, overlayMaxSize,
+        list.build().reverse());
   }
 
   @VisibleForTesting
@@ -149,23 +268,33 @@ public class Sequence implements Transformation {
    *
    * @param joinTransformations if compatible and consecutive transformations can be joined for
    * efficiency
+   * @param parallelizer if not null, consecutive transformations that affect disjoint paths are
+   * run concurrently with it
+   * @param overlayMaxSize if positive, the file contents modified by the transformations are kept
+   * in a {@link FileOverlay} of this size until the end of the sequence
    * @param description a description of the argument being converted, such as its name
    * @param env skylark environment for user defined transformations
    */
   public static Sequence fromConfig(Profiler profiler, boolean joinTransformations,
-      SkylarkList<?> elements, String description, Supplier<Environment> env)
+      @Nullable LocalParallelizer parallelizer, @Nullable LocalParallelizer fileParallelizer,
+      long overlayMaxSize, SkylarkList<?> elements, String description,
+      Supplier<Environment> env)
       throws EvalException {
     ImmutableList.Builder<Transformation> transformations = ImmutableList.builder();
     for (Object element : elements) {
-      transformations.add(convertToTransformation(description, env, element));
+      transformations.add(
+          convertToTransformation(description, env, profiler, fileParallelizer, element));
     }
-    return new Sequence(profiler, joinTransformations, transformations.build());
+    return new Sequence(profiler, joinTransformations, parallelizer, overlayMaxSize,
+        transformations.build());
   }
 
   private static Transformation convertToTransformation(String description,
-      Supplier<Environment> env, Object element) throws EvalException {
+      Supplier<Environment> env, Profiler profiler, @Nullable LocalParallelizer fileParallelizer,
+      Object element) throws EvalException {
     if (element instanceof BaseFunction) {
-      return new SkylarkTransformation((BaseFunction) element, SkylarkDict.empty(), env);
+      return new SkylarkTransformation((BaseFunction) element, SkylarkDict.empty(), env, profiler,
+          fileParallelizer);
     }
     SkylarkType.checkType(element, Transformation.class, "'" + description + "' element");
     return (Transformation) element;
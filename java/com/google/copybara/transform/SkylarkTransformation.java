@@ -18,10 +18,13 @@ package com.google.copybara.transform;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.copybara.LocalParallelizer;
 import com.google.copybara.NonReversibleValidationException;
+import com.google.copybara.SkylarkTransformRuntime;
 import com.google.copybara.TransformWork;
 import com.google.copybara.Transformation;
 import com.google.copybara.exception.ValidationException;
+import com.google.copybara.profiler.Profiler;
 import com.google.devtools.build.lib.syntax.BaseFunction;
 import com.google.devtools.build.lib.syntax.Environment;
 import com.google.devtools.build.lib.syntax.EvalException;
@@ -29,6 +32,7 @@ import com.google.devtools.build.lib.syntax.Runtime.NoneType;
 import com.google.devtools.build.lib.syntax.SkylarkDict;
 import java.io.IOException;
 import java.util.function.Supplier;
+import javax.annotation.Nullable;
 
 /**
  * A transformation that uses a Skylark function to transform the code.
@@ -38,12 +42,19 @@ public class SkylarkTransformation implements Transformation {
   private final BaseFunction function;
   private final SkylarkDict params;
   private final Supplier<Environment> dynamicEnv;
+  private final SkylarkTransformRuntime runtime;
 
+  /**
+   * Creates a transformation for {@code function}. {@code parallelizer} is used for the per-file
+   * functions that can run concurrently, if not null.
+   */
   public SkylarkTransformation(BaseFunction function, SkylarkDict params,
-      Supplier<Environment> dynamicEnv) {
+      Supplier<Environment> dynamicEnv, Profiler profiler,
+      @Nullable LocalParallelizer parallelizer) {
     this.function = Preconditions.checkNotNull(function);
     this.params = Preconditions.checkNotNull(params);
     this.dynamicEnv = Preconditions.checkNotNull(dynamicEnv);
+    this.runtime = new SkylarkTransformRuntime(profiler, parallelizer, dynamicEnv);
   }
 
   @Override
@@ -51,7 +62,8 @@ public class SkylarkTransformation implements Transformation {
       throws IOException, ValidationException {
     SkylarkConsole skylarkConsole = new SkylarkConsole(work.getConsole());
     TransformWork skylarkWork = work.withConsole(skylarkConsole)
-        .withParams(params);
+        .withParams(params)
+        .withRuntime(runtime);
     try {
       Object result = function.call(
           ImmutableList.of(skylarkWork),/*kwargs=*/null,/*ast*/null, dynamicEnv.get());
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.transform;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.io.ByteStreams;
+import com.google.copybara.exception.ValidationException;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Rewrites files line by line with a bounded amount of memory, for transformations that only
+ * work within a line.
+ *
+ * <p>Lines are split on '\n' exactly like {@code Splitter.on('\n')} does, so applying a line
+ * function with this class gives the same result as applying it to each element of the split
+ * content and joining them again.
+ */
+final class StreamingLineRewriter {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int BINARY_CHECK_SIZE = 8 * 1024;
+
+  private StreamingLineRewriter() {}
+
+  /**
+   * A function that transforms one line (without the '\n' terminator).
+   */
+  interface LineFunction {
+    String apply(String line) throws ValidationException;
+  }
+
+  /**
+   * Returns true if the first block of {@code file} contains a NUL byte. Doesn't decode the file.
+   */
+  static boolean looksBinary(Path file) throws IOException {
+    byte[] block = new byte[BINARY_CHECK_SIZE];
+    int read;
+    try (InputStream in = Files.newInputStream(file)) {
+      read = ByteStreams.read(in, block, 0, block.length);
+    }
+    for (int i = 0; i < read; i++) {
+      if (block[i] == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Applies {@code function} to every line of {@code file}, writing the result to a temporary file
+   * in {@code tmpDir}. If {@code modified} returns true once all the lines are processed, the
+   * temporary file atomically replaces {@code file}. Otherwise {@code file} is left untouched.
+   *
+   * <p>{@code tmpDir} should be outside the tree of {@code file}, so that the temporary files are
+   * not seen by anything that reads the tree, and in the same filesystem, so that the file can be
+   * replaced with a rename. See {@link com.google.copybara.TransformWork#getTmpDir()}.
+   *
+   * @return true if {@code file} was replaced
+   */
+  static boolean rewriteLines(Path file, Path tmpDir, LineFunction function,
+      BooleanSupplier modified) throws IOException, ValidationException {
+    Path tmp = Files.createTempFile(tmpDir, "rewrite-", ".tmp");
+    try {
+      try (Reader reader = new BufferedReader(
+              new InputStreamReader(Files.newInputStream(file), UTF_8), BUFFER_SIZE);
+          Writer writer = new BufferedWriter(
+              new OutputStreamWriter(Files.newOutputStream(tmp), UTF_8), BUFFER_SIZE)) {
+        char[] buffer = new char[BUFFER_SIZE];
+        StringBuilder line = new StringBuilder();
+        boolean first = true;
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+          int start = 0;
+          for (int i = 0; i < read; i++) {
+            if (buffer[i] == '\n') {
+              line.append(buffer, start, i - start);
+              writeLine(line, function, writer, first);
+              first = false;
+              line.setLength(0);
+              start = i + 1;
+            }
+          }
+          line.append(buffer, start, read - start);
+        }
+        // The last segment is always processed, even if empty, like Splitter does.
+        writeLine(line, function, writer, first);
+      }
+      if (!modified.getAsBoolean()) {
+        return false;
+      }
+      if (file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+        Files.setPosixFilePermissions(tmp, Files.getPosixFilePermissions(file));
+      }
+      try {
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        // Another filesystem. Still replaces the file at once, but copying the content.
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+      return true;
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  private static void writeLine(StringBuilder line, LineFunction function, Writer writer,
+      boolean first) throws IOException, ValidationException {
+    if (!first) {
+      writer.write('\n');
+    }
+    writer.write(function.apply(line.toString()));
+  }
+}
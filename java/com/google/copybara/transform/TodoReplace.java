@@ -26,12 +26,16 @@ import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
-import com.google.copybara.LocalParallelizer;
 import com.google.copybara.NonReversibleValidationException;
 import com.google.copybara.TransformWork;
 import com.google.copybara.Transformation;
+import com.google.copybara.WorkflowOptions;
 import com.google.copybara.exception.ValidationException;
+import com.google.copybara.profiler.Profiler;
+import com.google.copybara.treestate.FileOverlay;
+import com.google.copybara.treestate.NegativeMatchCache;
 import com.google.copybara.treestate.TreeState.FileState;
 import com.google.copybara.util.Glob;
 import com.google.copybara.util.console.Console;
@@ -60,7 +64,10 @@ public class TodoReplace implements Transformation {
   private Location location;
   private Glob glob;
   private ImmutableList<String> todoTags;
-  private final LocalParallelizer parallelizer;
+  private final WorkflowOptions workflowOptions;
+  private final Profiler profiler;
+  @Nullable
+  private final LiteralPrefilter prefilter;
   private Mode mode;
   private ImmutableMap<String, String> mapping;
   @Nullable
@@ -68,11 +75,13 @@ public class TodoReplace implements Transformation {
 
   public TodoReplace(Location location, Glob glob, ImmutableList<String> todoTags,
       Mode mode,
-      Map<String, String> mapping, @Nullable String defaultString, LocalParallelizer parallelizer) {
+      Map<String, String> mapping, @Nullable String defaultString,
+      WorkflowOptions workflowOptions, Profiler profiler) {
     this.location = Preconditions.checkNotNull(location);
     this.glob = Preconditions.checkNotNull(glob);
     this.todoTags = Preconditions.checkNotNull(todoTags);
-    this.parallelizer = parallelizer;
+    this.workflowOptions = Preconditions.checkNotNull(workflowOptions);
+    this.profiler = Preconditions.checkNotNull(profiler);
     Preconditions.checkArgument(!todoTags.isEmpty());
     this.mode = Preconditions.checkNotNull(mode);
     this.mapping = Preconditions.checkNotNull(ImmutableMap.copyOf(mapping));
@@ -81,6 +90,8 @@ public class TodoReplace implements Transformation {
       Preconditions.checkNotNull(defaultString);
     }
     pattern = createPattern(todoTags);
+    // Every match starts with one of the tags.
+    prefilter = LiteralPrefilter.create(ImmutableSet.copyOf(todoTags));
   }
 
   private Pattern createPattern(ImmutableList<String> todoTags) {
@@ -91,51 +102,109 @@ public class TodoReplace implements Transformation {
 
   @Override
   public void transform(TransformWork work) throws IOException, ValidationException {
+    long start = System.nanoTime();
+    TransformStats stats = new TransformStats();
+    Path tmpDir = work.getTmpDir();
     work.getTreeState().notifyModify(
         Iterables.concat(
-            parallelizer.run(
-                work.getTreeState().find(glob.relativeTo(work.getCheckoutDir())),
-                files -> run(files, work.getConsole()))));
+            workflowOptions.parallelizer().run(
+                work.getTreeState().find(glob),
+                FileState::getSize,
+                files -> run(files, work.getConsole(), work.getOverlay(), tmpDir, stats),
+                profiler)));
+    stats.report(profiler, describe(), System.nanoTime() - start);
   }
 
-  private Set<FileState> run(Iterable<FileState> files, Console console) throws IOException, ValidationException {
+  private Set<FileState> run(Iterable<FileState> files, Console console, FileOverlay overlay,
+      Path tmpDir, TransformStats stats) throws IOException, ValidationException {
+    long cpuStart = TransformStats.currentThreadCpuTime();
     Set<FileState> modifiedFiles = new HashSet<>();
-    // TODO(malcon): Remove reconstructing pattern once RE2J doesn't synchronize on matching.
-    Pattern batchPattern = Pattern.compile(pattern.pattern(), pattern.flags());
+    Pattern batchPattern = PatternPool.get(pattern, stats);
+    NegativeMatchCache negativeMatchCache = workflowOptions.negativeMatchCache();
+    // Only files without any TODO are cached, so the key doesn't depend on the mapping.
+    String matcherKey = "core.todo_replace " + pattern.pattern();
     for (FileState file : files) {
-      if (Files.isSymbolicLink(file.getPath())) {
+      stats.fileConsidered();
+      if (Files.isSymbolicLink(file.getPath())
+          || negativeMatchCache.isKnownNoMatch(matcherKey, file, /*content=*/null)) {
         continue;
       }
-      String content = new String(Files.readAllBytes(file.getPath()), UTF_8);
-      Matcher matcher = batchPattern.matcher(content);
-      StringBuffer sb = new StringBuffer();
-      boolean modified = false;
-      while (matcher.find()) {
-        List<String> users = Splitter.on(",").splitToList(matcher.group(2));
-        List<String> mappedUsers = mapUsers(users, matcher.group(0), file.getPath(), console);
-        modified |= !users.equals(mappedUsers);
-        String result = matcher.group(1);
-        if (!mappedUsers.isEmpty()) {
-          result += "(" + Joiner.on(",").join(mappedUsers) + ")";
+      ReplaceResult result = new ReplaceResult();
+      // TODOs cannot span multiple lines, so big files can be processed line by line.
+      if (!overlay.isDirty(file.getPath())
+          && file.getSize() >= workflowOptions.streamingReplaceMinSize) {
+        if (!StreamingLineRewriter.looksBinary(file.getPath())) {
+          stats.fileRead(file.getSize());
+          if (StreamingLineRewriter.rewriteLines(file.getPath(), tmpDir,
+              line -> replaceTodos(line, batchPattern, file.getPath(), console, result),
+              () -> result.modified)) {
+            modifiedFiles.add(file);
+            stats.fileWritten(Files.size(file.getPath()));
+          }
+          stats.addMatches(result.matches);
         }
-        matcher.appendReplacement(sb, result);
+        continue;
+      }
+      byte[] bytes = overlay.read(file.getPath());
+      stats.fileRead(bytes.length);
+      if (prefilter != null && !prefilter.mayMatch(bytes)[0]) {
+        stats.filePrefiltered();
+        continue;
       }
-      matcher.appendTail(sb);
+      if (negativeMatchCache.isKnownNoMatch(matcherKey, file, bytes)) {
+        continue;
+      }
+      String content = replaceTodos(
+          new String(bytes, UTF_8), batchPattern, file.getPath(), console, result);
 
-      if (modified) {
+      stats.addMatches(result.matches);
+      if (!result.found) {
+        negativeMatchCache.recordNoMatch(matcherKey, file, bytes);
+      }
+      if (result.modified) {
         modifiedFiles.add(file);
-        Files.write(file.getPath(), sb.toString().getBytes(UTF_8));
+        byte[] newBytes = content.getBytes(UTF_8);
+        overlay.write(file.getPath(), newBytes);
+        stats.fileWritten(newBytes.length);
       }
     }
+    stats.addCpuTimeSince(cpuStart);
     return modifiedFiles;
   }
 
+  private String replaceTodos(String content, Pattern batchPattern, Path path, Console console,
+      ReplaceResult replaceResult) throws ValidationException {
+    Matcher matcher = batchPattern.matcher(content);
+    StringBuffer sb = new StringBuffer();
+    while (matcher.find()) {
+      replaceResult.found = true;
+      replaceResult.matches++;
+      List<String> users = Splitter.on(",").splitToList(matcher.group(2));
+      List<String> mappedUsers = mapUsers(users, matcher.group(0), path, console);
+      replaceResult.modified |= !users.equals(mappedUsers);
+      String result = matcher.group(1);
+      if (!mappedUsers.isEmpty()) {
+        result += "(" + Joiner.on(",").join(mappedUsers) + ")";
+      }
+      matcher.appendReplacement(sb, result);
+    }
+    matcher.appendTail(sb);
+    return sb.toString();
+  }
+
+  /** Accumulates what happened while replacing the TODOs of one file. */
+  private static final class ReplaceResult {
+    private boolean found;
+    private boolean modified;
+    private long matches;
+  }
+
   private List<String> mapUsers(List<String> users, String rawText, Path path, Console console)
       throws ValidationException {
     Set<String> alreadyAdded = new HashSet<>();
     List<String> result = new ArrayList<>();
     for (String rawUser : users) {
-      Matcher matcher = SINGLE_USER_PATTERN.matcher(rawUser);
+      Matcher matcher = PatternPool.get(SINGLE_USER_PATTERN, /*stats=*/null).matcher(rawUser);
       // Throw VE if the pattern doesn't match and mode is MAP_OR_FAIL
       if (!matcher.matches()) {
         if (mode == Mode.MAP_OR_FAIL) {
@@ -192,7 +261,7 @@ public class TodoReplace implements Transformation {
     }
 
     return new TodoReplace(location, glob, todoTags, mode, mapping.inverse(), defaultString,
-                           parallelizer);
+                           workflowOptions, profiler);
   }
 
   @Override
@@ -200,6 +269,16 @@ public class TodoReplace implements Transformation {
     return "Replacing " + todoTags;
   }
 
+  @Override
+  public Glob getAffectedPaths() {
+    return glob;
+  }
+
+  @Override
+  public boolean supportsOverlay() {
+    return true;
+  }
+
   /**
    * How to transforms TODOs in code.
    */
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.transform;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.copybara.profiler.Profiler;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * I/O and match statistics of one run of a transformation. Safe to update from several threads.
+ *
+ * <p>The statistics are reported as a profiler task of type {@link #TYPE}, with one field per
+ * statistic, so that listeners like {@link TransformStatsListener} can aggregate them.
+ */
+public final class TransformStats {
+
+  static final String TYPE = "transform_stats";
+  static final String TRANSFORMATION = "transformation";
+
+  static final String FILES_CONSIDERED = "files_considered";
+  static final String FILES_READ = "files_read";
+  static final String FILES_PREFILTERED = "files_prefiltered";
+  static final String BYTES_READ = "bytes_read";
+  static final String BYTES_WRITTEN = "bytes_written";
+  static final String MATCHES = "matches";
+  static final String FILES_MODIFIED = "files_modified";
+  static final String DIRS_RENAMED = "dirs_renamed";
+  static final String CPU_NANOS = "cpu_nanos";
+  static final String PATTERNS_COMPILED = "patterns_compiled";
+  static final String PATTERNS_REUSED = "patterns_reused";
+  static final String PATTERN_COMPILE_NANOS = "pattern_compile_nanos";
+  static final String CACHE_HITS = "cache_hits";
+  static final String CACHE_MISSES = "cache_misses";
+  static final String CACHE_NANOS = "cache_nanos";
+
+  /** The numeric fields, in the order they are reported. */
+  static final ImmutableList<String> COUNTERS = ImmutableList.of(FILES_CONSIDERED, FILES_READ,
+      FILES_PREFILTERED, BYTES_READ, BYTES_WRITTEN, MATCHES, FILES_MODIFIED, DIRS_RENAMED,
+      CPU_NANOS, PATTERNS_COMPILED, PATTERNS_REUSED, PATTERN_COMPILE_NANOS, CACHE_HITS,
+      CACHE_MISSES, CACHE_NANOS);
+
+  private static final ThreadMXBean threadMxBean = ManagementFactory.getThreadMXBean();
+
+  private final LongAdder filesConsidered = new LongAdder();
+  private final LongAdder filesRead = new LongAdder();
+  private final LongAdder filesPrefiltered = new LongAdder();
+  private final LongAdder bytesRead = new LongAdder();
+  private final LongAdder bytesWritten = new LongAdder();
+  private final LongAdder matches = new LongAdder();
+  private final LongAdder filesModified = new LongAdder();
+  private final LongAdder dirsRenamed = new LongAdder();
+  private final LongAdder cpuNanos = new LongAdder();
+  private final LongAdder patternsCompiled = new LongAdder();
+  private final LongAdder patternsReused = new LongAdder();
+  private final LongAdder patternCompileNanos = new LongAdder();
+  private final LongAdder cacheHits = new LongAdder();
+  private final LongAdder cacheMisses = new LongAdder();
+  private final LongAdder cacheNanos = new LongAdder();
+
+  /** Records that a file was considered (matched by the paths of the transformation). */
+  void fileConsidered() {
+    filesConsidered.increment();
+  }
+
+  void fileRead(long bytes) {
+    filesRead.increment();
+    bytesRead.add(bytes);
+  }
+
+  /**
+   * Records that a file was discarded without decoding it because it doesn't have the literals
+   * required by the patterns. See {@link LiteralPrefilter}.
+   */
+  void filePrefiltered() {
+    filesPrefiltered.increment();
+  }
+
+  /** Records that a file was modified, writing {@code bytes} bytes. */
+  void fileWritten(long bytes) {
+    filesModified.increment();
+    bytesWritten.add(bytes);
+  }
+
+  /**
+   * Records {@code bytes} bytes written to files that are counted as modified separately, like the
+   * files written once by several joined transformations.
+   */
+  void bytesWritten(long bytes) {
+    bytesWritten.add(bytes);
+  }
+
+  /** Records {@code count} files modified without writing their content, like moved files. */
+  void filesModified(long count) {
+    filesModified.add(count);
+  }
+
+  /**
+   * Records that a whole directory was moved with a single rename. The files inside are not
+   * counted in {@link #FILES_MODIFIED}.
+   */
+  void dirRenamed() {
+    dirsRenamed.increment();
+  }
+
+  void addMatches(long count) {
+    matches.add(count);
+  }
+
+  /** Records that a pattern had to be compiled for the current thread. See {@link PatternPool}. */
+  void patternCompiled(long elapsedNanos) {
+    patternsCompiled.increment();
+    patternCompileNanos.add(elapsedNanos);
+  }
+
+  /** Records that a pattern already compiled for the current thread was reused. */
+  void patternReused() {
+    patternsReused.increment();
+  }
+
+  /** Records that the result for a file was found in the {@code TransformCache}. */
+  void cacheHit() {
+    cacheHits.increment();
+  }
+
+  void cacheMiss() {
+    cacheMisses.increment();
+  }
+
+  /** Adds time spent reading from or writing to the {@code TransformCache}. */
+  void addCacheTime(long elapsedNanos) {
+    cacheNanos.add(elapsedNanos);
+  }
+
+  /**
+   * Returns the CPU time used by the current thread, to be passed later to
+   * {@link #addCpuTimeSince(long)} from the same thread. Returns -1 if not supported.
+   */
+  static long currentThreadCpuTime() {
+    return threadMxBean.isCurrentThreadCpuTimeSupported()
+        ? threadMxBean.getCurrentThreadCpuTime()
+        : -1;
+  }
+
+  /** Adds the CPU time used by the current thread since {@code start}. */
+  void addCpuTimeSince(long start) {
+    if (start != -1) {
+      cpuNanos.add(currentThreadCpuTime() - start);
+    }
+  }
+
+  ImmutableMap<String, String> toFields(String transformation) {
+    return ImmutableMap.<String, String>builder()
+        .put(Profiler.TYPE, TYPE)
+        .put(TRANSFORMATION, transformation)
+        .put(FILES_CONSIDERED, filesConsidered.toString())
+        .put(FILES_READ, filesRead.toString())
+        .put(FILES_PREFILTERED, filesPrefiltered.toString())
+        .put(BYTES_READ, bytesRead.toString())
+        .put(BYTES_WRITTEN, bytesWritten.toString())
+        .put(MATCHES, matches.toString())
+        .put(FILES_MODIFIED, filesModified.toString())
+        .put(DIRS_RENAMED, dirsRenamed.toString())
+        .put(CPU_NANOS, cpuNanos.toString())
+        .put(PATTERNS_COMPILED, patternsCompiled.toString())
+        .put(PATTERNS_REUSED, patternsReused.toString())
+        .put(PATTERN_COMPILE_NANOS, patternCompileNanos.toString())
+        .put(CACHE_HITS, cacheHits.toString())
+        .put(CACHE_MISSES, cacheMisses.toString())
+        .put(CACHE_NANOS, cacheNanos.toString())
+        .build();
+  }
+
+  /**
+   * Reports the statistics as a profiler task for {@code transformation} that took
+   * {@code elapsedNanos}. The task is named after the transformation, since some listeners only
+   * show the description.
+   */
+  void report(Profiler profiler, String transformation, long elapsedNanos) {
+    profiler.simpleTask(transformation.replace('/', ' ') + " stats", toFields(transformation),
+        elapsedNanos);
+  }
+}
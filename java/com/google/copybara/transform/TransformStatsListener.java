@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.transform;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.flogger.FluentLogger;
+import com.google.copybara.monitor.EventMonitor;
+import com.google.copybara.monitor.EventMonitor.TransformStatsEvent;
+import com.google.copybara.profiler.Listener;
+import com.google.copybara.profiler.Profiler;
+import com.google.copybara.profiler.Task;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
+
+/**
+ * A profiler listener that sends the {@link TransformStats} of each transformation run to the
+ * {@link EventMonitor}. If an output file is set, it also aggregates them per transformation and
+ * writes them as a JSON report when the profiler is stopped.
+ *
+ * <p>The report contains one entry per transformation description, sorted by elapsed time, with
+ * the number of runs, the elapsed time and the sum of each statistic across all the runs (for
+ * example, across all the changes of an ITERATIVE migration).
+ */
+public class TransformStatsListener implements Listener {
+
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private final Supplier<EventMonitor> eventMonitor;
+  @Nullable
+  private final Path output;
+  private final Map<String, Map<String, Long>> stats = new LinkedHashMap<>();
+
+  /**
+   * Creates a listener that sends the stats to the monitor returned by {@code eventMonitor} at
+   * the time they are reported, and writes the report to {@code output} if it is not null.
+   */
+  public TransformStatsListener(Supplier<EventMonitor> eventMonitor, @Nullable Path output) {
+    this.eventMonitor = Preconditions.checkNotNull(eventMonitor);
+    this.output = output;
+  }
+
+  public TransformStatsListener(Path output) {
+    this(() -> EventMonitor.EMPTY_MONITOR, Preconditions.checkNotNull(output));
+  }
+
+  @Override
+  public void taskStarted(Task task) {
+    // Ignored. Stats are reported when the task finishes.
+  }
+
+  @Override
+  public void taskFinished(Task task) {
+    ImmutableMap<String, String> fields = task.getFields();
+    if (TransformStats.TYPE.equals(fields.get(Profiler.TYPE))) {
+      ImmutableMap.Builder<String, Long> counters = ImmutableMap.builder();
+      for (String counter : TransformStats.COUNTERS) {
+        counters.put(counter, Long.parseLong(fields.get(counter)));
+      }
+      TransformStatsEvent event = new TransformStatsEvent(
+          fields.get(TransformStats.TRANSFORMATION), task.elapsedNanos(), counters.build());
+      eventMonitor.get().onTransformStats(event);
+      if (output != null) {
+        aggregate(event);
+      }
+    } else if (output != null && task.getDescription().equals(Profiler.ROOT_NAME)) {
+      try {
+        writeReport();
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log("Cannot write transformation stats to %s", output);
+      }
+    }
+  }
+
+  private synchronized void aggregate(TransformStatsEvent event) {
+    Map<String, Long> entry =
+        stats.computeIfAbsent(event.getTransformation(), k -> new LinkedHashMap<>());
+    entry.merge("runs", 1L, Long::sum);
+    entry.merge("elapsed_nanos", event.getElapsedNanos(), Long::sum);
+    event.getCounters().forEach((counter, value) -> entry.merge(counter, value, Long::sum));
+  }
+
+  /** Writes the statistics aggregated so far to the output file. */
+  public synchronized void writeReport() throws IOException {
+    Preconditions.checkState(output != null, "No output file for the report");
+    List<Map<String, Object>> transformations = new ArrayList<>();
+    for (Map.Entry<String, Map<String, Long>> entry : stats.entrySet()) {
+      Map<String, Object> json = new LinkedHashMap<>();
+      json.put(TransformStats.TRANSFORMATION, entry.getKey());
+      json.putAll(entry.getValue());
+      transformations.add(json);
+    }
+    transformations.sort(
+        Comparator.comparing((Map<String, Object> t) -> (Long) t.get("elapsed_nanos")).reversed());
+    Map<String, Object> report = ImmutableMap.of("transformations", transformations);
+    Files.createDirectories(output.toAbsolutePath().getParent());
+    Files.write(output, GsonFactory.getDefaultInstance().toPrettyString(report).getBytes(UTF_8));
+  }
+}
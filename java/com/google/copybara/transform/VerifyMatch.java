@@ -21,11 +21,16 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Iterables;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
 import com.google.copybara.LocalParallelizer;
 import com.google.copybara.LocalParallelizer.TransformFunc;
 import com.google.copybara.TransformWork;
 import com.google.copybara.Transformation;
 import com.google.copybara.exception.ValidationException;
+import com.google.copybara.profiler.Profiler;
+import com.google.copybara.treestate.FileOverlay;
+import com.google.copybara.treestate.NegativeMatchCache;
 import com.google.copybara.treestate.TreeState.FileState;
 import com.google.copybara.util.Glob;
 import com.google.devtools.build.lib.events.Location;
@@ -33,10 +38,11 @@ import com.google.devtools.build.lib.syntax.EvalException;
 import com.google.re2j.Pattern;
 import com.google.re2j.PatternSyntaxException;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
 
 /**
  * A source code pseudo-transformation which verifies that all specified files satisfy a RegEx.
@@ -44,17 +50,44 @@ import java.util.List;
  */
 public final class VerifyMatch implements Transformation {
 
+  /**
+   * Files are searched in windows of about this size, so that the search stops at the first
+   * match and doesn't need the whole content in memory. See {@link WindowedSearch}.
+   */
+  private static final int WINDOW_SIZE = 1024 * 1024;
+  /**
+   * Files of at least this size that are not modified in the overlay are scanned for the required
+   * literals in memory-mapped windows, when the pattern cannot be searched in windows.
+   */
+  private static final long MAPPED_MIN_SIZE = 1024 * 1024;
+  private static final int MAPPED_WINDOW_SIZE = 16 * 1024 * 1024;
+
   private final Pattern pattern;
   private final boolean verifyNoMatch;
   private final Glob fileMatcherBuilder;
   private final LocalParallelizer parallelizer;
+  private final NegativeMatchCache negativeMatchCache;
+  private final Profiler profiler;
+  @Nullable
+  private final LiteralPrefilter prefilter;
+  @Nullable
+  private final WindowedSearch windowedSearch;
+  private final boolean failFast;
 
   private VerifyMatch(Pattern pattern, boolean verifyNoMatch, Glob fileMatcherBuilder,
-      LocalParallelizer parallelizer) {
+      LocalParallelizer parallelizer, NegativeMatchCache negativeMatchCache, Profiler profiler,
+      boolean failFast) {
     this.pattern = Preconditions.checkNotNull(pattern);
     this.verifyNoMatch = verifyNoMatch;
     this.fileMatcherBuilder = Preconditions.checkNotNull(fileMatcherBuilder);
     this.parallelizer = parallelizer;
+    this.negativeMatchCache = Preconditions.checkNotNull(negativeMatchCache);
+    this.profiler = Preconditions.checkNotNull(profiler);
+    this.prefilter = LiteralPrefilter.create(RegexLiterals.requiredLiterals(pattern));
+    this.windowedSearch = WindowedSearch.supports(pattern)
+        ? new WindowedSearch(pattern, prefilter, WINDOW_SIZE)
+        : null;
+    this.failFast = failFast;
   }
 
   @Override
@@ -69,12 +102,18 @@ public final class VerifyMatch implements Transformation {
   @Override
   public void transform(TransformWork work)
       throws IOException, ValidationException {
-    Path checkoutDir = work.getCheckoutDir();
-    Iterable<FileState> files = work.getTreeState().find(
-        fileMatcherBuilder.relativeTo(checkoutDir));
+    long start = System.nanoTime();
+    Iterable<FileState> files = work.getTreeState().find(fileMatcherBuilder);
 
+    TransformStats stats = new TransformStats();
+    // With fail fast, the first failure makes the batches that are still running stop, and the
+    // ones that didn't start are cancelled.
+    AtomicBoolean failed = new AtomicBoolean();
     Iterable<String> errors = Iterables.concat(
-        parallelizer.run(files, new BatchRun(work.getCheckoutDir())));
+        parallelizer.run(files, FileState::getSize,
+            new BatchRun(work.getCheckoutDir(), work.getOverlay(), stats, failed),
+            profiler, batchErrors -> failFast && !batchErrors.isEmpty()));
+    stats.report(profiler, describe(), System.nanoTime() - start);
 
     int size = 0;
     for (String error : errors) {
@@ -86,31 +125,109 @@ public final class VerifyMatch implements Transformation {
 
     ValidationException.checkCondition(
         size == 0,
-        "%d file(s) failed the validation of %s.", size, describe());
+        "%d file(s) failed the validation of %s%s.", size, describe(),
+        failFast ? " (stopped at the first failure)" : "");
   }
 
   private class BatchRun implements TransformFunc<FileState, List<String>> {
 
-    private Path checkoutDir;
+    private final Path checkoutDir;
+    private final FileOverlay overlay;
+    private final TransformStats stats;
+    private final AtomicBoolean failed;
 
-    private BatchRun(Path checkoutDir) {
+    private BatchRun(Path checkoutDir, FileOverlay overlay, TransformStats stats,
+        AtomicBoolean failed) {
       this.checkoutDir = Preconditions.checkNotNull(checkoutDir);
+      this.overlay = Preconditions.checkNotNull(overlay);
+      this.stats = Preconditions.checkNotNull(stats);
+      this.failed = Preconditions.checkNotNull(failed);
     }
 
     @Override
     public List<String> run(Iterable<FileState> files)
         throws IOException, ValidationException {
+      long cpuStart = TransformStats.currentThreadCpuTime();
       List<String> errors = new ArrayList<>();
-      // TODO(malcon): Remove reconstructing pattern once RE2J doesn't synchronize on matching.
-      Pattern batchPattern = Pattern.compile(pattern.pattern(), pattern.flags());
+      Pattern batchPattern = PatternPool.get(pattern, stats);
+      String matcherKey = "core.verify_match " + pattern.flags() + " " + pattern.pattern();
       for (FileState file : files) {
-        String originalFileContent = new String(Files.readAllBytes(file.getPath()), UTF_8);
-        if (verifyNoMatch == batchPattern.matcher(originalFileContent).find()) {
+        if (failFast && failed.get()) {
+          // Another batch already failed
+          break;
+        }
+        stats.fileConsidered();
+        if (verifyNoMatch == matches(batchPattern, matcherKey, file)) {
           errors.add(checkoutDir.relativize(file.getPath()).toString());
+          failed.set(true);
         }
       }
+      stats.addCpuTimeSince(cpuStart);
       return errors;
     }
+
+    private boolean matches(Pattern batchPattern, String matcherKey, FileState file)
+        throws IOException {
+      if (negativeMatchCache.isKnownNoMatch(matcherKey, file, /*content=*/null)) {
+        return false;
+      }
+      if (windowedSearch != null) {
+        return findInWindows(matcherKey, file);
+      }
+      // Most files of big trees don't have the literals, so we can discard them without reading
+      // them completely. Otherwise we need the whole content to run the regex.
+      if (prefilter != null && !overlay.isDirty(file.getPath())
+          && file.getSize() >= MAPPED_MIN_SIZE
+          && !prefilter.mayMatch(file.getPath(), MAPPED_WINDOW_SIZE)[0]) {
+        stats.fileRead(file.getSize());
+        stats.filePrefiltered();
+        return false;
+      }
+      byte[] bytes = overlay.read(file.getPath());
+      stats.fileRead(bytes.length);
+      if (prefilter != null && !prefilter.mayMatch(bytes)[0]) {
+        stats.filePrefiltered();
+        return false;
+      }
+      if (negativeMatchCache.isKnownNoMatch(matcherKey, file, bytes)) {
+        return false;
+      }
+      if (batchPattern.matcher(new String(bytes, UTF_8)).find()) {
+        stats.addMatches(1);
+        return true;
+      }
+      negativeMatchCache.recordNoMatch(matcherKey, file, bytes);
+      return false;
+    }
+
+    /**
+     * Searches the file window by window, so that it stops at the first match and never holds
+     * more than a window of the decoded content.
+     */
+    private boolean findInWindows(String matcherKey, FileState file) throws IOException {
+      byte[] dirty = overlay.isDirty(file.getPath()) ? overlay.read(file.getPath()) : null;
+      if (dirty != null && negativeMatchCache.isKnownNoMatch(matcherKey, file, dirty)) {
+        return false;
+      }
+      // Without a match all the content is read, so we hash it on the way
+      Hasher hasher = negativeMatchCache.isEnabled() && file.getCachedContentHash() == null
+          ? FileState.newContentHasher()
+          : null;
+      boolean found = dirty != null
+          ? windowedSearch.find(dirty, stats, hasher)
+          : windowedSearch.find(file.getPath(), stats, hasher);
+      if (found) {
+        stats.addMatches(1);
+        return true;
+      }
+      HashCode contentHash = hasher != null
+          ? file.hashContent(hasher)
+          : file.getCachedContentHash();
+      if (contentHash != null) {
+        negativeMatchCache.recordNoMatch(matcherKey, contentHash);
+      }
+      return false;
+    }
   }
 
   @Override
@@ -118,19 +235,32 @@ public final class VerifyMatch implements Transformation {
     return String.format("Verify match '%s'", pattern);
   }
 
+  @Override
+  public Glob getAffectedPaths() {
+    return fileMatcherBuilder;
+  }
+
+  @Override
+  public boolean supportsOverlay() {
+    return true;
+  }
+
   @Override
   public Transformation reverse() {
     return new ExplicitReversal(IntentionalNoop.INSTANCE, this);
   }
 
   public static VerifyMatch create(Location location, String regEx, Glob paths,
-      boolean verifyNoMatch, LocalParallelizer parallelizer) throws EvalException {
+      boolean verifyNoMatch, LocalParallelizer parallelizer,
+      NegativeMatchCache negativeMatchCache, Profiler profiler, boolean failFast)
+      throws EvalException {
     Pattern parsed;
     try {
       parsed = Pattern.compile(regEx, Pattern.MULTILINE);
     } catch (PatternSyntaxException e) {
       throw new EvalException(location, String.format("Regex '%s' is invalid.", regEx), e);
     }
-    return new VerifyMatch(parsed, verifyNoMatch, paths, parallelizer);
+    return new VerifyMatch(parsed, verifyNoMatch, paths, parallelizer, negativeMatchCache,
+        profiler, failFast);
   }
 }
\ No newline at end of file
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.transform;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hasher;
+import com.google.re2j.Matcher;
+import com.google.re2j.Pattern;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import javax.annotation.Nullable;
+
+/**
+ * Searches a regex in a content without decoding it completely: the content is split in windows
+ * of whole lines, that are decoded and searched one by one until the first match. Files are
+ * memory-mapped if the file system supports it.
+ *
+ * <p>Only valid for patterns that cannot match a line break (see {@link #supports}), so that the
+ * lines that end a window are the overlap that a match needs: any match is inside one window.
+ * Windows grow over {@code windowSize} when a line doesn't fit in them. Safe to use from several
+ * threads.
+ */
+final class WindowedSearch {
+
+  private final Pattern pattern;
+  @Nullable
+  private final LiteralPrefilter prefilter;
+  private final int windowSize;
+
+  WindowedSearch(Pattern pattern, @Nullable LiteralPrefilter prefilter, int windowSize) {
+    Preconditions.checkArgument(supports(pattern), "Pattern can match a line break: %s", pattern);
+    Preconditions.checkArgument(windowSize > 0, "Window size needs to be positive");
+    this.pattern = pattern;
+    this.prefilter = prefilter;
+    this.windowSize = windowSize;
+  }
+
+  /**
+   * Returns true if matches of {@code pattern} never contain a line break, and it gives the same
+   * matches in a window that starts after a line break as in the whole content.
+   *
+   * <p>Conservative: escapes that might match a line break (like {@code \s}) or that we don't
+   * know, negated classes, flag groups and {@code \A}/{@code \z} make it return false.
+   */
+  static boolean supports(Pattern pattern) {
+    if ((pattern.flags() & Pattern.MULTILINE) == 0 || (pattern.flags() & Pattern.DOTALL) != 0) {
+      return false;
+    }
+    String regex = pattern.pattern();
+    boolean inClass = false;
+    int i = 0;
+    while (i < regex.length()) {
+      char c = regex.charAt(i);
+      if (c == '\\') {
+        if (i + 1 >= regex.length()) {
+          return false;
+        }
+        char escaped = regex.charAt(i + 1);
+        // Inside classes, escaped characters can be the start of a range that covers '\n'.
+        if (Character.isLetterOrDigit(escaped)
+            && (inClass ? "dw" : "dwbBtfr").indexOf(escaped) == -1) {
+          return false;
+        }
+        i += 2;
+        continue;
+      }
+      if (c == '\n' || (inClass && c < ' ')) {
+        return false;
+      }
+      if (inClass) {
+        if (regex.startsWith("[:", i)) {
+          return false;
+        }
+        if (c == ']') {
+          inClass = false;
+        }
+      } else if (c == '[') {
+        if (regex.startsWith("[^", i)) {
+          return false;
+        }
+        inClass = true;
+        // A ']' at the beginning of the class is a literal.
+        if (regex.startsWith("[]", i)) {
+          i++;
+        }
+      } else if (c == '(' && regex.startsWith("(?", i)
+          && !regex.startsWith("(?:", i) && !regex.startsWith("(?P<", i)) {
+        return false;
+      }
+      i++;
+    }
+    return !inClass;
+  }
+
+  /**
+   * Returns true if the pattern matches the content of {@code file}. Reading stops at the first
+   * match.
+   *
+   * @param stats receives the bytes read
+   * @param hasher if not null, receives the bytes read
+   */
+  boolean find(Path file, TransformStats stats, @Nullable Hasher hasher) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      return find(new FileContent(channel), stats, hasher);
+    }
+  }
+
+  /** Like {@link #find(Path, TransformStats, Hasher)} but for content already in memory. */
+  boolean find(byte[] content, TransformStats stats, @Nullable Hasher hasher) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(content);
+    return find(new Content() {
+      @Override
+      public long size() {
+        return content.length;
+      }
+
+      @Override
+      public ByteBuffer window(long position, int length) {
+        buffer.limit((int) position + length).position((int) position);
+        return buffer.slice();
+      }
+    }, stats, hasher);
+  }
+
+  private boolean find(Content content, TransformStats stats, @Nullable Hasher hasher)
+      throws IOException {
+    CharsetDecoder decoder = UTF_8.newDecoder()
+        // Same as new String(bytes, UTF_8)
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    long size = content.size();
+    long position = 0;
+    try {
+      while (position < size) {
+        ByteBuffer window;
+        int end;
+        long length = Math.min(windowSize, size - position);
+        while (true) {
+          window = content.window(position, (int) length);
+          boolean last = position + length == size;
+          end = last ? (int) length : lineEnd(window);
+          if (end > 0 || length >= Integer.MAX_VALUE / 2) {
+            // A line of more than 1GB is cut, and a match that spans the cut is not found.
+            end = end > 0 ? end : (int) length;
+            break;
+          }
+          length = Math.min(length * 2, size - position);
+        }
+        window.limit(end);
+        if (hasher != null) {
+          hasher.putBytes(window.duplicate());
+        }
+        position += end;
+        if ((prefilter == null || prefilter.mayMatch(window.duplicate())[0])
+            && find(decoder, window, /*last=*/position == size)) {
+          return true;
+        }
+      }
+      return false;
+    } finally {
+      stats.fileRead(position);
+    }
+  }
+
+  private boolean find(CharsetDecoder decoder, ByteBuffer window, boolean last)
+      throws IOException {
+    CharBuffer chars = decoder.reset().decode(window);
+    Matcher matcher = pattern.matcher(chars);
+    // '$' and '\B' match an empty string at the end of the window, but in the whole content
+    // that position is the start of the next line, that is searched in the next window.
+    return matcher.find() && (last || matcher.start() < chars.length());
+  }
+
+  /** Returns the position after the last line break of {@code window}, or 0 if there is none. */
+  private static int lineEnd(ByteBuffer window) {
+    for (int i = window.limit() - 1; i >= window.position(); i--) {
+      if (window.get(i) == '\n') {
+        return i + 1 - window.position();
+      }
+    }
+    return 0;
+  }
+
+  private interface Content {
+
+    long size() throws IOException;
+
+    /** Returns a buffer with {@code length} bytes that starts at {@code position}. */
+    ByteBuffer window(long position, int length) throws IOException;
+  }
+
+  private static class FileContent implements Content {
+
+    private final FileChannel channel;
+    /** Non-null when the file system doesn't support mapping files. */
+    @Nullable
+    private ByteBuffer readBuffer;
+
+    private FileContent(FileChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public long size() throws IOException {
+      return channel.size();
+    }
+
+    @Override
+    public ByteBuffer window(long position, int length) throws IOException {
+      if (readBuffer == null) {
+        try {
+          return channel.map(MapMode.READ_ONLY, position, length);
+        } catch (UnsupportedOperationException e) {
+          // For example, in-memory file systems.
+          readBuffer = ByteBuffer.allocate(length);
+        }
+      }
+      if (readBuffer.capacity() < length) {
+        readBuffer = ByteBuffer.allocate(length);
+      }
+      readBuffer.clear();
+      readBuffer.limit(length);
+      while (readBuffer.hasRemaining()) {
+        if (channel.read(readBuffer, position + readBuffer.position()) == -1) {
+          break;
+        }
+      }
+      readBuffer.flip();
+      return readBuffer;
+    }
+  }
+}
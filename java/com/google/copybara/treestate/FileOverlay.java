@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.treestate;
+
+import com.google.common.base.Preconditions;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.Striped;
+import com.google.copybara.util.FileUtil;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.locks.Lock;
+import javax.annotation.Nullable;
+
+/**
+ * A write-back buffer for the content of the files modified by transformations.
+ *
+ * <p>Content transformations read and write the files through the overlay, so that a sequence of
+ * transformations over the same files doesn't write the files to disk just to read them again in
+ * the next transformation. Modified files are written to disk when {@link #flush()} is called, or
+ * when the modified content goes over the max size, starting with the oldest modifications.
+ *
+ * <p>A disabled overlay (max size 0) reads and writes the files directly. Safe to use from
+ * several threads as long as each file is only accessed from one thread at a time.
+ */
+public final class FileOverlay {
+
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  /** Number of locks that serialize the disk writes of the files with the same hash. */
+  private static final int DISK_WRITE_STRIPES = 64;
+
+  private final long maxSize;
+  private final Map<Path, byte[]> dirty = new LinkedHashMap<>();
+  /**
+   * Contents that are being written to disk outside of the lock of the overlay. They are still
+   * read from memory until the write finishes.
+   */
+  private final Map<Path, byte[]> writing = new HashMap<>();
+  private final Striped<Lock> diskWriteLocks = Striped.lock(DISK_WRITE_STRIPES);
+  private long size;
+
+  public FileOverlay(long maxSize) {
+    Preconditions.checkArgument(maxSize >= 0, "Max size cannot be negative");
+    this.maxSize = maxSize;
+  }
+
+  public static FileOverlay disabled() {
+    return new FileOverlay(0);
+  }
+
+  public boolean isEnabled() {
+    return maxSize > 0;
+  }
+
+  /** Returns true if the overlay has content for {@code path} that is not in disk yet. */
+  public synchronized boolean isDirty(Path path) {
+    return dirty.containsKey(path) || writing.containsKey(path);
+  }
+
+  /** Returns the current content of {@code path}, reading it from disk if it is not dirty. */
+  public byte[] read(Path path) throws IOException {
+    byte[] content = getDirty(path);
+    return content != null ? content : Files.readAllBytes(path);
+  }
+
+  @Nullable
+  private synchronized byte[] getDirty(Path path) {
+    byte[] content = dirty.get(path);
+    return content != null ? content : writing.get(path);
+  }
+
+  /**
+   * Sets the content of {@code path}. The content might be written to disk later, so the array
+   * shouldn't be modified after calling this method.
+   */
+  public void write(Path path, byte[] content) throws IOException {
+    Map<Path, byte[]> toWrite = new LinkedHashMap<>();
+    synchronized (this) {
+      remove(path);
+      if (!isEnabled() || content.length > maxSize) {
+        toWrite.put(path, content);
+      } else {
+        dirty.put(path, content);
+        size += content.length;
+        Iterator<Entry<Path, byte[]>> oldest = dirty.entrySet().iterator();
+        while (size > maxSize) {
+          Entry<Path, byte[]> entry = oldest.next();
+          toWrite.put(entry.getKey(), entry.getValue());
+          size -= entry.getValue().length;
+          oldest.remove();
+        }
+      }
+      writing.putAll(toWrite);
+    }
+    // Other threads can use the overlay while this one writes to disk.
+    writeToDisk(toWrite);
+  }
+
+  /** Writes all the modified files to disk. */
+  public void flush() throws IOException {
+    Map<Path, byte[]> toWrite;
+    synchronized (this) {
+      if (dirty.isEmpty() && writing.isEmpty()) {
+        return;
+      }
+      logger.atInfo().log("Flushing %d files (%d bytes) to disk", dirty.size(), size);
+      writing.putAll(dirty);
+      dirty.clear();
+      size = 0;
+      // Includes the contents that other threads are writing, so that they are in disk when this
+      // method returns. Each content is only written once.
+      toWrite = new LinkedHashMap<>(writing);
+    }
+    writeToDisk(toWrite);
+  }
+
+  private void remove(Path path) {
+    byte[] previous = dirty.remove(path);
+    if (previous != null) {
+      size -= previous.length;
+    }
+  }
+
+  /**
+   * Writes {@code contents}, that were added to {@link #writing} by the caller, to disk.
+   *
+   * <p>Writes of the same path are serialized, and a content is not written if a newer one for
+   * the same path is already being written, so the newest content is the one that stays in disk.
+   */
+  private void writeToDisk(Map<Path, byte[]> contents) throws IOException {
+    for (Entry<Path, byte[]> entry : contents.entrySet()) {
+      Path path = entry.getKey();
+      byte[] content = entry.getValue();
+      Lock lock = diskWriteLocks.get(path);
+      lock.lock();
+      try {
+        synchronized (this) {
+          if (writing.get(path) != content) {
+            continue;
+          }
+        }
+        try {
+          FileUtil.writeFile(path, content);
+        } finally {
+          synchronized (this) {
+            writing.remove(path, content);
+          }
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+}
@@ -16,11 +16,14 @@
 
 package com.google.copybara.treestate;
 
+import static com.google.copybara.treestate.TreeStateUtil.currentStates;
 import static com.google.copybara.treestate.TreeStateUtil.filter;
 
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.copybara.util.FileUtil;
+import com.google.copybara.util.Glob;
 import java.io.IOException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
@@ -28,9 +31,13 @@ import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
 
 /**
  * A {@link TreeState} imlementation that uses the {@code checkoutDir} filesystem for
@@ -41,7 +48,9 @@ public class FileSystemTreeState implements TreeState {
   private final Path checkoutDir;
   private boolean fsRead = false;
   private boolean notified;
-  private Map<Path, FileState> files = new HashMap<>();
+  private final Map<Path, FileState> files;
+  // The glob roots walked so far, if the whole tree wasn't read. The files under them are in files.
+  private final Set<Path> readRoots;
 
   private final LoadingCache<PathMatcher, List<FileState>> cachedMatches =
       CacheBuilder.newBuilder().maximumSize(5).build(
@@ -53,47 +62,122 @@ public class FileSystemTreeState implements TreeState {
           });
 
   public FileSystemTreeState(Path checkoutDir) {
+    this(checkoutDir, new HashMap<>(), new HashSet<>(), /*cachedMatches=*/null);
+  }
+
+  private FileSystemTreeState(Path checkoutDir, Map<Path, FileState> files, Set<Path> readRoots,
+      @Nullable LoadingCache<PathMatcher, List<FileState>> cachedMatches) {
     this.checkoutDir = checkoutDir;
+    this.files = new HashMap<>(files);
+    this.readRoots = new HashSet<>(readRoots);
+    if (cachedMatches != null) {
+      this.cachedMatches.putAll(cachedMatches.asMap());
+    }
   }
 
   @Override
   public Iterable<FileState> find(PathMatcher pathMatcher) throws IOException {
+    maybeReadFileSystem();
+    return currentStates(files, cachedMatches.getUnchecked(pathMatcher));
+  }
+
+  @Override
+  public Iterable<FileState> find(Glob glob) throws IOException {
+    PathMatcher pathMatcher = glob.relativeTo(checkoutDir);
+    if (fsRead || Glob.isEmptyRoot(glob.roots())) {
+      return find(pathMatcher);
+    }
+    // Only walk the roots of the glob that were not walked yet, since no file outside of them
+    // can match. The files found are kept, so that the next globs and tree states reuse them.
+    List<String> newRoots = new ArrayList<>();
+    for (String root : glob.roots()) {
+      if (!isRead(checkoutDir.resolve(root))) {
+        newRoots.add(root);
+      }
+    }
+    FileUtil.walkGlobRoots(checkoutDir, newRoots, new FileStateVisitor(files));
+    for (String root : newRoots) {
+      readRoots.add(checkoutDir.resolve(root));
+    }
+    return currentStates(files, cachedMatches.getUnchecked(pathMatcher));
+  }
+
+  /** Whether all the files under {@code path} are in {@link #files}. */
+  private boolean isRead(Path path) {
+    if (fsRead) {
+      return true;
+    }
+    for (Path root : readRoots) {
+      if (path.startsWith(root)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void maybeReadFileSystem() throws IOException {
     if (!fsRead) {
-      files = readFileSystem();
+      // The states of the files under the roots already walked are kept.
+      Files.walkFileTree(checkoutDir, new FileStateVisitor(files));
+      readRoots.clear();
       fsRead = true;
     }
-    return cachedMatches.getUnchecked(pathMatcher);
   }
 
-  private Map<Path, FileState> readFileSystem() throws IOException {
-    Map<Path, FileState> result = new HashMap<>();
-    Files.walkFileTree(checkoutDir, new SimpleFileVisitor<Path>() {
-      @Override
-      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
-          throws IOException {
-        result.put(file, new FileState(file));
-        return FileVisitResult.CONTINUE;
-      }
-    });
-    return result;
+  private static class FileStateVisitor extends SimpleFileVisitor<Path> {
+
+    private final Map<Path, FileState> result;
+
+    private FileStateVisitor(Map<Path, FileState> result) {
+      this.result = result;
+    }
+
+    @Override
+    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+      result.putIfAbsent(file, new FileState(file, attrs));
+      return FileVisitResult.CONTINUE;
+    }
   }
 
   @Override
   public void notifyModify(Iterable<FileState> paths) {
     notified = true;
     for (FileState path : paths) {
-      files.put(path.getPath(), path);
+      // Don't reuse the notified object since its cached data is for the old content.
+      files.put(path.getPath(), new FileState(path.getPath()));
+    }
+  }
+
+  @Override
+  public void notifyAdd(Iterable<Path> paths) {
+    notified = true;
+    if (fsRead || !readRoots.isEmpty()) {
+      TreeStateUtil.add(files, paths);
+      cachedMatches.invalidateAll();
     }
   }
 
   @Override
-  public void notifyAdd(Iterable<FileState> path) {
-    throw new UnsupportedOperationException("Not supported. Don't notify!");
+  public void notifyDelete(Iterable<Path> paths) {
+    notified = true;
+    if (fsRead || !readRoots.isEmpty()) {
+      TreeStateUtil.delete(files, paths);
+      cachedMatches.invalidateAll();
+    }
   }
 
   @Override
-  public void notifyDelete(Iterable<FileState> path) {
-    throw new UnsupportedOperationException("Not supported. Don't notify!");
+  public void notifyMove(Path from, Path to) {
+    notified = true;
+    if (!isRead(from)) {
+      // The files moved are not known, so the roots that contain 'to' would be incomplete.
+      files.clear();
+      readRoots.clear();
+      cachedMatches.invalidateAll();
+    } else {
+      TreeStateUtil.move(files, from, to);
+      cachedMatches.invalidateAll();
+    }
   }
 
   @Override
@@ -106,6 +190,16 @@ public class FileSystemTreeState implements TreeState {
     if (fsRead && notified) {
       return new MapBasedTreeState(checkoutDir, files, cachedMatches);
     }
+    if (!readRoots.isEmpty() && notified) {
+      // Keep the roots walked so far, and keep reading the rest of the tree on demand.
+      return new FileSystemTreeState(checkoutDir, files, readRoots, cachedMatches);
+    }
     return new FileSystemTreeState(checkoutDir);
   }
+
+  @Override
+  public TreeState snapshot() throws IOException {
+    maybeReadFileSystem();
+    return new MapBasedTreeState(checkoutDir, files, cachedMatches);
+  }
 }
@@ -16,11 +16,13 @@
 
 package com.google.copybara.treestate;
 
+import static com.google.copybara.treestate.TreeStateUtil.currentStates;
 import static com.google.copybara.treestate.TreeStateUtil.filter;
 
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.copybara.util.Glob;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
@@ -56,25 +58,42 @@ public class MapBasedTreeState implements TreeState {
 
   @Override
   public Iterable<FileState> find(PathMatcher pathMatcher) throws IOException {
-    return cachedMatches.getUnchecked(pathMatcher);
+    return currentStates(files, cachedMatches.getUnchecked(pathMatcher));
+  }
+
+  @Override
+  public Iterable<FileState> find(Glob glob) throws IOException {
+    return find(glob.relativeTo(checkoutDir));
   }
 
   @Override
   public void notifyModify(Iterable<FileState> paths) {
     notified = true;
     for (FileState fileState : paths) {
-      files.put(fileState.getPath(), fileState);
+      // Don't reuse the notified object since its cached data is for the old content.
+      files.put(fileState.getPath(), new FileState(fileState.getPath()));
     }
   }
 
   @Override
-  public void notifyAdd(Iterable<FileState> path) {
-    throw new UnsupportedOperationException("Not supported. Don't notify!");
+  public void notifyAdd(Iterable<Path> paths) {
+    notified = true;
+    TreeStateUtil.add(files, paths);
+    cachedMatches.invalidateAll();
+  }
+
+  @Override
+  public void notifyDelete(Iterable<Path> paths) {
+    notified = true;
+    TreeStateUtil.delete(files, paths);
+    cachedMatches.invalidateAll();
   }
 
   @Override
-  public void notifyDelete(Iterable<FileState> path) {
-    throw new UnsupportedOperationException("Not supported. Don't notify!");
+  public void notifyMove(Path from, Path to) {
+    notified = true;
+    TreeStateUtil.move(files, from, to);
+    cachedMatches.invalidateAll();
   }
 
   @Override
@@ -89,4 +108,9 @@ public class MapBasedTreeState implements TreeState {
     }
     return new FileSystemTreeState(checkoutDir);
   }
+
+  @Override
+  public TreeState snapshot() {
+    return new MapBasedTreeState(checkoutDir, files, cachedMatches);
+  }
 }
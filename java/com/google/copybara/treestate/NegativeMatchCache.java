@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.treestate;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.copybara.treestate.TreeState.FileState;
+import javax.annotation.Nullable;
+
+/**
+ * Remembers which file contents are known not to match a given matcher, so that content
+ * transformations can skip those files without scanning them again.
+ *
+ * <p>Entries are keyed by the content hash of the file, so they stay valid across
+ * transformations and migrated changes for as long as the content doesn't change. The
+ * {@code matcherKey} has to identify everything that affects the result of the matcher (pattern,
+ * flags, replacement, etc.).
+ */
+public final class NegativeMatchCache {
+
+  private static final int MAX_ENTRIES = 1_000_000;
+
+  private final boolean enabled;
+  private final Cache<HashCode, Boolean> noMatches =
+      CacheBuilder.newBuilder().maximumSize(MAX_ENTRIES).build();
+
+  public NegativeMatchCache(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Returns true if the current content of {@code file} is known not to match
+   * {@code matcherKey}.
+   *
+   * <p>If {@code content} is null, only an already computed content hash is used, so the file is
+   * never read.
+   */
+  public boolean isKnownNoMatch(String matcherKey, FileState file, @Nullable byte[] content) {
+    if (!enabled) {
+      return false;
+    }
+    HashCode contentHash = content == null
+        ? file.getCachedContentHash()
+        : file.hashContent(content);
+    return contentHash != null && noMatches.getIfPresent(key(matcherKey, contentHash)) != null;
+  }
+
+  /**
+   * Records that {@code content}, the current content of {@code file}, doesn't match
+   * {@code matcherKey}.
+   */
+  public void recordNoMatch(String matcherKey, FileState file, byte[] content) {
+    if (enabled) {
+      noMatches.put(key(matcherKey, file.hashContent(content)), true);
+    }
+  }
+
+  /** Records that the content with hash {@code contentHash} doesn't match {@code matcherKey}. */
+  public void recordNoMatch(String matcherKey, HashCode contentHash) {
+    if (enabled) {
+      noMatches.put(key(matcherKey, contentHash), true);
+    }
+  }
+
+  private static HashCode key(String matcherKey, HashCode contentHash) {
+    return Hashing.sha256().newHasher()
+        .putString(matcherKey, UTF_8)
+        .putBytes(contentHash.asBytes())
+        .hash();
+  }
+}
@@ -17,9 +17,19 @@
 package com.google.copybara.treestate;
 
 import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.copybara.util.Glob;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import javax.annotation.Nullable;
 
 /**
  * An object that allows to do potentially cached filesystem lookups.
@@ -32,19 +42,107 @@ public interface TreeState {
   /**
    * An object that contains a path found in the {@link TreeState}.
    *
-   * <p>Wrapped so that we can include things like the hash of the file in the future.
+   * <p>Besides the path it lazily caches the size, modification time and content hash of the
+   * file. A {@code FileState} represents one version of the file: When a file is notified as
+   * modified, the {@link TreeState} replaces its {@code FileState} with a new one.
    */
   class FileState {
+
+    private static final HashFunction CONTENT_HASH = Hashing.sha256();
+
     private final Path path;
+    @Nullable
+    private volatile BasicFileAttributes attributes;
+    @Nullable
+    private volatile HashCode contentHash;
 
     FileState(Path path) {
+      this(path, /*attributes=*/null);
+    }
+
+    FileState(Path path, @Nullable BasicFileAttributes attributes) {
       this.path = Preconditions.checkNotNull(path);
+      this.attributes = attributes;
     }
 
     public Path getPath() {
       return path;
     }
 
+    /**
+     * Size of the file in bytes.
+     */
+    public long getSize() throws IOException {
+      return getAttributes().size();
+    }
+
+    /**
+     * Last modification time of the file.
+     */
+    public FileTime getLastModifiedTime() throws IOException {
+      return getAttributes().lastModifiedTime();
+    }
+
+    private BasicFileAttributes getAttributes() throws IOException {
+      BasicFileAttributes result = attributes;
+      if (result == null) {
+        result = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        attributes = result;
+      }
+      return result;
+    }
+
+    /**
+     * Returns the hash of the content of the file if it was already computed, null otherwise.
+     * Never reads the file.
+     */
+    @Nullable
+    public HashCode getCachedContentHash() {
+      return contentHash;
+    }
+
+    /**
+     * Returns the hash of the content of the file, reading the file if it wasn't computed yet.
+     */
+    public HashCode getContentHash() throws IOException {
+      HashCode result = contentHash;
+      return result != null ? result : hashContent(Files.readAllBytes(path));
+    }
+
+    /**
+     * Returns the hash of the content of the file, using {@code content} to compute it if it
+     * wasn't computed yet. {@code content} has to be the current content of the file.
+     */
+    public HashCode hashContent(byte[] content) {
+      HashCode result = contentHash;
+      if (result == null) {
+        result = CONTENT_HASH.hashBytes(content);
+        contentHash = result;
+      }
+      return result;
+    }
+
+    /**
+     * Returns a hasher for {@link #hashContent(Hasher)}, for callers that read the content in
+     * pieces.
+     */
+    public static Hasher newContentHasher() {
+      return CONTENT_HASH.newHasher();
+    }
+
+    /**
+     * Like {@link #hashContent(byte[])}, but {@code hasher} comes from {@link #newContentHasher()}
+     * and already received the whole current content of the file.
+     */
+    public HashCode hashContent(Hasher hasher) {
+      HashCode result = contentHash;
+      if (result == null) {
+        result = hasher.hash();
+        contentHash = result;
+      }
+      return result;
+    }
+
     @Override
     public boolean equals(Object o) {
       if (this == o) {
@@ -68,20 +166,33 @@ public interface TreeState {
    */
   Iterable<FileState> find(PathMatcher pathMatcher) throws IOException;
 
+  /**
+   * Find files in the tree that match {@code glob}. Unlike {@link #find(PathMatcher)},
+   * implementations that read the filesystem only need to visit the {@link Glob#roots()}.
+   */
+  Iterable<FileState> find(Glob glob) throws IOException;
+
   /**
    * Notify the {@link TreeState} that {@code paths} have been modified.
    */
   void notifyModify(Iterable<FileState> paths);
 
   /**
-   * Not implemented for now.
+   * Notify the {@link TreeState} that the files {@code paths} have been created. Paths that
+   * already existed are treated as modified.
+   */
+  void notifyAdd(Iterable<Path> paths);
+
+  /**
+   * Notify the {@link TreeState} that the files {@code paths} have been deleted.
    */
-  void notifyAdd(Iterable<FileState> path);
+  void notifyDelete(Iterable<Path> paths);
 
   /**
-   * Not implemented for now.
+   * Notify the {@link TreeState} that the file or directory {@code from} has been moved (renamed)
+   * to {@code to}, that didn't exist.
    */
-  void notifyDelete(Iterable<FileState> path);
+  void notifyMove(Path from, Path to);
 
   void notifyNoChange();
 
@@ -91,4 +202,11 @@ public interface TreeState {
    * FileSystem based TreeState.
    */
   TreeState newTreeState();
+
+  /**
+   * Returns a new TreeState with the current state of the files, reading them first if needed.
+   * The returned state never reads the filesystem again, so it can be used while paths that it
+   * is not asked for are modified concurrently.
+   */
+  TreeState snapshot() throws IOException;
 }
@@ -17,10 +17,14 @@
 package com.google.copybara.treestate;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
 import com.google.copybara.treestate.TreeState.FileState;
+import java.nio.file.Path;
 import java.nio.file.PathMatcher;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 /**
@@ -40,6 +44,42 @@ public final class TreeStateUtil {
         .collect(Collectors.toList());
   }
 
+  /**
+   * Returns the current {@link FileState} in {@code files} for each of {@code cached}. Cached
+   * matches can contain states that were replaced after the files were notified as modified.
+   */
+  static List<FileState> currentStates(Map<Path, FileState> files, List<FileState> cached) {
+    return Lists.transform(cached, fileState -> files.get(fileState.getPath()));
+  }
+
+  /** Adds {@code paths} to {@code files}, replacing the state of the existing ones. */
+  static void add(Map<Path, FileState> files, Iterable<Path> paths) {
+    for (Path path : paths) {
+      files.put(path, new FileState(path));
+    }
+  }
+
+  static void delete(Map<Path, FileState> files, Iterable<Path> paths) {
+    for (Path path : paths) {
+      files.remove(path);
+    }
+  }
+
+  /** Moves the file {@code from}, or the files inside the directory {@code from}, to {@code to}. */
+  static void move(Map<Path, FileState> files, Path from, Path to) {
+    List<Path> moved = new ArrayList<>();
+    for (Path path : files.keySet()) {
+      if (path.startsWith(from)) {
+        moved.add(path);
+      }
+    }
+    for (Path path : moved) {
+      files.remove(path);
+      Path newPath = to.resolve(from.relativize(path));
+      files.put(newPath, new FileState(newPath));
+    }
+  }
+
   @VisibleForTesting
   public static boolean isCachedTreeState(TreeState treeState) {
     return treeState instanceof MapBasedTreeState;
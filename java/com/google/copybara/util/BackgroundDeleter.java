@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.copybara.profiler.Profiler;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+/**
+ * Deletes directories in the background, so that the caller doesn't wait for big trees to be
+ * deleted.
+ *
+ * <p>The contents of the directory are renamed to a trash directory, that should be in the same
+ * file system, and deleted from there by a bounded number of threads. The trash is measured in the
+ * background too, and {@link #awaitTrashBelowMaxSize()} blocks while it is bigger than the max
+ * size. Entries not measured yet are estimated to be as big as the last one measured, so that
+ * the caller doesn't wait for a whole entry to be walked. Contents that cannot be renamed are
+ * deleted synchronously.
+ *
+ * <p>Each entry of the trash is walked once: the measurement records the directories and the
+ * bytes in each of them, and the deletion goes over those directories without reading the
+ * attributes of the files again.
+ *
+ * <p>The trash directory is not removed, and anything left in it (for example if the process
+ * exits before deleting everything) has to be deleted by the owner of the directory.
+ */
+public class BackgroundDeleter {
+
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private final Path trashDir;
+  private final long maxTrashSize;
+  // Measures the trash entries in order, so that they count for the max size right away.
+  private final ExecutorService measurer;
+  private final ExecutorService deleters;
+  private final AtomicLong nextEntry = new AtomicLong();
+
+  private final Object lock = new Object();
+  // Entries not deleted yet, entries not measured yet, bytes measured but not deleted yet and
+  // size of the last entry measured. Guarded by lock.
+  private int pendingEntries;
+  private int unmeasuredEntries;
+  private long trashSize;
+  private long lastEntrySize;
+
+  // Deletions since the last report
+  private final AtomicLong deletedEntries = new AtomicLong();
+  private final AtomicLong deletedFiles = new AtomicLong();
+  private final AtomicLong deletedBytes = new AtomicLong();
+  private final AtomicLong deleteNanos = new AtomicLong();
+
+  public BackgroundDeleter(Path trashDir, int threads, long maxTrashSize) {
+    this(trashDir, Executors.newSingleThreadExecutor(daemonThreads("trash-measurer-%d")),
+        Executors.newFixedThreadPool(checkThreads(threads), daemonThreads("trash-deleter-%d")),
+        maxTrashSize);
+  }
+
+  /**
+   * Creates a deleter that measures the entries with {@code measurer}, that has to run the tasks
+   * in order, and deletes them with {@code deleters}.
+   */
+  @VisibleForTesting
+  BackgroundDeleter(Path trashDir, ExecutorService measurer, ExecutorService deleters,
+      long maxTrashSize) {
+    this.trashDir = Preconditions.checkNotNull(trashDir);
+    this.maxTrashSize = maxTrashSize;
+    this.measurer = Preconditions.checkNotNull(measurer);
+    this.deleters = Preconditions.checkNotNull(deleters);
+  }
+
+  private static int checkThreads(int threads) {
+    Preconditions.checkArgument(threads > 0, "Needs at least one thread, got %s", threads);
+    return threads;
+  }
+
+  /**
+   * Empties {@code dir} by moving its contents to the trash, where they are deleted in the
+   * background. {@code dir} itself is kept.
+   */
+  public void deleteContents(Path dir) throws IOException {
+    Files.createDirectories(trashDir);
+    Path entry = trashDir.resolve(Long.toString(nextEntry.getAndIncrement()));
+    while (Files.exists(entry)) {
+      entry = trashDir.resolve(Long.toString(nextEntry.getAndIncrement()));
+    }
+    Files.createDirectory(entry);
+    try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+      for (Path child : children) {
+        try {
+          Files.move(child, entry.resolve(child.getFileName().toString()));
+        } catch (IOException e) {
+          // For example, if the trash is in a different file system
+          logger.atInfo().withCause(e).log("Cannot move %s to the trash, deleting it", child);
+          FileUtil.deleteRecursively(child);
+        }
+      }
+    }
+    synchronized (lock) {
+      pendingEntries++;
+      unmeasuredEntries++;
+    }
+    Path toDelete = entry;
+    measurer.execute(() -> measure(toDelete));
+  }
+
+  /**
+   * Blocks while the trash is bigger than the max size. Entries that are not measured yet count
+   * as big as the last entry measured, so it doesn't wait for them to be measured unless the
+   * previous entries were already too big.
+   */
+  public void awaitTrashBelowMaxSize() throws IOException {
+    synchronized (lock) {
+      while (trashSize + unmeasuredEntries * lastEntrySize > maxTrashSize) {
+        waitForDeletions();
+      }
+    }
+  }
+
+  /** Blocks until all the contents moved to the trash are deleted. */
+  public void awaitAll() throws IOException {
+    synchronized (lock) {
+      while (pendingEntries > 0) {
+        waitForDeletions();
+      }
+    }
+  }
+
+  /**
+   * Reports to {@code profiler} the deletions finished since the last report, as a
+   * {@code workdir_cleanup} task with the number of entries, files and bytes deleted and the time
+   * spent deleting by all the threads.
+   */
+  public void report(Profiler profiler) {
+    long entries = deletedEntries.getAndSet(0);
+    long files = deletedFiles.getAndSet(0);
+    long bytes = deletedBytes.getAndSet(0);
+    long nanos = deleteNanos.getAndSet(0);
+    long pending;
+    synchronized (lock) {
+      pending = pendingEntries;
+    }
+    profiler.simpleTask("workdir_cleanup", ImmutableMap.of(
+        "entries_deleted", Long.toString(entries),
+        "files_deleted", Long.toString(files),
+        "bytes_deleted", Long.toString(bytes),
+        "entries_pending", Long.toString(pending)), nanos);
+  }
+
+  /** Stops the threads. Contents not deleted yet are left in the trash. */
+  public void shutdown() {
+    measurer.shutdownNow();
+    deleters.shutdownNow();
+  }
+
+  private void waitForDeletions() throws InterruptedIOException {
+    try {
+      lock.wait();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the trash to be deleted");
+    }
+  }
+
+  private void measure(Path entry) {
+    // Directories in post order (children before their parent) with the bytes of their files.
+    List<TrashDir> dirs = new ArrayList<>();
+    Deque<TrashDir> stack = new ArrayDeque<>();
+    boolean measured;
+    try {
+      Files.walkFileTree(entry, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+          stack.push(new TrashDir(dir));
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+          stack.peek().bytes += attrs.size();
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+          if (exc != null) {
+            throw exc;
+          }
+          dirs.add(stack.pop());
+          return FileVisitResult.CONTINUE;
+        }
+      });
+      measured = true;
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot measure %s", entry);
+      // Deleted without knowing its size
+      measured = false;
+    }
+    long size = 0;
+    if (measured) {
+      for (TrashDir dir : dirs) {
+        size += dir.bytes;
+      }
+    }
+    synchronized (lock) {
+      unmeasuredEntries--;
+      trashSize += size;
+      if (measured) {
+        lastEntrySize = size;
+      }
+      lock.notifyAll();
+    }
+    List<TrashDir> toDelete = measured ? dirs : null;
+    long measuredSize = size;
+    deleters.execute(() -> delete(entry, toDelete, measuredSize));
+  }
+
+  private void delete(Path entry, @Nullable List<TrashDir> dirs, long measuredSize) {
+    long start = System.nanoTime();
+    AtomicLong files = new AtomicLong();
+    try {
+      long freed = dirs == null ? deleteUnmeasured(entry, files) : deleteMeasured(dirs, files);
+      deletedBytes.addAndGet(freed);
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot delete %s from the trash", entry);
+    } finally {
+      deletedEntries.incrementAndGet();
+      deletedFiles.addAndGet(files.get());
+      deleteNanos.addAndGet(System.nanoTime() - start);
+      synchronized (lock) {
+        pendingEntries--;
+        // Whatever couldn't be deleted is abandoned, so it doesn't count towards the max size.
+        trashSize -= measuredSize;
+        lock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Deletes the directories recorded by {@link #measure(Path)} and returns the bytes freed. Their
+   * subdirectories are deleted before them, so only files are left when we get to each one.
+   */
+  private static long deleteMeasured(List<TrashDir> dirs, AtomicLong files) throws IOException {
+    long freed = 0;
+    for (TrashDir dir : dirs) {
+      try (DirectoryStream<Path> children = Files.newDirectoryStream(dir.path)) {
+        for (Path child : children) {
+          Files.delete(child);
+          files.incrementAndGet();
+        }
+      }
+      Files.delete(dir.path);
+      freed += dir.bytes;
+    }
+    return freed;
+  }
+
+  /** Deletes {@code entry} walking it, and returns the bytes freed. */
+  private static long deleteUnmeasured(Path entry, AtomicLong files) throws IOException {
+    AtomicLong bytes = new AtomicLong();
+    Files.walkFileTree(entry, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        files.incrementAndGet();
+        bytes.addAndGet(attrs.size());
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+        if (exc != null) {
+          throw exc;
+        }
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return bytes.get();
+  }
+
+  private static ThreadFactory daemonThreads(String nameFormat) {
+    return new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build();
+  }
+
+  private static final class TrashDir {
+
+    private final Path path;
+    // Bytes of the files directly in the directory
+    private long bytes;
+
+    private TrashDir(Path path) {
+      this.path = path;
+    }
+  }
+}
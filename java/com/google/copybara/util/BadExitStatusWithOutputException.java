@@ -16,6 +16,7 @@
 
 package com.google.copybara.util;
 
+import com.google.common.io.ByteSource;
 import com.google.copybara.shell.BadExitStatusException;
 import com.google.copybara.shell.AbnormalTerminationException;
 import com.google.copybara.shell.Command;
@@ -33,7 +34,7 @@ public class BadExitStatusWithOutputException extends AbnormalTerminationExcepti
   private final CommandOutputWithStatus output;
 
   BadExitStatusWithOutputException(Command command, CommandResult result, String message,
-      byte[] stdout, byte[] stderr) {
+      ByteSource stdout, ByteSource stderr) {
     super(command, result, message);
     this.output = new CommandOutputWithStatus(result.getTerminationStatus(), stdout, stderr);
   }
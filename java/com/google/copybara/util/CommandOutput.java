@@ -19,34 +19,76 @@ package com.google.copybara.util;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
-
+import com.google.common.io.ByteSource;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 
 /**
  * Holds the {@code stdout} and {@code stderr} contents of a command execution.
+ *
+ * <p>Big outputs might be stored in temporary files, that are deleted once they are read. Call
+ * {@link #close()} to delete the ones that are not going to be read. The ones never read nor closed
+ * are deleted at the end of the run by {@link CommandRunner#deleteUnreadOutputs()}.
  */
-public class CommandOutput {
+public class CommandOutput implements Closeable {
 
-  private final byte[] stdout;
-  private final byte[] stderr;
+  private final ByteSource stdout;
+  private final ByteSource stderr;
 
 
   @VisibleForTesting
   public CommandOutput(byte[] stdout, byte[] stderr) {
+    this(new OutputCollector.InMemoryContent(stdout), new OutputCollector.InMemoryContent(stderr));
+  }
+
+  CommandOutput(ByteSource stdout, ByteSource stderr) {
     this.stdout = Preconditions.checkNotNull(stdout);
     this.stderr = Preconditions.checkNotNull(stderr);
   }
 
   public String getStdout() {
-    return new String(stdout, StandardCharsets.UTF_8);
+    return new String(getStdoutBytes(), StandardCharsets.UTF_8);
   }
 
+  /**
+   * Returns the stdout content. The array is not copied: all the calls return the same array,
+   * that must not be modified.
+   */
   public byte[] getStdoutBytes() {
-    return stdout;
+    return read(stdout);
   }
 
   public String getStderr() {
-    return new String(stderr, StandardCharsets.UTF_8);
+    return new String(read(stderr), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Deletes the outputs stored in temporary files that were not read yet. They cannot be read
+   * afterwards.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      deleteSpilled(stdout);
+    } finally {
+      deleteSpilled(stderr);
+    }
+  }
+
+  private static void deleteSpilled(ByteSource source) throws IOException {
+    if (source instanceof OutputCollector.SpilledContent) {
+      ((OutputCollector.SpilledContent) source).delete();
+    }
+  }
+
+  private static byte[] read(ByteSource source) {
+    try {
+      return source.read();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot read the command output", e);
+    }
   }
 
   @Override
@@ -18,6 +18,7 @@ package com.google.copybara.util;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
+import com.google.common.io.ByteSource;
 import com.google.copybara.shell.Command;
 import com.google.copybara.shell.CommandResult;
 import com.google.copybara.shell.TerminationStatus;
@@ -33,7 +34,8 @@ public final class CommandOutputWithStatus extends CommandOutput {
 
   private final TerminationStatus terminationStatus;
 
-  CommandOutputWithStatus(TerminationStatus terminationStatus, byte[] stdout, byte[] stderr) {
+  CommandOutputWithStatus(TerminationStatus terminationStatus, ByteSource stdout,
+      ByteSource stderr) {
     super(stdout, stderr);
     this.terminationStatus = Preconditions.checkNotNull(terminationStatus);
   }
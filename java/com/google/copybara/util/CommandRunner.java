@@ -20,6 +20,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
 import com.google.common.base.Stopwatch;
 import com.google.common.flogger.FluentLogger;
+import com.google.common.io.ByteSource;
 import com.google.copybara.shell.BadExitStatusException;
 import com.google.copybara.shell.Command;
 import com.google.copybara.shell.CommandException;
@@ -27,14 +28,17 @@ import com.google.copybara.shell.CommandResult;
 import com.google.copybara.shell.ShellUtils;
 import com.google.copybara.shell.TerminationStatus;
 import com.google.copybara.shell.TimeoutKillableObserver;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.Arrays;
-import java.util.concurrent.TimeUnit;
+import java.util.UUID;
 import java.util.logging.Level;
 import javax.annotation.CheckReturnValue;
+import javax.annotation.Nullable;
 
 /**
  * Allows running a {@link Command} with easier stderr/stdout and logging management.
@@ -48,23 +52,44 @@ public final class CommandRunner {
    */
   public static final byte[] NO_INPUT = new byte[]{};
   // TODO(malcon): Make this a flag
-  // Kill the command after 15 minutes.
-  private static final long COMMAND_TIMEOUT = TimeUnit.MINUTES.toMillis(15);
+  // Kill the command after 15 minutes by default.
+  public static final Duration DEFAULT_TIMEOUT = Duration.ofMinutes(15);
+  // Outputs bigger than this are written to a temporary file by default.
+  public static final long DEFAULT_MAX_OUTPUT_IN_MEMORY = 64 * 1024 * 1024;
+
+  // Where the outputs of the runners without an output spill dir are written. Created on the first
+  // spill and deleted by deleteUnreadOutputs().
+  @Nullable
+  private static Path defaultOutputSpillDir;
 
   private final Command cmd;
   private final boolean verbose;
   private final byte[] input;
   private final int maxOutLogLines;
+  @Nullable
+  private final OutputStream stdoutStream;
+  private final Duration timeout;
+  private final long maxOutputInMemory;
+  // Where the outputs bigger than maxOutputInMemory are written. Null for the system temp dir.
+  @Nullable
+  private final Path outputSpillDir;
 
-  private CommandRunner(Command cmd, boolean verbose, byte[] input, int maxOutLogLines) {
+  private CommandRunner(Command cmd, boolean verbose, byte[] input, int maxOutLogLines,
+      @Nullable OutputStream stdoutStream, Duration timeout, long maxOutputInMemory,
+      @Nullable Path outputSpillDir) {
     this.cmd = Preconditions.checkNotNull(cmd);
     this.verbose = verbose;
     this.input = Preconditions.checkNotNull(input);
     this.maxOutLogLines = maxOutLogLines;
+    this.stdoutStream = stdoutStream;
+    this.timeout = Preconditions.checkNotNull(timeout);
+    this.maxOutputInMemory = maxOutputInMemory;
+    this.outputSpillDir = outputSpillDir;
   }
 
   public CommandRunner(Command cmd) {
-    this(cmd, false, NO_INPUT, -1);
+    this(cmd, false, NO_INPUT, -1, /*stdoutStream=*/null, DEFAULT_TIMEOUT,
+        DEFAULT_MAX_OUTPUT_IN_MEMORY, /*outputSpillDir=*/null);
   }
 
   /**
@@ -72,7 +97,8 @@ public final class CommandRunner {
    */
   @CheckReturnValue
   public CommandRunner withVerbose(boolean verbose) {
-    return new CommandRunner(this.cmd, verbose, this.input, this.maxOutLogLines);
+    return new CommandRunner(this.cmd, verbose, this.input, this.maxOutLogLines,
+        this.stdoutStream, this.timeout, this.maxOutputInMemory, this.outputSpillDir);
   }
 
   /**
@@ -80,15 +106,64 @@ public final class CommandRunner {
    */
   @CheckReturnValue
   public CommandRunner withInput(byte[] input) {
-    return new CommandRunner(this.cmd, this.verbose, input, this.maxOutLogLines);
+    return new CommandRunner(this.cmd, this.verbose, input, this.maxOutLogLines,
+        this.stdoutStream, this.timeout, this.maxOutputInMemory, this.outputSpillDir);
   }
 
   /**
-   * Sets the maximum number of output lines logged per stream
+   * Sets the maximum number of output lines logged per stream. Independently of this, only the
+   * first and last {@value OutputCollector#LOG_BYTES} bytes of each stream are logged.
    */
   @CheckReturnValue
   public CommandRunner withMaxStdOutLogLines(int lines) {
-    return new CommandRunner(this.cmd, this.verbose, this.input, lines);
+    return new CommandRunner(this.cmd, this.verbose, this.input, lines, this.stdoutStream,
+        this.timeout, this.maxOutputInMemory, this.outputSpillDir);
+  }
+
+  /**
+   * Writes the stdout of the command to {@code stdoutStream} as it is produced, instead of
+   * collecting it in memory. The stdout of the returned output is empty.
+   */
+  @CheckReturnValue
+  public CommandRunner withStdOutStream(OutputStream stdoutStream) {
+    return new CommandRunner(this.cmd, this.verbose, this.input, this.maxOutLogLines,
+        Preconditions.checkNotNull(stdoutStream), this.timeout, this.maxOutputInMemory,
+        this.outputSpillDir);
+  }
+
+  /**
+   * Kills the command if it doesn't finish in {@code timeout}. Defaults to {@link
+   * #DEFAULT_TIMEOUT}.
+   */
+  @CheckReturnValue
+  public CommandRunner withTimeout(Duration timeout) {
+    Preconditions.checkArgument(!timeout.isNegative() && !timeout.isZero(),
+        "Invalid timeout %s", timeout);
+    return new CommandRunner(this.cmd, this.verbose, this.input, this.maxOutLogLines,
+        this.stdoutStream, timeout, this.maxOutputInMemory, this.outputSpillDir);
+  }
+
+  /**
+   * Writes the stdout or stderr of the command to a temporary file once it is bigger than
+   * {@code bytes}, instead of keeping it in memory. Defaults to {@link
+   * #DEFAULT_MAX_OUTPUT_IN_MEMORY}.
+   */
+  @CheckReturnValue
+  public CommandRunner withMaxOutputInMemory(long bytes) {
+    return new CommandRunner(this.cmd, this.verbose, this.input, this.maxOutLogLines,
+        this.stdoutStream, this.timeout, bytes, this.outputSpillDir);
+  }
+
+  /**
+   * Sets the directory where the outputs bigger than the max output in memory are written. This
+   * should be a temporary directory of the run, so that the files not consumed are deleted with
+   * it. By default they are written to a directory in the system temp dir, and deleted once they
+   * are read, the {@link CommandOutput} is closed or {@link #deleteUnreadOutputs()} is called.
+   */
+  @CheckReturnValue
+  public CommandRunner withOutputSpillDir(Path dir) {
+    return new CommandRunner(this.cmd, this.verbose, this.input, this.maxOutLogLines,
+        this.stdoutStream, this.timeout, this.maxOutputInMemory, Preconditions.checkNotNull(dir));
   }
 
   /**
@@ -103,29 +178,44 @@ public final class CommandRunner {
     if (verbose) {
       System.err.println(startMsg);
     }
-    ByteArrayOutputStream stdoutCollector = new ByteArrayOutputStream();
-    ByteArrayOutputStream stderrCollector = new ByteArrayOutputStream();
+    Path spillDir = outputSpillDir != null ? outputSpillDir : defaultOutputSpillDir();
+    // If the stdout is streamed to the caller, we only keep what we log.
+    OutputCollector stdoutCollector = new OutputCollector(
+        /*keepContent=*/this.stdoutStream == null, maxOutputInMemory, spillDir);
+    OutputCollector stderrCollector =
+        new OutputCollector(/*keepContent=*/true, maxOutputInMemory, spillDir);
 
-    OutputStream stdoutStream = commandOutputStream(stdoutCollector);
+    OutputStream stdoutStream = commandOutputStream(this.stdoutStream != null
+        ? new DemultiplexOutputStream(this.stdoutStream, stdoutCollector)
+        : stdoutCollector);
     OutputStream stderrStream = commandOutputStream(stderrCollector);
     TerminationStatus exitStatus = null;
+    boolean outputReturned = false;
     try {
       CommandResult cmdResult =
           cmd.execute(
               input,
-              new TimeoutKillableObserver(COMMAND_TIMEOUT),
+              new TimeoutKillableObserver(timeout.toMillis()),
               stdoutStream, stderrStream, true);
       exitStatus = cmdResult.getTerminationStatus();
-      return new CommandOutputWithStatus(
+      CommandOutputWithStatus output = new CommandOutputWithStatus(
           cmdResult.getTerminationStatus(),
-          stdoutCollector.toByteArray(),
-          stderrCollector.toByteArray());
+          stdoutContent(stdoutCollector),
+          content(stderrCollector));
+      outputReturned = true;
+      return output;
     } catch (BadExitStatusException e) {
       exitStatus = e.getResult().getTerminationStatus();
-      throw new BadExitStatusWithOutputException(e.getCommand(), e.getResult(), e.getMessage(),
-          stdoutCollector.toByteArray(),
-          stderrCollector.toByteArray());
+      BadExitStatusWithOutputException withOutput = new BadExitStatusWithOutputException(
+          e.getCommand(), e.getResult(), e.getMessage(),
+          stdoutContent(stdoutCollector),
+          content(stderrCollector));
+      outputReturned = true;
+      throw withOutput;
     } finally {
+      // Nobody is going to consume the output if the command couldn't run or we failed to read it
+      closeOutput(stdoutCollector, /*discard=*/!outputReturned);
+      closeOutput(stderrCollector, /*discard=*/!outputReturned);
       String commandName = cmd.getCommandLineElements()[0];
 
       if (maxOutLogLines != 0) {
@@ -153,6 +243,58 @@ public final class CommandRunner {
     }
   }
 
+  private static synchronized Path defaultOutputSpillDir() {
+    if (defaultOutputSpillDir == null) {
+      defaultOutputSpillDir = Paths.get(System.getProperty("java.io.tmpdir"))
+          .resolve("copybara-output-" + UUID.randomUUID());
+    }
+    return defaultOutputSpillDir;
+  }
+
+  /**
+   * Deletes the outputs written to the default spill dir (see {@link #withOutputSpillDir}) that
+   * were not read nor closed. Called at the end of the run: those outputs cannot be read
+   * afterwards.
+   */
+  public static synchronized void deleteUnreadOutputs() {
+    if (defaultOutputSpillDir == null) {
+      return;
+    }
+    Path dir = defaultOutputSpillDir;
+    defaultOutputSpillDir = null;
+    try {
+      if (Files.exists(dir)) {
+        FileUtil.deleteRecursively(dir);
+      }
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot delete the command outputs in %s", dir);
+    }
+  }
+
+  private static void closeOutput(OutputCollector collector, boolean discard) {
+    try {
+      if (discard) {
+        collector.discard();
+      } else {
+        collector.close();
+      }
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot close the output of the command");
+    }
+  }
+
+  private ByteSource stdoutContent(OutputCollector stdoutCollector) throws CommandException {
+    return this.stdoutStream != null ? ByteSource.empty() : content(stdoutCollector);
+  }
+
+  private ByteSource content(OutputCollector collector) throws CommandException {
+    try {
+      return collector.getContent();
+    } catch (IOException e) {
+      throw new CommandException(cmd, "Cannot read the output of the command", e);
+    }
+  }
+
   /**
    * Creates the necessary OutputStream to be passed to the {@link Command#execute()}.
    */
@@ -162,27 +304,41 @@ public final class CommandRunner {
   }
 
   /**
-   * Log to the appropiate log level the output of the command
+   * Log to the appropiate log level the output of the command. Only the start and the end of big
+   * outputs are logged.
    */
   private static void logOutput(
-      Level level, String prefix, ByteArrayOutputStream outputBytes, int maxLogLines) {
-    String string = asString(outputBytes).trim();
-    if (string.isEmpty()) {
+      Level level, String prefix, OutputCollector output, int maxLogLines) {
+    String head = output.getLogHead().trim();
+    if (head.isEmpty() && !output.isLogTruncated()) {
       return;
     }
-    int lines = 0;
-    for (String line : Splitter.on(System.lineSeparator()).split(string)) {
+    int lines = logLines(level, prefix, head, maxLogLines, /*lines=*/0);
+    if (lines == -1 || !output.isLogTruncated()) {
+      return;
+    }
+    logger.at(level).log("%s... truncated, the output has %d bytes", prefix, output.size());
+    logLines(level, prefix, output.getLogTail().trim(), maxLogLines, lines);
+  }
+
+  /**
+   * Logs the lines of {@code text}, up to {@code maxLogLines} lines in total counting the {@code
+   * lines} already logged. Returns the total number of lines logged or -1 if it reached the max.
+   */
+  private static int logLines(Level level, String prefix, String text, int maxLogLines,
+      int lines) {
+    if (text.isEmpty()) {
+      return lines;
+    }
+    for (String line : Splitter.on(System.lineSeparator()).split(text)) {
       logger.at(level).log(prefix + line);
       lines++;
       if (maxLogLines >= 0 && lines >= maxLogLines) {
         logger.at(level).log( "%s... truncated after %d line(s)", prefix, maxLogLines);
-        break;
+        return -1;
       }
     }
-  }
-
-  private static String asString(ByteArrayOutputStream outputBytes) {
-    return new String(outputBytes.toByteArray(), StandardCharsets.UTF_8);
+    return lines;
   }
 
   /**
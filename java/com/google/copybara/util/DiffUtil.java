@@ -29,6 +29,8 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.MoreFiles;
 import com.google.copybara.shell.Command;
 import com.google.copybara.shell.CommandException;
 import com.google.copybara.util.DiffUtil.DiffFile.Operation;
@@ -36,10 +38,16 @@ import com.google.copybara.util.console.AnsiColor;
 import com.google.copybara.util.console.Console;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import javax.annotation.CheckReturnValue;
 
 /**
@@ -61,6 +69,87 @@ public class DiffUtil {
         .run(one, other);
   }
 
+  /**
+   * Returns true if the two directory trees are equal as far as {@link #diff} is concerned: they
+   * have the same regular files with the same content and executable bit, and the same symlinks
+   * with the same targets. Empty directories are ignored, like git does.
+   *
+   * <p>This is done in process by walking both trees at the same time, comparing sizes before
+   * contents, so it is much cheaper than {@link #diff} when the trees are expected to be equal.
+   */
+  public static boolean equalTrees(Path one, Path other) throws IOException {
+    return equalDirectories(one, other);
+  }
+
+  private static boolean equalDirectories(Path one, Path other) throws IOException {
+    Map<String, Path> oneEntries = listDirectory(one);
+    Map<String, Path> otherEntries = listDirectory(other);
+    for (String name : Sets.union(oneEntries.keySet(), otherEntries.keySet())) {
+      Path oneEntry = oneEntries.get(name);
+      Path otherEntry = otherEntries.get(name);
+      if (oneEntry == null || otherEntry == null) {
+        if (!isEmptyTree(oneEntry == null ? otherEntry : oneEntry)) {
+          return false;
+        }
+        continue;
+      }
+      BasicFileAttributes oneAttrs =
+          Files.readAttributes(oneEntry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+      BasicFileAttributes otherAttrs =
+          Files.readAttributes(otherEntry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+      if (oneAttrs.isDirectory() && otherAttrs.isDirectory()) {
+        if (!equalDirectories(oneEntry, otherEntry)) {
+          return false;
+        }
+      } else if (oneAttrs.isDirectory() || otherAttrs.isDirectory()) {
+        return false;
+      } else if (oneAttrs.isSymbolicLink() || otherAttrs.isSymbolicLink()) {
+        if (oneAttrs.isSymbolicLink() != otherAttrs.isSymbolicLink()
+            || !Files.readSymbolicLink(oneEntry).equals(Files.readSymbolicLink(otherEntry))) {
+          return false;
+        }
+      } else if (oneAttrs.size() != otherAttrs.size()
+          || isExecutable(oneEntry) != isExecutable(otherEntry)
+          || !(Files.isSameFile(oneEntry, otherEntry)
+              || MoreFiles.asByteSource(oneEntry).contentEquals(
+                  MoreFiles.asByteSource(otherEntry)))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static Map<String, Path> listDirectory(Path dir) throws IOException {
+    Map<String, Path> entries = new TreeMap<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+      for (Path entry : stream) {
+        entries.put(entry.getFileName().toString(), entry);
+      }
+    }
+    return entries;
+  }
+
+  /** Returns true if {@code path} is a directory that doesn't contain any file. */
+  private static boolean isEmptyTree(Path path) throws IOException {
+    if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+      return false;
+    }
+    for (Path entry : listDirectory(path).values()) {
+      if (!isEmptyTree(entry)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isExecutable(Path file) throws IOException {
+    if (file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+      return Files.getPosixFilePermissions(file, LinkOption.NOFOLLOW_LINKS)
+          .contains(PosixFilePermission.OWNER_EXECUTE);
+    }
+    return Files.isExecutable(file);
+  }
+
   /**
    * Return the changed files without computing renames/copies.
    *
@@ -31,14 +31,19 @@ import com.google.common.io.RecursiveDeleteOption;
 import com.google.common.net.PercentEscaper;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
 import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.nio.file.attribute.PosixFilePermission;
 import java.util.LinkedHashSet;
 import java.util.Objects;
@@ -135,6 +140,80 @@ public final class FileUtil {
     }
   }
 
+  /**
+   * Like {@link #copyFilesRecursively(Path, Path, CopySymlinkStrategy)} but regular files are hard
+   * linked instead of copied when the filesystem supports it, which is much cheaper for big trees.
+   * Falls back to copying if links cannot be created (for example across filesystems).
+   *
+   * <p>Both trees share the content of the linked files, so any file that is going to be modified
+   * in place has to be written with {@link #writeFile} or unshared first with {@link
+   * #breakHardLink}. Files that are replaced, moved or deleted don't need it.
+   */
+  public static void snapshotFilesRecursively(Path from, Path to,
+      CopySymlinkStrategy symlinkStrategy) throws IOException {
+    checkArgument(Files.isDirectory(from), "%s (from) is not a directory", from);
+    checkArgument(Files.isDirectory(to), "%s (to) is not a directory", to);
+    // We can only detect shared files in filesystems that expose the number of links.
+    boolean link = to.getFileSystem().supportedFileAttributeViews().contains("unix");
+    Files.walkFileTree(from, new CopyVisitor(from, to, symlinkStrategy,
+        Glob.ALL_FILES.relativeTo(from.normalize()), Glob.ALL_FILES.relativeTo(to.normalize()),
+        link));
+  }
+
+  /**
+   * If {@code file} is a regular file that shares its content with other hard links (for example
+   * the ones created by {@link #snapshotFilesRecursively}), replace it with a private copy, so
+   * that it can be modified without modifying the other links. Otherwise does nothing.
+   *
+   * <p>The copy is written in place after unlinking the file, so no temporary file is created in
+   * the tree. The caller is about to modify the file, so it must not be read concurrently anyway.
+   */
+  public static void breakHardLink(Path file) throws IOException {
+    if (!file.getFileSystem().supportedFileAttributeViews().contains("unix")
+        || !Files.isRegularFile(file)) {
+      return;
+    }
+    if (Files.isSymbolicLink(file)) {
+      file = file.toRealPath();
+    }
+    if ((Integer) Files.getAttribute(file, "unix:nlink") <= 1) {
+      return;
+    }
+    Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(file);
+    FileTime lastModified = Files.getLastModifiedTime(file);
+    // The open stream keeps the shared content readable after the unlink.
+    try (InputStream in = Files.newInputStream(file)) {
+      Files.delete(file);
+      Files.copy(in, file);
+    }
+    Files.setPosixFilePermissions(file, permissions);
+    Files.setLastModifiedTime(file, lastModified);
+  }
+
+  /**
+   * Returns a directory for the temporary files used to replace the files of {@code tree}
+   * atomically, creating it if needed. It is a sibling of {@code tree}, so that it is likely in
+   * the same filesystem, but the temporary files are not seen by anything that reads the tree.
+   */
+  public static Path tmpDirFor(Path tree) throws IOException {
+    Path absolute = tree.toAbsolutePath().normalize();
+    if (absolute.getParent() == null) {
+      // A filesystem root has no siblings. Only used by tests.
+      return Files.createDirectories(absolute.resolve(".copybara-tmp"));
+    }
+    return Files.createDirectories(
+        absolute.resolveSibling("." + absolute.getFileName() + ".copybara-tmp"));
+  }
+
+  /**
+   * Writes {@code content} to {@code file}. If the file shares its content with other hard links,
+   * they are not modified.
+   */
+  public static void writeFile(Path file, byte[] content) throws IOException {
+    breakHardLink(file);
+    Files.write(file, content);
+  }
+
   /**
    * Adds the given permissions to the matching files under the given path.
    */
@@ -187,6 +266,76 @@ public final class FileUtil {
     return counter.get();
   }
 
+  /**
+   * Deletes the files under {@code path} that match {@code glob}. Like {@link
+   * #deleteFilesRecursively(Path, PathMatcher)} but only the {@link Glob#roots()} are visited.
+   *
+   * @return the number of files deleted
+   */
+  public static int deleteFilesRecursively(Path path, Glob glob) throws IOException {
+    ImmutableList<Path> files = findFilesRecursively(path, glob);
+    for (Path file : files) {
+      Files.delete(file);
+    }
+    return files.size();
+  }
+
+  /**
+   * Finds the files under {@code path} that match {@code glob}, only visiting the {@link
+   * Glob#roots()}. Like a walk of the whole tree, symlinks are not followed.
+   */
+  public static ImmutableList<Path> findFilesRecursively(Path path, Glob glob)
+      throws IOException {
+    Path base = path.normalize();
+    PathMatcher pathMatcher = glob.relativeTo(base);
+    ImmutableList.Builder<Path> result = ImmutableList.builder();
+    SimpleFileVisitor<Path> visitor = new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        if (pathMatcher.matches(file)) {
+          result.add(file);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    };
+    walkGlobRoots(base, glob, visitor);
+    return result.build();
+  }
+
+  /**
+   * Walks the {@link Glob#roots()} of {@code glob} under {@code base} with {@code visitor}. Roots
+   * that a walk of the whole tree wouldn't visit, because they or one of their parents is a
+   * symlink, are skipped.
+   */
+  public static void walkGlobRoots(Path base, Glob glob, FileVisitor<Path> visitor)
+      throws IOException {
+    walkGlobRoots(base, glob.roots(), visitor);
+  }
+
+  /**
+   * Walks {@code roots}, a subset of the {@link Glob#roots()} of a glob, under {@code base} with
+   * {@code visitor}. See {@link #walkGlobRoots(Path, Glob, FileVisitor)}.
+   */
+  public static void walkGlobRoots(Path base, Iterable<String> roots, FileVisitor<Path> visitor)
+      throws IOException {
+    for (String root : roots) {
+      Path rootPath = base.resolve(root);
+      if (isDirectoryInTree(base, rootPath)) {
+        Files.walkFileTree(rootPath, visitor);
+      }
+    }
+  }
+
+  private static boolean isDirectoryInTree(Path base, Path path) {
+    for (Path current = path; current != null && !current.equals(base);
+        current = current.getParent()) {
+      if (!Files.isDirectory(current, LinkOption.NOFOLLOW_LINKS)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   /**
    * Delete all the contents of a path recursively.
    *
@@ -253,15 +402,24 @@ public final class FileUtil {
     private final CopySymlinkStrategy symlinkStrategy;
     private final PathMatcher originPathMatcher;
     private final PathMatcher destPathMatcher;
+    // Whether to hard link regular files instead of copying them. Disabled if linking fails.
+    private boolean link;
 
     CopyVisitor(Path from, Path to, CopySymlinkStrategy symlinkStrategy,
         PathMatcher originPathMatcher,
         PathMatcher destPathMatcher) {
+      this(from, to, symlinkStrategy, originPathMatcher, destPathMatcher, /*link=*/false);
+    }
+
+    CopyVisitor(Path from, Path to, CopySymlinkStrategy symlinkStrategy,
+        PathMatcher originPathMatcher,
+        PathMatcher destPathMatcher, boolean link) {
       this.to = to;
       this.from = from;
       this.symlinkStrategy = symlinkStrategy;
       this.originPathMatcher = originPathMatcher;
       this.destPathMatcher = destPathMatcher;
+      this.link = link;
     }
 
     @Override
@@ -303,6 +461,16 @@ public final class FileUtil {
           return FileVisitResult.CONTINUE;
         }
       }
+      if (link && !symlink) {
+        try {
+          Files.createLink(destFile, file);
+          return FileVisitResult.CONTINUE;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+          logger.atInfo().withCause(e).log(
+              "Cannot hard link '%s'. Copying the rest of the files instead.", file);
+          link = false;
+        }
+      }
       Files.copy(file, destFile, StandardCopyOption.COPY_ATTRIBUTES);
       // Make writable any symlink that we materialize. This is safe since we have already
       // done a copy of the file. And it is probable that we will want to modify it.
@@ -387,7 +555,11 @@ public final class FileUtil {
       throws IOException {
     if (path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
       Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(path);
-      permissions.addAll(permissionsToAdd);
+      if (!permissions.addAll(permissionsToAdd)) {
+        return;
+      }
+      // Permissions belong to the file, not to the link
+      breakHardLink(path);
       Files.setPosixFilePermissions(path, permissions);
     } else {
       File file = path.toFile();
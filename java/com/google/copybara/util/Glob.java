@@ -130,6 +130,28 @@ public abstract class Glob implements Concatable {
     return Iterables.isEmpty(roots) || Objects.equals(roots.iterator().next(), "");
   }
 
+  /**
+   * Returns true if no path can be matched by both this glob and {@code other}.
+   *
+   * <p>The check is conservative and only uses the {@link #roots()} of the globs: excludes can
+   * only make the matched paths smaller, so they are ignored, and false doesn't imply that some
+   * path is actually matched by both globs.
+   */
+  public boolean isDisjoint(Glob other) {
+    for (String root : roots()) {
+      for (String otherRoot : other.roots()) {
+        if (isAncestorOrSelf(root, otherRoot) || isAncestorOrSelf(otherRoot, root)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private static boolean isAncestorOrSelf(String ancestor, String path) {
+    return ancestor.isEmpty() || path.equals(ancestor) || path.startsWith(ancestor + "/");
+  }
+
   @Nullable
   @Override
   public Concatter getConcatter() {
@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteSource;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import javax.annotation.Nullable;
+
+/**
+ * Collects one output stream of a command.
+ *
+ * <p>The content is kept in memory up to a threshold, and written to a temporary file once it is
+ * bigger. The file is deleted once the content is consumed (see {@link SpilledContent}) or
+ * discarded. The first and last bytes are also kept apart, so that the output can be logged
+ * without reading the whole content again. Not thread-safe: it is written by the thread that
+ * reads the command output, and read once the command has finished.
+ */
+final class OutputCollector extends OutputStream {
+
+  /** Max number of bytes logged from the start and from the end of the output. */
+  static final int LOG_BYTES = 32 * 1024;
+
+  private final boolean keepContent;
+  private final long spillThreshold;
+  @Nullable
+  private final Path spillDir;
+  @Nullable
+  private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+  @Nullable
+  private Path file;
+  @Nullable
+  private OutputStream fileStream;
+
+  private final byte[] head = new byte[LOG_BYTES];
+  private int headSize;
+  // Ring buffer with the last LOG_BYTES bytes written.
+  private final byte[] tail = new byte[LOG_BYTES];
+  private long size;
+
+  /**
+   * Creates a collector that keeps the content in memory up to {@code spillThreshold} bytes, and
+   * then writes it to a file in {@code spillDir}, or in the system temp dir if null. If
+   * {@code keepContent} is false, only the bytes needed for logging are kept.
+   */
+  OutputCollector(boolean keepContent, long spillThreshold, @Nullable Path spillDir) {
+    Preconditions.checkArgument(spillThreshold >= 0, "Invalid threshold %s", spillThreshold);
+    this.keepContent = keepContent;
+    this.spillThreshold = spillThreshold;
+    this.spillDir = spillDir;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] bytes, int off, int len) throws IOException {
+    if (keepContent) {
+      if (memory != null && memory.size() + len > spillThreshold) {
+        spill();
+      }
+      if (memory != null) {
+        memory.write(bytes, off, len);
+      } else {
+        fileStream.write(bytes, off, len);
+      }
+    }
+    if (headSize < head.length) {
+      int toCopy = Math.min(head.length - headSize, len);
+      System.arraycopy(bytes, off, head, headSize, toCopy);
+      headSize += toCopy;
+    }
+    int skip = Math.max(0, len - tail.length);
+    int position = (int) ((size + skip) % tail.length);
+    int remaining = len - skip;
+    int first = Math.min(remaining, tail.length - position);
+    System.arraycopy(bytes, off + skip, tail, position, first);
+    System.arraycopy(bytes, off + skip + first, tail, 0, remaining - first);
+    size += len;
+  }
+
+  private void spill() throws IOException {
+    if (spillDir != null) {
+      Files.createDirectories(spillDir);
+      file = Files.createTempFile(spillDir, "copybara-output", ".tmp");
+    } else {
+      file = Files.createTempFile("copybara-output", ".tmp");
+    }
+    fileStream = new BufferedOutputStream(Files.newOutputStream(file));
+    memory.writeTo(fileStream);
+    memory = null;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (fileStream != null) {
+      OutputStream stream = fileStream;
+      fileStream = null;
+      stream.close();
+    }
+  }
+
+  /**
+   * Closes the collector and deletes the content written to a file, if any. Used when the content
+   * is not going to be returned, for example because the command failed to run.
+   */
+  void discard() throws IOException {
+    try {
+      close();
+    } finally {
+      if (file != null) {
+        Files.deleteIfExists(file);
+      }
+    }
+  }
+
+  /**
+   * Returns the collected content. Can only be called once the output is complete.
+   */
+  ByteSource getContent() throws IOException {
+    Preconditions.checkState(keepContent, "The content was not collected");
+    if (memory != null) {
+      return new InMemoryContent(memory.toByteArray());
+    }
+    close();
+    return new SpilledContent(file);
+  }
+
+  /** Total number of bytes written. */
+  long size() {
+    return size;
+  }
+
+  /**
+   * Returns true if the bytes kept for logging are not the whole output, and then {@link
+   * #getLogHead()} and {@link #getLogTail()} have to be logged separately.
+   */
+  boolean isLogTruncated() {
+    return size > head.length + tail.length;
+  }
+
+  /**
+   * Returns the start of the output, or the whole output if it is not truncated. If it is
+   * truncated, the last incomplete line is removed.
+   */
+  String getLogHead() {
+    if (!isLogTruncated()) {
+      byte[] all = new byte[(int) size];
+      System.arraycopy(head, 0, all, 0, headSize);
+      copyTail(all, headSize, (int) size - headSize);
+      return new String(all, UTF_8);
+    }
+    String start = new String(head, 0, headSize, UTF_8);
+    int lastLine = start.lastIndexOf('\n');
+    return lastLine == -1 ? start : start.substring(0, lastLine);
+  }
+
+  /**
+   * Returns the end of a truncated output, without the first incomplete line.
+   */
+  String getLogTail() {
+    Preconditions.checkState(isLogTruncated(), "The output is not truncated");
+    byte[] end = new byte[tail.length];
+    copyTail(end, 0, tail.length);
+    String result = new String(end, UTF_8);
+    int firstLine = result.indexOf('\n');
+    return firstLine == -1 ? result : result.substring(firstLine + 1);
+  }
+
+  /** Copies the last {@code length} bytes written to {@code dest}. */
+  private void copyTail(byte[] dest, int destPos, int length) {
+    int start = (int) ((size - length) % tail.length);
+    int first = Math.min(length, tail.length - start);
+    System.arraycopy(tail, start, dest, destPos, first);
+    System.arraycopy(tail, 0, dest, destPos + first, length - first);
+  }
+
+  /**
+   * The content of an output kept in memory. Unlike {@link ByteSource#wrap}, {@link #read()}
+   * returns the array itself instead of a copy, so it must not be modified.
+   */
+  static final class InMemoryContent extends ByteSource {
+
+    private final byte[] content;
+
+    InMemoryContent(byte[] content) {
+      this.content = Preconditions.checkNotNull(content);
+    }
+
+    @Override
+    public byte[] read() {
+      return content;
+    }
+
+    @Override
+    public InputStream openStream() {
+      return new ByteArrayInputStream(content);
+    }
+
+    @Override
+    public long size() {
+      return content.length;
+    }
+  }
+
+  /**
+   * The content of an output written to a file. The file is deleted once the content is consumed:
+   * after the first {@link #read()}, that keeps the bytes for later reads, or when the first
+   * stream opened is closed. Streams cannot be opened after that unless the content was read.
+   * Like {@link InMemoryContent}, {@link #read()} returns the kept array and not a copy, so it
+   * must not be modified. {@link #delete()} deletes the file of a content that is not going to
+   * be consumed.
+   */
+  static final class SpilledContent extends ByteSource {
+
+    private final Path file;
+    @Nullable
+    private byte[] content;
+    private boolean consumed;
+
+    private SpilledContent(Path file) {
+      this.file = Preconditions.checkNotNull(file);
+    }
+
+    @Override
+    public synchronized byte[] read() throws IOException {
+      if (content == null) {
+        checkNotConsumed();
+        content = Files.readAllBytes(file);
+        consumed = true;
+        Files.deleteIfExists(file);
+      }
+      return content;
+    }
+
+    @Override
+    public synchronized InputStream openStream() throws IOException {
+      if (content != null) {
+        return new ByteArrayInputStream(content);
+      }
+      checkNotConsumed();
+      consumed = true;
+      return new FilterInputStream(Files.newInputStream(file)) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            Files.deleteIfExists(file);
+          }
+        }
+      };
+    }
+
+    @Override
+    public synchronized long size() throws IOException {
+      if (content != null) {
+        return content.length;
+      }
+      checkNotConsumed();
+      return Files.size(file);
+    }
+
+    /**
+     * Deletes the file if the content was not read. The content cannot be read afterwards.
+     */
+    synchronized void delete() throws IOException {
+      if (content == null) {
+        consumed = true;
+        Files.deleteIfExists(file);
+      }
+    }
+
+    private void checkNotConsumed() throws IOException {
+      if (consumed) {
+        throw new IOException("The output in " + file + " was already consumed");
+      }
+    }
+  }
+}
@@ -16,16 +16,21 @@
 
 package com.google.copybara.util;
 
+import com.google.common.base.CharMatcher;
 import java.nio.file.FileSystem;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.util.Objects;
+import javax.annotation.Nullable;
 
 /**
  * A path matcher which delegates to another path matcher but has a specifiable {@link #toString()}
  * value.
  */
 public final class ReadablePathMatcher implements PathMatcher {
+
+  private static final CharMatcher GLOB_META = CharMatcher.anyOf("*?[]{}\\");
+
   private final PathMatcher delegate;
   private final String toString;
 
@@ -61,6 +66,11 @@ public final class ReadablePathMatcher implements PathMatcher {
       root += separator;
     }
 
+    PathMatcher literalMatcher = literalMatcher(fs.getPath(root), glob);
+    if (literalMatcher != null) {
+      return new ReadablePathMatcher(literalMatcher, glob);
+    }
+
     // If the current filesystem uses a backslash as the separator, the root must be escaped
     // first to be valid glob syntax since backslash is considered an escaping character.
     if ("\\".equals(separator)) {
@@ -71,6 +81,32 @@ public final class ReadablePathMatcher implements PathMatcher {
     return new ReadablePathMatcher(fs.getPathMatcher("glob:" + root + glob), glob);
   }
 
+  /**
+   * Returns a matcher that compares path components for the common globs that are a literal path
+   * ("foo/bar.txt"), everything under a literal directory ("foo/bar/**") or everything ("**"), so
+   * that we don't need to go through the {@link FileSystem} glob implementation. Returns null for
+   * any other glob.
+   */
+  @Nullable
+  private static PathMatcher literalMatcher(Path root, String glob) {
+    if (glob.equals("**")) {
+      return p -> p.startsWith(root) && !p.equals(root);
+    }
+    if (glob.endsWith("/**") && isLiteral(glob.substring(0, glob.length() - 3))) {
+      Path dir = root.resolve(glob.substring(0, glob.length() - 3));
+      return p -> p.startsWith(dir) && !p.equals(dir);
+    }
+    if (isLiteral(glob)) {
+      Path file = root.resolve(glob);
+      return p -> p.equals(file);
+    }
+    return null;
+  }
+
+  private static boolean isLiteral(String glob) {
+    return !glob.isEmpty() && GLOB_META.matchesNoneOf(glob);
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) {
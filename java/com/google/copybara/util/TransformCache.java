@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Preconditions;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+
+/**
+ * A persistent cache of the results of transforming file contents, keyed by a fingerprint of the
+ * transformation and the hash of the original content.
+ *
+ * <p>Entries are stored as files in a cache directory, so they are reused across changes and
+ * across runs. When the total size goes over the limit, the least recently used entries are
+ * removed. Safe to use from several threads.
+ */
+public final class TransformCache {
+
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  /** When evicting, we remove entries until the cache is this fraction of the max size. */
+  private static final double EVICTION_TARGET = 0.9;
+
+  private final boolean enabled;
+  private final DirFactory dirFactory;
+  private final long maxSize;
+
+  @Nullable private Path dir;
+  private long totalSize;
+  // Entries whose access time was already updated by this instance. Each entry is touched at most
+  // once, so that hits don't write metadata over and over for the same entry.
+  private final Set<HashCode> touched = ConcurrentHashMap.newKeySet();
+
+  public TransformCache(boolean enabled, DirFactory dirFactory, long maxSize) {
+    Preconditions.checkArgument(maxSize > 0, "Max size needs to be positive");
+    this.enabled = enabled;
+    this.dirFactory = Preconditions.checkNotNull(dirFactory);
+    this.maxSize = maxSize;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Computes the key for the result of applying the transformation identified by
+   * {@code fingerprint} to a content with hash {@code contentHash}. The fingerprint has to
+   * identify everything that affects the result of the transformation.
+   */
+  public static HashCode key(String fingerprint, HashCode contentHash) {
+    return Hashing.sha256().newHasher()
+        .putString(fingerprint, UTF_8)
+        .putBytes(contentHash.asBytes())
+        .hash();
+  }
+
+  /**
+   * Returns the value stored for {@code key} or null if there is none (or the cache is disabled).
+   */
+  @Nullable
+  public byte[] get(HashCode key) throws IOException {
+    if (!enabled) {
+      return null;
+    }
+    Path entry = entryPath(key);
+    try {
+      byte[] value = Files.readAllBytes(entry);
+      // The modification time is used as the access time for the LRU eviction.
+      if (touched.add(key)) {
+        Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+      }
+      return value;
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Stores {@code value} for {@code key}, evicting the least recently used entries if the cache
+   * grows over its max size.
+   */
+  public void put(HashCode key, byte[] value) throws IOException {
+    if (!enabled) {
+      return;
+    }
+    Path entry = entryPath(key);
+    Files.createDirectories(entry.getParent());
+    Path tmp = Files.createTempFile(entry.getParent(), ".tmp-", "");
+    boolean evict;
+    try {
+      Files.write(tmp, value);
+      synchronized (this) {
+        // The entry might be overwritten, so only the difference counts towards the size.
+        long previousSize = 0;
+        try {
+          previousSize = Files.size(entry);
+        } catch (NoSuchFileException e) {
+          // New entry
+        }
+        try {
+          Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING,
+              StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+          Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING);
+        }
+        totalSize += value.length - previousSize;
+        evict = totalSize > maxSize;
+      }
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+    touched.add(key);
+    if (evict) {
+      evict();
+    }
+  }
+
+  private Path entryPath(HashCode key) throws IOException {
+    String hex = key.toString();
+    return getDir().resolve(hex.substring(0, 2)).resolve(hex.substring(2));
+  }
+
+  private synchronized Path getDir() throws IOException {
+    if (dir == null) {
+      dir = dirFactory.getCacheDir("transform_cache");
+      totalSize = 0;
+      for (Entry entry : listEntries(dir)) {
+        totalSize += entry.size;
+      }
+    }
+    return dir;
+  }
+
+  /** Removes the least recently used entries until the cache is under the eviction target. */
+  private synchronized void evict() throws IOException {
+    List<Entry> entries = listEntries(getDir());
+    entries.sort(Comparator.comparing(e -> e.lastAccess));
+    long size = 0;
+    for (Entry entry : entries) {
+      size += entry.size;
+    }
+    long target = (long) (maxSize * EVICTION_TARGET);
+    int removed = 0;
+    for (Entry entry : entries) {
+      if (size <= target) {
+        break;
+      }
+      Files.deleteIfExists(entry.path);
+      size -= entry.size;
+      removed++;
+    }
+    totalSize = size;
+    logger.atInfo().log("Evicted %d entries from the transform cache", removed);
+  }
+
+  private static List<Entry> listEntries(Path dir) throws IOException {
+    List<Entry> entries = new ArrayList<>();
+    Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        if (attrs.isRegularFile() && !file.getFileName().toString().startsWith(".tmp-")) {
+          entries.add(new Entry(file, attrs.size(), attrs.lastModifiedTime()));
+        }
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFileFailed(Path file, IOException exc) {
+        // Entries might be removed concurrently by other processes.
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return entries;
+  }
+
+  private static final class Entry {
+
+    private final Path path;
+    private final long size;
+    private final FileTime lastAccess;
+
+    private Entry(Path path, long size, FileTime lastAccess) {
+      this.path = path;
+      this.size = size;
+      this.lastAccess = lastAccess;
+    }
+  }
+}
@@ -17,23 +17,31 @@
 package com.google.copybara;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
 
 import com.beust.jcommander.internal.Lists;
 import com.google.common.base.Strings;
 import com.google.copybara.util.CommandOutputWithStatus;
 import com.google.copybara.util.CommandRunner;
+import com.google.copybara.shell.AbnormalTerminationException;
 import com.google.copybara.shell.Command;
 import com.google.copybara.shell.CommandException;
 import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.List;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 import java.util.logging.StreamHandler;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -101,12 +109,117 @@ public class CommandRunnerTest {
     Command command = new Command(new String[]{"cat", largeFile.toAbsolutePath().toString()});
     CommandOutputWithStatus result = runCommand(new CommandRunner(command).withVerbose(true));
     assertThat(result.getTerminationStatus().success()).isTrue();
+    assertThat(result.getStdout()).hasLength(LINES_SIZE * (singleLine.length() + 1));
 
-    for (int i = 1; i < LINES_SIZE - 1; i++) {
-      assertThat(logLines.get(i)).endsWith(singleLine);
+    // Only the start and the end of the output are logged
+    assertThat(logLines.size()).isLessThan(1000);
+    int truncated = -1;
+    for (int i = 1; i < logLines.size() - 1; i++) {
+      if (logLines.get(i).contains("... truncated")) {
+        assertThat(truncated).isEqualTo(-1);
+        truncated = i;
+        assertThat(logLines.get(i))
+            .endsWith("the output has " + LINES_SIZE * (singleLine.length() + 1) + " bytes");
+      } else {
+        assertThat(logLines.get(i)).endsWith(singleLine);
+      }
     }
+    assertThat(truncated).isGreaterThan(1);
+    assertThat(truncated).isLessThan(logLines.size() - 2);
+  }
+
+  @Test
+  public void testCommandSpillsBigOutput() throws Exception {
+    Command command = new Command(new String[]{"echo", "hello", "world"});
+    CommandOutputWithStatus result =
+        runCommand(new CommandRunner(command).withMaxOutputInMemory(5));
+    assertThat(result.getTerminationStatus().success()).isTrue();
+    assertThat(result.getStdout()).isEqualTo("hello world\n");
+    // The content is kept once it is read, and not copied
+    assertThat(result.getStdout()).isEqualTo("hello world\n");
+    assertThat(result.getStdoutBytes()).isSameAs(result.getStdoutBytes());
+    assertLogContains(
+        "Executing [echo hello world]", "'echo' STDOUT: hello world", "Command 'echo' finished");
+  }
+
+  @Test
+  public void testCommandSpillsToOutputSpillDir() throws Exception {
+    Path spillDir = Files.createTempDirectory("spill");
+    Command command = new Command(new String[]{"echo", "hello", "world"});
+    CommandOutputWithStatus result = runCommand(
+        new CommandRunner(command).withMaxOutputInMemory(5).withOutputSpillDir(spillDir));
+    assertThat(result.getTerminationStatus().success()).isTrue();
+    assertThat(listFiles(spillDir)).hasSize(1);
+
+    assertThat(result.getStdout()).isEqualTo("hello world\n");
+    assertThat(listFiles(spillDir)).isEmpty();
+  }
+
+  @Test
+  public void testCloseDeletesUnreadSpilledOutput() throws Exception {
+    Path spillDir = Files.createTempDirectory("spill");
+    Command command = new Command(new String[]{"echo", "hello", "world"});
+    CommandOutputWithStatus result = runCommand(
+        new CommandRunner(command).withMaxOutputInMemory(5).withOutputSpillDir(spillDir));
+    assertThat(listFiles(spillDir)).hasSize(1);
+
+    result.close();
+    assertThat(listFiles(spillDir)).isEmpty();
   }
 
+  @Test
+  public void testDeleteUnreadOutputs() throws Exception {
+    Command command = new Command(new String[]{"echo", "hello", "world"});
+    CommandOutputWithStatus unread =
+        runCommand(new CommandRunner(command).withMaxOutputInMemory(5));
+    CommandOutputWithStatus read =
+        runCommand(new CommandRunner(command).withMaxOutputInMemory(5));
+    assertThat(read.getStdout()).isEqualTo("hello world\n");
+
+    CommandRunner.deleteUnreadOutputs();
+    assertThat(read.getStdout()).isEqualTo("hello world\n");
+    try {
+      unread.getStdout();
+      fail();
+    } catch (UncheckedIOException expected) {
+      assertThat(expected).hasCauseThat().isInstanceOf(NoSuchFileException.class);
+    }
+    // New outputs are spilled again
+    assertThat(runCommand(new CommandRunner(command).withMaxOutputInMemory(5)).getStdout())
+        .isEqualTo("hello world\n");
+  }
+
+  private static List<Path> listFiles(Path dir) throws IOException {
+    try (Stream<Path> files = Files.list(dir)) {
+      return files.collect(Collectors.toList());
+    }
+  }
+
+  @Test
+  public void testCommandWithStdOutStream() throws Exception {
+    Command command = new Command(new String[]{"echo", "hello", "world"});
+    ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+    CommandOutputWithStatus result =
+        runCommand(new CommandRunner(command).withStdOutStream(stdout));
+    assertThat(result.getTerminationStatus().success()).isTrue();
+    assertThat(result.getStdout()).isEmpty();
+    assertThat(new String(stdout.toByteArray(), StandardCharsets.UTF_8))
+        .isEqualTo("hello world\n");
+    // Streamed output is logged too
+    assertLogContains(
+        "Executing [echo hello world]", "'echo' STDOUT: hello world", "Command 'echo' finished");
+  }
+
+  @Test
+  public void testCommandTimeout() throws Exception {
+    Command command = new Command(new String[]{"sleep", "10"});
+    try {
+      runCommand(new CommandRunner(command).withTimeout(Duration.ofMillis(100)));
+      fail();
+    } catch (AbnormalTerminationException e) {
+      assertThat(e.getResult().getTerminationStatus().success()).isFalse();
+    }
+  }
 
   private CommandOutputWithStatus runCommand(CommandRunner commandRunner) throws CommandException {
     Logger logger = Logger.getLogger(CommandRunner.class.getName());
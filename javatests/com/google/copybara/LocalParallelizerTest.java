@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.testing.FakeTicker;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.copybara.exception.ValidationException;
+import com.google.copybara.profiler.Profiler;
+import com.google.copybara.profiler.Profiler.ProfilerTask;
+import com.google.copybara.testing.profiler.RecordingListener;
+import com.google.copybara.testing.profiler.RecordingListener.EventType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class LocalParallelizerTest {
+
+  @Rule
+  public final ExpectedException thrown = ExpectedException.none();
+
+  @After
+  public void tearDown() {
+    LocalParallelizer.shutdownPools();
+  }
+
+  @Test
+  public void testResultsKeepOrder() throws Exception {
+    List<Integer> elements = IntStream.range(0, 1000).boxed().collect(Collectors.toList());
+    List<List<Integer>> batches = new LocalParallelizer(4, 1)
+        .run(elements, e -> e % 10 == 0 ? 1000 : 1, ImmutableList::copyOf, /*profiler=*/null);
+
+    assertThat(batches.size()).isGreaterThan(4);
+    assertThat(Iterables.concat(batches)).containsExactlyElementsIn(elements).inOrder();
+  }
+
+  @Test
+  public void testHeavyElementsGetTheirOwnBatch() throws Exception {
+    List<Integer> elements = IntStream.range(0, 100).boxed().collect(Collectors.toList());
+    List<List<Integer>> batches = new LocalParallelizer(2, 1)
+        .run(elements, e -> e < 2 ? 1_000_000 : 1, ImmutableList::copyOf, /*profiler=*/null);
+
+    assertThat(batches.get(0)).containsExactly(0);
+    assertThat(batches.get(1)).containsExactly(1);
+  }
+
+  @Test
+  public void testSmallListsRunInCaller() throws Exception {
+    Thread caller = Thread.currentThread();
+    List<Thread> threads = new LocalParallelizer(4, 10)
+        .run(ImmutableList.of(1, 2, 3), e -> Thread.currentThread());
+
+    assertThat(threads).containsExactly(caller);
+  }
+
+  @Test
+  public void testErrorsArePropagated() throws Exception {
+    thrown.expect(ValidationException.class);
+    thrown.expectMessage("Oops");
+    new LocalParallelizer(4, 1).run(ImmutableList.of(1, 2, 3, 4, 5), e -> {
+      throw new ValidationException("Oops");
+    });
+  }
+
+  @Test
+  public void testStopWhenCancelsPendingBatches() throws Exception {
+    List<Integer> elements = IntStream.range(0, 100).boxed().collect(Collectors.toList());
+    List<List<Integer>> batches = new LocalParallelizer(2, 1)
+        .run(elements, e -> 1, batch -> {
+          List<Integer> result = ImmutableList.copyOf(batch);
+          if (!result.contains(0)) {
+            Uninterruptibles.sleepUninterruptibly(100, TimeUnit.MILLISECONDS);
+          }
+          return result;
+        }, /*profiler=*/null, batch -> batch.contains(0));
+
+    // 2 threads * 4 batches per thread
+    assertThat(batches.size()).isLessThan(8);
+    assertThat(batches.get(0)).contains(0);
+  }
+
+  @Test
+  public void testProfilerRecordsBatches() throws Exception {
+    Profiler profiler = new Profiler(new FakeTicker());
+    RecordingListener listener = new RecordingListener();
+    profiler.init(ImmutableList.of(listener));
+    try (ProfilerTask ignored = profiler.start("replace")) {
+      new LocalParallelizer(2, 1)
+          .run(ImmutableList.of(1, 2, 3, 4, 5, 6, 7, 8), e -> 1, e -> null, profiler);
+    }
+    profiler.stop();
+
+    List<String> batches = new ArrayList<>();
+    for (RecordingListener.TaskWithType event : listener.events) {
+      if (event.toString().contains("type=" + EventType.END)
+          && event.toString().contains("//copybara/replace/batch_")) {
+        batches.add(event.toString());
+      }
+    }
+    assertThat(batches).hasSize(8);
+  }
+}
@@ -20,6 +20,7 @@ import static com.google.common.truth.Truth.assertThat;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.fail;
 
+import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
@@ -34,6 +35,8 @@ import com.google.copybara.testing.OptionsBuilder;
 import com.google.copybara.testing.RecordsProcessCallDestination;
 import com.google.copybara.testing.SkylarkTestExecutor;
 import com.google.copybara.testing.TransformWorks;
+import com.google.copybara.testing.profiler.RecordingListener;
+import com.google.copybara.testing.profiler.RecordingListener.EventType;
 import com.google.copybara.transform.ExplicitReversal;
 import com.google.copybara.util.FileUtil;
 import com.google.copybara.util.console.Message.MessageType;
@@ -48,7 +51,9 @@ import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.TimeZone;
 import org.junit.Before;
 import org.junit.Test;
@@ -60,6 +65,7 @@ public class TransformWorkTest {
 
   private static final Author ORIGINAL_AUTHOR = new Author("Foo Bar", "foo@bar.com");
 
+  private OptionsBuilder options;
   private SkylarkTestExecutor skylark;
   private DummyOrigin origin;
   private RecordsProcessCallDestination destination;
@@ -70,7 +76,7 @@ public class TransformWorkTest {
   public void setup() throws IOException {
     origin = new DummyOrigin().setAuthor(ORIGINAL_AUTHOR);
     destination = new RecordsProcessCallDestination();
-    OptionsBuilder options = new OptionsBuilder();
+    options = new OptionsBuilder();
     console = new TestingConsole();
     options.setConsole(console);
     options.testingOptions.origin = origin;
@@ -538,6 +544,224 @@ public class TransformWorkTest {
         .containsEntry("folder/file.txt", "foo" + now);
   }
 
+  @Test
+  public void testRunAfterWritePathSeesNewContent() throws Exception {
+    options.workflowOptions.negativeMatchCache = true;
+    FileSystem fileSystem = Jimfs.newFileSystem();
+    Path base = fileSystem.getPath("testRunAfterWritePathSeesNewContent");
+    writeFile(base, "folder/file.txt", "none");
+
+    Files.createDirectories(workdir.resolve("folder"));
+    origin.addChange(0, base, "message", /*matchesGlob=*/true);
+
+    // The first replace records that the old content doesn't match. The second one has to see
+    // the content written by write_path instead of reusing the hash of the old content.
+    runWorkflow("test", ""
+        + "def test(ctx):\n"
+        + "    ctx.run(core.transform([core.replace(before = 'foo', after = 'bar')],"
+        + " ignore_noop = True))\n"
+        + "    ctx.write_path(ctx.new_path('folder/file.txt'), 'foo')\n"
+        + "    ctx.run(core.replace(before = 'foo', after = 'bar'))");
+
+    assertThat(destination.processed.get(0).getWorkdir())
+        .containsEntry("folder/file.txt", "bar");
+  }
+
+  @Test
+  public void testBatchedReadAndWrite() throws Exception {
+    FileSystem fileSystem = Jimfs.newFileSystem();
+    Path base = fileSystem.getPath("testBatchedReadAndWrite");
+    writeFile(base, "folder/file1.txt", "foo");
+    writeFile(base, "folder/file2.txt", "bar");
+    writeFile(base, "other/file3.txt", "baz");
+
+    Files.createDirectories(workdir.resolve("folder"));
+    origin.addChange(0, base, "message", /*matchesGlob=*/true);
+
+    runWorkflow("test", ""
+        + "def test(ctx):\n"
+        + "    paths = ctx.list_files(glob(['folder/**']))\n"
+        + "    contents = ctx.read_paths(paths)\n"
+        + "    ctx.write_paths([ctx.new_path('copy/' + p.name) for p in paths],"
+        + " [c + '!' for c in contents])\n"
+        + "    ctx.set_message(str([p.path for p in ctx.list_files(glob(['copy/**']))]))");
+
+    assertThat(destination.processed.get(0).getWorkdir())
+        .containsExactlyEntriesIn(ImmutableMap.of(
+            "folder/file1.txt", "foo",
+            "folder/file2.txt", "bar",
+            "other/file3.txt", "baz",
+            "copy/file1.txt", "foo!",
+            "copy/file2.txt", "bar!"));
+    // Files written by the transformation are listed too
+    assertThat(destination.processed.get(0).getChangesSummary())
+        .isEqualTo("[\"copy/file1.txt\", \"copy/file2.txt\"]");
+  }
+
+  @Test
+  public void testTransformPaths() throws Exception {
+    FileSystem fileSystem = Jimfs.newFileSystem();
+    Path base = fileSystem.getPath("testTransformPaths");
+    writeFile(base, "folder/file1.txt", "foo");
+    writeFile(base, "folder/file2.txt", "bar");
+    writeFile(base, "folder/file3.txt", "foo bar");
+
+    Files.createDirectories(workdir.resolve("folder"));
+    origin.addChange(0, base, "message", /*matchesGlob=*/true);
+
+    runWorkflow("test", ""
+        + "def _upper_foo(path, content):\n"
+        + "    if 'foo' not in content:\n"
+        + "        return None\n"
+        + "    return content.replace('foo', 'FOO')\n"
+        + "\n"
+        + "def test(ctx):\n"
+        + "    modified = ctx.transform_paths(ctx.list_files(glob(['**.txt'])), _upper_foo,"
+        + " parallel = True)\n"
+        + "    ctx.set_message(str([p.path for p in modified]))");
+
+    assertThat(destination.processed.get(0).getWorkdir())
+        .containsExactlyEntriesIn(ImmutableMap.of(
+            "folder/file1.txt", "FOO",
+            "folder/file2.txt", "bar",
+            "folder/file3.txt", "FOO bar"));
+    assertThat(destination.processed.get(0).getChangesSummary())
+        .isEqualTo("[\"folder/file1.txt\", \"folder/file3.txt\"]");
+  }
+
+  @Test
+  public void testTransformPathsInParallel() throws Exception {
+    options.workflowOptions.threads = 4;
+    int files = options.workflowOptions.threadsMinSize * 3;
+    FileSystem fileSystem = Jimfs.newFileSystem();
+    Path base = fileSystem.getPath("testTransformPathsInParallel");
+    ImmutableMap.Builder<String, String> expectedFiles = ImmutableMap.builder();
+    List<String> expectedModified = new ArrayList<>();
+    for (int i = 0; i < files; i++) {
+      String path = "folder/file" + i + ".txt";
+      writeFile(base, path, i % 2 == 0 ? "foo" : "bar");
+      expectedFiles.put(path, i % 2 == 0 ? "FOO" : "bar");
+      if (i % 2 == 0) {
+        expectedModified.add("\"" + path + "\"");
+      }
+    }
+
+    Files.createDirectories(workdir.resolve("folder"));
+    origin.addChange(0, base, "message", /*matchesGlob=*/true);
+
+    runWorkflow("test", ""
+        + "def _upper_foo(path, content):\n"
+        + "    if 'foo' not in content:\n"
+        + "        return None\n"
+        + "    return content.replace('foo', 'FOO')\n"
+        + "\n"
+        + "def test(ctx):\n"
+        + "    paths = [ctx.new_path('folder/file' + str(i) + '.txt') for i in range(" + files
+        + ")]\n"
+        + "    modified = ctx.transform_paths(paths, _upper_foo, parallel = True)\n"
+        + "    ctx.set_message(str([p.path for p in modified]))");
+
+    assertThat(destination.processed.get(0).getWorkdir())
+        .containsExactlyEntriesIn(expectedFiles.build());
+    // The modified paths are returned in the same order as the paths passed
+    assertThat(destination.processed.get(0).getChangesSummary())
+        .isEqualTo("[" + Joiner.on(", ").join(expectedModified) + "]");
+  }
+
+  @Test
+  public void testTransformPathsInParallelFails() throws Exception {
+    options.workflowOptions.threads = 4;
+    int files = options.workflowOptions.threadsMinSize * 3;
+    FileSystem fileSystem = Jimfs.newFileSystem();
+    Path base = fileSystem.getPath("testTransformPathsInParallelFails");
+    for (int i = 0; i < files; i++) {
+      writeFile(base, "folder/file" + i + ".txt", "foo");
+    }
+
+    Files.createDirectories(workdir.resolve("folder"));
+    origin.addChange(0, base, "message", /*matchesGlob=*/true);
+
+    try {
+      runWorkflow("test", ""
+          + "def _fail_on_one(path, content):\n"
+          + "    if path.path == 'folder/file150.txt':\n"
+          + "        fail('Cannot transform ' + path.path)\n"
+          + "    return None\n"
+          + "\n"
+          + "def test(ctx):\n"
+          + "    paths = [ctx.new_path('folder/file' + str(i) + '.txt') for i in range(" + files
+          + ")]\n"
+          + "    ctx.transform_paths(paths, _fail_on_one, parallel = True)");
+      fail();
+    } catch (ValidationException e) {
+      assertThat(e).hasMessageThat().contains("Cannot transform folder/file150.txt");
+    }
+  }
+
+  @Test
+  public void testTransformPathsProfilesEachCall() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    options.general.profiler().init(ImmutableList.of(listener));
+    options.workflowOptions.threads = 4;
+    int files = options.workflowOptions.threadsMinSize * 3;
+    FileSystem fileSystem = Jimfs.newFileSystem();
+    Path base = fileSystem.getPath("testTransformPathsProfilesEachCall");
+    for (int i = 0; i < files; i++) {
+      writeFile(base, "folder/file" + i + ".txt", "foo");
+    }
+
+    Files.createDirectories(workdir.resolve("folder"));
+    origin.addChange(0, base, "message", /*matchesGlob=*/true);
+
+    runWorkflow("test", ""
+        + "def _upper_foo(path, content):\n"
+        + "    return content.replace('foo', 'FOO')\n"
+        + "\n"
+        + "def test(ctx):\n"
+        + "    paths = [ctx.new_path('folder/file' + str(i) + '.txt') for i in range(" + files
+        + ")]\n"
+        + "    ctx.transform_paths(paths, _upper_foo, parallel = True)");
+
+    // Calls from the pool threads are children of ctx.transform_paths too
+    long calls = listener.events.stream()
+        .filter(e -> e.getType() == EventType.END
+            && e.getTask().getDescription().endsWith("/ctx.transform_paths/_upper_foo"))
+        .count();
+    assertThat(calls).isEqualTo(files);
+  }
+
+  @Test
+  public void testTransformPathsInParallelCannotModifyGlobals() throws Exception {
+    options.workflowOptions.threads = 4;
+    int files = options.workflowOptions.threadsMinSize * 3;
+    FileSystem fileSystem = Jimfs.newFileSystem();
+    Path base = fileSystem.getPath("testTransformPathsInParallelCannotModifyGlobals");
+    for (int i = 0; i < files; i++) {
+      writeFile(base, "folder/file" + i + ".txt", "foo");
+    }
+
+    Files.createDirectories(workdir.resolve("folder"));
+    origin.addChange(0, base, "message", /*matchesGlob=*/true);
+
+    try {
+      runWorkflow("test", ""
+          + "SEEN = []\n"
+          + "\n"
+          + "def _record(path, content):\n"
+          + "    SEEN.append(path.path)\n"
+          + "    return None\n"
+          + "\n"
+          + "def test(ctx):\n"
+          + "    paths = [ctx.new_path('folder/file' + str(i) + '.txt') for i in range(" + files
+          + ")]\n"
+          + "    ctx.transform_paths(paths, _record, parallel = True)");
+      fail();
+    } catch (ValidationException e) {
+      // The globals of the config are frozen, so concurrent calls cannot share mutable state
+      assertThat(e).hasMessageThat().contains("frozen");
+    }
+  }
+
   @Test
   public void testWriteCreatesSubdirs() throws Exception {
     FileSystem fileSystem = Jimfs.newFileSystem();
@@ -601,6 +601,20 @@ public class WorkflowTest {
     workflow.run(workdir, ImmutableList.of("0"));
   }
 
+  @Test
+  public void iterativeWorkflowIncrementalCheckoutNotSupported() throws Exception {
+    origin.singleFileChange(0, "one", "file.txt", "a");
+    origin.singleFileChange(1, "two", "file.txt", "b");
+    origin.singleFileChange(2, "three", "file.txt", "c");
+    transformations = ImmutableList.of();
+    options.workflowOptions.incrementalCheckout = true;
+    Workflow<?, ?> workflow = iterativeWorkflow(/*previousRef=*/"0");
+    workflow.run(workdir, ImmutableList.of("2"));
+    assertThat(destination.processed).hasSize(2);
+    assertThat(destination.processed.get(0).getContent("file.txt")).isEqualTo("b");
+    assertThat(destination.processed.get(1).getContent("file.txt")).isEqualTo("c");
+  }
+
   @Test
   public void iterativeWorkflowEmptyChanges() throws Exception {
     origin.addSimpleChange(/*timestamp*/ 1);
@@ -1950,6 +1964,27 @@ public class WorkflowTest {
     loadConfig(config).getMigration("default").run(workdir, ImmutableList.of());
   }
 
+  @Test
+  public void testReversibleCheckHardLinks() throws Exception {
+    origin.singleFileChange(0, "one commit", "foo.txt", "foo");
+
+    String config = ""
+        + "core.workflow(\n"
+        + "    name = 'default',\n"
+        + "    origin = testing.origin(),\n"
+        + "    destination = testing.destination(),\n"
+        + "    transformations = [core.replace(before = 'foo', after = 'bar')],\n"
+        + "    authoring = " + authoring + ",\n"
+        + "    reversible_check = True,\n"
+        + ")\n";
+    options.workflowOptions.reversibleCheckHardLinks = true;
+    loadConfig(config).getMigration("default").run(workdir, ImmutableList.of());
+
+    // The reverse transformation doesn't modify the files shared with the checkout
+    assertThat(Iterables.getOnlyElement(destination.processed).getContent("foo.txt"))
+        .isEqualTo("bar");
+  }
+
   @Test
   public void testSkylarkTransformParams() throws Exception {
     origin.singleFileChange(0, "one commit", "foo.txt", "1");
@@ -2282,6 +2317,74 @@ public class WorkflowTest {
   }
 
 
+  @Test
+  public void testGitOriginIncrementalCheckout() throws Exception {
+    Path originPath = Files.createTempDirectory("origin");
+    GitRepository origin = GitRepository.newRepo(true, originPath, getGitEnv()).init();
+    Path destinationPath = Files.createTempDirectory("destination");
+    GitRepository destRepo = GitRepository
+        .newBareRepo(destinationPath, getGitEnv(), true)
+        .init();
+
+    String config = "core.workflow("
+        + "    name = 'default',"
+        + "    origin = git.origin( url = 'file://" + origin.getWorkTree() + "', ref = 'master'),\n"
+        + "    destination = git.destination( url = 'file://" + destRepo.getGitDir() + "'),\n"
+        + "    origin_files = glob(['**'], exclude = ['excluded.txt']),\n"
+        + "    transformations = [core.replace(before = 'foo', after = 'bar')],\n"
+        + "    authoring = " + authoring + ","
+        + "    mode = '" + WorkflowMode.ITERATIVE + "',"
+        + ")\n";
+
+    Files.write(originPath.resolve("changed.txt"), "foo 1".getBytes(UTF_8));
+    Files.write(originPath.resolve("untouched.txt"), "foo untouched".getBytes(UTF_8));
+    Files.write(originPath.resolve("excluded.txt"), "foo 1".getBytes(UTF_8));
+    origin.add().all().run();
+    origin.commit("Foo <foo@bara.com>", ZonedDateTime.now(ZoneId.systemDefault()), "change1");
+    for (int i = 2; i <= 3; i++) {
+      Files.write(originPath.resolve("changed.txt"), ("foo " + i).getBytes(UTF_8));
+      Files.write(originPath.resolve("excluded.txt"), ("foo " + i).getBytes(UTF_8));
+      origin.add().all().run();
+      origin.commit("Foo <foo@bara.com>", ZonedDateTime.now(ZoneId.systemDefault()), "change" + i);
+    }
+
+    options.setWorkdirToRealTempDir();
+    options.setEnvironment(GitTestUtil.getGitEnv());
+    options.setHomeDir(Files.createTempDirectory("home").toString());
+    options.gitDestination.committerName = "Foo";
+    options.gitDestination.committerEmail = "foo@foo.com";
+    options.workflowOptions.initHistory = true;
+    options.workflowOptions.incrementalCheckout = true;
+    loadConfig(config).getMigration("default").run(workdir, ImmutableList.of());
+
+    assertThat(destRepo.log("HEAD").run()).hasSize(3);
+    for (int i = 1; i <= 3; i++) {
+      String commit = "HEAD~" + (3 - i);
+      assertThat(destRepo.simpleCommand("show", commit + ":changed.txt").getStdout())
+          .isEqualTo("bar " + i);
+      // The transformation modified this file in the kept checkout in the previous change
+      assertThat(destRepo.simpleCommand("show", commit + ":untouched.txt").getStdout())
+          .isEqualTo("bar untouched");
+      assertThat(destRepo.simpleCommand("ls-tree", "--name-only", commit).getStdout())
+          .isEqualTo("changed.txt\nuntouched.txt\n");
+    }
+    // Kept next to the workdir, in the same file system
+    assertThat(Files.exists(workdir.resolveSibling(
+        workdir.getFileName() + "_incremental_checkout").resolve("checkout.index"))).isTrue();
+  }
+
+  @Test
+  public void testIncrementalCheckoutDisabledAfterFailedMove() throws Exception {
+    WorkflowRunHelper.IncrementalCheckout incrementalCheckout =
+        new WorkflowRunHelper.IncrementalCheckout();
+    Path dir = incrementalCheckout.getDir(workdir);
+    assertThat(dir.getParent().getParent()).isEqualTo(workdir.toAbsolutePath().getParent());
+
+    // The parent of the target doesn't exist, so the move fails
+    assertThat(incrementalCheckout.lend(workdir.resolve("missing/checkout"))).isFalse();
+    assertThat(incrementalCheckout.getDir(workdir)).isNull();
+  }
+
   @Test
   public void testHgOriginNoFlags() throws Exception {
     Path originPath = Files.createTempDirectory("origin");
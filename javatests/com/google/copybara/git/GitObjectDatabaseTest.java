@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.copybara.testing.git.GitTestUtil.getGitEnv;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.copybara.git.CatFileSession.ObjectInfo;
+import com.google.copybara.git.GitRepository.GitObjectType;
+import com.google.copybara.shell.Command;
+import com.google.copybara.util.CommandRunner;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class GitObjectDatabaseTest {
+
+  private GitRepository repository;
+  private Path gitDir;
+  private Path workdir;
+
+  @Before
+  public void setup() throws Exception {
+    workdir = Files.createTempDirectory("workdir");
+    gitDir = Files.createTempDirectory("gitdir");
+    repository = GitRepository.newBareRepo(gitDir, getGitEnv(), /*verbose=*/false)
+        .withWorkTree(workdir);
+    repository.init();
+  }
+
+  @Test
+  public void testLooseObjects() throws Exception {
+    commitVersions(3);
+    GitObjectDatabase database = GitObjectDatabase.forGitDir(gitDir);
+
+    assertSameObjects(database);
+  }
+
+  @Test
+  public void testPackedObjectsWithDeltas() throws Exception {
+    commitVersions(20);
+    repository.simpleCommand("repack", "-a", "-d", "-f", "--depth=50", "--window=50");
+    // Small cache so that delta bases have to be read again
+    GitObjectDatabase database = new GitObjectDatabase(gitDir, /*deltaBaseCacheBytes=*/1000);
+
+    assertThat(repository.simpleCommand("verify-pack", "-v", packIndex()).getStdout())
+        .contains("chain length");
+    assertSameObjects(database);
+  }
+
+  @Test
+  public void testLongDeltaChain() throws Exception {
+    importVersions(3000);
+    repository.simpleCommand("repack", "-a", "-d", "-f", "--depth=4095", "--window=2");
+    // Find the object at the end of the longest chain. Object lines are:
+    // sha1 type size size-in-pack offset depth base-sha1
+    String deepest = null;
+    int maxDepth = 0;
+    for (String line : Splitter.on('\n').omitEmptyStrings().split(
+        repository.simpleCommand("verify-pack", "-v", packIndex()).getStdout())) {
+      List<String> fields = Splitter.on(' ').omitEmptyStrings().splitToList(line);
+      if (fields.size() == 7 && Integer.parseInt(fields.get(5)) > maxDepth) {
+        deepest = fields.get(0);
+        maxDepth = Integer.parseInt(fields.get(5));
+      }
+    }
+    assertThat(maxDepth).isGreaterThan(500);
+    // No room in the cache for the bases, so that the whole chain is resolved
+    GitObjectDatabase database = new GitObjectDatabase(gitDir, /*deltaBaseCacheBytes=*/1000);
+
+    // Read it with a small stack, that resolving the chain recursively could overflow
+    String sha1 = deepest;
+    AtomicReference<ObjectInfo> object = new AtomicReference<>();
+    Thread thread = new Thread(null, () -> object.set(database.read(sha1)), "small-stack",
+        128 * 1024);
+    thread.start();
+    thread.join();
+
+    assertThat(object.get()).isNotNull();
+    assertThat(object.get().getContent())
+        .isEqualTo(repository.simpleCommand("cat-file", "blob", sha1).getStdoutBytes());
+  }
+
+  @Test
+  public void testNewPacksAreSeen() throws Exception {
+    commitVersions(2);
+    repository.simpleCommand("repack", "-a", "-d");
+    GitObjectDatabase database = GitObjectDatabase.forGitDir(gitDir);
+    String first = repository.parseRef("HEAD");
+    assertThat(database.read(first).getType()).isEqualTo(GitObjectType.COMMIT);
+
+    commitVersions(2);
+    repository.simpleCommand("repack", "-a", "-d");
+    repository.simpleCommand("prune-packed");
+
+    assertSameObjects(database);
+  }
+
+  @Test
+  public void testMissingObject() throws Exception {
+    commitVersions(1);
+    GitObjectDatabase database = GitObjectDatabase.forGitDir(gitDir);
+
+    assertThat(database.read(Strings.repeat("a", 40))).isNull();
+    assertThat(database.read("HEAD")).isNull();
+  }
+
+  @Test
+  public void testReplaceRefsAreLeftToGit() throws Exception {
+    commitVersions(2);
+    String first = repository.parseRef("HEAD~1");
+    String second = repository.parseRef("HEAD");
+    GitObjectDatabase database = new GitObjectDatabase(gitDir, /*deltaBaseCacheBytes=*/1000);
+    assertThat(database.read(first)).isNotNull();
+
+    repository.simpleCommand("replace", first, second);
+    assertThat(database.read(first)).isNull();
+
+    // Also when the replace ref is packed
+    repository.simpleCommand("pack-refs", "--all");
+    assertThat(database.read(first)).isNull();
+
+    repository.simpleCommand("replace", "-d", first);
+    assertThat(database.read(first)).isNotNull();
+  }
+
+  @Test
+  public void testSharedPerGitDir() throws Exception {
+    GitObjectDatabase database = GitObjectDatabase.forGitDir(gitDir);
+
+    assertThat(GitObjectDatabase.forGitDir(gitDir.resolve("../" + gitDir.getFileName())))
+        .isSameAs(database);
+    GitObjectDatabase.closeAll();
+    assertThat(GitObjectDatabase.forGitDir(gitDir)).isNotSameAs(database);
+  }
+
+  @Test
+  public void testApplyDelta() throws Exception {
+    byte[] base = "Hello world".getBytes(UTF_8);
+    byte[] delta = {
+        11, // base size
+        13, // result size
+        (byte) 0x91, 6, 5, // copy 5 bytes from offset 6: "world"
+        2, ',', ' ', // insert ", "
+        (byte) 0x90, 5, // copy 5 bytes from offset 0: "Hello"
+        1, '!', // insert "!"
+    };
+
+    assertThat(new String(GitObjectDatabase.applyDelta(base, delta), UTF_8))
+        .isEqualTo("world, Hello!");
+  }
+
+  /** Commits {@code count} versions of a file big enough for git to store them as deltas. */
+  private void commitVersions(int count) throws Exception {
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i < 2000; i++) {
+      content.append("line ").append(i).append('\n');
+    }
+    Files.createDirectories(workdir.resolve("dir"));
+    for (int i = 0; i < count; i++) {
+      content.append("version ").append(System.nanoTime()).append('\n');
+      Files.write(workdir.resolve("dir/file.txt"), content.toString().getBytes(UTF_8));
+      Files.write(workdir.resolve("small.txt"), ("small " + i).getBytes(UTF_8));
+      repository.add().all().run();
+      repository.simpleCommand("commit", "-m", "version " + i);
+    }
+  }
+
+  /**
+   * Imports {@code count} commits that change one line of a file each, so that git stores the
+   * versions as long delta chains. Much faster than committing them one by one.
+   */
+  private void importVersions(int count) throws Exception {
+    List<String> lines = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      lines.add("line " + i + "\n");
+    }
+    ByteArrayOutputStream input = new ByteArrayOutputStream();
+    for (int i = 0; i < count; i++) {
+      lines.set(i * 7 % lines.size(), "changed " + i + "\n");
+      byte[] content = String.join("", lines).getBytes(UTF_8);
+      String message = "version " + i;
+      input.write(String.format(""
+              + "commit refs/heads/master\n"
+              + "committer Foo Bar <foo@bar.com> %d +0000\n"
+              + "data %d\n%s\n"
+              + "M 644 inline file.txt\n"
+              + "data %d\n",
+          1000 + i, message.length(), message, content.length).getBytes(UTF_8));
+      input.write(content);
+      input.write('\n');
+    }
+    new CommandRunner(new Command(
+        new String[] {"git", "--git-dir=" + gitDir, "fast-import", "--quiet"}, getGitEnv(),
+        workdir.toFile()))
+        .withInput(input.toByteArray())
+        .execute();
+  }
+
+  private String packIndex() throws Exception {
+    try (Stream<Path> files = Files.list(gitDir.resolve("objects/pack"))) {
+      return files.filter(p -> p.toString().endsWith(".idx")).findFirst().get().toString();
+    }
+  }
+
+  /** Checks that all the objects in the repository are read as 'git cat-file' reads them. */
+  private void assertSameObjects(GitObjectDatabase database) throws Exception {
+    List<String> objects = Splitter.on('\n').omitEmptyStrings().splitToList(
+        repository.simpleCommand("cat-file", "--batch-all-objects", "--batch-check").getStdout());
+    assertThat(objects).isNotEmpty();
+    for (String line : objects) {
+      List<String> fields = Splitter.on(' ').splitToList(line);
+      String sha1 = fields.get(0);
+      ObjectInfo object = database.read(sha1);
+      assertThat(object).isNotNull();
+      assertThat(object.getType().name().toLowerCase()).isEqualTo(fields.get(1));
+      assertThat(object.getSize()).isEqualTo(Long.parseLong(fields.get(2)));
+      assertThat(object.getContent()).isEqualTo(
+          repository.simpleCommand("cat-file", fields.get(1), sha1).getStdoutBytes());
+    }
+  }
+}
@@ -54,6 +54,7 @@ import com.google.copybara.util.console.Message.MessageType;
 import com.google.copybara.util.console.testing.TestingConsole;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.nio.file.attribute.PosixFilePermission;
 import java.time.Instant;
 import java.time.ZoneId;
@@ -298,6 +299,130 @@ public class GitOriginTest {
     assertThat(Files.exists(testFile)).isFalse();
   }
 
+  @Test
+  public void testCheckoutIncrementally() throws Exception {
+    Path workdir = checkoutDir.resolve("incremental");
+    Files.createDirectories(workdir);
+    assertThat(newReader().checkoutIncrementally(origin.resolve("master"), workdir)).isTrue();
+    assertThatPath(workdir)
+        .containsFile("test.txt", "some content")
+        .containsNoMoreFiles();
+
+    Files.write(remote.resolve("test.txt"), "new content".getBytes(UTF_8));
+    Files.write(remote.resolve("other.txt"), "other".getBytes(UTF_8));
+    repo.add().files("test.txt", "other.txt").run();
+    git("commit", "-m", "second commit");
+    // Modifications in the checkout are reverted
+    Files.write(workdir.resolve("other.txt"), "modified".getBytes(UTF_8));
+
+    assertThat(newReader().checkoutIncrementally(origin.resolve("master"), workdir)).isTrue();
+    assertThatPath(workdir)
+        .containsFile("test.txt", "new content")
+        .containsFile("other.txt", "other")
+        .containsNoMoreFiles();
+
+    git("rm", "test.txt");
+    git("commit", "-m", "third commit");
+    // A checkout of a different work tree doesn't affect the incremental one
+    newReader().checkout(origin.resolve(firstCommitRef),
+        Files.createDirectories(checkoutDir.resolve("other_checkout")));
+
+    assertThat(newReader().checkoutIncrementally(origin.resolve("master"), workdir)).isTrue();
+    assertThatPath(workdir)
+        .containsFile("other.txt", "other")
+        .containsNoMoreFiles();
+  }
+
+  @Test
+  public void testCheckoutIncrementallyOnlyWritesChangedFiles() throws Exception {
+    Files.createDirectories(remote.resolve("excluded"));
+    Files.write(remote.resolve("excluded/file.txt"), "excluded".getBytes(UTF_8));
+    Files.write(remote.resolve("untouched.txt"), "untouched".getBytes(UTF_8));
+    repo.add().files("excluded/file.txt", "untouched.txt").run();
+    git("commit", "-m", "second commit");
+    originFiles = createGlob(ImmutableList.of("**"), ImmutableList.of("excluded/**"));
+    Path workdir = Files.createDirectories(checkoutDir.resolve("incremental"));
+
+    assertThat(newReader().checkoutIncrementally(origin.resolve("master"), workdir)).isTrue();
+    assertThatPath(workdir)
+        .containsFile("test.txt", "some content")
+        .containsFile("untouched.txt", "untouched")
+        .containsNoMoreFiles();
+    Path untouched = workdir.resolve("untouched.txt");
+    Object inode = Files.getAttribute(untouched, "unix:ino");
+    FileTime mtime = Files.getLastModifiedTime(untouched);
+
+    Files.write(remote.resolve("test.txt"), "new content".getBytes(UTF_8));
+    Files.write(remote.resolve("excluded/file.txt"), "new excluded".getBytes(UTF_8));
+    repo.add().files("test.txt", "excluded/file.txt").run();
+    git("commit", "-m", "third commit");
+    // Changes the ctime of the file, like the hard links of the snapshots do
+    Path link = Files.createLink(checkoutDir.resolve("link.txt"), untouched);
+    Files.delete(link);
+    // Untracked files are removed
+    Files.write(workdir.resolve("untracked.txt"), "untracked".getBytes(UTF_8));
+
+    assertThat(newReader().checkoutIncrementally(origin.resolve("master"), workdir)).isTrue();
+    assertThatPath(workdir)
+        .containsFile("test.txt", "new content")
+        .containsFile("untouched.txt", "untouched")
+        .containsNoMoreFiles();
+    assertThat(Files.getAttribute(untouched, "unix:ino")).isEqualTo(inode);
+    assertThat(Files.getLastModifiedTime(untouched)).isEqualTo(mtime);
+  }
+
+  @Test
+  public void testCheckoutIncrementallyWithWiderOriginFiles() throws Exception {
+    Files.createDirectories(remote.resolve("excluded"));
+    Files.write(remote.resolve("excluded/file.txt"), "excluded".getBytes(UTF_8));
+    Files.write(remote.resolve("excluded/other.txt"), "other".getBytes(UTF_8));
+    repo.add().files("excluded/file.txt", "excluded/other.txt").run();
+    git("commit", "-m", "second commit");
+    originFiles = createGlob(ImmutableList.of("**"), ImmutableList.of("excluded/**"));
+    Path workdir = Files.createDirectories(checkoutDir.resolve("incremental"));
+
+    assertThat(newReader().checkoutIncrementally(origin.resolve("master"), workdir)).isTrue();
+    assertThatPath(workdir)
+        .containsFile("test.txt", "some content")
+        .containsNoMoreFiles();
+
+    Files.write(remote.resolve("excluded/file.txt"), "new excluded".getBytes(UTF_8));
+    repo.add().files("excluded/file.txt").run();
+    git("commit", "-m", "third commit");
+    originFiles = Glob.ALL_FILES;
+
+    // The files excluded by the previous origin_files are written again, changed or not
+    assertThat(newReader().checkoutIncrementally(origin.resolve("master"), workdir)).isTrue();
+    assertThatPath(workdir)
+        .containsFile("test.txt", "some content")
+        .containsFile("excluded/file.txt", "new excluded")
+        .containsFile("excluded/other.txt", "other")
+        .containsNoMoreFiles();
+
+    // And are tracked like the rest of the files afterwards
+    Files.write(workdir.resolve("excluded/other.txt"), "modified".getBytes(UTF_8));
+    assertThat(newReader().checkoutIncrementally(origin.resolve("master"), workdir)).isTrue();
+    assertThatPath(workdir)
+        .containsFile("test.txt", "some content")
+        .containsFile("excluded/file.txt", "new excluded")
+        .containsFile("excluded/other.txt", "other")
+        .containsNoMoreFiles();
+  }
+
+  @Test
+  public void testCheckoutIncrementallyNotSupported() throws Exception {
+    options.gitOrigin.originCheckoutHook = "some_hook.sh";
+    origin = origin();
+    Path workdir = Files.createDirectories(checkoutDir.resolve("incremental"));
+    Files.write(workdir.resolve("foo.txt"), "foo".getBytes(UTF_8));
+
+    assertThat(newReader().checkoutIncrementally(origin.resolve("master"), workdir)).isFalse();
+    assertThatPath(workdir)
+        .containsFile("foo.txt", "foo")
+        .containsNoMoreFiles();
+    assertThat(Files.exists(checkoutDir.resolve("incremental.index"))).isFalse();
+  }
+
   @Test
   public void testPatch() throws Exception {
     String patch = "diff --git a/foo.txt b/foo.txt\n"
@@ -623,6 +748,31 @@ public class GitOriginTest {
     assertThat(changes).isEqualTo(ImmutableList.of("three\n"));
   }
 
+  @Test
+  public void testVisitNoChangesInRoot() throws Exception {
+    String author = "John Name <john@name.com>";
+    singleFileCommit(author, "two", "bar/test.txt", "some content2");
+    singleFileCommit(author, "three", "bar/test.txt", "some content3");
+    GitRevision lastCommitRef = getLastCommitRef();
+
+    // 'git log' is limited to the roots, so it doesn't return any commit
+    originFiles = createGlob(ImmutableList.of("foo/**"));
+    Reader<GitRevision> reader = newReader();
+    List<String> changes = new ArrayList<>();
+    reader.visitChanges(lastCommitRef, input -> {
+      changes.add(input.getMessage());
+      return VisitResult.CONTINUE;
+    });
+    assertThat(changes).isEmpty();
+    assertThat(reader.findBaseline(lastCommitRef, "some_label").isPresent()).isFalse();
+    reader.visitChangesWithAnyLabel(lastCommitRef, ImmutableList.of("some_label"),
+        (input, labels) -> {
+          changes.add(input.getMessage());
+          return VisitResult.CONTINUE;
+        });
+    assertThat(changes).isEmpty();
+  }
+
   @Test
   public void testFirstParent() throws Exception {
     options.git.visitChangePageSize = 3;
@@ -26,16 +26,19 @@ import static com.google.copybara.testing.git.GitTestUtil.getGitEnv;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.fail;
 
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.copybara.authoring.Author;
 import com.google.copybara.exception.CannotResolveRevisionException;
 import com.google.copybara.exception.RepoException;
 import com.google.copybara.exception.ValidationException;
 import com.google.copybara.git.GitRepository.GitLogEntry;
+import com.google.copybara.git.GitRepository.LogCmd;
 import com.google.copybara.git.GitRepository.GitObjectType;
 import com.google.copybara.git.GitRepository.StatusFile;
 import com.google.copybara.git.GitRepository.TreeElement;
@@ -43,6 +46,7 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZoneOffset;
@@ -50,8 +54,10 @@ import java.time.ZonedDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import org.junit.Before;
 import org.junit.Test;
@@ -96,6 +102,58 @@ public class GitRepositoryTest {
     assertThat(ImmutableSet.of(after.values())).hasSize(1);
   }
 
+  @Test
+  public void testCatFileSessionIsSharedAndClosed() throws Exception {
+    Files.write(workdir.resolve("foo.txt"), new byte[]{});
+    repository.add().files("foo.txt").run();
+    repository.simpleCommand("commit", "foo.txt", "-m", "message");
+    GitRepository derived = repository
+        .withWorkTree(Files.createTempDirectory("other"))
+        .withIndexFile(Files.createTempDirectory("index").resolve("index"));
+
+    CatFileSession session = repository.catFile();
+    assertThat(derived.catFile()).isSameAs(session);
+    String sha1 = derived.parseRef("HEAD");
+    assertThat(repository.parseRef("HEAD")).isEqualTo(sha1);
+    assertThat(session.isRunning()).isTrue();
+
+    GitRepository.closeObjectSessions();
+
+    assertThat(session.isRunning()).isFalse();
+    // Instances keep working with a new session
+    assertThat(derived.parseRef("HEAD")).isEqualTo(sha1);
+    assertThat(derived.catFile()).isNotSameAs(session);
+    GitRepository.closeObjectSessions();
+  }
+
+  @Test
+  public void testCatFileSessionPerEnvironment() throws Exception {
+    Map<String, String> env = new HashMap<>(getGitEnv());
+    env.put("GIT_NO_REPLACE_OBJECTS", "1");
+    GitRepository other = GitRepository.newBareRepo(repository.getGitDir(), env,
+        /*verbose=*/true);
+
+    assertThat(other.catFile()).isNotSameAs(repository.catFile());
+    GitRepository.closeObjectSessions();
+  }
+
+  @Test
+  public void testParseRefMissing() throws Exception {
+    Files.write(workdir.resolve("foo.txt"), new byte[]{});
+    repository.add().files("foo.txt").run();
+    repository.simpleCommand("commit", "foo.txt", "-m", "message");
+
+    try {
+      repository.parseRef("refs/heads/missing");
+      fail();
+    } catch (CannotResolveRevisionException e) {
+      assertThat(e).hasMessageThat().contains("refs/heads/missing");
+    }
+    assertThat(repository.refExists("refs/heads/missing")).isFalse();
+    assertThat(repository.refExists("refs/heads/master")).isTrue();
+    GitRepository.closeObjectSessions();
+  }
+
   @Test
   public void testBadCommitInLog() throws RepoException, IOException {
     Files.write(workdir.resolve("foo.txt"), new byte[]{});
@@ -375,6 +433,72 @@ public class GitRepositoryTest {
     assertThat(paged.toString()).isEqualTo(singlePage.toString());
   }
 
+  @Test
+  public void testLogConsumer() throws Exception {
+    createGraphOfCommits();
+    LogCmd logCmd = repository.log("master")
+        .includeFiles(true)
+        .includeMergeDiff(true)
+        .firstParent(false);
+    List<GitLogEntry> streamed = new ArrayList<>();
+    logCmd.run(entry -> {
+      streamed.add(entry);
+      return true;
+    });
+    assertThat(streamed.toString()).isEqualTo(logCmd.run().toString());
+
+    // Stop after a few entries
+    List<GitLogEntry> firstEntries = new ArrayList<>();
+    logCmd.run(entry -> {
+      firstEntries.add(entry);
+      return firstEntries.size() < 3;
+    });
+    assertThat(firstEntries.toString()).isEqualTo(streamed.subList(0, 3).toString());
+  }
+
+  @Test
+  public void testLogConsumerFailure() throws Exception {
+    createGraphOfCommits();
+    try {
+      repository.log("master").run(entry -> {
+        throw new RepoException("consumer failure");
+      });
+      fail();
+    } catch (RepoException e) {
+      assertThat(e).hasMessageThat().isEqualTo("consumer failure");
+    }
+    // The repository is still usable
+    assertThat(repository.log("master").withLimit(1).run()).hasSize(1);
+  }
+
+  @Test
+  public void testLogConsumerTimeoutExcludesConsumerTime() throws Exception {
+    createGraphOfCommits();
+    LogCmd logCmd = repository.log("master").firstParent(false);
+    List<GitLogEntry> streamed = new ArrayList<>();
+    // The consumer takes longer than the timeout in total, but git doesn't
+    logCmd.run(entry -> {
+      Uninterruptibles.sleepUninterruptibly(50, TimeUnit.MILLISECONDS);
+      streamed.add(entry);
+      return true;
+    }, Duration.ofSeconds(1));
+    assertThat(streamed.size()).isGreaterThan(20);
+    assertThat(streamed.toString()).isEqualTo(logCmd.run().toString());
+  }
+
+  @Test
+  public void testLogConsumerTimeout() throws Exception {
+    createGraphOfCommits();
+    try {
+      repository.log("master").run(entry -> true, Duration.ofNanos(1));
+      fail();
+    } catch (RepoException e) {
+      assertThat(e).hasMessageThat().contains("'git log' didn't finish in");
+    }
+    // The repository is still usable
+    assertThat(repository.log("master").withLimit(1).run()).hasSize(1);
+  }
+
   private void createGraphOfCommits() throws Exception {
     for (int i = 0; i < 10; i++) {
       singleFileCommit("master_" + i, "foo.txt", "foo_" + i);
@@ -604,6 +728,204 @@ public class GitRepositoryTest {
     assertThat(result.get(0).getType()).isEqualTo(GitObjectType.BLOB);
   }
 
+  @Test
+  public void testLsTreeEntry() throws Exception {
+    Files.write(Files.createDirectories(workdir.resolve("foo/bar")).resolve("foo.txt"),
+        new byte[] {});
+    Files.write(workdir.resolve("root.txt"), new byte[] {});
+    repository.add().files("foo/bar/foo.txt", "root.txt").run();
+    repository.simpleCommand("commit", "-m", "message");
+    GitRevision rev = repository.resolveReference("HEAD");
+
+    ImmutableList<TreeElement> result = repository.lsTree(rev, "foo/bar/foo.txt");
+    assertThat(result).hasSize(1);
+    assertThat(result.get(0).getPath()).isEqualTo("foo/bar/foo.txt");
+    assertThat(result.get(0).getType()).isEqualTo(GitObjectType.BLOB);
+    assertThat(result.get(0).getRef())
+        .isEqualTo(
+            repository.simpleCommand("rev-parse", "HEAD:foo/bar/foo.txt").getStdout().trim());
+
+    result = repository.lsTree(rev, "foo/bar");
+    assertThat(result).hasSize(1);
+    assertThat(result.get(0).getType()).isEqualTo(GitObjectType.TREE);
+    assertThat(Iterables.getOnlyElement(repository.lsTree(rev, "root.txt")).getPath())
+        .isEqualTo("root.txt");
+
+    assertThat(repository.lsTree(rev, "foo/baz")).isEmpty();
+    assertThat(repository.lsTree(rev, "root.txt/foo")).isEmpty();
+    assertThat(repository.lsTree(rev, "missing/foo")).isEmpty();
+  }
+
+  @Test
+  public void testResolveReferencesAfterUpdates() throws Exception {
+    Files.write(workdir.resolve("foo.txt"), "foo".getBytes(UTF_8));
+    repository.add().files("foo.txt").run();
+    repository.simpleCommand("commit", "-m", "first");
+    String first = repository.parseRef("HEAD");
+    assertThat(repository.refExists("refs/heads/other")).isFalse();
+
+    repository.simpleCommand("tag", "-a", "-m", "tag message", "v1");
+    // Annotated tags resolve to the commit
+    assertThat(repository.parseRef("v1")).isEqualTo(first);
+
+    Files.write(workdir.resolve("foo.txt"), "bar".getBytes(UTF_8));
+    repository.add().files("foo.txt").run();
+    repository.simpleCommand("commit", "-m", "second");
+    repository.simpleCommand("branch", "other");
+    // References updated after the first lookup are seen
+    String second = repository.parseRef("HEAD");
+    assertThat(second).isNotEqualTo(first);
+    assertThat(repository.parseRef("refs/heads/other")).isEqualTo(second);
+    assertThat(repository.refExists("refs/heads/other")).isTrue();
+    assertThat(repository.parseRef("HEAD~1")).isEqualTo(first);
+    assertThat(repository.resolveReference(first).getSha1()).isEqualTo(first);
+    try {
+      repository.resolveReference(Strings.repeat("a", 40));
+      fail();
+    } catch (CannotResolveRevisionException expected) {
+    }
+    try {
+      repository.parseRef("refs/heads/missing");
+      fail();
+    } catch (CannotResolveRevisionException expected) {
+    }
+  }
+
+  @Test
+  public void testLogFullHistoryWithPaths() throws Exception {
+    commitFile("other/base.txt", "base");
+    repository.simpleCommand("branch", "fake");
+    repository.simpleCommand("branch", "side");
+    commitFile("root/a.txt", "A");
+    repository.simpleCommand("checkout", "fake");
+    commitFile("root/fake.txt", "in fake");
+    repository.simpleCommand("checkout", "master");
+    // The tree is the one of the first parent, the files come from the second parent
+    repository.simpleCommand("merge", "-s", "ours", "-m", "fake merge", "fake");
+    repository.simpleCommand("checkout", "side");
+    commitFile("other/side.txt", "in side");
+    repository.simpleCommand("checkout", "master");
+    commitFile("root/b.txt", "B");
+    // Only changes 'other' compared to the first parent
+    repository.simpleCommand("merge", "--no-ff", "-m", "side merge", "side");
+    commitFile("other/c.txt", "C");
+
+    for (boolean firstParent : ImmutableList.of(false, true)) {
+      LogCmd log = repository.log("HEAD")
+          .firstParent(firstParent)
+          .includeFiles(true)
+          .includeMergeDiff(true);
+      ImmutableList<GitLogEntry> all = log.run();
+      ImmutableList<GitLogEntry> limited = log
+          .withPaths(ImmutableList.of(":(literal)root"))
+          .fullHistory(true)
+          .run();
+
+      assertThat(limited.size()).isLessThan(all.size());
+      // Same result as filtering after the walk, keeping the first entry of merges
+      assertThat(affectingRoot(limited)).isEqualTo(affectingRoot(all));
+    }
+    assertThat(affectingRoot(repository.log("HEAD")
+        .firstParent(false)
+        .includeFiles(true)
+        .includeMergeDiff(true)
+        .withPaths(ImmutableList.of(":(literal)root"))
+        .fullHistory(true)
+        .run()))
+        .containsExactly("B", "fake merge", "in fake", "A");
+  }
+
+  private void commitFile(String path, String message) throws Exception {
+    Files.createDirectories(workdir.resolve(path).getParent());
+    Files.write(workdir.resolve(path), message.getBytes(UTF_8));
+    repository.add().files(path).run();
+    repository.simpleCommand("commit", "-m", message);
+  }
+
+  private static List<String> affectingRoot(List<GitLogEntry> entries) {
+    List<String> result = new ArrayList<>();
+    GitRevision last = null;
+    for (GitLogEntry entry : entries) {
+      if (entry.getCommit().equals(last)) {
+        continue;
+      }
+      last = entry.getCommit();
+      if (entry.getFiles().stream().anyMatch(f -> f.startsWith("root/"))) {
+        result.add(entry.getBody().trim());
+      }
+    }
+    return result;
+  }
+
+  @Test
+  public void testWithCommitGraph() throws Exception {
+    commitFile("foo.txt", "first");
+    GitRepository dest = GitRepository.newBareRepo(Files.createTempDirectory("destDir"),
+        getGitEnv(), /*verbose=*/true);
+    dest.init();
+    Path chain = dest.getGitDir().resolve("objects/info/commit-graphs/commit-graph-chain");
+    String fetchUrl = "file://" + repository.getGitDir();
+
+    // Nothing is written until the repository is fetched
+    dest.withCommitGraph();
+    assertThat(Files.exists(chain)).isFalse();
+    assertThat(dest.simpleCommand("config", "fetch.writeCommitGraph").getStdout().trim())
+        .isEqualTo("false");
+
+    dest.fetch(fetchUrl, /*prune=*/true, /*force=*/true, ImmutableList.of("refs/*:refs/*"));
+    String graph = Iterables.getOnlyElement(Files.readAllLines(chain));
+    assertThat(hasBloomFilters(chain, graph)).isTrue();
+
+    // Up to date, nothing is written
+    dest.fetch(fetchUrl, /*prune=*/true, /*force=*/true, ImmutableList.of("refs/*:refs/*"));
+    assertThat(Files.readAllLines(chain)).containsExactly(graph);
+
+    // A layer without the filters is replaced, even if nothing is fetched
+    dest.simpleCommand("commit-graph", "write", "--reachable", "--no-changed-paths",
+        "--split=replace");
+    assertThat(hasBloomFilters(chain, Files.readAllLines(chain).get(0))).isFalse();
+    dest.fetch(fetchUrl, /*prune=*/true, /*force=*/true, ImmutableList.of("refs/*:refs/*"));
+    for (String layer : Files.readAllLines(chain)) {
+      assertThat(hasBloomFilters(chain, layer)).isTrue();
+    }
+
+    // New commits are added to the graph
+    commitFile("foo.txt", "second");
+    dest.fetch(fetchUrl, /*prune=*/true, /*force=*/true, ImmutableList.of("refs/*:refs/*"));
+    // Fails if the graph is not valid
+    dest.simpleCommand("commit-graph", "verify");
+    for (String layer : Files.readAllLines(chain)) {
+      assertThat(hasBloomFilters(chain, layer)).isTrue();
+    }
+  }
+
+  @Test
+  public void testWithCommitGraphFailureIsNotRetried() throws Exception {
+    commitFile("foo.txt", "first");
+    GitRepository dest = GitRepository.newBareRepo(Files.createTempDirectory("destDir"),
+        getGitEnv(), /*verbose=*/true);
+    dest.init();
+    Path graphs = dest.getGitDir().resolve("objects/info/commit-graphs");
+    String fetchUrl = "file://" + repository.getGitDir();
+    dest.withCommitGraph();
+    // Makes 'git commit-graph write' fail
+    Files.createDirectories(graphs.getParent());
+    Files.write(graphs, new byte[]{});
+
+    dest.fetch(fetchUrl, /*prune=*/true, /*force=*/true, ImmutableList.of("refs/*:refs/*"));
+    Files.delete(graphs);
+    commitFile("foo.txt", "second");
+    dest.withCommitGraph();
+    dest.fetch(fetchUrl, /*prune=*/true, /*force=*/true, ImmutableList.of("refs/*:refs/*"));
+
+    assertThat(Files.exists(graphs)).isFalse();
+  }
+
+  private static boolean hasBloomFilters(Path chain, String graph) throws IOException {
+    return new String(Files.readAllBytes(chain.resolveSibling("graph-" + graph + ".graph")),
+        StandardCharsets.ISO_8859_1).contains("BIDX");
+  }
+
   @Test
   public void commitWithLargeDescription() throws IOException, RepoException, ValidationException {
     String line = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789\n";
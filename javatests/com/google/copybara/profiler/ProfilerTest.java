@@ -165,6 +165,39 @@ public class ProfilerTest {
         new TaskWithType(EventType.END, new Task("//copybara", 0, 15)));
   }
 
+  @Test
+  public void testExplicitParentInPoolThread() throws Exception {
+    ExecutorService executorService = Executors.newSingleThreadExecutor();
+    // The thread is created before task1 exists
+    executorService.submit(() -> {}).get();
+    try (ProfilerTask ignore = profiler.start("task1")) {
+      Task parent = profiler.currentTask();
+      executorService.submit(() -> {
+        try (ProfilerTask ignored = profiler.start(parent, "task2")) {
+          profiler.simpleTask("task3", ticker.read(), ticker.read());
+        }
+        // The stack of the thread is restored
+        try (ProfilerTask ignored = profiler.start("task4")) {
+          // Nothing to do
+        }
+      }).get();
+    }
+    MoreExecutors.shutdownAndAwaitTermination(executorService, 20, TimeUnit.SECONDS);
+    profiler.stop();
+
+    assertThat(recordingCallback.events).containsExactly(
+        new TaskWithType(EventType.START, new Task("//copybara", 0, -1)),
+        new TaskWithType(EventType.START, new Task("//copybara/task1", 1, -1)),
+        new TaskWithType(EventType.START, new Task("//copybara/task1/task2", 2, -1)),
+        new TaskWithType(EventType.START, new Task("//copybara/task1/task2/task3", 3, -1)),
+        new TaskWithType(EventType.END, new Task("//copybara/task1/task2/task3", 3, 4)),
+        new TaskWithType(EventType.END, new Task("//copybara/task1/task2", 2, 5)),
+        new TaskWithType(EventType.START, new Task("//copybara/task4", 6, -1)),
+        new TaskWithType(EventType.END, new Task("//copybara/task4", 6, 7)),
+        new TaskWithType(EventType.END, new Task("//copybara/task1", 1, 8)),
+        new TaskWithType(EventType.END, new Task("//copybara", 0, 9)));
+  }
+
   @Test
   public void testNoCallback() {
     Profiler profiler = new Profiler(ticker);
@@ -24,11 +24,16 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.jimfs.Jimfs;
 import com.google.common.truth.Truth;
 import com.google.copybara.NonReversibleValidationException;
+import com.google.copybara.TransformWork;
 import com.google.copybara.Transformation;
 import com.google.copybara.exception.ValidationException;
 import com.google.copybara.testing.OptionsBuilder;
 import com.google.copybara.testing.SkylarkTestExecutor;
 import com.google.copybara.testing.TransformWorks;
+import com.google.copybara.treestate.TreeState;
+import com.google.copybara.treestate.TreeState.FileState;
+import com.google.copybara.treestate.TreeStateUtil;
+import com.google.copybara.util.Glob;
 import com.google.copybara.util.console.Message.MessageType;
 import com.google.copybara.util.console.testing.TestingConsole;
 import java.io.IOException;
@@ -143,6 +148,29 @@ public class CopyOrMoveTest {
         .containsNoMoreFiles();
   }
 
+  @Test
+  public void testMoveDirectoryUpdatesTreeState() throws Exception {
+    CopyOrMove mover = skylark.eval("m", "m = core.move(before = 'one', after = 'two/three')");
+    touch("one/file1");
+    touch("one/sub/file2");
+    touch("other");
+    TransformWork work = TransformWorks.of(checkoutDir, "testmsg", console);
+    work.getTreeState().find(Glob.ALL_FILES.relativeTo(checkoutDir));
+
+    mover.transform(work);
+
+    assertThatPath(checkoutDir)
+        .containsFiles("two/three/file1", "two/three/sub/file2", "other")
+        .containsNoMoreFiles();
+    TreeState treeState = work.getTreeState().newTreeState();
+    assertThat(TreeStateUtil.isCachedTreeState(treeState)).isTrue();
+    ImmutableList.Builder<String> files = ImmutableList.builder();
+    for (FileState file : treeState.find(Glob.ALL_FILES.relativeTo(checkoutDir))) {
+      files.add(checkoutDir.relativize(file.getPath()).toString());
+    }
+    assertThat(files.build()).containsExactly("two/three/file1", "two/three/sub/file2", "other");
+  }
+
   private void touch(String strPath) throws IOException {
     Path path = checkoutDir.resolve(strPath);
     Files.createDirectories(path.getParent());
@@ -412,6 +440,42 @@ public class CopyOrMoveTest {
         .containsNoMoreFiles();
   }
 
+  @Test
+  public void testMoveDirLeavesBeforeLikeMovingFiles() throws Exception {
+    touch("renamed/one.java");
+    touch("renamed/org/two.java");
+    Files.createDirectories(checkoutDir.resolve("renamed/empty"));
+    touch("per_file/one.java");
+    touch("per_file/org/two.java");
+    Files.createDirectories(checkoutDir.resolve("per_file/empty"));
+
+    // Renamed at once
+    transform(skylark.eval("m", "m = core.move(before = 'renamed', after = 'foo')\n"));
+    // Moved file by file
+    transform(skylark.eval("m",
+        "m = core.move(before = 'per_file', after = 'bar', paths = glob(['**.java']))\n"));
+
+    assertThatPath(checkoutDir)
+        .containsFiles("foo/one.java", "foo/org/two.java", "bar/one.java", "bar/org/two.java")
+        .containsNoMoreFiles();
+    // In both cases 'before' is still a directory, so later moves of it are not no-ops
+    assertThat(Files.isDirectory(checkoutDir.resolve("renamed"))).isTrue();
+    assertThat(Files.isDirectory(checkoutDir.resolve("per_file"))).isTrue();
+    // Empty subdirectories are moved only by the rename
+    assertThat(Files.isDirectory(checkoutDir.resolve("foo/empty"))).isTrue();
+    assertThat(Files.exists(checkoutDir.resolve("renamed/empty"))).isFalse();
+    assertThat(Files.isDirectory(checkoutDir.resolve("per_file/empty"))).isTrue();
+    assertThat(Files.exists(checkoutDir.resolve("bar/empty"))).isFalse();
+
+    // Moving it back replaces the empty 'before'
+    transform(skylark.eval("m", "m = core.move(before = 'foo', after = 'renamed')\n"));
+    assertThatPath(checkoutDir)
+        .containsFiles("renamed/one.java", "renamed/org/two.java", "bar/one.java",
+            "bar/org/two.java")
+        .containsNoMoreFiles();
+    assertThat(Files.isDirectory(checkoutDir.resolve("renamed/empty"))).isTrue();
+  }
+
   @Test
   public void testMoveFromCheckoutDirRootToSubdir() throws Exception {
     CopyOrMove mover = skylark.eval("m",
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.transform;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.jimfs.Jimfs;
+import com.google.re2j.Pattern;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class LiteralPrefilterTest {
+
+  @Test
+  public void testMayMatch() {
+    LiteralPrefilter prefilter = LiteralPrefilter.create(ImmutableList.of(
+        ImmutableSet.of("com.google"),
+        ImmutableSet.of("TODO", "FIXME"),
+        ImmutableSet.of("ogle.c"),
+        ImmutableSet.of()));
+
+    assertThat(mayMatch(prefilter, "nothing here")).asList()
+        .containsExactly(false, false, false, true).inOrder();
+    assertThat(mayMatch(prefilter, "import com.google.common; // FIXME")).asList()
+        .containsExactly(true, true, true, true).inOrder();
+    assertThat(mayMatch(prefilter, "com.googl TOD")).asList()
+        .containsExactly(false, false, false, true).inOrder();
+    assertThat(mayMatch(prefilter, "goo.google.c")).asList()
+        .containsExactly(false, false, true, true).inOrder();
+    assertThat(mayMatch(prefilter, "café TODO")).asList()
+        .containsExactly(false, true, false, true).inOrder();
+  }
+
+  @Test
+  public void testMayMatchFile() throws IOException {
+    LiteralPrefilter prefilter = LiteralPrefilter.create(ImmutableList.of(
+        ImmutableSet.of("internal.example.com"), ImmutableSet.of("secret")));
+    Path mapped = Files.createTempFile("prefilter", ".txt");
+    Path inMemory = Jimfs.newFileSystem().getPath("/prefilter.txt");
+    try {
+      for (Path file : ImmutableList.of(mapped, inMemory)) {
+        // The literal spans several windows
+        Files.write(file, "connect to internal.example.com:80".getBytes(UTF_8));
+        assertThat(prefilter.mayMatch(file, /*windowSize=*/4)).asList()
+            .containsExactly(true, false).inOrder();
+        Files.write(file, "connect to external.example.com:80".getBytes(UTF_8));
+        assertThat(prefilter.mayMatch(file, /*windowSize=*/4)).asList()
+            .containsExactly(false, false).inOrder();
+        Files.write(file, new byte[0]);
+        assertThat(prefilter.mayMatch(file, /*windowSize=*/4)).asList()
+            .containsExactly(false, false).inOrder();
+      }
+    } finally {
+      Files.delete(mapped);
+    }
+  }
+
+  @Test
+  public void testNotCreatedIfNothingCanBeDiscarded() {
+    assertThat(LiteralPrefilter.create(ImmutableSet.of())).isNull();
+    assertThat(LiteralPrefilter.create(ImmutableList.of(ImmutableSet.of("a", "")))).isNull();
+  }
+
+  @Test
+  public void testRequiredLiterals() {
+    assertThat(literals("foo")).containsExactly("foo");
+    assertThat(literals("foo\\.bar[a-z]+baz")).containsExactly("foo.bar");
+    assertThat(literals("import (com|org)\\.example")).containsExactly(".example");
+    assertThat(literals("ab?cd")).containsExactly("cd");
+    assertThat(literals("abcd*e")).containsExactly("abc");
+    assertThat(literals("ab{0,2}x")).containsExactly("a");
+    assertThat(literals("ab{2}x")).containsExactly("ab");
+    assertThat(literals("foo|barbaz")).containsExactly("foo", "barbaz");
+    assertThat(literals("^\\s*TODO\\(\\w+\\)")).containsExactly("TODO(");
+    assertThat(literals("[]a]bc")).containsExactly("bc");
+    assertThat(literals("[[:alpha:]]xy")).containsExactly("xy");
+  }
+
+  @Test
+  public void testNoRequiredLiterals() {
+    assertThat(literals("foo|.*")).isEmpty();
+    assertThat(literals("(foo)")).isEmpty();
+    assertThat(literals("a?")).isEmpty();
+    assertThat(literals("(?i)foo")).isEmpty();
+    assertThat(literals("bar|(?i)foo")).isEmpty();
+    assertThat(literals("\\pLfoo")).isEmpty();
+    assertThat(literals("\\Qfoo\\E")).isEmpty();
+    assertThat(RegexLiterals.requiredLiterals(Pattern.compile("foo", Pattern.CASE_INSENSITIVE)))
+        .isEmpty();
+  }
+
+  private static boolean[] mayMatch(LiteralPrefilter prefilter, String content) {
+    return prefilter.mayMatch(content.getBytes(UTF_8));
+  }
+
+  private static ImmutableSet<String> literals(String regex) {
+    return RegexLiterals.requiredLiterals(Pattern.compile(regex));
+  }
+}
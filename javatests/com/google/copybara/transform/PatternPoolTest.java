@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.transform;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.re2j.Pattern;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PatternPoolTest {
+
+  @Test
+  public void testPatternsAreReusedInTheSameThread() {
+    Pattern original = Pattern.compile("fo+", Pattern.CASE_INSENSITIVE);
+    TransformStats stats = new TransformStats();
+
+    Pattern first = PatternPool.get(original, stats);
+    Pattern second = PatternPool.get(Pattern.compile("fo+", Pattern.CASE_INSENSITIVE), stats);
+
+    assertThat(first).isNotSameAs(original);
+    assertThat(second).isSameAs(first);
+    assertThat(first.flags()).isEqualTo(Pattern.CASE_INSENSITIVE);
+    // Different flags are a different pattern
+    assertThat(PatternPool.get("fo+", 0, stats)).isNotSameAs(first);
+
+    ImmutableMap<String, String> fields = stats.toFields("test");
+    assertThat(fields.get(TransformStats.PATTERNS_COMPILED)).isEqualTo("2");
+    assertThat(fields.get(TransformStats.PATTERNS_REUSED)).isEqualTo("1");
+  }
+
+  @Test
+  public void testEachThreadGetsItsOwnPattern() throws InterruptedException {
+    Pattern pattern = Pattern.compile("ba[rz]");
+    Pattern mine = PatternPool.get(pattern, /*stats=*/null);
+    AtomicReference<Pattern> other = new AtomicReference<>();
+    Thread thread = new Thread(() -> other.set(PatternPool.get(pattern, /*stats=*/null)));
+    thread.start();
+    thread.join();
+
+    assertThat(other.get()).isNotNull();
+    assertThat(other.get()).isNotSameAs(mine);
+    assertThat(other.get().pattern()).isEqualTo("ba[rz]");
+  }
+}
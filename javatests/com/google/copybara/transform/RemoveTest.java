@@ -16,14 +16,21 @@
 
 package com.google.copybara.transform;
 
+import static com.google.common.truth.Truth.assertThat;
 import static com.google.copybara.testing.FileSubjects.assertThatPath;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.jimfs.Jimfs;
+import com.google.copybara.TransformWork;
 import com.google.copybara.Transformation;
 import com.google.copybara.exception.ValidationException;
 import com.google.copybara.testing.OptionsBuilder;
 import com.google.copybara.testing.SkylarkTestExecutor;
 import com.google.copybara.testing.TransformWorks;
+import com.google.copybara.treestate.TreeState;
+import com.google.copybara.treestate.TreeState.FileState;
+import com.google.copybara.treestate.TreeStateUtil;
+import com.google.copybara.util.Glob;
 import com.google.copybara.util.console.testing.TestingConsole;
 import java.io.IOException;
 import java.nio.file.FileSystem;
@@ -112,6 +119,34 @@ public class RemoveTest {
         .containsNoMoreFiles();
   }
 
+  @Test
+  public void testRemoveUpdatesTreeState() throws Exception {
+    ExplicitReversal t = skylark.eval("m", ""
+        + "m = core.transform("
+        + "    [core.copy('foo', 'bar', paths = glob(['**.java']))],"
+        + "    reversal = [core.remove(glob(['bar/**.java']))],"
+        + ")");
+    touch("foo/foo.java");
+    touch("bar/bar.c");
+    TransformWork work = TransformWorks.of(checkoutDir, "testmsg", console);
+    work.getTreeState().find(Glob.ALL_FILES.relativeTo(checkoutDir));
+    t.transform(work);
+
+    t.reverse().transform(work);
+
+    assertThatPath(checkoutDir)
+        .containsFiles("foo/foo.java")
+        .containsFiles("bar/bar.c")
+        .containsNoMoreFiles();
+    TreeState treeState = work.getTreeState().newTreeState();
+    assertThat(TreeStateUtil.isCachedTreeState(treeState)).isTrue();
+    ImmutableList.Builder<String> files = ImmutableList.builder();
+    for (FileState file : treeState.find(Glob.ALL_FILES.relativeTo(checkoutDir))) {
+      files.add(checkoutDir.relativize(file.getPath()).toString());
+    }
+    assertThat(files.build()).containsExactly("foo/foo.java", "bar/bar.c");
+  }
+
   @Test
   public void testBareRemoveNotAllowed() throws Exception {
     Remove t = skylark.eval("m", "m = core.remove(glob(['bar']))");
@@ -20,13 +20,23 @@ import static com.google.common.truth.Truth.assertThat;
 import static com.google.copybara.testing.FileSubjects.assertThatPath;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
 import com.google.common.jimfs.Jimfs;
+import com.google.common.primitives.Bytes;
+import com.google.copybara.Transformation;
 import com.google.copybara.exception.ValidationException;
 import com.google.copybara.exception.VoidOperationException;
+import com.google.copybara.profiler.Profiler;
 import com.google.copybara.testing.FileSubjects;
 import com.google.copybara.testing.OptionsBuilder;
 import com.google.copybara.testing.SkylarkTestExecutor;
 import com.google.copybara.testing.TransformWorks;
+import com.google.copybara.testing.profiler.RecordingListener;
+import com.google.copybara.testing.profiler.RecordingListener.EventType;
+import com.google.copybara.testing.profiler.RecordingListener.TaskWithType;
+import com.google.copybara.util.FileUtil;
 import com.google.copybara.util.console.Message.MessageType;
 import com.google.copybara.util.console.testing.TestingConsole;
 import java.io.IOException;
@@ -34,6 +44,11 @@ import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -788,6 +803,196 @@ public final class ReplaceTest {
         .containsFile("i-exist", "abc");
   }
 
+  @Test
+  public void testJoinedReplaces() throws Exception {
+    Replace first = eval("core.replace(before = 'foo', after = 'bar')");
+    Replace second = eval("core.replace(before = 'bar', after = 'baz')");
+    Replace otherPaths = eval("core.replace(\n"
+        + "  before = 'baz',\n"
+        + "  after = 'foo',\n"
+        + "  paths = glob(['**.java']),\n"
+        + ")");
+
+    assertThat(first.canJoin(second)).isTrue();
+    assertThat(first.canJoin(otherPaths)).isFalse();
+
+    writeFile(checkoutDir.resolve("file1.txt"), "foo\nbar\nother");
+    writeFile(checkoutDir.resolve("file2.txt"), "bar");
+    writeFile(checkoutDir.resolve("file3.txt"), "other");
+    first.join(second).transform(TransformWorks.of(checkoutDir, "testmsg", console));
+
+    assertThatPath(checkoutDir)
+        .containsFile("file1.txt", "baz\nbaz\nother")
+        .containsFile("file2.txt", "baz")
+        .containsFile("file3.txt", "other");
+  }
+
+  @Test
+  public void testJoinedReplacesReportStatsPerReplace() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    options.general.profiler().init(ImmutableList.of(listener));
+    Replace first = eval("core.replace(before = 'foo', after = 'bar')");
+    Replace second = eval("core.replace(before = 'other', after = 'baz')");
+
+    writeFile(checkoutDir.resolve("file1.txt"), "foo\nfoo\nother");
+    writeFile(checkoutDir.resolve("file2.txt"), "foo");
+    writeFile(checkoutDir.resolve("file3.txt"), "none");
+    first.join(second).transform(TransformWorks.of(checkoutDir, "testmsg", console));
+
+    Map<String, ImmutableMap<String, String>> stats = new HashMap<>();
+    for (TaskWithType event : listener.events) {
+      ImmutableMap<String, String> fields = event.getTask().getFields();
+      if (event.getType() == EventType.END
+          && TransformStats.TYPE.equals(fields.get(Profiler.TYPE))) {
+        assertThat(stats.put(fields.get(TransformStats.TRANSFORMATION), fields)).isNull();
+        // Listeners that only show the description can tell the replaces apart
+        assertThat(event.getTask().getDescription())
+            .endsWith("/" + fields.get(TransformStats.TRANSFORMATION) + " stats");
+      } else if (event.getType() == EventType.END) {
+        // The stats entry is the only entry per joined replace.
+        assertThat(event.getTask().getDescription()).doesNotContain("Replace ");
+      }
+    }
+    assertThat(stats.keySet()).containsExactly("Replace foo", "Replace other");
+    ImmutableMap<String, String> fooStats = stats.get("Replace foo");
+    assertThat(fooStats.get(TransformStats.FILES_CONSIDERED)).isEqualTo("3");
+    assertThat(fooStats.get(TransformStats.MATCHES)).isEqualTo("3");
+    assertThat(fooStats.get(TransformStats.FILES_MODIFIED)).isEqualTo("2");
+    // The files are read once, by the first replace
+    assertThat(fooStats.get(TransformStats.FILES_READ)).isEqualTo("3");
+    ImmutableMap<String, String> otherStats = stats.get("Replace other");
+    assertThat(otherStats.get(TransformStats.FILES_CONSIDERED)).isEqualTo("3");
+    assertThat(otherStats.get(TransformStats.MATCHES)).isEqualTo("1");
+    assertThat(otherStats.get(TransformStats.FILES_MODIFIED)).isEqualTo("1");
+    assertThat(otherStats.get(TransformStats.FILES_READ)).isEqualTo("0");
+  }
+
+  @Test
+  public void testJoinedReplacesMeasureEachReplaceInParallel() throws Exception {
+    options.workflowOptions.threads = 4;
+    options.workflowOptions.threadsMinSize = 1;
+    RecordingListener listener = new RecordingListener();
+    options.general.profiler().init(ImmutableList.of(listener));
+    Replace first = eval("core.replace(before = 'foo', after = 'bar')");
+    Replace second = eval("core.replace(before = 'other', after = 'baz')");
+
+    for (int i = 0; i < 100; i++) {
+      writeFile(checkoutDir.resolve("file" + i + ".txt"), "foo\nother");
+    }
+    first.join(second).transform(TransformWorks.of(checkoutDir, "testmsg", console));
+
+    Map<String, Long> elapsed = new HashMap<>();
+    for (TaskWithType event : listener.events) {
+      ImmutableMap<String, String> fields = event.getTask().getFields();
+      if (event.getType() == EventType.END
+          && TransformStats.TYPE.equals(fields.get(Profiler.TYPE))) {
+        elapsed.put(fields.get(TransformStats.TRANSFORMATION), event.getTask().elapsedNanos());
+      }
+    }
+    // The time of the first replace is measured, not computed from the time of the others
+    assertThat(elapsed.get("Replace foo")).isGreaterThan(0L);
+    assertThat(elapsed.get("Replace other")).isGreaterThan(0L);
+  }
+
+  @Test
+  public void testJoinedReplacesReportNoopPerReplace() throws Exception {
+    Replace first = eval("core.replace(before = 'foo', after = 'bar')");
+    Replace second = eval("core.replace(before = 'not_present', after = 'baz')");
+
+    writeFile(checkoutDir.resolve("file1.txt"), "foo");
+    thrown.expect(VoidOperationException.class);
+    thrown.expectMessage("not_present");
+    first.join(second).transform(TransformWorks.of(checkoutDir, "testmsg", console));
+  }
+
+  @Test
+  public void testStreamingReplace() throws Exception {
+    options.workflowOptions.streamingReplaceMinSize = 0;
+    Replace transformation = eval("core.replace(before = 'foo', after = 'bar')");
+
+    writeFile(checkoutDir.resolve("file1.txt"), "foo\nbaz\nfoo\n");
+    writeFile(checkoutDir.resolve("file2.txt"), "\nfoofoo");
+    writeFile(checkoutDir.resolve("file3.txt"), "bazbazbaz");
+    Files.write(checkoutDir.resolve("binary.bin"), new byte[] {'f', 'o', 'o', 0, 'f', 'o', 'o'});
+    transform(transformation);
+
+    assertThatPath(checkoutDir)
+        .containsFile("file1.txt", "bar\nbaz\nbar\n")
+        .containsFile("file2.txt", "\nbarbar")
+        .containsFile("file3.txt", "bazbazbaz");
+    assertThat(Files.readAllBytes(checkoutDir.resolve("binary.bin")))
+        .isEqualTo(new byte[] {'f', 'o', 'o', 0, 'f', 'o', 'o'});
+  }
+
+  @Test
+  public void testStreamingReplaceTmpFilesOutsideCheckout() throws Exception {
+    options.workflowOptions.streamingReplaceMinSize = 0;
+    Path checkout = Files.createDirectories(checkoutDir.resolve("workdir/checkout"));
+    writeFile(checkout.resolve("file.txt"), "foo\nbaz");
+
+    eval("core.replace(before = 'foo', after = 'bar')")
+        .transform(TransformWorks.of(checkout, "testmsg", console));
+
+    assertThatPath(checkout)
+        .containsFile("file.txt", "bar\nbaz")
+        .containsNoMoreFiles();
+    try (Stream<Path> tmpFiles = Files.list(FileUtil.tmpDirFor(checkout))) {
+      assertThat(tmpFiles.count()).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void testStreamingReplaceJoined() throws Exception {
+    options.workflowOptions.streamingReplaceMinSize = 0;
+    Replace first = eval("core.replace(before = 'foo', after = 'bar')");
+    Replace second = eval("core.replace(before = 'bar', after = 'baz')");
+
+    writeFile(checkoutDir.resolve("file1.txt"), "foo\nbar\nother");
+    first.join(second).transform(TransformWorks.of(checkoutDir, "testmsg", console));
+
+    assertThatPath(checkoutDir)
+        .containsFile("file1.txt", "baz\nbaz\nother");
+  }
+
+  @Test
+  public void testTransformCache() throws Exception {
+    options.general.setOutputRootPathForTest(Files.createTempDirectory("output"));
+    options.workflowOptions.transformCache = true;
+    Replace first = eval("core.replace(\n"
+        + "  before = 'foo${n}',\n"
+        + "  after = 'bar${n}',\n"
+        + "  regex_groups = {'n' : '[0-9]'},\n"
+        + ")");
+    Replace second = eval("core.replace(before = 'bar', after = 'baz')");
+    Transformation joined = first.join(second);
+
+    writeFile(checkoutDir.resolve("file1.txt"), "foo1");
+    // Passes the literal prefilter but doesn't match
+    writeFile(checkoutDir.resolve("file2.txt"), "foox");
+    joined.transform(TransformWorks.of(checkoutDir, "testmsg", console));
+    assertThatPath(checkoutDir)
+        .containsFile("file1.txt", "baz1")
+        .containsFile("file2.txt", "foox");
+
+    // Only the file that changed is stored
+    Path cacheDir = options.general.getDirFactory().getCacheDir("transform_cache");
+    List<Path> entries;
+    try (Stream<Path> stream = Files.walk(cacheDir)) {
+      entries = stream.filter(Files::isRegularFile).collect(Collectors.toList());
+    }
+    assertThat(entries).hasSize(1);
+    // Replace the stored result with one that the replaces would not produce. Both replaces
+    // changed the file.
+    Files.write(Iterables.getOnlyElement(entries),
+        Bytes.concat(new byte[] {1, 1}, "cached".getBytes(UTF_8)));
+
+    writeFile(checkoutDir.resolve("file1.txt"), "foo1");
+    joined.transform(TransformWorks.of(checkoutDir, "testmsg", console));
+    assertThatPath(checkoutDir)
+        .containsFile("file1.txt", "cached")
+        .containsFile("file2.txt", "foox");
+  }
+
   private Replace eval(String replace) throws ValidationException {
     return skylark.eval("r", "r = " + replace);
   }
@@ -18,21 +18,35 @@ package com.google.copybara.transform;
 
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.copybara.treestate.TreeStateUtil.isCachedTreeState;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.jimfs.Jimfs;
 import com.google.common.truth.BooleanSubject;
+import com.google.copybara.LocalParallelizer;
 import com.google.copybara.TransformWork;
 import com.google.copybara.Transformation;
 import com.google.copybara.exception.ValidationException;
+import com.google.copybara.profiler.Profiler;
+import com.google.copybara.profiler.Profiler.ProfilerTask;
 import com.google.copybara.testing.OptionsBuilder;
 import com.google.copybara.testing.TransformWorks;
+import com.google.copybara.testing.profiler.RecordingListener;
 import com.google.copybara.util.Glob;
 import com.google.copybara.util.console.testing.TestingConsole;
 import java.io.IOException;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import javax.annotation.Nullable;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -70,6 +84,7 @@ public final class SequenceTest {
   private final MockTransform t1 = new MockTransform();
   private final MockTransform t2 = new MockTransform();
   private Sequence sequence;
+  private Profiler profiler;
 
   @Before
   public void setup() throws IOException {
@@ -79,7 +94,9 @@ public final class SequenceTest {
     OptionsBuilder options = new OptionsBuilder();
     console = new TestingConsole();
     options.setConsole(console);
-    sequence = new Sequence(options.general.profiler(), /*joinTransformations*/true,
+    profiler = options.general.profiler();
+    sequence = new Sequence(profiler, /*joinTransformations*/true, /*parallelizer=*/null,
+                            /*overlayMaxSize=*/0,
                             ImmutableList.of(t1, t2));
   }
 
@@ -97,6 +114,153 @@ public final class SequenceTest {
     assertCachedTreeState(work.withUpdatedTreeState()).isFalse();
   }
 
+  @Test
+  public void testIndependentTransformationsRunConcurrently() throws Exception {
+    CountDownLatch latch = new CountDownLatch(2);
+    List<String> finished = Collections.synchronizedList(new ArrayList<>());
+    Sequence sequence = new Sequence(profiler, /*joinTransformations*/true,
+        new LocalParallelizer(/*threads=*/2, /*minSize=*/2), /*overlayMaxSize=*/0,
+        ImmutableList.of(
+            new PathsTransform("foo/**", "first", latch, finished),
+            new PathsTransform("bar/**", "second", latch, finished)));
+
+    sequence.transform(TransformWorks.of(checkoutDir, "foo", console));
+
+    // Each transformation waits for the other one to start, so they can only finish if they
+    // run concurrently.
+    assertThat(finished).containsExactly("first", "second");
+  }
+
+  @Test
+  public void testConcurrentTransformationsProfilerHierarchy() throws Exception {
+    Profiler profiler = new Profiler(Ticker.systemTicker());
+    RecordingListener listener = new RecordingListener();
+    profiler.init(ImmutableList.of(listener));
+    // Creates the threads of the pool before the parent task is started.
+    LocalParallelizer parallelizer = new LocalParallelizer(/*threads=*/2, /*minSize=*/2);
+    parallelizer.runConcurrently(ImmutableList.<Callable<Void>>of(() -> null, () -> null));
+    List<Transformation> transformations = new ArrayList<>();
+    for (String path : ImmutableList.of("foo", "bar")) {
+      transformations.add(new MockTransform() {
+        @Override
+        public void transform(TransformWork work) {
+          try (ProfilerTask ignored = profiler.start("inner")) {
+            // Nothing to do
+          }
+        }
+
+        @Override
+        public String describe() {
+          return path;
+        }
+
+        @Override
+        public Glob getAffectedPaths() {
+          return Glob.createGlob(ImmutableList.of(path + "/**"));
+        }
+      });
+    }
+    Sequence sequence = new Sequence(profiler, /*joinTransformations*/true, parallelizer,
+        /*overlayMaxSize=*/0, transformations);
+
+    try (ProfilerTask ignored = profiler.start("sequence")) {
+      sequence.transform(TransformWorks.of(checkoutDir, "foo", console));
+    }
+    profiler.stop();
+
+    assertThat(listener.events.stream()
+        .map(e -> e.getTask().getDescription())
+        .collect(Collectors.toSet()))
+        .containsExactly("//copybara", "//copybara/sequence",
+            "//copybara/sequence/foo", "//copybara/sequence/foo/inner",
+            "//copybara/sequence/bar", "//copybara/sequence/bar/inner");
+  }
+
+  @Test
+  public void testOverlappingTransformationsRunInOrder() throws Exception {
+    List<String> finished = Collections.synchronizedList(new ArrayList<>());
+    Sequence sequence = new Sequence(profiler, /*joinTransformations*/true,
+        new LocalParallelizer(/*threads=*/2, /*minSize=*/2), /*overlayMaxSize=*/0,
+        ImmutableList.of(
+            new PathsTransform("foo/**", "first", /*latch=*/null, finished),
+            new PathsTransform("foo/bar/**", "second", /*latch=*/null, finished),
+            new MockTransform(),
+            new PathsTransform("baz/**", "third", /*latch=*/null, finished)));
+
+    sequence.transform(TransformWorks.of(checkoutDir, "foo", console));
+
+    assertThat(finished).containsExactly("first", "second", "third").inOrder();
+  }
+
+  @Test
+  public void testOverlayIsFlushedBeforeTransformationsThatDontSupportIt() throws Exception {
+    Path file = Files.write(checkoutDir.resolve("file.txt"), "foo".getBytes(UTF_8));
+    List<String> contents = new ArrayList<>();
+    Transformation overlayWriter = new MockTransform() {
+      @Override
+      public void transform(TransformWork work) throws IOException {
+        assertThat(work.getOverlay().isEnabled()).isTrue();
+        work.getOverlay().write(file, "bar".getBytes(UTF_8));
+      }
+
+      @Override
+      public boolean supportsOverlay() {
+        return true;
+      }
+    };
+    Transformation diskReader = new MockTransform() {
+      @Override
+      public void transform(TransformWork work) throws IOException {
+        contents.add(new String(Files.readAllBytes(file), UTF_8));
+      }
+    };
+    Sequence sequence = new Sequence(profiler, /*joinTransformations*/true,
+        /*parallelizer=*/null, /*overlayMaxSize=*/1024,
+        ImmutableList.of(overlayWriter, diskReader, overlayWriter));
+
+    TransformWork work = TransformWorks.of(checkoutDir, "foo", console);
+    sequence.transform(work);
+
+    assertThat(contents).containsExactly("bar");
+    // The overlay only lives during the sequence.
+    assertThat(work.getOverlay().isEnabled()).isFalse();
+    assertThat(new String(Files.readAllBytes(file), UTF_8)).isEqualTo("bar");
+  }
+
+  private static class PathsTransform extends MockTransform {
+
+    private final Glob paths;
+    private final String name;
+    @Nullable private final CountDownLatch latch;
+    private final List<String> finished;
+
+    PathsTransform(String path, String name, @Nullable CountDownLatch latch,
+        List<String> finished) {
+      this.paths = Glob.createGlob(ImmutableList.of(path));
+      this.name = name;
+      this.latch = latch;
+      this.finished = finished;
+    }
+
+    @Override
+    public void transform(TransformWork work) throws IOException {
+      if (latch != null) {
+        latch.countDown();
+        try {
+          assertThat(latch.await(10, TimeUnit.SECONDS)).isTrue();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+      finished.add(name);
+    }
+
+    @Override
+    public Glob getAffectedPaths() {
+      return paths;
+    }
+  }
+
   private static BooleanSubject assertCachedTreeState(TransformWork work) {
     return assertThat(isCachedTreeState(work.getTreeState()));
   }
@@ -110,6 +274,25 @@ public final class SequenceTest {
     assertCachedTreeState(work.withUpdatedTreeState()).isFalse();
   }
 
+  @Test
+  public void testSequenceResultTreeStateIsCached() throws IOException, ValidationException {
+    t1.useTreeState = true;
+    t2.useTreeState = true;
+    TransformWork work = cachedTreeStateTranformWork();
+    sequence.transform(work);
+    assertThat(isCachedTreeState(work.getResultTreeState())).isTrue();
+  }
+
+  @Test
+  public void testSequenceResultTreeStateIsNotCached_lastBad()
+      throws IOException, ValidationException {
+    t1.useTreeState = true;
+    t2.useTreeState = false;
+    TransformWork work = cachedTreeStateTranformWork();
+    sequence.transform(work);
+    assertThat(isCachedTreeState(work.getResultTreeState())).isFalse();
+  }
+
   private TransformWork cachedTreeStateTranformWork() throws IOException {
     TransformWork work = TransformWorks.of(checkoutDir, "foo", console);
     // Force a map based tree-state
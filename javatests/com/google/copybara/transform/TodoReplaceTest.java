@@ -46,6 +46,7 @@ public final class TodoReplaceTest {
   private Path checkoutDir;
   private TestingConsole console;
   private SkylarkTestExecutor skylark;
+  private OptionsBuilder options;
 
   @Before
   public void setup() throws IOException {
@@ -53,7 +54,7 @@ public final class TodoReplaceTest {
     checkoutDir = fs.getPath("/");
     Files.createDirectories(checkoutDir);
     console = new TestingConsole();
-    OptionsBuilder options = new OptionsBuilder()
+    options = new OptionsBuilder()
         .setConsole(console);
     skylark = new SkylarkTestExecutor(options);
   }
@@ -294,6 +295,21 @@ public final class TodoReplaceTest {
         .containsNoMoreFiles();
   }
 
+  @Test
+  public void testStreaming() throws Exception {
+    options.workflowOptions.streamingReplaceMinSize = 0;
+    TodoReplace replace = todoReplace("mapping = { 'aaa': 'foo'}");
+
+    write("one", "aaa\n// TODO(aaa): Example\n// TODO(bbb): Other");
+    write("two", "// TODO(bbb): Example\n");
+    run(replace);
+
+    assertThatPath(checkoutDir)
+        .containsFile("one", "aaa\n// TODO(foo): Example\n// TODO(bbb): Other")
+        .containsFile("two", "// TODO(bbb): Example\n")
+        .containsNoMoreFiles();
+  }
+
   private TransformWork run(Transformation replace) throws IOException, ValidationException {
     TransformWork work = TransformWorks.of(checkoutDir, "testmsg", console);
     replace.transform(work);
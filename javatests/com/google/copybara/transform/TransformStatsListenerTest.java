@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.transform;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.common.collect.ImmutableList;
+import com.google.common.jimfs.Jimfs;
+import com.google.common.testing.FakeTicker;
+import com.google.copybara.monitor.EventMonitor.TransformStatsEvent;
+import com.google.copybara.profiler.Profiler;
+import com.google.copybara.profiler.Profiler.ProfilerTask;
+import com.google.copybara.testing.TestingEventMonitor;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TransformStatsListenerTest {
+
+  private Profiler profiler;
+  private Path output;
+
+  @Before
+  public void setup() {
+    profiler = new Profiler(new FakeTicker().setAutoIncrementStep(1, TimeUnit.NANOSECONDS));
+    output = Jimfs.newFileSystem().getPath("/out/stats.json");
+    profiler.init(ImmutableList.of(new TransformStatsListener(output)));
+  }
+
+  @Test
+  public void testStatsAreAggregatedByTransformation() throws IOException {
+    try (ProfilerTask ignore = profiler.start("iterative")) {
+      TransformStats first = new TransformStats();
+      first.fileConsidered();
+      first.fileConsidered();
+      first.fileRead(10);
+      first.fileWritten(12);
+      first.addMatches(3);
+      first.report(profiler, "Replace foo", 100);
+
+      TransformStats second = new TransformStats();
+      second.fileConsidered();
+      second.fileRead(5);
+      second.addMatches(1);
+      second.report(profiler, "Replace foo", 200);
+
+      TransformStats move = new TransformStats();
+      move.dirRenamed();
+      move.report(profiler, "Moving bar", 1000);
+    }
+    assertThat(Files.exists(output)).isFalse();
+    profiler.stop();
+
+    List<Map<String, Object>> transformations = readReport();
+    assertThat(transformations).hasSize(2);
+    // Sorted by elapsed time
+    Map<String, Object> move = transformations.get(0);
+    assertThat(move.get(TransformStats.TRANSFORMATION)).isEqualTo("Moving bar");
+    assertThat(number(move, TransformStats.DIRS_RENAMED)).isEqualTo(1);
+    assertThat(number(move, TransformStats.FILES_MODIFIED)).isEqualTo(0);
+    Map<String, Object> replace = transformations.get(1);
+    assertThat(replace.get(TransformStats.TRANSFORMATION)).isEqualTo("Replace foo");
+    assertThat(number(replace, "runs")).isEqualTo(2);
+    assertThat(number(replace, "elapsed_nanos")).isEqualTo(300);
+    assertThat(number(replace, TransformStats.FILES_CONSIDERED)).isEqualTo(3);
+    assertThat(number(replace, TransformStats.FILES_READ)).isEqualTo(2);
+    assertThat(number(replace, TransformStats.BYTES_READ)).isEqualTo(15);
+    assertThat(number(replace, TransformStats.BYTES_WRITTEN)).isEqualTo(12);
+    assertThat(number(replace, TransformStats.MATCHES)).isEqualTo(4);
+    assertThat(number(replace, TransformStats.FILES_MODIFIED)).isEqualTo(1);
+  }
+
+  @Test
+  public void testStatsAreSentToEventMonitor() {
+    TestingEventMonitor eventMonitor = new TestingEventMonitor();
+    profiler = new Profiler(new FakeTicker().setAutoIncrementStep(1, TimeUnit.NANOSECONDS));
+    profiler.init(ImmutableList.of(
+        new TransformStatsListener(() -> eventMonitor, /*output=*/null)));
+    try (ProfilerTask ignore = profiler.start("iterative")) {
+      TransformStats stats = new TransformStats();
+      stats.fileConsidered();
+      stats.fileRead(10);
+      stats.addMatches(3);
+      stats.report(profiler, "Replace foo", 100);
+    }
+    profiler.stop();
+
+    assertThat(eventMonitor.transformStatsEvents).hasSize(1);
+    TransformStatsEvent event = eventMonitor.transformStatsEvents.get(0);
+    assertThat(event.getTransformation()).isEqualTo("Replace foo");
+    assertThat(event.getElapsedNanos()).isEqualTo(100);
+    assertThat(event.getCounters()).containsEntry(TransformStats.FILES_CONSIDERED, 1L);
+    assertThat(event.getCounters()).containsEntry(TransformStats.BYTES_READ, 10L);
+    assertThat(event.getCounters()).containsEntry(TransformStats.MATCHES, 3L);
+    assertThat(event.getCounters().keySet())
+        .containsExactlyElementsIn(TransformStats.COUNTERS).inOrder();
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<Map<String, Object>> readReport() throws IOException {
+    Map<String, Object> report = GsonFactory.getDefaultInstance()
+        .fromString(new String(Files.readAllBytes(output), UTF_8), Map.class);
+    return (List<Map<String, Object>>) report.get("transformations");
+  }
+
+  private static long number(Map<String, Object> entry, String key) {
+    return ((BigDecimal) entry.get(key)).longValue();
+  }
+}
@@ -15,6 +15,7 @@ import java.io.IOException;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -137,6 +138,100 @@ public final class VerifyMatchTest {
     }
   }
 
+  @Test
+  public void testWithGlobFailsFast() throws Exception {
+    options.workflowOptions.verifyMatchFailFast = true;
+    VerifyMatch transformation = eval("core.verify_match(\n"
+        + "  regex = 'foo',\n"
+        + "  paths = glob(['**.txt']),\n"
+        + ")");
+
+    prepareGlobTree();
+    try {
+      transform(transformation);
+      fail();
+    } catch (ValidationException e) {
+      assertThat(e.getMessage()).contains("1 file(s) failed the validation of Verify match 'foo'"
+          + " (stopped at the first failure).");
+      console.assertThat().timesInLog(1, MessageType.ERROR, ".*failed validation.*");
+    }
+  }
+
+  @Test
+  public void testFailFastWithoutSkippedFiles() throws Exception {
+    options.workflowOptions.verifyMatchFailFast = true;
+    VerifyMatch transformation = eval("core.verify_match(\n"
+        + "  regex = 'foo',\n"
+        + "  paths = glob(['file1.txt']),\n"
+        + ")");
+
+    prepareGlobTree();
+    try {
+      transform(transformation);
+      fail();
+    } catch (ValidationException e) {
+      assertThat(e.getMessage()).contains("1 file(s) failed the validation of Verify match 'foo'");
+      assertThat(e.getMessage()).doesNotContain("stopped at the first failure");
+    }
+  }
+
+  @Test
+  public void testFailFastStopsParallelBatches() throws Exception {
+    options.workflowOptions.verifyMatchFailFast = true;
+    options.workflowOptions.threads = 4;
+    options.workflowOptions.threadsMinSize = 1;
+    VerifyMatch transformation = eval("core.verify_match(\n"
+        + "  regex = 'foo',\n"
+        + ")");
+
+    int files = 400;
+    for (int i = 0; i < files; i++) {
+      writeFile(checkoutDir.resolve("file" + i + ".txt"), "bar");
+    }
+    try {
+      transform(transformation);
+      fail();
+    } catch (ValidationException e) {
+      assertThat(e.getMessage()).contains("(stopped at the first failure).");
+    }
+    // Each batch stops after its first failure at the latest, and there are 4 batches per thread
+    long errors = console.getMessages().stream()
+        .filter(m -> m.getType() == MessageType.ERROR && m.getText().contains("failed validation"))
+        .count();
+    assertThat(errors).isAtLeast(1L);
+    assertThat(errors).isAtMost(16L);
+  }
+
+  @Test
+  public void testBigFiles() throws Exception {
+    checkoutDir = Files.createTempDirectory("checkout");
+    VerifyMatch transformation = eval("core.verify_match(\n"
+        + "  regex = 'foo[0-9]+',\n"
+        + "  verify_no_match = True,\n"
+        + ")");
+
+    byte[] content = new byte[2 * 1024 * 1024];
+    Arrays.fill(content, (byte) 'a');
+    Files.write(checkoutDir.resolve("no_literal.txt"), content);
+    // The literal is there, but the regex doesn't match
+    content[content.length - 4] = 'f';
+    content[content.length - 3] = 'o';
+    content[content.length - 2] = 'o';
+    Files.write(checkoutDir.resolve("literal.txt"), content);
+    transform(transformation);
+
+    content[content.length - 1] = '1';
+    Files.write(checkoutDir.resolve("match.txt"), content);
+    try {
+      transform(transformation);
+      fail();
+    } catch (ValidationException e) {
+      console.assertThat().onceInLog(MessageType.ERROR,
+          "File 'match.txt' failed validation 'Verify match 'foo\\[0-9\\]\\+''.");
+      console.assertThat().timesInLog(1, MessageType.ERROR, ".*failed validation.*");
+    }
+  }
+
   @Test
   public void testApacheLicense() throws Exception {
     VerifyMatch transformation = eval("core.verify_match(\n"
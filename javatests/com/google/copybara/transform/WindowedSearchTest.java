@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.transform;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Strings;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.jimfs.Jimfs;
+import com.google.copybara.treestate.TreeState.FileState;
+import com.google.re2j.Pattern;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class WindowedSearchTest {
+
+  @Test
+  public void testSupports() {
+    assertThat(supports("foo")).isTrue();
+    assertThat(supports("foo[0-9]+\\.example\\.com")).isTrue();
+    assertThat(supports("^import .*;$")).isTrue();
+    assertThat(supports("\\bfoo\\w*\\t")).isTrue();
+    assertThat(supports("[]a]b")).isTrue();
+    assertThat(supports("(?:foo|bar)baz")).isTrue();
+
+    assertThat(supports("foo\\sbar")).isFalse();
+    assertThat(supports("foo\\nbar")).isFalse();
+    assertThat(supports("foo\nbar")).isFalse();
+    assertThat(supports("[\\n] foo")).isFalse();
+    assertThat(supports("[\\t-\\r]")).isFalse();
+    assertThat(supports("[^a]")).isFalse();
+    assertThat(supports("[[:space:]]")).isFalse();
+    assertThat(supports("(?s)a.b")).isFalse();
+    assertThat(supports("\\Afoo")).isFalse();
+    assertThat(supports("\\pLfoo")).isFalse();
+    assertThat(WindowedSearch.supports(Pattern.compile("foo"))).isFalse();
+    assertThat(WindowedSearch.supports(
+        Pattern.compile("foo", Pattern.MULTILINE | Pattern.DOTALL))).isFalse();
+  }
+
+  @Test
+  public void testFindInWindows() throws IOException {
+    String content = "first line\nsecond line\nthird foo123 line\nlast";
+
+    assertThat(find("foo[0-9]+", content, 8)).isTrue();
+    assertThat(find("^third", content, 8)).isTrue();
+    assertThat(find("line$", content, 8)).isTrue();
+    assertThat(find("^last$", content, 8)).isTrue();
+    assertThat(find("line\\b", content, 8)).isTrue();
+    // Matches that would cross a window that is not cut at a line break
+    assertThat(find("second line", content, 3)).isTrue();
+    assertThat(find("foo123 line", content, 30)).isTrue();
+
+    assertThat(find("foo[a-z]+", content, 8)).isFalse();
+    assertThat(find("^line", content, 8)).isFalse();
+    // The end of a window is not the end of the content
+    assertThat(find("^$", content, 8)).isFalse();
+    assertThat(find("t$", content, 12)).isTrue();
+    assertThat(find("e$", content, 12)).isTrue();
+    assertThat(find("^$", "a\n\nb", 2)).isTrue();
+  }
+
+  @Test
+  public void testFindStopsAtFirstMatch() throws IOException {
+    String content = "foo\n" + Strings.repeat("bar\n", 1000);
+    TransformStats stats = new TransformStats();
+
+    assertThat(new WindowedSearch(multiline("foo"), /*prefilter=*/null, 16)
+        .find(content.getBytes(UTF_8), stats, /*hasher=*/null))
+        .isTrue();
+    assertThat(stats.toFields("test").get(TransformStats.BYTES_READ)).isEqualTo("16");
+  }
+
+  @Test
+  public void testFindFileHashesContentWithoutMatch() throws IOException {
+    byte[] content = (Strings.repeat("bar\n", 1000) + "café").getBytes(UTF_8);
+    for (Path file : new Path[] {
+        // Memory-mapped
+        Files.createTempFile("windowed", ".txt"),
+        // Read in buffers
+        Files.createDirectories(Jimfs.newFileSystem().getPath("/tmp")).resolve("windowed.txt")}) {
+      Files.write(file, content);
+      TransformStats stats = new TransformStats();
+      Hasher hasher = FileState.newContentHasher();
+
+      assertThat(new WindowedSearch(multiline("foo"), /*prefilter=*/null, 64)
+          .find(file, stats, hasher))
+          .isFalse();
+      assertThat(hasher.hash()).isEqualTo(Hashing.sha256().hashBytes(content));
+      assertThat(stats.toFields("test").get(TransformStats.BYTES_READ))
+          .isEqualTo(String.valueOf(content.length));
+      assertThat(new WindowedSearch(multiline("^café$"), /*prefilter=*/null, 64)
+          .find(file, new TransformStats(), /*hasher=*/null))
+          .isTrue();
+    }
+  }
+
+  private static boolean find(String regex, String content, int windowSize) throws IOException {
+    Pattern pattern = multiline(regex);
+    boolean withPrefilter = new WindowedSearch(pattern,
+        LiteralPrefilter.create(RegexLiterals.requiredLiterals(pattern)), windowSize)
+        .find(content.getBytes(UTF_8), new TransformStats(), /*hasher=*/null);
+    boolean withoutPrefilter = new WindowedSearch(pattern, /*prefilter=*/null, windowSize)
+        .find(content.getBytes(UTF_8), new TransformStats(), /*hasher=*/null);
+    assertThat(withPrefilter).isEqualTo(withoutPrefilter);
+    // Same result as searching the whole content
+    assertThat(withoutPrefilter).isEqualTo(pattern.matcher(content).find());
+    return withoutPrefilter;
+  }
+
+  private static boolean supports(String regex) {
+    return WindowedSearch.supports(multiline(regex));
+  }
+
+  private static Pattern multiline(String regex) {
+    return Pattern.compile(regex, Pattern.MULTILINE);
+  }
+}
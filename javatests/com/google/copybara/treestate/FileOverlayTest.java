@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.treestate;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.jimfs.Jimfs;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class FileOverlayTest {
+
+  private Path foo;
+  private Path bar;
+
+  @Before
+  public void setup() throws IOException {
+    Path checkoutDir = Jimfs.newFileSystem().getPath("/test-checkoutDir");
+    Files.createDirectories(checkoutDir);
+    foo = Files.write(checkoutDir.resolve("foo.txt"), "foo".getBytes(UTF_8));
+    bar = Files.write(checkoutDir.resolve("bar.txt"), "bar".getBytes(UTF_8));
+  }
+
+  @Test
+  public void testWritesAreKeptUntilFlush() throws IOException {
+    FileOverlay overlay = new FileOverlay(100);
+    overlay.write(foo, "new foo".getBytes(UTF_8));
+
+    assertThat(overlay.isDirty(foo)).isTrue();
+    assertThat(overlay.isDirty(bar)).isFalse();
+    assertThat(read(overlay, foo)).isEqualTo("new foo");
+    assertThat(read(overlay, bar)).isEqualTo("bar");
+    assertThat(readDisk(foo)).isEqualTo("foo");
+
+    overlay.flush();
+    assertThat(overlay.isDirty(foo)).isFalse();
+    assertThat(readDisk(foo)).isEqualTo("new foo");
+  }
+
+  @Test
+  public void testOldestWritesAreFlushedWhenFull() throws IOException {
+    FileOverlay overlay = new FileOverlay(10);
+    overlay.write(foo, "new foo".getBytes(UTF_8));
+    overlay.write(bar, "new bar".getBytes(UTF_8));
+
+    assertThat(overlay.isDirty(foo)).isFalse();
+    assertThat(readDisk(foo)).isEqualTo("new foo");
+    assertThat(overlay.isDirty(bar)).isTrue();
+    assertThat(readDisk(bar)).isEqualTo("bar");
+
+    // Rewriting a dirty file replaces its content in the overlay.
+    overlay.write(bar, "newer".getBytes(UTF_8));
+    assertThat(overlay.isDirty(bar)).isTrue();
+    assertThat(read(overlay, bar)).isEqualTo("newer");
+
+    // Content bigger than the overlay goes to disk directly.
+    overlay.write(bar, "a lot of content".getBytes(UTF_8));
+    assertThat(overlay.isDirty(bar)).isFalse();
+    assertThat(readDisk(bar)).isEqualTo("a lot of content");
+  }
+
+  @Test
+  public void testDisabled() throws IOException {
+    FileOverlay overlay = FileOverlay.disabled();
+    assertThat(overlay.isEnabled()).isFalse();
+    overlay.write(foo, "new foo".getBytes(UTF_8));
+    assertThat(overlay.isDirty(foo)).isFalse();
+    assertThat(readDisk(foo)).isEqualTo("new foo");
+  }
+
+  @Test
+  public void testConcurrentWritesWhileEvicting() throws Exception {
+    // Room for a few files only, so the threads evict the files of the others all the time
+    FileOverlay overlay = new FileOverlay(20);
+    Path dir = foo.getParent();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Void>> results = new ArrayList<>();
+      for (int thread = 0; thread < 4; thread++) {
+        Path file = dir.resolve("thread" + thread + ".txt");
+        results.add(executor.submit(() -> {
+          for (int i = 0; i < 500; i++) {
+            overlay.write(file, Integer.toString(i).getBytes(UTF_8));
+            // Never reads an evicted content that is not in disk yet
+            assertThat(read(overlay, file)).isEqualTo(Integer.toString(i));
+          }
+          return null;
+        }));
+      }
+      for (Future<Void> result : results) {
+        result.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    overlay.flush();
+    for (int thread = 0; thread < 4; thread++) {
+      Path file = dir.resolve("thread" + thread + ".txt");
+      assertThat(overlay.isDirty(file)).isFalse();
+      assertThat(readDisk(file)).isEqualTo("499");
+    }
+  }
+
+  private static String read(FileOverlay overlay, Path path) throws IOException {
+    return new String(overlay.read(path), UTF_8);
+  }
+
+  private static String readDisk(Path path) throws IOException {
+    return new String(Files.readAllBytes(path), UTF_8);
+  }
+}
@@ -18,13 +18,18 @@ package com.google.copybara.treestate;
 
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.copybara.treestate.TreeStateUtil.isCachedTreeState;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.google.common.jimfs.Jimfs;
+import com.google.copybara.treestate.TreeState.FileState;
 import com.google.copybara.util.Glob;
 import java.io.IOException;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -93,4 +98,171 @@ public class TreeStateTest {
     // This TreeState has not been used or notified. Should return a FS based one.
     assertThat(isCachedTreeState(treeState.newTreeState())).isFalse();
   }
+
+  @Test
+  public void testFindGlobOnlyReadsRoots() throws IOException {
+    Files.createDirectories(checkoutDir.resolve("foo/bar"));
+    Files.createDirectories(checkoutDir.resolve("other"));
+    Files.write(checkoutDir.resolve("foo/bar/a.txt"), "a".getBytes(UTF_8));
+    Files.write(checkoutDir.resolve("foo/b.txt"), "b".getBytes(UTF_8));
+    Files.write(checkoutDir.resolve("other/a.txt"), "a".getBytes(UTF_8));
+    // A symlink to a directory outside of the glob roots. A full walk doesn't follow it, and
+    // the pruned walk shouldn't either.
+    Files.createSymbolicLink(checkoutDir.resolve("link"), checkoutDir.resolve("foo"));
+
+    TreeState treeState = new FileSystemTreeState(checkoutDir);
+    assertThat(paths(treeState.find(Glob.createGlob(ImmutableList.of("foo/**")))))
+        .containsExactly("foo/bar/a.txt", "foo/b.txt");
+    assertThat(paths(treeState.find(Glob.createGlob(ImmutableList.of("foo/bar/*.txt")))))
+        .containsExactly("foo/bar/a.txt");
+    assertThat(paths(treeState.find(Glob.createGlob(ImmutableList.of("link/**"))))).isEmpty();
+    assertThat(paths(treeState.find(Glob.createGlob(ImmutableList.of("missing/**"))))).isEmpty();
+
+    // Reading only some roots is not enough for a MapBasedTreeState.
+    treeState.notifyNoChange();
+    assertThat(isCachedTreeState(treeState.newTreeState())).isFalse();
+
+    assertThat(paths(treeState.find(Glob.createGlob(ImmutableList.of("**/a.txt")))))
+        .containsExactly("foo/bar/a.txt", "other/a.txt");
+    assertThat(isCachedTreeState(treeState.newTreeState())).isTrue();
+  }
+
+  @Test
+  public void testFindGlobReusesReadRoots() throws IOException {
+    Files.createDirectories(checkoutDir.resolve("foo/bar"));
+    Files.createDirectories(checkoutDir.resolve("other"));
+    Files.write(checkoutDir.resolve("foo/bar/a.txt"), "a".getBytes(UTF_8));
+    Files.write(checkoutDir.resolve("other/b.txt"), "b".getBytes(UTF_8));
+
+    TreeState treeState = new FileSystemTreeState(checkoutDir);
+    FileState first = Iterables.getOnlyElement(
+        treeState.find(Glob.createGlob(ImmutableList.of("foo/**"))));
+    first.getContentHash();
+    treeState.notifyNoChange();
+
+    // The next transformation reuses the files found under the roots already read, together with
+    // the data cached in them.
+    treeState = treeState.newTreeState();
+    assertThat(Iterables.getOnlyElement(
+        treeState.find(Glob.createGlob(ImmutableList.of("foo/bar/*.txt"))))).isSameAs(first);
+    assertThat(first.getCachedContentHash()).isNotNull();
+
+    // New roots are read on demand, and reading the whole tree keeps the known files.
+    assertThat(paths(treeState.find(Glob.createGlob(ImmutableList.of("other/**")))))
+        .containsExactly("other/b.txt");
+    treeState.notifyAdd(ImmutableList.of(
+        Files.write(checkoutDir.resolve("foo/c.txt"), "c".getBytes(UTF_8))));
+    assertThat(paths(treeState.find(Glob.createGlob(ImmutableList.of("foo/**")))))
+        .containsExactly("foo/bar/a.txt", "foo/c.txt");
+    assertThat(paths(treeState.find(Glob.ALL_FILES.relativeTo(checkoutDir))))
+        .containsExactly("foo/bar/a.txt", "foo/c.txt", "other/b.txt");
+    assertThat(Iterables.getOnlyElement(
+        treeState.find(Glob.createGlob(ImmutableList.of("foo/bar/*.txt"))))).isSameAs(first);
+    assertThat(isCachedTreeState(treeState.newTreeState())).isTrue();
+  }
+
+  @Test
+  public void testMoveFromUnreadRootForgetsReadRoots() throws IOException {
+    Files.createDirectories(checkoutDir.resolve("foo"));
+    Files.createDirectories(checkoutDir.resolve("other"));
+    Files.write(checkoutDir.resolve("foo/a.txt"), "a".getBytes(UTF_8));
+    Files.write(checkoutDir.resolve("other/b.txt"), "b".getBytes(UTF_8));
+
+    TreeState treeState = new FileSystemTreeState(checkoutDir);
+    assertThat(paths(treeState.find(Glob.createGlob(ImmutableList.of("foo/**")))))
+        .containsExactly("foo/a.txt");
+    Files.move(checkoutDir.resolve("other/b.txt"), checkoutDir.resolve("foo/b.txt"));
+    treeState.notifyMove(checkoutDir.resolve("other/b.txt"), checkoutDir.resolve("foo/b.txt"));
+
+    assertThat(paths(treeState.find(Glob.createGlob(ImmutableList.of("foo/**")))))
+        .containsExactly("foo/a.txt", "foo/b.txt");
+  }
+
+  @Test
+  public void testNotifyAddDeleteAndMove() throws IOException {
+    Files.createDirectories(checkoutDir.resolve("foo/bar"));
+    Files.write(checkoutDir.resolve("foo/bar/a.txt"), "a".getBytes(UTF_8));
+    Files.write(checkoutDir.resolve("foo/b.txt"), "b".getBytes(UTF_8));
+    Files.write(checkoutDir.resolve("c.txt"), "c".getBytes(UTF_8));
+
+    TreeState treeState = new FileSystemTreeState(checkoutDir);
+    assertThat(paths(treeState.find(Glob.ALL_FILES.relativeTo(checkoutDir))))
+        .containsExactly("foo/bar/a.txt", "foo/b.txt", "c.txt");
+
+    Files.move(checkoutDir.resolve("foo"), checkoutDir.resolve("moved"));
+    treeState.notifyMove(checkoutDir.resolve("foo"), checkoutDir.resolve("moved"));
+    Files.delete(checkoutDir.resolve("c.txt"));
+    treeState.notifyDelete(ImmutableList.of(checkoutDir.resolve("c.txt")));
+    Files.write(checkoutDir.resolve("d.txt"), "d".getBytes(UTF_8));
+    treeState.notifyAdd(ImmutableList.of(checkoutDir.resolve("d.txt")));
+
+    treeState = treeState.newTreeState();
+    assertThat(isCachedTreeState(treeState)).isTrue();
+    assertThat(paths(treeState.find(Glob.ALL_FILES.relativeTo(checkoutDir))))
+        .containsExactly("moved/bar/a.txt", "moved/b.txt", "d.txt");
+
+    Files.move(checkoutDir.resolve("d.txt"), checkoutDir.resolve("moved/d.txt"));
+    treeState.notifyMove(checkoutDir.resolve("d.txt"), checkoutDir.resolve("moved/d.txt"));
+    assertThat(paths(treeState.find(Glob.ALL_FILES.relativeTo(checkoutDir))))
+        .containsExactly("moved/bar/a.txt", "moved/b.txt", "moved/d.txt");
+    assertThat(treeState.find(Glob.ALL_FILES.relativeTo(checkoutDir)).iterator().next().getSize())
+        .isEqualTo(1);
+  }
+
+  private ImmutableList<String> paths(Iterable<FileState> files) {
+    ImmutableList.Builder<String> result = ImmutableList.builder();
+    for (FileState file : files) {
+      result.add(checkoutDir.relativize(file.getPath()).toString());
+    }
+    return result.build();
+  }
+
+  @Test
+  public void testModifiedFilesGetNewState() throws IOException {
+    Path file = Files.write(checkoutDir.resolve("foo.txt"), "foo".getBytes(UTF_8));
+    PathMatcher matcher = Glob.ALL_FILES.relativeTo(checkoutDir);
+    TreeState treeState = new FileSystemTreeState(checkoutDir);
+    FileState fileState = Iterables.getOnlyElement(treeState.find(matcher));
+    assertThat(fileState.getSize()).isEqualTo(3);
+    assertThat(fileState.getCachedContentHash()).isNull();
+    assertThat(fileState.getContentHash()).isEqualTo(fileState.getCachedContentHash());
+
+    Files.write(file, "modified".getBytes(UTF_8));
+    treeState.notifyModify(treeState.find(matcher));
+
+    treeState = treeState.newTreeState();
+    assertThat(isCachedTreeState(treeState)).isTrue();
+    FileState newFileState = Iterables.getOnlyElement(treeState.find(matcher));
+    assertThat(newFileState.getCachedContentHash()).isNull();
+    assertThat(newFileState.getSize()).isEqualTo(8);
+    assertThat(newFileState.getContentHash()).isNotEqualTo(fileState.getContentHash());
+  }
+
+  @Test
+  public void testNegativeMatchCache() throws IOException {
+    Files.write(checkoutDir.resolve("foo.txt"), "foo".getBytes(UTF_8));
+    FileState fileState = Iterables.getOnlyElement(
+        new FileSystemTreeState(checkoutDir).find(Glob.ALL_FILES.relativeTo(checkoutDir)));
+    NegativeMatchCache cache = new NegativeMatchCache(/*enabled=*/true);
+
+    assertThat(cache.isKnownNoMatch("bar", fileState, /*content=*/null)).isFalse();
+    cache.recordNoMatch("bar", fileState, "foo".getBytes(UTF_8));
+    assertThat(cache.isKnownNoMatch("bar", fileState, /*content=*/null)).isTrue();
+    assertThat(cache.isKnownNoMatch("baz", fileState, /*content=*/null)).isFalse();
+
+    // Same content in another file is also known not to match.
+    Files.write(checkoutDir.resolve("other.txt"), "foo".getBytes(UTF_8));
+    FileState other = new FileState(checkoutDir.resolve("other.txt"));
+    assertThat(cache.isKnownNoMatch("bar", other, /*content=*/null)).isFalse();
+    assertThat(cache.isKnownNoMatch("bar", other, "foo".getBytes(UTF_8))).isTrue();
+  }
+
+  @Test
+  public void testNegativeMatchCacheDisabled() throws IOException {
+    FileState fileState = new FileState(checkoutDir.resolve("foo.txt"));
+    NegativeMatchCache cache = new NegativeMatchCache(/*enabled=*/false);
+    cache.recordNoMatch("bar", fileState, "foo".getBytes(UTF_8));
+    assertThat(cache.isKnownNoMatch("bar", fileState, "foo".getBytes(UTF_8))).isFalse();
+    assertThat(fileState.getCachedContentHash()).isNull();
+  }
 }
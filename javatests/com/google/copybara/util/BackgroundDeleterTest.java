@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.copybara.testing.FileSubjects.assertThatPath;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.copybara.profiler.Listener;
+import com.google.copybara.profiler.Profiler;
+import com.google.copybara.profiler.Task;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class BackgroundDeleterTest {
+
+  private Path workdir;
+  private Path trash;
+  private BackgroundDeleter deleter;
+
+  @Before
+  public void setup() throws Exception {
+    Path root = Files.createTempDirectory("root");
+    workdir = Files.createDirectories(root.resolve("workdir"));
+    trash = root.resolve("trash");
+    deleter = new BackgroundDeleter(trash, /*threads=*/2, /*maxTrashSize=*/0);
+  }
+
+  @After
+  public void tearDown() {
+    deleter.shutdown();
+  }
+
+  @Test
+  public void testDeleteContents() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      write("checkout/file" + i, "content");
+      write("checkout/dir/file" + i, "content");
+      write("origin/file" + i, "content");
+
+      deleter.deleteContents(workdir);
+
+      assertThatPath(workdir).containsNoMoreFiles();
+      assertThat(Files.isDirectory(workdir)).isTrue();
+    }
+    deleter.awaitAll();
+    // The trash is below the max size once everything is deleted
+    deleter.awaitTrashBelowMaxSize();
+
+    try (Stream<Path> entries = Files.list(trash)) {
+      assertThat(entries.count()).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void testDeleteEmptyDir() throws Exception {
+    deleter.deleteContents(workdir);
+    deleter.awaitAll();
+
+    assertThat(Files.isDirectory(workdir)).isTrue();
+    try (Stream<Path> entries = Files.list(trash)) {
+      assertThat(entries.count()).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void testAwaitTrashBelowMaxSizeDoesNotWaitForMeasurement() throws Exception {
+    ExecutorService measurer = Executors.newSingleThreadExecutor();
+    CountDownLatch release = new CountDownLatch(1);
+    // Keep the measurer busy, so that no entry is measured until it is released
+    measurer.execute(() -> Uninterruptibles.awaitUninterruptibly(release));
+    deleter.shutdown();
+    deleter = new BackgroundDeleter(trash, measurer, Executors.newSingleThreadExecutor(),
+        /*maxTrashSize=*/0);
+
+    for (int i = 0; i < 2; i++) {
+      write("checkout/file", "content");
+      deleter.deleteContents(workdir);
+      // Nothing was measured yet, so there is no estimate of the size of the entries
+      deleter.awaitTrashBelowMaxSize();
+    }
+    try (Stream<Path> entries = Files.list(trash)) {
+      assertThat(entries.count()).isEqualTo(2);
+    }
+
+    release.countDown();
+    deleter.awaitAll();
+    deleter.awaitTrashBelowMaxSize();
+    try (Stream<Path> entries = Files.list(trash)) {
+      assertThat(entries.count()).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void testReport() throws Exception {
+    write("checkout/file", "content");
+    write("checkout/dir/file", "content");
+    write("checkout/dir/other", "other content");
+    deleter.deleteContents(workdir);
+    deleter.awaitAll();
+
+    List<Task> tasks = new ArrayList<>();
+    Profiler profiler = new Profiler(Ticker.systemTicker());
+    profiler.init(ImmutableList.of(new Listener() {
+      @Override
+      public void taskStarted(Task task) {}
+
+      @Override
+      public void taskFinished(Task task) {
+        tasks.add(task);
+      }
+    }));
+    deleter.report(profiler);
+
+    assertThat(tasks).hasSize(1);
+    assertThat(tasks.get(0).getFields()).containsExactly(
+        "entries_deleted", "1",
+        "files_deleted", "3",
+        "bytes_deleted", "27",
+        "entries_pending", "0");
+  }
+
+  private void write(String path, String content) throws IOException {
+    Path file = workdir.resolve(path);
+    Files.createDirectories(file.getParent());
+    Files.write(file, content.getBytes(UTF_8));
+  }
+}
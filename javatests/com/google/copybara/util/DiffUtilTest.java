@@ -138,6 +138,42 @@ public class DiffUtilTest {
     assertThat(DiffUtil.diff(left, right, VERBOSE, /*environment=*/ null)).isEmpty();
   }
 
+  @Test
+  public void testEqualTrees() throws Exception {
+    writeFile(left, "file1.txt", "foo");
+    writeFile(left, "b/file2.txt", "bar");
+    Files.createDirectories(left.resolve("empty/dir"));
+    Files.createSymbolicLink(left.resolve("link"), left.getFileSystem().getPath("file1.txt"));
+    writeFile(right, "file1.txt", "foo");
+    writeFile(right, "b/file2.txt", "bar");
+    Files.createSymbolicLink(right.resolve("link"), right.getFileSystem().getPath("file1.txt"));
+
+    assertThat(DiffUtil.equalTrees(left, right)).isTrue();
+    assertThat(DiffUtil.equalTrees(right, left)).isTrue();
+  }
+
+  @Test
+  public void testEqualTrees_differences() throws Exception {
+    writeFile(left, "file1.txt", "foo");
+    writeFile(right, "file1.txt", "foo");
+    assertThat(DiffUtil.equalTrees(left, right)).isTrue();
+
+    writeFile(right, "file1.txt", "bar");
+    assertThat(DiffUtil.equalTrees(left, right)).isFalse();
+
+    writeFile(right, "file1.txt", "foo");
+    writeFile(right, "b/added.txt", "");
+    assertThat(DiffUtil.equalTrees(left, right)).isFalse();
+
+    Files.delete(right.resolve("b/added.txt"));
+    right.resolve("file1.txt").toFile().setExecutable(true);
+    assertThat(DiffUtil.equalTrees(left, right)).isFalse();
+
+    Files.delete(right.resolve("file1.txt"));
+    Files.createSymbolicLink(right.resolve("file1.txt"), right.getFileSystem().getPath("b"));
+    assertThat(DiffUtil.equalTrees(left, right)).isFalse();
+  }
+
 
   private Path createDir(Path parent, String name) throws IOException {
     Path path = parent.resolve(name);
@@ -29,7 +29,9 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -310,4 +312,123 @@ public class FileUtilTest {
         .containsNoMoreFiles();
   }
 
+  @Test
+  public void testDeleteWithGlob() throws Exception {
+    Path one = Files.createDirectory(temp.resolve("one"));
+    Files.createDirectories(one.resolve("foo/baz"));
+    Files.createDirectories(one.resolve("bar"));
+    touch(one.resolve("foo/delete.txt"));
+    touch(one.resolve("foo/baz/delete.txt"));
+    touch(one.resolve("foo/keep.md"));
+    touch(one.resolve("bar/keep.txt"));
+    touch(one.resolve("root.txt"));
+    // Symlinked directories are not followed, like when walking the whole tree.
+    Files.createSymbolicLink(one.resolve("link"), one.resolve("foo"));
+
+    int deleted = FileUtil.deleteFilesRecursively(one,
+        Glob.createGlob(ImmutableList.of("foo/**.txt", "link/baz/**", "missing/**")));
+
+    assertThat(deleted).isEqualTo(2);
+    assertThatPath(one)
+        .containsFiles("foo/keep.md", "bar/keep.txt", "root.txt", "link")
+        .containsNoMoreFiles();
+  }
+
+  @Test
+  public void testSnapshotFilesRecursively() throws Exception {
+    Path one = Files.createDirectory(temp.resolve("one"));
+    Path two = Files.createDirectory(temp.resolve("two"));
+    touch(one.resolve("foo/file.txt"));
+    touch(one.resolve("bar/file.txt"));
+    Files.createSymbolicLink(one.resolve("foo/link"), Paths.get("file.txt"));
+
+    FileUtil.snapshotFilesRecursively(one, two, FAIL_OUTSIDE_SYMLINKS);
+
+    assertThatPath(two)
+        .containsFile("foo/file.txt", "abc")
+        .containsFile("bar/file.txt", "abc")
+        .containsSymlink("foo/link", "foo/file.txt")
+        .containsNoMoreFiles();
+    assertThat(Files.isSameFile(one.resolve("foo/file.txt"), two.resolve("foo/file.txt")))
+        .isTrue();
+  }
+
+  @Test
+  public void testBreakHardLink() throws Exception {
+    Path one = Files.createDirectory(temp.resolve("one"));
+    Path two = Files.createDirectory(temp.resolve("two"));
+    touch(one.resolve("file.txt"));
+    FileUtil.snapshotFilesRecursively(one, two, FAIL_OUTSIDE_SYMLINKS);
+
+    FileUtil.breakHardLink(two.resolve("file.txt"));
+    Files.write(two.resolve("file.txt"), "modified".getBytes(UTF_8));
+
+    assertThatPath(one).containsFile("file.txt", "abc");
+    assertThatPath(two).containsFile("file.txt", "modified")
+        .containsNoMoreFiles();
+  }
+
+  @Test
+  public void testWritesDontModifyOtherHardLinks() throws Exception {
+    Path one = Files.createDirectory(temp.resolve("one"));
+    Path two = Files.createDirectory(temp.resolve("two"));
+    touch(one.resolve("file.txt"));
+    touch(one.resolve("script.sh"));
+    FileUtil.snapshotFilesRecursively(one, two, FAIL_OUTSIDE_SYMLINKS);
+
+    FileUtil.writeFile(two.resolve("file.txt"), "modified".getBytes(UTF_8));
+    FileUtil.addPermissions(two.resolve("script.sh"),
+        ImmutableSet.of(PosixFilePermission.OWNER_EXECUTE));
+
+    assertThatPath(one).containsFile("file.txt", "abc");
+    assertThatPath(two).containsFile("file.txt", "modified");
+    assertThat(Files.isExecutable(one.resolve("script.sh"))).isFalse();
+    assertThat(Files.isExecutable(two.resolve("script.sh"))).isTrue();
+  }
+
+  @Test
+  public void testBreakHardLinkKeepsAttributes() throws Exception {
+    Path one = Files.createDirectory(temp.resolve("one"));
+    Path two = Files.createDirectory(temp.resolve("two"));
+    Path file = touch(one.resolve("file.txt"));
+    Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rwxr-x---"));
+    FileUtil.snapshotFilesRecursively(one, two, FAIL_OUTSIDE_SYMLINKS);
+    Path copy = two.resolve("file.txt");
+    FileTime lastModified = Files.getLastModifiedTime(copy);
+
+    FileUtil.breakHardLink(copy);
+
+    assertThat(Files.isSameFile(file, copy)).isFalse();
+    assertThat(Files.getPosixFilePermissions(copy))
+        .isEqualTo(PosixFilePermissions.fromString("rwxr-x---"));
+    assertThat(Files.getLastModifiedTime(copy)).isEqualTo(lastModified);
+    // No temporary files are left in the tree
+    assertThatPath(two).containsFile("file.txt", "abc").containsNoMoreFiles();
+  }
+
+  @Test
+  public void testTmpDirForIsOutsideTheTree() throws Exception {
+    Path tree = Files.createDirectory(temp.resolve("tree"));
+
+    Path tmpDir = FileUtil.tmpDirFor(tree);
+
+    assertThat(Files.isDirectory(tmpDir)).isTrue();
+    assertThat(tmpDir.startsWith(tree.toAbsolutePath())).isFalse();
+    assertThat(tmpDir.getParent()).isEqualTo(tree.toAbsolutePath().getParent());
+    assertThat(FileUtil.tmpDirFor(tree)).isEqualTo(tmpDir);
+  }
+
+  @Test
+  public void testFindFilesRecursivelySkipsSymlinkedRoots() throws Exception {
+    Path tree = Files.createDirectory(temp.resolve("tree"));
+    touch(tree.resolve("foo/a.txt"));
+    touch(tree.resolve("foo/bar/b.txt"));
+    touch(tree.resolve("other/c.txt"));
+    Files.createSymbolicLink(tree.resolve("link"), tree.resolve("other"));
+
+    ImmutableList<Path> files = FileUtil.findFilesRecursively(tree,
+        Glob.createGlob(ImmutableList.of("foo/bar/**", "link/**", "missing/**", "other/*.txt")));
+
+    assertThat(files).containsExactly(tree.resolve("foo/bar/b.txt"), tree.resolve("other/c.txt"));
+  }
 }
@@ -212,6 +212,44 @@ public class GlobTest {
         .containsExactly("foo/bar", "foo/barbar");
   }
 
+  @Test
+  public void testLiteralGlobs() throws Exception {
+    PathMatcher matcher = createGlob(ImmutableList.of("foo/bar.txt", "baz/**")).relativeTo(workdir);
+
+    assertThat(matcher.matches(workdir.resolve("foo/bar.txt"))).isTrue();
+    assertThat(matcher.matches(workdir.resolve("foo/bar.txt/other"))).isFalse();
+    assertThat(matcher.matches(workdir.resolve("foo/bar.txt2"))).isFalse();
+    assertThat(matcher.matches(workdir.resolve("baz/a"))).isTrue();
+    assertThat(matcher.matches(workdir.resolve("baz/a/b"))).isTrue();
+    assertThat(matcher.matches(workdir.resolve("baz"))).isFalse();
+    assertThat(matcher.matches(workdir.resolve("bazz/a"))).isFalse();
+
+    PathMatcher all = Glob.ALL_FILES.relativeTo(workdir);
+    assertThat(all.matches(workdir.resolve("a"))).isTrue();
+    assertThat(all.matches(workdir.resolve("a/b"))).isTrue();
+    assertThat(all.matches(workdir)).isFalse();
+    assertThat(all.matches(workdir.resolveSibling("other"))).isFalse();
+  }
+
+  @Test
+  public void testIsDisjoint() throws Exception {
+    Glob javaFiles = createGlob(ImmutableList.of("java/**"));
+    Glob docs = createGlob(ImmutableList.of("docs/**/*.md", "README/**"));
+    Glob javaSubdir = createGlob(ImmutableList.of("java/com/foo/**"));
+    Glob rootFiles = createGlob(ImmutableList.of("*.txt"));
+
+    assertThat(javaFiles.isDisjoint(docs)).isTrue();
+    assertThat(docs.isDisjoint(javaFiles)).isTrue();
+    assertThat(javaFiles.isDisjoint(javaSubdir)).isFalse();
+    assertThat(javaSubdir.isDisjoint(javaFiles)).isFalse();
+    assertThat(javaFiles.isDisjoint(javaFiles)).isFalse();
+    // 'javadoc' is not under 'java'
+    assertThat(javaFiles.isDisjoint(createGlob(ImmutableList.of("javadoc/**")))).isTrue();
+    // Root level globs might match anything.
+    assertThat(rootFiles.isDisjoint(docs)).isFalse();
+    assertThat(docs.isDisjoint(Glob.ALL_FILES)).isFalse();
+  }
+
   @Test
   public void windowsGlobWorks() throws Exception {
     FileSystem workFs = Jimfs.newFileSystem(Configuration.windows());
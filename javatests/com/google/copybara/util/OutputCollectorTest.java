@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Strings;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class OutputCollectorTest {
+
+  private Path spillDir;
+
+  @Before
+  public void setup() throws IOException {
+    spillDir = Files.createTempDirectory("spill");
+  }
+
+  @Test
+  public void testSmallOutput() throws IOException {
+    OutputCollector collector = new OutputCollector(/*keepContent=*/true, /*spillThreshold=*/100,
+        spillDir);
+    write(collector, "foo\n");
+    write(collector, "bar\n");
+
+    assertThat(collector.getContent().asCharSource(UTF_8).read()).isEqualTo("foo\nbar\n");
+    assertThat(collector.isLogTruncated()).isFalse();
+    assertThat(collector.getLogHead()).isEqualTo("foo\nbar\n");
+  }
+
+  @Test
+  public void testSpilledOutput() throws IOException {
+    OutputCollector collector = new OutputCollector(/*keepContent=*/true, /*spillThreshold=*/5,
+        spillDir);
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      write(collector, "line " + i + "\n");
+      expected.append("line ").append(i).append("\n");
+    }
+
+    assertThat(collector.getContent().asCharSource(UTF_8).read()).isEqualTo(expected.toString());
+    assertThat(collector.size()).isEqualTo(expected.length());
+  }
+
+  @Test
+  public void testSpilledOutputIsDeletedOnceRead() throws IOException {
+    OutputCollector collector = new OutputCollector(/*keepContent=*/true, /*spillThreshold=*/5,
+        spillDir);
+    write(collector, "some output\n");
+    assertThat(listSpillDir()).hasSize(1);
+
+    ByteSource content = collector.getContent();
+    assertThat(new String(content.read(), UTF_8)).isEqualTo("some output\n");
+    assertThat(listSpillDir()).isEmpty();
+    // It can still be read, without copying it again
+    assertThat(content.read()).isSameAs(content.read());
+    assertThat(new String(content.read(), UTF_8)).isEqualTo("some output\n");
+    try (InputStream stream = content.openStream()) {
+      assertThat(new String(ByteStreams.toByteArray(stream), UTF_8)).isEqualTo("some output\n");
+    }
+  }
+
+  @Test
+  public void testSpilledOutputIsDeletedWhenStreamClosed() throws IOException {
+    OutputCollector collector = new OutputCollector(/*keepContent=*/true, /*spillThreshold=*/5,
+        spillDir);
+    write(collector, "some output\n");
+
+    ByteSource content = collector.getContent();
+    try (InputStream stream = content.openStream()) {
+      assertThat(new String(ByteStreams.toByteArray(stream), UTF_8)).isEqualTo("some output\n");
+    }
+    assertThat(listSpillDir()).isEmpty();
+    try {
+      content.read();
+      fail();
+    } catch (IOException e) {
+      assertThat(e).hasMessageThat().contains("already consumed");
+    }
+  }
+
+  @Test
+  public void testDiscard() throws IOException {
+    OutputCollector collector = new OutputCollector(/*keepContent=*/true, /*spillThreshold=*/5,
+        spillDir);
+    write(collector, "some output\n");
+
+    collector.discard();
+    assertThat(listSpillDir()).isEmpty();
+  }
+
+  @Test
+  public void testLogHeadAndTail() throws IOException {
+    OutputCollector collector = new OutputCollector(/*keepContent=*/false, /*spillThreshold=*/0,
+        spillDir);
+    String line = Strings.repeat("a", 99) + "\n";
+    int lines = 3 * OutputCollector.LOG_BYTES / line.length();
+    write(collector, "first\n");
+    for (int i = 0; i < lines; i++) {
+      write(collector, line);
+    }
+    // Bigger than the tail buffer in a single write
+    write(collector, Strings.repeat(line, OutputCollector.LOG_BYTES / line.length() + 1));
+    write(collector, "last\n");
+
+    assertThat(collector.isLogTruncated()).isTrue();
+    String head = collector.getLogHead();
+    assertThat(head).startsWith("first\n" + line);
+    assertThat(head).endsWith(line.trim());
+    String tail = collector.getLogTail();
+    assertThat(tail).startsWith(line);
+    assertThat(tail).endsWith(line + "last\n");
+    assertThat(head.length()).isAtMost(OutputCollector.LOG_BYTES);
+    assertThat(tail.length()).isAtMost(OutputCollector.LOG_BYTES);
+  }
+
+  private List<Path> listSpillDir() throws IOException {
+    try (Stream<Path> files = Files.list(spillDir)) {
+      return files.collect(Collectors.toList());
+    }
+  }
+
+  private static void write(OutputCollector collector, String content) throws IOException {
+    byte[] bytes = content.getBytes(UTF_8);
+    collector.write(bytes, 0, bytes.length);
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TransformCacheTest {
+
+  private DirFactory dirFactory;
+
+  @Before
+  public void setup() throws Exception {
+    dirFactory = new DirFactory(Files.createTempDirectory("root"));
+  }
+
+  @Test
+  public void testGetAndPut() throws Exception {
+    TransformCache cache = new TransformCache(/*enabled=*/true, dirFactory, 1024);
+    HashCode key = TransformCache.key("fingerprint", hash("content"));
+
+    assertThat(cache.get(key)).isNull();
+    cache.put(key, bytes("transformed"));
+    assertThat(cache.get(key)).isEqualTo(bytes("transformed"));
+
+    // Entries are persisted across instances, and keyed by fingerprint too.
+    TransformCache other = new TransformCache(/*enabled=*/true, dirFactory, 1024);
+    assertThat(other.get(key)).isEqualTo(bytes("transformed"));
+    assertThat(other.get(TransformCache.key("other fingerprint", hash("content")))).isNull();
+  }
+
+  @Test
+  public void testDisabled() throws Exception {
+    TransformCache cache = new TransformCache(/*enabled=*/false, dirFactory, 1024);
+    HashCode key = TransformCache.key("fingerprint", hash("content"));
+
+    cache.put(key, bytes("transformed"));
+    assertThat(cache.get(key)).isNull();
+    assertThat(Files.exists(dirFactory.getCacheDir("transform_cache").resolve(
+        key.toString().substring(0, 2)))).isFalse();
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEntriesAreEvicted() throws Exception {
+    TransformCache cache = new TransformCache(/*enabled=*/true, dirFactory, 25);
+    HashCode first = TransformCache.key("fingerprint", hash("first"));
+    HashCode second = TransformCache.key("fingerprint", hash("second"));
+    HashCode third = TransformCache.key("fingerprint", hash("third"));
+
+    cache.put(first, new byte[10]);
+    cache.put(second, new byte[10]);
+    setAccessTime(first, 1000);
+    setAccessTime(second, 2000);
+    cache.put(third, new byte[10]);
+    setAccessTime(third, 3000);
+
+    assertThat(cache.get(first)).isNull();
+    assertThat(cache.get(second)).isNotNull();
+    assertThat(cache.get(third)).isNotNull();
+  }
+
+  @Test
+  public void testOverwritingAnEntryDoesNotEvict() throws Exception {
+    TransformCache cache = new TransformCache(/*enabled=*/true, dirFactory, 25);
+    HashCode first = TransformCache.key("fingerprint", hash("first"));
+    HashCode second = TransformCache.key("fingerprint", hash("second"));
+
+    cache.put(first, new byte[10]);
+    for (int i = 0; i < 5; i++) {
+      cache.put(second, new byte[10]);
+    }
+
+    assertThat(cache.get(first)).isNotNull();
+    assertThat(cache.get(second)).isNotNull();
+  }
+
+  @Test
+  public void testHitsUpdateAccessTimeOnce() throws Exception {
+    TransformCache cache = new TransformCache(/*enabled=*/true, dirFactory, 1024);
+    HashCode key = TransformCache.key("fingerprint", hash("content"));
+    new TransformCache(/*enabled=*/true, dirFactory, 1024).put(key, bytes("transformed"));
+    setAccessTime(key, 1000);
+
+    assertThat(cache.get(key)).isNotNull();
+    assertThat(getAccessTime(key)).isGreaterThan(1000L);
+
+    setAccessTime(key, 1000);
+    assertThat(cache.get(key)).isNotNull();
+    assertThat(getAccessTime(key)).isEqualTo(1000L);
+  }
+
+  private void setAccessTime(HashCode key, long millis) throws Exception {
+    Files.setLastModifiedTime(entryPath(key), FileTime.fromMillis(millis));
+  }
+
+  private long getAccessTime(HashCode key) throws Exception {
+    return Files.getLastModifiedTime(entryPath(key)).toMillis();
+  }
+
+  private Path entryPath(HashCode key) throws Exception {
+    return dirFactory.getCacheDir("transform_cache")
+        .resolve(key.toString().substring(0, 2))
+        .resolve(key.toString().substring(2));
+  }
+
+  private static HashCode hash(String content) {
+    return Hashing.sha256().hashString(content, UTF_8);
+  }
+
+  private static byte[] bytes(String content) {
+    return content.getBytes(UTF_8);
+  }
+}